@@ -25,6 +25,10 @@ public class ScheduledThreadPoolExecutor {
         scheduler.callAfterDelay(new CallableWrapper(callable), (int)delay);
         return null;
     }
+
+    public java.util.List<Runnable> shutdownNow() {
+        return new java.util.ArrayList<>();
+    }
     private static class CallableWrapper {
         private final Callable callable;
         public CallableWrapper(Callable callable) {
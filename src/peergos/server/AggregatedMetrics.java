@@ -1,11 +1,14 @@
 package peergos.server;
 
-import io.prometheus.client.Counter;
-import io.prometheus.client.Histogram;
+import io.prometheus.client.*;
 import io.prometheus.client.exporter.HTTPServer;
 import peergos.server.util.*;
+import peergos.shared.mutable.*;
+import peergos.shared.storage.*;
 
 import java.io.IOException;
+import java.util.*;
+import java.util.function.*;
 
 /**
  * A wrapper around the prometheus metrics and HTTP exporter.
@@ -25,6 +28,8 @@ public class AggregatedMetrics {
     public static final Counter DHT_ID  = build("dht_id", "Total id calls.");
     public static final Counter DHT_BLOCK_PUT  = build("dht_block_put", "Total DHT block puts.");
     public static final Counter DHT_BLOCK_GET  = build("dht_block_get", "Total DHT block gets.");
+    public static final Counter DHT_BLOCK_GET_ALL  = build("dht_block_get_all", "Total DHT multi-block gets.");
+    public static final Counter DHT_CHAMP_GET  = build("dht_champ_get", "Total DHT champ lookups.");
     public static final Counter DHT_BLOCK_STAT  = build("dht_block_stat", "Total DHT block stats.");
     public static final Counter DHT_BLOCK_REFS  = build("dht_block_refs", "Total DHT block refs.");
     public static final Counter DHT_TRANSACTION_START  = build("dht_transaction_start", "Total DHT transaction starts.");
@@ -32,8 +37,10 @@ public class AggregatedMetrics {
 
     public static final Counter MUTABLE_POINTERS_SET  = build("mutable_pointers_set", "Total mutable-pointers set calls.");
     public static final Counter MUTABLE_POINTERS_GET  = build("mutable_pointers_get", "Total mutable-pointers get calls.");
+    public static final Counter MUTABLE_POINTERS_SUBSCRIBE  = build("mutable_pointers_subscribe", "Total mutable-pointers subscribe calls.");
 
     public static final Counter GET_ALL_USERNAMES  = build("core_node_get_all_usernames", "Total get-all-usernames calls.");
+    public static final Counter GET_USERNAMES_PAGE  = build("core_node_get_usernames_page", "Total get-usernames-page calls.");
     public static final Counter GET_USERNAME  = build("core_node_get_username", "Total get-username calls.");
     public static final Counter GET_PUBLIC_KEY  = build("core_node_get_public_key", "Total get-public-key calls.");
     public static final Counter GET_PUBLIC_KEY_CHAIN  = build("core_node_get_chain", "Total get-public-key-chain calls.");
@@ -51,6 +58,67 @@ public class AggregatedMetrics {
             .register();
 
 
+    /** The metrics common to all caches, named prefix_hits etc.
+     */
+    private static List<Collector.MetricFamilySamples> cacheSamples(String prefix,
+                                                                    String cache,
+                                                                    String items,
+                                                                    CacheStats current) {
+        return new ArrayList<>(Arrays.asList(
+                new CounterMetricFamily(prefix + "_hits", "Total " + cache + " hits.", current.hits),
+                new CounterMetricFamily(prefix + "_misses", "Total " + cache + " misses.", current.misses),
+                new CounterMetricFamily(prefix + "_evictions", "Total " + items + " evicted from the " + cache + ".", current.evictions),
+                new GaugeMetricFamily(prefix + "_entries", "Number of " + items + " in the " + cache + ".", current.entries)));
+    }
+
+    /** Export the counters of a block cache, which are sampled on each scrape
+     */
+    public static void registerBlockCache(Supplier<BlockCache.Stats> stats) {
+        new Collector() {
+            @Override
+            public List<MetricFamilySamples> collect() {
+                BlockCache.Stats current = stats.get();
+                List<MetricFamilySamples> res = cacheSamples("block_cache", "block cache", "blocks", current);
+                res.add(new CounterMetricFamily("block_cache_coalesced_loads", "Total block cache misses served by an in flight load.", current.coalescedLoads));
+                res.add(new CounterMetricFamily("block_cache_rejections", "Total blocks refused admission to the block cache.", current.rejections));
+                res.add(new GaugeMetricFamily("block_cache_bytes", "Total size of blocks in the block cache.", current.bytes));
+                res.add(new GaugeMetricFamily("block_cache_pending_loads", "Number of in flight block cache loads.", current.pendingLoads));
+                return res;
+            }
+        }.register();
+    }
+
+    /** Export the counters of a mutable pointer cache, which are sampled on each scrape
+     */
+    public static void registerPointerCache(Supplier<CachingPointers.Stats> stats) {
+        new Collector() {
+            @Override
+            public List<MetricFamilySamples> collect() {
+                CachingPointers.Stats current = stats.get();
+                List<MetricFamilySamples> res = cacheSamples("pointer_cache", "mutable pointer cache", "mutable pointers", current);
+                res.add(new CounterMetricFamily("pointer_cache_coalesced_reads", "Total mutable pointer cache misses served by an in flight read.", current.coalescedReads));
+                return res;
+            }
+        }.register();
+    }
+
+    /** Export the counters of a cache of decoded objects, which are sampled on each scrape
+     *
+     * @param name the metric prefix, e.g. champ for champ_cache_hits
+     * @param items what is cached, e.g. champ nodes
+     */
+    public static void registerObjectCache(String name, String items, Supplier<ObjectCache.Stats> stats) {
+        new Collector() {
+            @Override
+            public List<MetricFamilySamples> collect() {
+                ObjectCache.Stats current = stats.get();
+                String prefix = name + "_cache";
+                List<MetricFamilySamples> res = cacheSamples(prefix, items + " cache", items, current);
+                res.add(new GaugeMetricFamily(prefix + "_bytes", "Total size of the blocks decoded into the " + items + " cache.", current.bytes));
+                return res;
+            }
+        }.register();
+    }
 
     public static void startExporter(String address, int port) throws IOException {
         Logging.LOG().info("Starting metrics server at " + address + ":" + port);
@@ -20,6 +20,7 @@ import peergos.shared.crypto.asymmetric.curve25519.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.crypto.password.*;
 import peergos.shared.crypto.symmetric.*;
+import peergos.shared.hamt.*;
 import peergos.shared.io.ipfs.multiaddr.*;
 import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
@@ -28,6 +29,7 @@ import peergos.shared.social.*;
 import peergos.shared.storage.*;
 import peergos.shared.user.*;
 import peergos.shared.user.fs.*;
+import peergos.shared.user.fs.cryptree.*;
 
 import java.io.*;
 import java.net.*;
@@ -123,11 +125,19 @@ public class Main {
                     new Command.Arg("space-requests-sql-file", "The filename for the space requests datastore", true, "space-requests.sql"),
                     new Command.Arg("space-usage-sql-file", "The filename for the space usage datastore", true, "space-usage.sql"),
                     new Command.Arg("transactions-sql-file", "The filename for the transactions datastore", false, "transactions.sql"),
+                    new Command.Arg("pack-blockstore", "Store blocks in large append only segment files rather than a file per block (when not using IPFS)", false, "false"),
+                    new Command.Arg("pack-index-sql-file", "The filename for the index of blocks in segment files", false, "pack-index.sql"),
+                    new Command.Arg("pack.segment-size", "Maximum size in bytes of a block store segment file", false, Long.toString(1024 * 1024 * 1024L)),
                     new Command.Arg("webroot", "the path to the directory to serve as the web root", false),
                     new Command.Arg("default-quota", "default maximum storage per user", false, Long.toString(1024L * 1024 * 1024)),
                     new Command.Arg("mirror.node.id", "Mirror a server's data locally", false),
                     new Command.Arg("mirror.username", "Mirror a user's data locally", false),
+                    new Command.Arg("mirror.threads", "Maximum number of concurrent block copies when mirroring", false, "16"),
+                    new Command.Arg("space-usage-threads", "Number of writers whose space usage is updated concurrently", false, "4"),
                     new Command.Arg("public-server", "Are we a public server? (allow http GETs to API)", false, "false"),
+                    new Command.Arg("block-cache-size", "Maximum total size in bytes of blocks cached in RAM", false, Long.toString(20 * 1024 * 1024)),
+                    new Command.Arg("pointer-cache-size", "Maximum number of mutable pointers cached in RAM", false, "100000"),
+                    new Command.Arg("pointer-cache-ttl", "Maximum age in milliseconds of a cached mutable pointer", false, "60000"),
                     new Command.Arg("collect-metrics", "Export aggregated metrics", false, "false"),
                     new Command.Arg("metrics.address", "Listen address for serving aggregated metrics", false, "localhost"),
                     new Command.Arg("metrics.port", "Port for serving aggregated metrics", false, "8001")
@@ -450,7 +460,7 @@ public class Main {
             String domain = a.getArg("domain");
             InetSocketAddress userAPIAddress = new InetSocketAddress(domain, webPort);
 
-            int dhtCacheEntries = 1000;
+            long dhtCacheBytes = a.getLong("block-cache-size", 20 * 1024 * 1024);
             int maxValueSizeToCache = 50 * 1024;
             JavaPoster ipfsApi = new JavaPoster(ipfsApiAddress, false);
             JavaPoster ipfsGateway = new JavaPoster(ipfsGatewayAddress, false);
@@ -464,12 +474,16 @@ public class Main {
             if (useIPFS) {
                 boolean enableGC = a.getBoolean("enable-gc", false);
                 ContentAddressedStorage.HTTP ipfs = new ContentAddressedStorage.HTTP(ipfsApi, false);
+                CachingStorage cachingDht;
                 if (enableGC) {
                     GarbageCollector gced = new GarbageCollector(ipfs, a.getInt("gc.period.millis", 60 * 60 * 1000));
                     gced.start();
-                    localDht = new CachingStorage(gced, dhtCacheEntries, maxValueSizeToCache);
+                    cachingDht = new CachingStorage(gced, dhtCacheBytes, maxValueSizeToCache);
                 } else
-                    localDht = new CachingStorage(ipfs, dhtCacheEntries, maxValueSizeToCache);
+                    cachingDht = new CachingStorage(ipfs, dhtCacheBytes, maxValueSizeToCache);
+                if (doExportAggregatedMetrics)
+                    AggregatedMetrics.registerBlockCache(cachingDht::getCacheStats);
+                localDht = cachingDht;
             } else {
                 boolean enableGC = a.getBoolean("enable-gc", false);
                 if (enableGC)
@@ -486,7 +500,9 @@ public class Main {
                     BlockStoreProperties props = new BlockStoreProperties(directWrites, publicReads, authedReads, publicReadUrl);
                     localDht = new S3BlockStorage(S3Config.build(a), Cid.decode(a.getArg("ipfs.id")),
                             props, transactions, ipfs);
-                } else
+                } else if (a.getBoolean("pack-blockstore", false))
+                    localDht = PackFileBlockStorage.build(a, transactions, sqlCommands);
+                else
                     localDht = new FileContentAddressedStorage(blockstorePath(a), transactions);
             }
 
@@ -498,12 +514,26 @@ public class Main {
             JdbcIpnsAndSocial rawPointers = new JdbcIpnsAndSocial(database, sqlCommands);
             MutablePointers localPointers = UserRepository.build(localDht, rawPointers);
             MutablePointersProxy proxingMutable = new HttpMutablePointers(ipfsGateway, pkiServerNodeId);
+            MutableEventPropagator localMutable = new MutableEventPropagator(localPointers);
+            // Local pointer updates are pushed into the cache, the TTL only bounds staleness of updates which bypass it
+            CachingPointers cachingMutable = new CachingPointers(localMutable,
+                    a.getInt("pointer-cache-ttl", 60_000), a.getInt("pointer-cache-size", 100_000));
+            localMutable.addListener(e -> cachingMutable.updated(e.writer, e.writerSignedBtreeRootHash));
+            if (doExportAggregatedMetrics) {
+                AggregatedMetrics.registerPointerCache(cachingMutable::stats);
+                AggregatedMetrics.registerObjectCache("champ", "champ nodes", Champ.CACHE::stats);
+                AggregatedMetrics.registerObjectCache("writer_data", "writer data", WriterData.CACHE::stats);
+                AggregatedMetrics.registerObjectCache("cryptree", "cryptree nodes", CryptreeNode.CACHE::stats);
+            }
+            // The pki writes its pointer directly, but it is still served through the cache
+            MutableEventPropagator pkiMutable = new MutableEventPropagator(localPointers);
+            pkiMutable.addListener(e -> cachingMutable.updated(e.writer, e.writerSignedBtreeRootHash));
 
             PublicKeyHash peergosId = PublicKeyHash.fromString(a.getArg("peergos.identity.hash"));
             // build a mirroring proxying corenode, unless we are the pki node
             boolean isPkiNode = nodeId.equals(pkiServerNodeId);
             CoreNode core = isPkiNode ?
-                    buildPkiCorenode(new PinningMutablePointers(localPointers, localDht), localDht, a) :
+                    buildPkiCorenode(new PinningMutablePointers(pkiMutable, localDht), localDht, a) :
                     new MirrorCoreNode(new HTTPCoreNode(ipfsGateway, pkiServerNodeId), proxingMutable, localDht,
                             peergosId, a.fromPeergosDir("pki-mirror-state-path","pki-state.cbor"));
 
@@ -529,10 +559,9 @@ public class Main {
             Hasher hasher = crypto.hasher;
             SpaceCheckingKeyFilter.update(usageStore, userQuotas, core, localPointers, localDht, hasher);
             SpaceCheckingKeyFilter spaceChecker = new SpaceCheckingKeyFilter(core, localPointers, localDht,
-                    hasher, userQuotas, usageStore);
+                    hasher, userQuotas, usageStore, a.getInt("space-usage-threads", 4));
             CorenodeEventPropagator corePropagator = new CorenodeEventPropagator(signupFilter);
             corePropagator.addListener(spaceChecker::accept);
-            MutableEventPropagator localMutable = new MutableEventPropagator(localPointers);
             localMutable.addListener(spaceChecker::accept);
 
             ContentAddressedStorage filteringDht = new WriteFilter(localDht, spaceChecker::allowWrite);
@@ -540,9 +569,10 @@ public class Main {
             ContentAddressedStorage p2pDht = new ContentAddressedStorage.Proxying(filteringDht, proxingDht, nodeId, core);
 
             Path blacklistPath = a.fromPeergosDir("blacklist_file", "blacklist.txt");
-            PublicKeyBlackList blacklist = new UserBasedBlacklist(blacklistPath, core, localMutable, p2pDht, hasher);
-            MutablePointers blockingMutablePointers = new BlockingMutablePointers(new PinningMutablePointers(localMutable, p2pDht), blacklist);
+            PublicKeyBlackList blacklist = new UserBasedBlacklist(blacklistPath, core, cachingMutable, p2pDht, hasher);
+            MutablePointers blockingMutablePointers = new BlockingMutablePointers(new PinningMutablePointers(cachingMutable, p2pDht), blacklist);
             MutablePointers p2mMutable = new ProxyingMutablePointers(nodeId, core, blockingMutablePointers, proxingMutable);
+            MutableEventPropagator p2mEvents = new MutableEventPropagator(p2mMutable);
 
             SocialNetworkProxy httpSocial = new HttpSocialNetwork(ipfsGateway, ipfsGateway);
 
@@ -559,7 +589,12 @@ public class Main {
             Admin storageAdmin = new Admin(adminUsernames, userQuotas, core, localDht, enableWaitlist);
             HttpSpaceUsage httpSpaceUsage = new HttpSpaceUsage(ipfsGateway, ipfsGateway);
             ProxyingSpaceUsage p2pSpaceUsage = new ProxyingSpaceUsage(nodeId, corePropagator, spaceChecker, httpSpaceUsage);
-            UserService peergos = new UserService(p2pDht, crypto, corePropagator, p2pSocial, p2mMutable, storageAdmin, p2pSpaceUsage);
+            // reads pass straight through the wrappers around the local store, so block gets can bypass them
+            Optional<BlockFileSource> blockFiles = localDht instanceof BlockFileSource ?
+                    Optional.of((BlockFileSource) localDht) :
+                    Optional.empty();
+            UserService peergos = new UserService(p2pDht, crypto, corePropagator, p2pSocial, p2mEvents, storageAdmin,
+                    p2pSpaceUsage, blockFiles);
             InetSocketAddress localAddress = new InetSocketAddress("localhost", userAPIAddress.getPort());
             Optional<Path> webroot = a.hasArg("webroot") ?
                     Optional.of(Paths.get(a.getArg("webroot"))) :
@@ -581,31 +616,22 @@ public class Main {
             }
             spaceChecker.calculateUsage();
 
-            if (a.hasArg("mirror.node.id")) {
-                Multihash nodeToMirrorId = Cid.decode(a.getArg("mirror.node.id"));
-                NetworkAccess localApi = NetworkAccess.buildJava(webPort).join();
-                new Thread(() -> {
-                    while (true) {
-                        try {
-                            Mirror.mirrorNode(nodeToMirrorId, localApi, rawPointers, localDht);
-                            try {
-                                Thread.sleep(60_000);
-                            } catch (InterruptedException f) {}
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                            try {
-                                Thread.sleep(5_000);
-                            } catch (InterruptedException f) {}
-                        }
-                    }
-                }).start();
-            }
-            if (a.hasArg("mirror.username")) {
+            if (a.hasArg("mirror.node.id") || a.hasArg("mirror.username")) {
                 NetworkAccess localApi = NetworkAccess.buildJava(webPort).join();
+                Mirror mirror = new Mirror(localApi, rawPointers, cachingMutable::updated, localDht,
+                        a.getInt("mirror.threads", 16));
+                // follow updates as they pass through us, the periodic passes catch any others
+                p2mEvents.addListener(mirror);
+                Optional<Multihash> nodeToMirrorId = a.hasArg("mirror.node.id") ?
+                        Optional.of(Cid.decode(a.getArg("mirror.node.id"))) :
+                        Optional.empty();
                 new Thread(() -> {
                     while (true) {
                         try {
-                            Mirror.mirrorUser(a.getArg("mirror.username"), localApi, rawPointers, localDht);
+                            if (nodeToMirrorId.isPresent())
+                                mirror.mirrorNode(nodeToMirrorId.get());
+                            if (a.hasArg("mirror.username"))
+                                mirror.mirrorUser(a.getArg("mirror.username"));
                             try {
                                 Thread.sleep(60_000);
                             } catch (InterruptedException f) {}
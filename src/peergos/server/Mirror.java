@@ -1,84 +1,337 @@
 package peergos.server;
 
+import io.prometheus.client.*;
 import peergos.server.corenode.*;
+import peergos.server.mutable.*;
 import peergos.server.util.*;
 import peergos.shared.*;
+import peergos.shared.cbor.*;
 import peergos.shared.corenode.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.mutable.*;
 import peergos.shared.storage.*;
 import peergos.shared.user.*;
+import peergos.shared.util.*;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 import java.util.logging.*;
+import java.util.stream.*;
 
-public class Mirror {
+/** Mirrors the data of users on another server into local storage.
+ *
+ * Users and writers are mirrored concurrently on a bounded pool. The local pointer of each writer is the checkpoint
+ * of what has been mirrored, it is only updated once all the blocks of the new root are stored locally. A repeat run,
+ * or a run after a crash, therefore only copies the blocks which are new since the last checkpoint of each writer.
+ *
+ * As well as one-shot runs over a node or a user, a Mirror can follow pointer updates as a listener of a
+ * MutableEventPropagator. Updates to writers of mirrored users are queued and mirrored as they arrive, with updates
+ * to a writer which is already being mirrored coalesced into a single rerun.
+ */
+public class Mirror implements Consumer<MutableEvent> {
 
-    public static void mirrorNode(Multihash nodeId,
-                                  NetworkAccess mirror,
-                                  JdbcIpnsAndSocial targetPointers,
-                                  ContentAddressedStorage targetStorage) {
+    private static final Counter mirroredBlocks = Counter.build()
+            .name("mirror_blocks")
+            .help("Total blocks copied by mirroring")
+            .register();
+    private static final Counter mirroredBytes = Counter.build()
+            .name("mirror_bytes")
+            .help("Total size of blocks copied by mirroring")
+            .register();
+    private static final Counter mirroredWriters = Counter.build()
+            .name("mirror_writer_updates")
+            .help("Total writer checkpoints advanced by mirroring")
+            .register();
+    private static final Counter mirrorErrors = Counter.build()
+            .name("mirror_errors")
+            .help("Total failures to mirror a user or writer")
+            .register();
+    private static final Gauge pendingWriters = Gauge.build()
+            .name("mirror_pending_writers")
+            .help("Number of followed writers waiting to be mirrored")
+            .register();
+    private static final Histogram mirrorLag = Histogram.build()
+            .name("mirror_lag")
+            .help("Time (ms) from a writer being queued for mirroring until its checkpoint is committed")
+            .exponentialBuckets(1, 2, 25)
+            .register();
+
+    private final NetworkAccess source;
+    private final JdbcIpnsAndSocial targetPointers;
+    private final BiConsumer<PublicKeyHash, byte[]> committed;
+    private final ContentAddressedStorage targetStorage;
+    private final ExecutorService pool;
+    private final Set<PublicKeyHash> mirroredOwners = ConcurrentHashMap.newKeySet();
+    // writer -> whether it has been updated since its current mirroring started
+    private final Map<PublicKeyHash, Boolean> followed = new ConcurrentHashMap<>();
+
+    /**
+     *
+     * @param source
+     * @param targetPointers
+     * @param committed called with each pointer written to targetPointers, so anything caching them can be updated
+     * @param targetStorage
+     * @param parallelism
+     */
+    public Mirror(NetworkAccess source,
+                  JdbcIpnsAndSocial targetPointers,
+                  BiConsumer<PublicKeyHash, byte[]> committed,
+                  ContentAddressedStorage targetStorage,
+                  int parallelism) {
+        this.source = source;
+        this.targetPointers = targetPointers;
+        this.committed = committed;
+        this.targetStorage = targetStorage;
+        this.pool = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "Mirror");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void mirrorNode(Multihash nodeId) {
         Logging.LOG().log(Level.INFO, "Mirroring data for node " + nodeId);
-        List<String> allUsers = mirror.coreNode.getUsernames("").join();
-        int userCount = 0;
-        for (String username : allUsers) {
-            List<UserPublicKeyLink> chain = mirror.coreNode.getChain(username).join();
-            if (chain.get(chain.size() - 1).claim.storageProviders.contains(nodeId)) {
-                try {
-                    mirrorUser(username, mirror, targetPointers, targetStorage);
-                    userCount++;
-                } catch (Exception e) {
-                    Logging.LOG().log(Level.WARNING, "Couldn't mirror user: " + username, e);
-                }
-            }
-        }
-        Logging.LOG().log(Level.INFO, "Finished mirroring data for node " + nodeId + ", with " + userCount + " users.");
+        long t0 = System.currentTimeMillis();
+        List<String> allUsers = source.coreNode.getUsernames("").join();
+        List<CompletableFuture<Boolean>> users = allUsers.stream()
+                .map(username -> CompletableFuture.supplyAsync(() -> source.coreNode.getChain(username).join(), pool)
+                        .thenCompose(chain -> chain.get(chain.size() - 1).claim.storageProviders.contains(nodeId) ?
+                                mirrorUserAsync(username, t0) :
+                                Futures.of(false))
+                        .exceptionally(t -> {
+                            mirrorErrors.inc();
+                            Logging.LOG().log(Level.WARNING, "Couldn't mirror user: " + username, t);
+                            return false;
+                        }))
+                .collect(Collectors.toList());
+        long userCount = users.stream()
+                .map(CompletableFuture::join)
+                .filter(x -> x)
+                .count();
+        Logging.LOG().log(Level.INFO, "Finished mirroring data for node " + nodeId + ", with " + userCount
+                + " users in " + (System.currentTimeMillis() - t0) + " mS.");
     }
 
-    public static void mirrorUser(String username,
-                                  NetworkAccess source,
-                                  JdbcIpnsAndSocial targetPointers,
-                                  ContentAddressedStorage targetStorage) {
+    public void mirrorUser(String username) {
         Logging.LOG().log(Level.INFO, "Mirroring data for " + username);
-        Optional<PublicKeyHash> identity = source.coreNode.getPublicKeyHash(username).join();
-        if (! identity.isPresent())
-            return;
-        Set<PublicKeyHash> ownedKeys = WriterData.getOwnedKeysRecursive(username, source.coreNode, source.mutable,
-                source.dhtClient, source.hasher).join();
-        for (PublicKeyHash ownedKey : ownedKeys) {
-            mirrorMutableSubspace(identity.get(), ownedKey, source, targetPointers, targetStorage);
-        }
+        mirrorUserAsync(username, System.currentTimeMillis()).join();
         Logging.LOG().log(Level.INFO, "Finished mirroring data for " + username);
     }
 
-    public static void mirrorMutableSubspace(PublicKeyHash owner,
-                                             PublicKeyHash writer,
-                                             NetworkAccess source,
-                                             JdbcIpnsAndSocial targetPointers,
-                                             ContentAddressedStorage targetStorage) {
-        Optional<byte[]> updated = source.mutable.getPointer(owner, writer).join();
-        if (! updated.isPresent()) {
-            Logging.LOG().log(Level.WARNING, "Skipping unretrievable mutable pointer for: " + writer);
-            return;
+    /**
+     *
+     * @return true if the user exists
+     */
+    private CompletableFuture<Boolean> mirrorUserAsync(String username, long queuedAt) {
+        return CompletableFuture.supplyAsync(() -> source.coreNode.getPublicKeyHash(username).join()
+                .map(identity -> new Pair<>(identity, WriterData.getOwnedKeysRecursive(username, source.coreNode,
+                        source.mutable, source.dhtClient, source.hasher).join())), pool)
+                .thenCompose(keys -> {
+                    if (! keys.isPresent())
+                        return Futures.of(false);
+                    PublicKeyHash owner = keys.get().left;
+                    mirroredOwners.add(owner);
+                    return Futures.combineAllInOrder(keys.get().right.stream()
+                            .map(writer -> mirrorMutableSubspace(owner, writer, queuedAt))
+                            .collect(Collectors.toList()))
+                            .thenApply(x -> true);
+                });
+    }
+
+    private static class PointerUpdate {
+        public final Optional<byte[]> existing, updated;
+        public final MaybeMultihash existingTarget, updatedTarget;
+
+        public PointerUpdate(Optional<byte[]> existing,
+                             Optional<byte[]> updated,
+                             MaybeMultihash existingTarget,
+                             MaybeMultihash updatedTarget) {
+            this.existing = existing;
+            this.updated = updated;
+            this.existingTarget = existingTarget;
+            this.updatedTarget = updatedTarget;
+        }
+
+        public boolean isUpToDate() {
+            return existing.isPresent() && updated.isPresent() && Arrays.equals(existing.get(), updated.get());
         }
+    }
+
+    private PointerUpdate getPointers(PublicKeyHash owner, PublicKeyHash writer) {
+        Optional<byte[]> updated = source.mutable.getPointer(owner, writer).join();
         Optional<byte[]> existing = targetPointers.getPointer(writer).join();
-        // First pin the new root, then commit updated pointer
-        byte[] newPointer = updated.get();
+        if (! updated.isPresent() || (existing.isPresent() && Arrays.equals(existing.get(), updated.get())))
+            return new PointerUpdate(existing, updated, MaybeMultihash.empty(), MaybeMultihash.empty());
         MaybeMultihash existingTarget = existing.isPresent() ?
                 MutablePointers.parsePointerTarget(existing.get(), writer, source.dhtClient).join() :
                 MaybeMultihash.empty();
-        MaybeMultihash updatedTarget = MutablePointers.parsePointerTarget(newPointer, writer, source.dhtClient).join();
-        if (! updatedTarget.isPresent()) {
-            // The writing key must have been deleted
-            if (existingTarget.isPresent())
-                targetStorage.recursiveUnpin(owner, existingTarget.get());
-            return;
-        }
-        if (existingTarget.isPresent())
-            targetStorage.pinUpdate(owner, existingTarget.get(), updatedTarget.get()).join();
+        MaybeMultihash updatedTarget = MutablePointers.parsePointerTarget(updated.get(), writer, source.dhtClient).join();
+        return new PointerUpdate(existing, updated, existingTarget, updatedTarget);
+    }
+
+    /** Bring the local copy of a writing subspace up to date, and then advance its checkpoint
+     *
+     * @return true if the local copy is up to date
+     */
+    public CompletableFuture<Boolean> mirrorMutableSubspace(PublicKeyHash owner, PublicKeyHash writer, long queuedAt) {
+        return CompletableFuture.supplyAsync(() -> getPointers(owner, writer), pool)
+                .thenCompose(p -> {
+                    if (! p.updated.isPresent()) {
+                        Logging.LOG().log(Level.WARNING, "Skipping unretrievable mutable pointer for: " + writer);
+                        return Futures.of(false);
+                    }
+                    if (p.isUpToDate())
+                        return Futures.of(true);
+                    if (! p.updatedTarget.isPresent()) {
+                        // The writing key must have been deleted
+                        if (p.existingTarget.isPresent())
+                            targetStorage.recursiveUnpin(owner, p.existingTarget.get());
+                        return Futures.of(true);
+                    }
+                    return targetStorage.startTransaction(owner)
+                            .thenCompose(tid -> copyAndCommit(owner, writer, p, tid)
+                                    .handle((res, err) -> {
+                                        targetStorage.closeTransaction(owner, tid);
+                                        if (err != null)
+                                            throw err instanceof CompletionException ?
+                                                    (CompletionException) err :
+                                                    new CompletionException(err);
+                                        return res;
+                                    }));
+                }).thenApply(res -> {
+                    mirrorLag.observe(System.currentTimeMillis() - queuedAt);
+                    return res;
+                }).exceptionally(t -> {
+                    mirrorErrors.inc();
+                    Logging.LOG().log(Level.WARNING, "Couldn't mirror writer: " + writer, t);
+                    return false;
+                });
+    }
+
+    private CompletableFuture<Boolean> copyAndCommit(PublicKeyHash owner,
+                                                     PublicKeyHash writer,
+                                                     PointerUpdate p,
+                                                     TransactionId tid) {
+        Multihash updatedRoot = p.updatedTarget.get();
+        List<Multihash> replaced = p.existingTarget.isPresent() ?
+                Collections.singletonList(p.existingTarget.get()) :
+                Collections.emptyList();
+        // First copy and pin the new root, then commit updated pointer
+        return copyNewBlocks(owner, writer, updatedRoot, replaced, source.dhtClient, targetStorage, tid, pool)
+                .thenCompose(copied -> (p.existingTarget.isPresent() ?
+                        targetStorage.pinUpdate(owner, p.existingTarget.get(), updatedRoot) :
+                        targetStorage.recursivePin(owner, updatedRoot))
+                        .thenCompose(pins -> targetPointers.setPointer(writer, p.existing, p.updated.get()))
+                        .thenApply(committed -> {
+                            if (! committed)
+                                throw new IllegalStateException("Concurrent checkpoint update for writer " + writer);
+                            this.committed.accept(writer, p.updated.get());
+                            mirroredWriters.inc();
+                            Logging.LOG().log(Level.INFO, "Mirrored " + copied + " new blocks for writer " + writer);
+                            return true;
+                        }));
+    }
+
+    /** Copy all the blocks reachable from updated which aren't reachable from the replaced blocks, which must already
+     * be present in the target.
+     *
+     * As in Champ.applyToDiff, each new block is compared with the blocks it replaces at the same depth. Links which
+     * they have in common are unchanged subtrees and are skipped, and the remaining old links are the replaced blocks
+     * for the next level. Only the replaced blocks are read from the target, so the work is proportional to the size
+     * of the change. Sibling subtrees are copied concurrently.
+     *
+     * @return the number of blocks copied
+     */
+    public static CompletableFuture<Long> copyNewBlocks(PublicKeyHash owner,
+                                                        PublicKeyHash writer,
+                                                        Multihash updated,
+                                                        Collection<Multihash> replaced,
+                                                        ContentAddressedStorage source,
+                                                        ContentAddressedStorage target,
+                                                        TransactionId tid,
+                                                        Executor pool) {
+        if (updated.isIdentity())
+            return Futures.of(0L);
+        return CompletableFuture.supplyAsync(() -> {
+            List<Multihash> links = copyBlock(owner, writer, updated, source, target, tid);
+            Set<Multihash> existing = new HashSet<>();
+            for (Multihash old : replaced)
+                existing.addAll(getLinks(old, target));
+            return new Pair<>(links, existing);
+        }, pool).thenCompose(p -> {
+            Set<Multihash> links = new LinkedHashSet<>(p.left);
+            Set<Multihash> replacedChildren = p.right.stream()
+                    .filter(old -> ! links.contains(old))
+                    .collect(Collectors.toSet());
+            return Futures.combineAllInOrder(links.stream()
+                    .filter(link -> ! p.right.contains(link))
+                    .map(link -> copyNewBlocks(owner, writer, link, replacedChildren, source, target, tid, pool))
+                    .collect(Collectors.toList()))
+                    .thenApply(counts -> 1 + counts.stream().mapToLong(x -> x).sum());
+        });
+    }
+
+    private static boolean isRaw(Multihash h) {
+        return h instanceof Cid && ((Cid) h).codec == Cid.Codec.Raw;
+    }
+
+    /**
+     *
+     * @return the links of the copied block
+     */
+    private static List<Multihash> copyBlock(PublicKeyHash owner,
+                                             PublicKeyHash writer,
+                                             Multihash block,
+                                             ContentAddressedStorage source,
+                                             ContentAddressedStorage target,
+                                             TransactionId tid) {
+        byte[] data = source.getRaw(block).join()
+                .orElseThrow(() -> new IllegalStateException("Couldn't retrieve block " + block));
+        // The signatures are only checked for writes from users, and we are copying already authorised blocks
+        List<byte[]> signatures = Collections.singletonList(new byte[0]);
+        if (isRaw(block))
+            target.putRaw(owner, writer, signatures, Collections.singletonList(data), tid, x -> {}).join();
         else
-            targetStorage.recursivePin(owner, updatedTarget.get()).join();
-        targetPointers.setPointer(writer, existing, newPointer).join();
+            target.put(owner, writer, signatures, Collections.singletonList(data), tid).join();
+        mirroredBlocks.inc();
+        mirroredBytes.inc(data.length);
+        return isRaw(block) ? Collections.emptyList() : CborCursor.links(data);
+    }
+
+    private static List<Multihash> getLinks(Multihash block, ContentAddressedStorage target) {
+        if (isRaw(block) || block.isIdentity())
+            return Collections.emptyList();
+        return target.getRaw(block).join()
+                .map(CborCursor::links)
+                .orElse(Collections.emptyList());
+    }
+
+    /** Queue a pointer update of a mirrored user to be mirrored
+     */
+    @Override
+    public void accept(MutableEvent event) {
+        if (! mirroredOwners.contains(event.owner))
+            return;
+        boolean[] isNew = new boolean[1];
+        followed.compute(event.writer, (w, updated) -> {
+            isNew[0] = updated == null;
+            return ! isNew[0];
+        });
+        if (isNew[0])
+            follow(event.owner, event.writer, System.currentTimeMillis());
+        pendingWriters.set(followed.size());
+    }
+
+    private void follow(PublicKeyHash owner, PublicKeyHash writer, long queuedAt) {
+        mirrorMutableSubspace(owner, writer, queuedAt)
+                .thenAccept(res -> {
+                    // rerun if there was another update while we were mirroring
+                    if (! followed.remove(writer, false) && followed.replace(writer, true, false))
+                        follow(owner, writer, System.currentTimeMillis());
+                    pendingWriters.set(followed.size());
+                });
     }
 }
@@ -3,6 +3,7 @@ import java.util.*;
 import java.util.function.*;
 import java.util.logging.Logger;
 
+import peergos.server.storage.*;
 import peergos.server.storage.admin.*;
 import peergos.server.util.Logging;
 import java.util.logging.Level;
@@ -66,6 +67,10 @@ public class UserService {
         printSecurityProperties();
 
         Security.setProperty("jdk.tls.ephemeralDHKeySize", "2048");
+
+        // Send small responses, like most blocks, immediately rather than waiting for the client to ack the headers
+        if (System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
     }
 
     static void printSecurityProperties() {
@@ -81,6 +86,7 @@ public class UserService {
     public final MutablePointers mutable;
     public final InstanceAdmin controller;
     public final SpaceUsage usage;
+    private final Optional<BlockFileSource> blockFiles;
 
     public UserService(ContentAddressedStorage storage,
                        Crypto crypto,
@@ -88,7 +94,8 @@ public class UserService {
                        SocialNetwork social,
                        MutablePointers mutable,
                        InstanceAdmin controller,
-                       SpaceUsage usage) {
+                       SpaceUsage usage,
+                       Optional<BlockFileSource> blockFiles) {
         this.storage = storage;
         this.crypto = crypto;
         this.coreNode = coreNode;
@@ -96,6 +103,17 @@ public class UserService {
         this.mutable = mutable;
         this.controller = controller;
         this.usage = usage;
+        this.blockFiles = blockFiles;
+    }
+
+    public UserService(ContentAddressedStorage storage,
+                       Crypto crypto,
+                       CoreNode coreNode,
+                       SocialNetwork social,
+                       MutablePointers mutable,
+                       InstanceAdmin controller,
+                       SpaceUsage usage) {
+        this(storage, crypto, coreNode, social, mutable, controller, usage, Optional.empty());
     }
 
     public static class TlsProperties {
@@ -206,7 +224,7 @@ public class UserService {
                 tlsServer.createContext(path, new HSTSHandler(handlerFunc));
         };
 
-        addHandler.accept(Constants.DHT_URL, new DHTHandler(storage, crypto.hasher, (h, i) -> true, isPublicServer));
+        addHandler.accept(Constants.DHT_URL, new DHTHandler(storage, crypto.hasher, (h, i) -> true, isPublicServer, blockFiles));
         addHandler.accept("/" + Constants.CORE_URL,
                 new CoreNodeHandler(this.coreNode, isPublicServer));
         addHandler.accept("/" + Constants.SOCIAL_URL,
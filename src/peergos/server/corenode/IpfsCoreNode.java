@@ -23,6 +23,7 @@ import java.util.stream.*;
 
 public class IpfsCoreNode implements CoreNode {
 	private static final Logger LOG = Logging.LOG();
+    private static final int MAX_GROUP_COMMIT_UPDATES = 1_000;
 
     private final PublicKeyHash peergosIdentity;
     private final ContentAddressedStorage ipfs;
@@ -32,7 +33,10 @@ public class IpfsCoreNode implements CoreNode {
 
     private final Map<String, List<UserPublicKeyLink>> chains = new ConcurrentHashMap<>();
     private final Map<PublicKeyHash, String> reverseLookup = new ConcurrentHashMap<>();
-    private final List<String> usernames = new ArrayList<>();
+    private final UsernameIndex usernames = new UsernameIndex();
+
+    private final BlockingQueue<PendingUpdate> queue = new LinkedBlockingQueue<>();
+    private volatile boolean isClosed;
 
     private MaybeMultihash currentRoot;
 
@@ -49,6 +53,9 @@ public class IpfsCoreNode implements CoreNode {
         this.peergosIdentity = peergosIdentity;
         this.signer = pkiSigner;
         this.update(currentRoot);
+        Thread committer = new Thread(this::commitLoop, "Pki group commit");
+        committer.setDaemon(true);
+        committer.start();
     }
 
     public static byte[] keyHash(ByteArrayWrapper username) {
@@ -78,15 +85,18 @@ public class IpfsCoreNode implements CoreNode {
                                          ContentAddressedStorage ipfs,
                                          Map<String, List<UserPublicKeyLink>> chains,
                                          Map<PublicKeyHash, String> reverseLookup,
-                                         List<String> usernames) {
+                                         UsernameIndex usernames) {
         try {
             MaybeMultihash currentTree = getTreeRoot(currentChampRoot, ipfs);
             MaybeMultihash updatedTree = getTreeRoot(newChampRoot, ipfs);
+            // new users are added to the index in one go at the end
+            List<String> added = Collections.synchronizedList(new ArrayList<>());
             Consumer<Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash>> consumer =
-                    t -> updateMapping(t.left, t.middle, t.right, ipfs, chains, reverseLookup, usernames);
+                    t -> updateMapping(t.left, t.middle, t.right, ipfs, chains, reverseLookup, added);
             Champ.applyToDiff(currentTree, updatedTree, 0, IpfsCoreNode::keyHash,
                     Collections.emptyList(), Collections.emptyList(),
                     consumer, ChampWrapper.BIT_WIDTH, ipfs).get();
+            usernames.addAll(added);
         } catch (Exception e) {
             throw new RuntimeException(e.getMessage(), e);
         }
@@ -138,83 +148,225 @@ public class IpfsCoreNode implements CoreNode {
     }
 
     /** Update a user's public key chain, keeping the in memory mappings correct and committing the new pki root
+     *
+     * Updates are queued and group committed, see commitLoop.
      *
      * @param username
      * @param updatedChain
      * @return
      */
     @Override
-    public synchronized CompletableFuture<Boolean> updateChain(String username, List<UserPublicKeyLink> updatedChain) {
+    public CompletableFuture<Boolean> updateChain(String username, List<UserPublicKeyLink> updatedChain) {
         if (! UsernameValidator.isValidUsername(username))
             throw new IllegalStateException("Invalid username");
 
+        PendingUpdate update = new PendingUpdate(username, updatedChain);
+        synchronized (queue) {
+            if (isClosed)
+                return Futures.errored(new IllegalStateException("Pki is closed!"));
+            queue.add(update);
+        }
+        return update.result;
+    }
+
+    private static class PendingUpdate {
+        public final String username;
+        public final List<UserPublicKeyLink> chain;
+        public final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        public PendingUpdate(String username, List<UserPublicKeyLink> chain) {
+            this.username = username;
+            this.chain = chain;
+        }
+    }
+
+    private static class MergedChain {
+        public final String username;
+        public final MaybeMultihash existing;
+        public final boolean isNewUser;
+        public final List<UserPublicKeyLink> chain;
+        public final List<PendingUpdate> updates;
+
+        public MergedChain(String username,
+                           MaybeMultihash existing,
+                           boolean isNewUser,
+                           List<UserPublicKeyLink> chain,
+                           List<PendingUpdate> updates) {
+            this.username = username;
+            this.existing = existing;
+            this.isNewUser = isNewUser;
+            this.chain = chain;
+            this.updates = updates;
+        }
+
+        public CborObject.CborList toCbor() {
+            return new CborObject.CborList(chain.stream()
+                    .map(Cborable::toCbor)
+                    .collect(Collectors.toList()));
+        }
+    }
+
+    /** Group commit queued chain updates.
+     *
+     * Each batch is everything which was queued while the previous batch was being committed, so a lone sign up is
+     * committed immediately, and under load there is a single champ mutation, writer data commit and pointer update
+     * per batch rather than per sign up.
+     */
+    private void commitLoop() {
+        while (! isClosed) {
+            try {
+                PendingUpdate first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null)
+                    continue;
+                List<PendingUpdate> batch = new ArrayList<>();
+                batch.add(first);
+                queue.drainTo(batch, MAX_GROUP_COMMIT_UPDATES - 1);
+                commit(batch);
+            } catch (InterruptedException e) {
+                // closed
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, t.getMessage(), t);
+            }
+        }
+    }
+
+    private synchronized void commit(List<PendingUpdate> batch) {
+        List<MergedChain> merged;
+        ChampWrapper champ;
+        CommittedWriterData current;
         try {
-            CommittedWriterData current = WriterData.getWriterData(currentRoot.get(), ipfs).get();
+            current = WriterData.getWriterData(currentRoot.get(), ipfs).get();
             MaybeMultihash currentTree = current.props.tree.map(MaybeMultihash::of).orElseGet(MaybeMultihash::empty);
 
-            ChampWrapper champ = currentTree.isPresent() ?
+            champ = currentTree.isPresent() ?
                     ChampWrapper.create(currentTree.get(), IpfsCoreNode::keyHash, ipfs, hasher).get() :
                     IpfsTransaction.call(peergosIdentity,
                             tid -> ChampWrapper.create(signer.publicKeyHash, signer, IpfsCoreNode::keyHash, tid, ipfs, hasher),
                             ipfs).get();
+            Map<String, List<PendingUpdate>> byUsername = new LinkedHashMap<>();
+            for (PendingUpdate update : batch)
+                byUsername.computeIfAbsent(update.username, u -> new ArrayList<>()).add(update);
+
+            // Each username is validated independently, and an invalid update only fails its own caller
+            ChampWrapper tree = champ;
+            merged = byUsername.entrySet().parallelStream()
+                    .flatMap(e -> merge(e.getKey(), e.getValue(), tree).map(Stream::of).orElseGet(Stream::empty))
+                    .collect(Collectors.toList());
+        } catch (Exception e) {
+            for (PendingUpdate update : batch)
+                update.result.completeExceptionally(e);
+            return;
+        }
+        if (merged.isEmpty())
+            return;
+
+        try {
+            CommittedWriterData committed = IpfsTransaction.call(peergosIdentity,
+                    tid -> Futures.combineAllInOrder(merged.stream()
+                            .map(m -> ipfs.put(peergosIdentity, signer, m.toCbor().toByteArray(), hasher, tid))
+                            .collect(Collectors.toList()))
+                            .thenCompose(chainHashes -> {
+                                List<ImmutableTree.Mutation> mutations = new ArrayList<>();
+                                for (int i=0; i < merged.size(); i++)
+                                    mutations.add(ImmutableTree.Mutation.put(merged.get(i).username.getBytes(),
+                                            merged.get(i).existing, chainHashes.get(i)));
+                                return champ.applyBatch(signer.publicKeyHash, signer, mutations, tid);
+                            }).thenCompose(newPkiRoot -> current.props.withChamp(newPkiRoot)
+                                    .commit(peergosIdentity, signer, currentRoot, mutable, ipfs, hasher, tid))
+                            .thenApply(s -> s.get(signer)),
+                    ipfs).get();
+            usernames.addAll(merged.stream()
+                    .filter(m -> m.isNewUser)
+                    .map(m -> m.username)
+                    .collect(Collectors.toList()));
+            for (MergedChain m : merged) {
+                PublicKeyHash owner = m.chain.get(m.chain.size() - 1).owner;
+                reverseLookup.put(owner, m.username);
+                chains.put(m.username, m.chain);
+            }
+            currentRoot = committed.hash;
+            for (MergedChain m : merged)
+                for (PendingUpdate update : m.updates)
+                    update.result.complete(true);
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Couldn't commit " + merged.size() + " chain updates: " + e.getMessage(), e);
+            for (MergedChain m : merged)
+                for (PendingUpdate update : m.updates)
+                    update.result.completeExceptionally(e);
+        }
+    }
+
+    /** Merge the queued updates for a username onto its current chain, in order.
+     *
+     * @return the merged chain, unless there were no valid updates
+     */
+    private Optional<MergedChain> merge(String username, List<PendingUpdate> updates, ChampWrapper champ) {
+        try {
             MaybeMultihash existing = champ.get(username.getBytes()).get();
             Optional<CborObject> cborOpt = existing.isPresent() ?
                     ipfs.get(existing.get()).get() :
                     Optional.empty();
             if (! cborOpt.isPresent() && existing.isPresent()) {
                 LOG.severe("Couldn't retrieve existing claim chain from " + existing + " for " + username);
-                return CompletableFuture.completedFuture(true);
+                for (PendingUpdate update : updates)
+                    update.result.complete(true);
+                return Optional.empty();
             }
             List<UserPublicKeyLink> existingChain = cborOpt.map(cbor -> ((CborObject.CborList) cbor).value.stream()
                     .map(UserPublicKeyLink::fromCbor)
                     .collect(Collectors.toList()))
                     .orElse(Collections.emptyList());
 
-            List<UserPublicKeyLink> mergedChain = UserPublicKeyLink.merge(existingChain, updatedChain, ipfs).get();
-            CborObject.CborList mergedChainCbor = new CborObject.CborList(mergedChain.stream()
-                    .map(Cborable::toCbor)
-                    .collect(Collectors.toList()));
-            Multihash mergedChainHash = IpfsTransaction.call(peergosIdentity,
-                    tid -> ipfs.put(peergosIdentity, signer, mergedChainCbor.toByteArray(), hasher, tid),
-                    ipfs).get();
-            synchronized (this) {
-                return IpfsTransaction.call(peergosIdentity,
-                        tid -> champ.put(signer.publicKeyHash, signer, username.getBytes(), existing, mergedChainHash, tid)
-                                .thenCompose(newPkiRoot -> current.props.withChamp(newPkiRoot)
-                                        .commit(peergosIdentity, signer, currentRoot, mutable, ipfs, hasher, tid)),
-                        ipfs
-                ).thenApply(committed -> {
-                    if (existingChain.isEmpty())
-                        usernames.add(username);
-                    PublicKeyHash owner = updatedChain.get(updatedChain.size() - 1).owner;
-                    reverseLookup.put(owner, username);
-                    chains.put(username, mergedChain);
-                    currentRoot = committed.get(signer).hash;
-                    return true;
-                });
+            List<UserPublicKeyLink> mergedChain = existingChain;
+            List<PendingUpdate> valid = new ArrayList<>();
+            for (PendingUpdate update : updates) {
+                try {
+                    mergedChain = UserPublicKeyLink.merge(mergedChain, update.chain, ipfs).get();
+                    valid.add(update);
+                } catch (Exception e) {
+                    update.result.completeExceptionally(e);
+                }
             }
+            if (valid.isEmpty())
+                return Optional.empty();
+            return Optional.of(new MergedChain(username, existing, existingChain.isEmpty(), mergedChain, valid));
         } catch (Exception e) {
-            throw new RuntimeException(e.getMessage(), e);
+            for (PendingUpdate update : updates)
+                update.result.completeExceptionally(e);
+            return Optional.empty();
         }
     }
 
     @Override
-    public synchronized CompletableFuture<List<UserPublicKeyLink>> getChain(String username) {
+    public CompletableFuture<List<UserPublicKeyLink>> getChain(String username) {
         return CompletableFuture.completedFuture(chains.getOrDefault(username, Collections.emptyList()));
     }
 
     @Override
-    public synchronized CompletableFuture<String> getUsername(PublicKeyHash key) {
+    public CompletableFuture<String> getUsername(PublicKeyHash key) {
         return CompletableFuture.completedFuture(Optional.ofNullable(reverseLookup.get(key))
                 .orElseThrow(() -> new IllegalStateException("Unknown identity key: " + key)));
     }
 
     @Override
     public CompletableFuture<List<String>> getUsernames(String prefix) {
-        return CompletableFuture.completedFuture(usernames);
+        return CompletableFuture.completedFuture(usernames.getUsernames(prefix));
+    }
+
+    @Override
+    public CompletableFuture<List<String>> getUsernames(String prefix, int limit, Optional<String> after) {
+        return CompletableFuture.completedFuture(usernames.getUsernames(prefix, limit, after));
     }
 
     @Override
-    public void close() throws IOException {}
+    public void close() throws IOException {
+        List<PendingUpdate> uncommitted = new ArrayList<>();
+        synchronized (queue) {
+            isClosed = true;
+            queue.drainTo(uncommitted);
+        }
+        for (PendingUpdate update : uncommitted)
+            update.result.completeExceptionally(new IllegalStateException("Pki is closed!"));
+    }
 
 }
@@ -59,7 +59,7 @@ public class MirrorCoreNode implements CoreNode {
 
         private final Map<String, List<UserPublicKeyLink>> chains;
         private final Map<PublicKeyHash, String> reverseLookup;
-        private final List<String> usernames;
+        private final UsernameIndex usernames;
 
         public CorenodeState(PublicKeyHash pkiOwnerIdentity,
                              PublicKeyHash pkiKey,
@@ -67,7 +67,7 @@ public class MirrorCoreNode implements CoreNode {
                              MaybeMultihash pkiKeyTarget,
                              Map<String, List<UserPublicKeyLink>> chains,
                              Map<PublicKeyHash, String> reverseLookup,
-                             List<String> usernames) {
+                             UsernameIndex usernames) {
             this.pkiOwnerIdentity = pkiOwnerIdentity;
             this.pkiKey = pkiKey;
             this.pkiOwnerTarget = pkiOwnerTarget;
@@ -82,14 +82,13 @@ public class MirrorCoreNode implements CoreNode {
                                                MaybeMultihash pkiOwnerTarget,
                                                MaybeMultihash pkiKeyTarget) {
             return new CorenodeState(pkiOwnerIdentity, pkiKey, pkiOwnerTarget, pkiKeyTarget, new HashMap<>(),
-                    new HashMap<>(), new ArrayList<>());
+                    new HashMap<>(), new UsernameIndex());
         }
 
         public void load(CorenodeState other) {
             chains.putAll(other.chains);
             reverseLookup.putAll(other.reverseLookup);
-            usernames.clear();
-            usernames.addAll(other.usernames);
+            usernames.addAll(other.usernames.all());
         }
 
         @Override
@@ -118,7 +117,7 @@ public class MirrorCoreNode implements CoreNode {
                     TreeMap::new
                 ));
             res.put("reverse", new CborObject.CborMap(reverseMap));
-            res.put("usernames", new CborObject.CborList(usernames.stream()
+            res.put("usernames", new CborObject.CborList(usernames.all().stream()
                     .map(CborObject.CborString::new)
                     .collect(Collectors.toList())));
 
@@ -141,7 +140,7 @@ public class MirrorCoreNode implements CoreNode {
             Map<PublicKeyHash, String> reverse = ((CborObject.CborMap)map.get("reverse"))
                     .getMap(PublicKeyHash::fromCbor, fromString);
 
-            List<String> usernames = map.getList("usernames", fromString);
+            UsernameIndex usernames = new UsernameIndex(map.getList("usernames", fromString));
             return new CorenodeState(peergosKey, pkiKey, peergosTarget, pkiTarget, chains, reverse, usernames);
         }
     }
@@ -250,7 +249,12 @@ public class MirrorCoreNode implements CoreNode {
 
     @Override
     public CompletableFuture<List<String>> getUsernames(String prefix) {
-        return CompletableFuture.completedFuture(state.usernames);
+        return CompletableFuture.completedFuture(state.usernames.getUsernames(prefix));
+    }
+
+    @Override
+    public CompletableFuture<List<String>> getUsernames(String prefix, int limit, Optional<String> after) {
+        return CompletableFuture.completedFuture(state.usernames.getUsernames(prefix, limit, after));
     }
 
     @Override
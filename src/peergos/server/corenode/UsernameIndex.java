@@ -0,0 +1,81 @@
+package peergos.server.corenode;
+
+import java.util.*;
+import java.util.stream.*;
+
+/** A sorted set of usernames with lock free reads.
+ *
+ * Readers use an immutable sorted array, which writers replace atomically. All the usernames starting with a prefix
+ * are contiguous in the array, so a prefix query is a binary search followed by a scan of only the results.
+ */
+public class UsernameIndex {
+
+    private volatile String[] sorted;
+
+    public UsernameIndex(Collection<String> usernames) {
+        this.sorted = usernames.stream()
+                .distinct()
+                .sorted()
+                .toArray(String[]::new);
+    }
+
+    public UsernameIndex() {
+        this(Collections.emptyList());
+    }
+
+    public synchronized void add(String username) {
+        String[] current = sorted;
+        int index = Arrays.binarySearch(current, username);
+        if (index >= 0)
+            return;
+        int insertion = -index - 1;
+        String[] updated = new String[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, insertion);
+        updated[insertion] = username;
+        System.arraycopy(current, insertion, updated, insertion + 1, current.length - insertion);
+        sorted = updated;
+    }
+
+    /** Add many usernames with a single copy of the index
+     */
+    public synchronized void addAll(Collection<String> usernames) {
+        if (usernames.isEmpty())
+            return;
+        sorted = Stream.concat(Arrays.stream(sorted), usernames.stream())
+                .distinct()
+                .sorted()
+                .toArray(String[]::new);
+    }
+
+    public int size() {
+        return sorted.length;
+    }
+
+    public List<String> all() {
+        return Collections.unmodifiableList(Arrays.asList(sorted));
+    }
+
+    public List<String> getUsernames(String prefix) {
+        return getUsernames(prefix, Integer.MAX_VALUE, Optional.empty());
+    }
+
+    /**
+     *
+     * @param prefix
+     * @param limit the maximum number of usernames to return
+     * @param after only return usernames after this one
+     * @return usernames starting with prefix in order
+     */
+    public List<String> getUsernames(String prefix, int limit, Optional<String> after) {
+        String[] current = sorted;
+        String from = after.filter(a -> a.compareTo(prefix) >= 0).orElse(prefix);
+        int index = Arrays.binarySearch(current, from);
+        int start = index >= 0 ?
+                (after.isPresent() && from.equals(after.get()) ? index + 1 : index) :
+                -index - 1;
+        List<String> res = new ArrayList<>();
+        for (int i = start; i < current.length && res.size() < limit && current[i].startsWith(prefix); i++)
+            res.add(current[i]);
+        return res;
+    }
+}
@@ -10,12 +10,22 @@ import java.util.function.*;
 public class MutableEventPropagator implements MutablePointers {
 
     private final MutablePointers target;
-    private final List<Consumer<? super MutableEvent>> listeners = new ArrayList<>();
+    private final List<Consumer<? super MutableEvent>> listeners = new CopyOnWriteArrayList<>();
+    // only created once something subscribes, so that propagators nobody subscribes to don't log every update
+    private PointerSubscriptions subscriptions;
 
     public MutableEventPropagator(MutablePointers target) {
         this.target = target;
     }
 
+    private synchronized PointerSubscriptions getSubscriptions() {
+        if (subscriptions == null) {
+            subscriptions = new PointerSubscriptions();
+            listeners.add(subscriptions);
+        }
+        return subscriptions;
+    }
+
     public void addListener(Consumer<? super MutableEvent> listener) {
         listeners.add(listener);
     }
@@ -38,4 +48,9 @@ public class MutableEventPropagator implements MutablePointers {
     public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
         return target.getPointer(owner, writer);
     }
+
+    @Override
+    public CompletableFuture<PointerUpdates> subscribe(Set<PublicKeyHash> writers, long since) {
+        return getSubscriptions().subscribe(writers, since);
+    }
 }
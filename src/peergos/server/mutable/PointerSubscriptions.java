@@ -0,0 +1,161 @@
+package peergos.server.mutable;
+
+import peergos.shared.crypto.hash.*;
+import peergos.shared.mutable.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/** Long poll subscriptions to changes in mutable pointers.
+ *
+ * Every pointer update is given a sequence number and kept in a bounded log. A subscriber asks for the updates to a
+ * set of writers after a sequence number, and is answered immediately if there are any, otherwise it is parked
+ * against each of its writers until one of them is updated or the poll times out. Parked subscribers are just
+ * futures, so thousands of idle subscribers don't need a thread each.
+ *
+ * Sequence numbers start from the current time so that a subscriber which falls off the end of the log, or whose
+ * sequence number is from before a restart, is told to reset and refetch everything it is watching.
+ */
+public class PointerSubscriptions implements Consumer<MutableEvent> {
+    public static final long POLL_TIMEOUT_MILLIS = 10_000;
+    private static final int DEFAULT_LOG_SIZE = 10_000;
+
+    private static class Subscriber {
+        public final Set<PublicKeyHash> writers;
+        public final CompletableFuture<PointerUpdates> result = new CompletableFuture<>();
+
+        public Subscriber(Set<PublicKeyHash> writers) {
+            this.writers = writers;
+        }
+    }
+
+    private static class Entry {
+        public final long sequence;
+        public final PointerUpdate update;
+
+        public Entry(long sequence, PointerUpdate update) {
+            this.sequence = sequence;
+            this.update = update;
+        }
+    }
+
+    private final int maxLogSize;
+    private final long pollTimeoutMillis;
+    private final ArrayDeque<Entry> log = new ArrayDeque<>();
+    private final Map<PublicKeyHash, Set<Subscriber>> waiting = new HashMap<>();
+    // times out polls, and completes subscribers off the thread setting the pointer
+    private final ScheduledExecutorService notifier = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Pointer subscriptions");
+        t.setDaemon(true);
+        return t;
+    });
+    private long sequence = System.currentTimeMillis() * 1000;
+    // the sequence number of the update before the first one in the log
+    private long logStart = sequence;
+
+    public PointerSubscriptions(int maxLogSize, long pollTimeoutMillis) {
+        this.maxLogSize = maxLogSize;
+        this.pollTimeoutMillis = pollTimeoutMillis;
+    }
+
+    public PointerSubscriptions() {
+        this(DEFAULT_LOG_SIZE, POLL_TIMEOUT_MILLIS);
+    }
+
+    /**
+     *
+     * @param writers
+     * @param since the sequence number returned by a previous poll, or -1
+     * @return the updates to writers after since, waiting for at most the poll timeout
+     */
+    public CompletableFuture<PointerUpdates> subscribe(Set<PublicKeyHash> writers, long since) {
+        Subscriber sub;
+        synchronized (this) {
+            if (since < logStart || since > sequence)
+                return CompletableFuture.completedFuture(new PointerUpdates(sequence, true, Collections.emptyList()));
+            List<PointerUpdate> matching = updatesAfter(since, writers);
+            if (! matching.isEmpty() || writers.isEmpty())
+                return CompletableFuture.completedFuture(new PointerUpdates(sequence, false, matching));
+            sub = new Subscriber(new HashSet<>(writers));
+            for (PublicKeyHash writer : sub.writers)
+                waiting.computeIfAbsent(writer, w -> new HashSet<>()).add(sub);
+        }
+        notifier.schedule(() -> timeout(sub), pollTimeoutMillis, TimeUnit.MILLISECONDS);
+        return sub.result;
+    }
+
+    private List<PointerUpdate> updatesAfter(long since, Set<PublicKeyHash> writers) {
+        // the log is in sequence order, so only scan the entries after since
+        List<PointerUpdate> res = new ArrayList<>();
+        Iterator<Entry> newestFirst = log.descendingIterator();
+        while (newestFirst.hasNext()) {
+            Entry e = newestFirst.next();
+            if (e.sequence <= since)
+                break;
+            if (writers.contains(e.update.writer))
+                res.add(e.update);
+        }
+        Collections.reverse(res);
+        return res;
+    }
+
+    private void timeout(Subscriber sub) {
+        PointerUpdates empty;
+        synchronized (this) {
+            if (! unpark(sub))
+                return;
+            empty = new PointerUpdates(sequence, false, Collections.emptyList());
+        }
+        sub.result.complete(empty);
+    }
+
+    /**
+     *
+     * @return whether sub was still waiting
+     */
+    private boolean unpark(Subscriber sub) {
+        boolean removed = false;
+        for (PublicKeyHash writer : sub.writers) {
+            Set<Subscriber> forWriter = waiting.get(writer);
+            if (forWriter == null)
+                continue;
+            removed |= forWriter.remove(sub);
+            if (forWriter.isEmpty())
+                waiting.remove(writer);
+        }
+        return removed;
+    }
+
+    public synchronized int waitingSubscribers() {
+        return waiting.values().stream()
+                .flatMap(Set::stream)
+                .collect(Collectors.toSet())
+                .size();
+    }
+
+    @Override
+    public void accept(MutableEvent event) {
+        PointerUpdate update = new PointerUpdate(event.owner, event.writer, event.writerSignedBtreeRootHash);
+        List<Subscriber> toNotify;
+        PointerUpdates result;
+        synchronized (this) {
+            sequence++;
+            log.addLast(new Entry(sequence, update));
+            while (log.size() > maxLogSize)
+                logStart = log.removeFirst().sequence;
+            Set<Subscriber> subs = waiting.get(event.writer);
+            if (subs == null)
+                return;
+            toNotify = new ArrayList<>(subs);
+            for (Subscriber sub : toNotify)
+                unpark(sub);
+            result = new PointerUpdates(sequence, false, Collections.singletonList(update));
+        }
+        notifier.execute(() -> {
+            for (Subscriber sub : toNotify)
+                sub.result.complete(result);
+        });
+    }
+}
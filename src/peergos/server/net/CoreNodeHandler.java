@@ -12,6 +12,7 @@ import peergos.shared.util.*;
 import java.io.*;
 import java.util.*;
 import java.util.logging.*;
+import java.util.stream.*;
 import java.util.zip.*;
 
 public class CoreNodeHandler implements HttpHandler
@@ -70,6 +71,10 @@ public class CoreNodeHandler implements HttpHandler
                     exchange.getResponseHeaders().set("Content-Type", "application/json");
                     getAllUsernamesGzip(subComponents.length > 1 ? subComponents[1] : "", din, dout);
                     break;
+                case "getUsernamesPage":
+                    AggregatedMetrics.GET_USERNAMES_PAGE.inc();
+                    getUsernamesPage(din, dout);
+                    break;
                 default:
                     throw new IOException("Unknown pkinode method!");
             }
@@ -141,6 +146,19 @@ public class CoreNodeHandler implements HttpHandler
         dout.write(bout.toByteArray());
     }
 
+    void getUsernamesPage(DataInputStream din, DataOutputStream dout) throws Exception
+    {
+        String prefix = CoreNodeUtils.deserializeString(din);
+        int limit = Math.min(din.readInt(), CoreNode.MAX_USERNAME_COUNT);
+        Optional<String> after = din.readBoolean() ?
+                Optional.of(CoreNodeUtils.deserializeString(din)) :
+                Optional.empty();
+        List<String> res = coreNode.getUsernames(prefix, limit, after).get();
+        dout.write(new CborObject.CborList(res.stream()
+                .map(CborObject.CborString::new)
+                .collect(Collectors.toList())).serialize());
+    }
+
     public void close() throws IOException{
         coreNode.close();
     }
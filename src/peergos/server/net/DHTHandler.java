@@ -2,6 +2,7 @@ package peergos.server.net;
 import java.util.logging.*;
 
 import peergos.server.AggregatedMetrics;
+import peergos.server.storage.*;
 import peergos.server.util.*;
 
 import peergos.shared.cbor.*;
@@ -17,7 +18,10 @@ import peergos.shared.util.*;
 import static peergos.shared.storage.ContentAddressedStorage.HTTP.*;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 import java.util.stream.*;
 
@@ -25,22 +29,56 @@ public class DHTHandler implements HttpHandler {
 	private static final Logger LOG = Logging.LOG();
 
     private static final boolean LOGGING = true;
+    private static final int MAX_BLOCK_PUT_BYTES_IN_FLIGHT = 16 * 1024 * 1024;
+    private static final int MAX_BLOCK_PUT_BATCH_BYTES = 4 * 1024 * 1024;
+    // blocks are immutable, so can be cached forever by anyone
+    private static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31622400, immutable";
+    // handler threads are pooled, so each reuses a single buffer to stream every block file it sends
+    private static final ThreadLocal<byte[]> TRANSFER_BUFFER = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
     private final ContentAddressedStorage dht;
     private final Hasher hasher;
     private final BiFunction<PublicKeyHash, Integer, Boolean> keyFilter;
     private final String apiPrefix;
     private final boolean isPublicServer;
+    private final Optional<BlockFileSource> blockFiles;
 
+    /**
+     *
+     * @param dht
+     * @param hasher
+     * @param keyFilter
+     * @param apiPrefix
+     * @param isPublicServer
+     * @param blockFiles the local block files underneath dht, if any, which block gets are sent straight from
+     */
     public DHTHandler(ContentAddressedStorage dht,
                       Hasher hasher,
                       BiFunction<PublicKeyHash, Integer, Boolean> keyFilter,
                       String apiPrefix,
-                      boolean isPublicServer) {
+                      boolean isPublicServer,
+                      Optional<BlockFileSource> blockFiles) {
         this.dht = dht;
         this.hasher = hasher;
         this.keyFilter = keyFilter;
         this.apiPrefix = apiPrefix;
         this.isPublicServer = isPublicServer;
+        this.blockFiles = blockFiles;
+    }
+
+    public DHTHandler(ContentAddressedStorage dht,
+                      Hasher hasher,
+                      BiFunction<PublicKeyHash, Integer, Boolean> keyFilter,
+                      String apiPrefix,
+                      boolean isPublicServer) {
+        this(dht, hasher, keyFilter, apiPrefix, isPublicServer, Optional.empty());
+    }
+
+    public DHTHandler(ContentAddressedStorage dht,
+                      Hasher hasher,
+                      BiFunction<PublicKeyHash, Integer, Boolean> keyFilter,
+                      boolean isPublicServer,
+                      Optional<BlockFileSource> blockFiles) {
+        this(dht, hasher, keyFilter, "/api/v0/", isPublicServer, blockFiles);
     }
 
     public DHTHandler(ContentAddressedStorage dht,
@@ -131,13 +169,8 @@ public class DHTHandler implements HttpHandler {
                             .map(s -> s.substring(s.indexOf("=") + 1))
                             .findAny()
                             .get();
-                    List<byte[]> data = MultipartReceiver.extractFiles(httpExchange.getRequestBody(), boundary);
                     boolean isRaw = last.apply("format").equals("raw");
 
-                    // check writer is allowed to write to this server, and check their free space
-                    if (! keyFilter.apply(writerHash, data.stream().mapToInt(x -> x.length).sum()))
-                        throw new IllegalStateException("Key not allowed to write to this server: " + writerHash);
-
                     // Get the actual key, unless this is the initial write of the signing key during sign up
                     // In the initial put of a signing key during sign up the key signs itself (we still check the hash
                     // against the core node)
@@ -148,9 +181,9 @@ public class DHTHandler implements HttpHandler {
                             throw new RuntimeException(e);
                         }
                     };
-                    Supplier<PublicSigningKey> inBandOrDht = () -> {
+                    Function<byte[], PublicSigningKey> inBandOrDht = firstBlock -> {
                         try {
-                            PublicSigningKey candidateKey = PublicSigningKey.fromByteArray(data.get(0));
+                            PublicSigningKey candidateKey = PublicSigningKey.fromByteArray(firstBlock);
                             PublicKeyHash calculatedHash = ContentAddressedStorage.hashKey(candidateKey);
                             if (calculatedHash.equals(writerHash)) {
                                 candidateKey.unsignMessage(signatures.get(0));
@@ -162,20 +195,76 @@ public class DHTHandler implements HttpHandler {
                         }
                         return fromDht.get();
                     };
-                    PublicSigningKey writer = data.size() > 1 ? fromDht.get() : inBandOrDht.get();
+                    PublicSigningKey[] writer = {signatures.size() > 1 ? fromDht.get() : null};
+
+                    // Verify each block as soon as it has been received, and write them in batches, each with a
+                    // single store call, while the following blocks are being received.
+                    // The size of blocks received but not yet written is bounded.
+                    List<CompletableFuture<Multihash>> puts = new ArrayList<>();
+                    Deque<Pair<CompletableFuture<List<Multihash>>, Long>> inFlight = new ArrayDeque<>();
+                    long[] bytesInFlight = {0};
+                    List<byte[]> batchSignatures = new ArrayList<>();
+                    List<byte[]> batch = new ArrayList<>();
+                    long[] batchBytes = {0};
+                    Runnable putBatch = () -> {
+                        if (batch.isEmpty())
+                            return;
+                        while (! inFlight.isEmpty() &&
+                                (inFlight.peek().left.isDone() || bytesInFlight[0] + batchBytes[0] > MAX_BLOCK_PUT_BYTES_IN_FLIGHT)) {
+                            Pair<CompletableFuture<List<Multihash>>, Long> oldest = inFlight.poll();
+                            oldest.left.join();
+                            bytesInFlight[0] -= oldest.right;
+                        }
+                        List<byte[]> sigs = new ArrayList<>(batchSignatures);
+                        List<byte[]> blocks = new ArrayList<>(batch);
+                        CompletableFuture<List<Multihash>> put = (isRaw ?
+                                dht.putRaw(ownerHash, writerHash, sigs, blocks, tid, x -> {}) :
+                                dht.put(ownerHash, writerHash, sigs, blocks, tid))
+                                .thenApply(res -> {
+                                    if (res.size() != blocks.size())
+                                        throw new IllegalStateException("Incorrect number of blocks written! " + res.size() + " != " + blocks.size());
+                                    return res;
+                                });
+                        int first = puts.size();
+                        for (int j = 0; j < blocks.size(); j++) {
+                            int index = j;
+                            puts.add(put.thenApply(res -> res.get(index))
+                                    .exceptionally(t -> {
+                                        throw new IllegalStateException("Error writing block " + (first + index) + ": " + t.getMessage(), t);
+                                    }));
+                        }
+                        inFlight.add(new Pair<>(put, batchBytes[0]));
+                        bytesInFlight[0] += batchBytes[0];
+                        batchSignatures.clear();
+                        batch.clear();
+                        batchBytes[0] = 0;
+                    };
+                    int received = MultipartReceiver.extractFiles(httpExchange.getRequestBody(), boundary, MAX_BLOCK_SIZE, (i, block) -> {
+                        if (i >= signatures.size())
+                            throw new IllegalStateException("More blocks than signatures!");
+                        // check writer is allowed to write to this server, and check their free space
+                        if (! keyFilter.apply(writerHash, block.length))
+                            throw new IllegalStateException("Key not allowed to write to this server: " + writerHash);
+                        if (writer[0] == null)
+                            writer[0] = inBandOrDht.apply(block);
 
-                    // verify signatures
-                    for (int i = 0; i < data.size(); i++) {
                         byte[] signature = signatures.get(i);
-                        byte[] hash = hasher.sha256(data.get(i)).join();
-                        byte[] unsigned = writer.unsignMessage(signature);
+                        byte[] hash = hasher.sha256(block).join();
+                        byte[] unsigned = writer[0].unsignMessage(signature);
                         if (! Arrays.equals(unsigned, hash))
-                            throw new IllegalStateException("Invalid signature for block!");
-                    }
+                            throw new IllegalStateException("Invalid signature for block " + i + "!");
 
-                    List<Multihash> hashes = (isRaw ?
-                            dht.putRaw(ownerHash, writerHash, signatures, data, tid, x -> {}) :
-                            dht.put(ownerHash, writerHash, signatures, data, tid)).get();
+                        batchSignatures.add(signature);
+                        batch.add(block);
+                        batchBytes[0] += block.length;
+                        if (batchBytes[0] >= MAX_BLOCK_PUT_BATCH_BYTES)
+                            putBatch.run();
+                    });
+                    if (received != signatures.size())
+                        throw new IllegalStateException("Incorrect number of blocks! " + received + " != " + signatures.size());
+                    putBatch.run();
+
+                    List<Multihash> hashes = Futures.combineAllInOrder(puts).get();
                     List<Object> json = hashes.stream()
                             .map(h -> wrapHash(h))
                             .collect(Collectors.toList());
@@ -189,14 +278,76 @@ public class DHTHandler implements HttpHandler {
                 case BLOCK_GET:{
                     AggregatedMetrics.DHT_BLOCK_GET.inc();
                     Multihash hash = Cid.decode(args.get(0));
-                    (hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw ?
-                            dht.getRaw(hash) :
-                            dht.get(hash).thenApply(opt -> opt.map(CborObject::toByteArray)))
+                    Set<String> ifNoneMatch = ifNoneMatch(httpExchange);
+                    boolean etagMatches = ifNoneMatch.contains(etag(hash));
+                    if (etagMatches || ifNoneMatch.contains("*")) {
+                        // blocks never change, so a matching ETag means the requester already has it, whereas a
+                        // wildcard only matches a block we have
+                        if (! etagMatches && ! dht.getSize(hash).get().isPresent()) {
+                            httpExchange.sendResponseHeaders(404, -1);
+                            break;
+                        }
+                        setCacheHeaders(httpExchange, hash);
+                        httpExchange.sendResponseHeaders(304, -1);
+                        break;
+                    }
+                    Optional<FileChannel> file = blockFiles.isPresent() ?
+                            blockFiles.get().openBlock(hash) :
+                            Optional.empty();
+                    if (file.isPresent()) {
+                        try (FileChannel block = file.get()) {
+                            replyFile(httpExchange, block, hash);
+                        }
+                        break;
+                    }
+                    getBlock(hash)
                             .thenAccept(opt -> replyBytes(httpExchange,
                                     opt.orElse(new byte[0]), opt.map(x -> hash)))
                             .exceptionally(Futures::logAndThrow).get();
                     break;
                 }
+                case BLOCK_GET_ALL: {
+                    AggregatedMetrics.DHT_BLOCK_GET_ALL.inc();
+                    List<String> requested = args == null ? Collections.emptyList() : args;
+                    if (requested.size() > MAX_BLOCKS_PER_GET_ALL)
+                        throw new IllegalStateException("Too many blocks requested: " + requested.size() + " > " + MAX_BLOCKS_PER_GET_ALL);
+                    List<Multihash> hashes = requested.stream()
+                            .map(Cid::decode)
+                            .collect(Collectors.toList());
+                    // start every retrieval now, then stream each block as soon as it and all before it are ready
+                    List<CompletableFuture<Optional<byte[]>>> blocks = hashes.stream()
+                            .map(this::getBlock)
+                            .collect(Collectors.toList());
+                    httpExchange.sendResponseHeaders(200, 0);
+                    // a failure after this point truncates the response, which the client detects
+                    DataOutputStream dout = new DataOutputStream(httpExchange.getResponseBody());
+                    for (CompletableFuture<Optional<byte[]>> block : blocks) {
+                        Optional<byte[]> opt = block.get();
+                        dout.writeInt(opt.map(b -> b.length).orElse(-1));
+                        if (opt.isPresent())
+                            dout.write(opt.get());
+                        dout.flush();
+                    }
+                    dout.close();
+                    break;
+                }
+                case CHAMP_GET: {
+                    AggregatedMetrics.DHT_CHAMP_GET.inc();
+                    Multihash root = Cid.decode(args.get(0));
+                    byte[] reqBody = Serialize.readFully(httpExchange.getRequestBody());
+                    List<byte[]> champKeys = ((CborObject.CborList) CborObject.fromByteArray(reqBody)).value.stream()
+                            .map(cbor -> ((CborObject.CborByteArray) cbor).value)
+                            .collect(Collectors.toList());
+                    if (champKeys.size() > MAX_KEYS_PER_CHAMP_GET)
+                        throw new IllegalStateException("Too many keys requested: " + champKeys.size() + " > " + MAX_KEYS_PER_CHAMP_GET);
+                    dht.getChampLookup(root, champKeys).thenAccept(blocks -> {
+                        List<CborObject> res = blocks.stream()
+                                .map(CborObject.CborByteArray::new)
+                                .collect(Collectors.toList());
+                        replyBytes(httpExchange, new CborObject.CborList(res).serialize(), Optional.empty());
+                    }).exceptionally(Futures::logAndThrow).get();
+                    break;
+                }
                 case BLOCK_STAT: {
                     AggregatedMetrics.DHT_BLOCK_STAT.inc();
                     Multihash block = Cid.decode(args.get(0));
@@ -243,6 +394,52 @@ public class DHTHandler implements HttpHandler {
         }
     }
 
+    /** Blocks are returned exactly as stored, whatever their codec, rather than being decoded and re-encoded.
+     */
+    private CompletableFuture<Optional<byte[]>> getBlock(Multihash hash) {
+        return dht.getRaw(hash);
+    }
+
+    private static Set<String> ifNoneMatch(HttpExchange exchange) {
+        return Optional.ofNullable(exchange.getRequestHeaders().get("If-None-Match"))
+                .map(vals -> vals.stream()
+                        .flatMap(v -> Arrays.stream(v.split(",")))
+                        .map(String::trim)
+                        .collect(Collectors.toSet()))
+                .orElse(Collections.emptySet());
+    }
+
+    private static String etag(Multihash hash) {
+        return "\"" + hash + "\"";
+    }
+
+    private static void setCacheHeaders(HttpExchange exchange, Multihash hash) {
+        exchange.getResponseHeaders().set("Cache-Control", IMMUTABLE_CACHE_CONTROL);
+        exchange.getResponseHeaders().set("ETag", etag(hash));
+    }
+
+    /** Stream a block from its file to the response, without allocating a buffer for it.
+     */
+    private static void replyFile(HttpExchange exchange, FileChannel block, Multihash hash) throws IOException {
+        setCacheHeaders(exchange, hash);
+        long size = block.size();
+        exchange.sendResponseHeaders(200, size == 0 ? -1 : size);
+        OutputStream out = exchange.getResponseBody();
+        byte[] buf = TRANSFER_BUFFER.get();
+        ByteBuffer wrapped = ByteBuffer.wrap(buf);
+        long sent = 0;
+        while (sent < size) {
+            wrapped.clear();
+            int read = block.read(wrapped, sent);
+            if (read < 0)
+                throw new EOFException("Block " + hash + " truncated at " + sent + " of " + size + " bytes");
+            out.write(buf, 0, read);
+            sent += read;
+        }
+        out.flush();
+        out.close();
+    }
+
     private static Map<String, Object> wrapHash(Multihash h) {
         return wrapHash("Hash", h);
     }
@@ -255,10 +452,8 @@ public class DHTHandler implements HttpHandler {
 
     private static void replyJson(HttpExchange exchange, String json, Optional<Multihash> key) {
         try {
-            if (key.isPresent()) {
-                exchange.getResponseHeaders().set("Cache-Control", "public, max-age=31622400 immutable");
-                exchange.getResponseHeaders().set("ETag", "\"" + key.get().toString() + "\"");
-            }
+            if (key.isPresent())
+                setCacheHeaders(exchange, key.get());
             byte[] raw = json.getBytes();
             exchange.sendResponseHeaders(200, raw.length);
             DataOutputStream dout = new DataOutputStream(exchange.getResponseBody());
@@ -273,10 +468,8 @@ public class DHTHandler implements HttpHandler {
 
     private static void replyBytes(HttpExchange exchange, byte[] body, Optional<Multihash> key) {
         try {
-            if (key.isPresent()) {
-                exchange.getResponseHeaders().set("Cache-Control", "public, max-age=31622400 immutable");
-                exchange.getResponseHeaders().set("ETag", "\"" + key.get().toString() + "\"");
-            }
+            if (key.isPresent())
+                setCacheHeaders(exchange, key.get());
             exchange.sendResponseHeaders(200, body.length);
             DataOutputStream dout = new DataOutputStream(exchange.getResponseBody());
             dout.write(body);
@@ -0,0 +1,260 @@
+package peergos.server.net;
+
+import peergos.shared.io.ipfs.api.*;
+import peergos.shared.user.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.net.*;
+import java.net.http.*;
+import java.nio.charset.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.zip.*;
+
+/** A non blocking HttpPoster for Java clients.
+ *
+ * Requests are made with a shared java.net.http.HttpClient, which reuses connections and multiplexes requests over
+ * HTTP/2 where the server supports it. The returned futures complete on the client's threads when the response
+ * arrives, rather than blocking the caller like JavaPoster. The number of requests in flight to each host is limited,
+ * and excess requests are queued rather than opening more connections. Multipart bodies are streamed from the
+ * supplied files without being assembled into a single array.
+ */
+public class HttpClientPoster implements HttpPoster {
+    public static final int DEFAULT_MAX_CONCURRENT_PER_HOST = 64;
+    private static final Duration TIMEOUT = Duration.ofSeconds(15);
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.UTF_8);
+    // these are set by the HttpClient itself, which rejects them being set explicitly
+    private static final Set<String> RESTRICTED_HEADERS = new HashSet<>(Arrays.asList(
+            "connection", "content-length", "date", "expect", "from", "host", "upgrade", "via", "warning"));
+
+    private static final HttpClient SHARED_CLIENT = buildClient();
+    private static final HostLimits SHARED_LIMITS = new HostLimits(DEFAULT_MAX_CONCURRENT_PER_HOST);
+
+    private final URI target;
+    private final boolean useGet;
+    private final HttpClient client;
+    private final HostLimits limits;
+
+    public HttpClientPoster(URL target, boolean isPublicServer, HttpClient client, HostLimits limits) {
+        try {
+            this.target = target.toURI();
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+        this.useGet = isPublicServer;
+        this.client = client;
+        this.limits = limits;
+    }
+
+    public HttpClientPoster(URL target, boolean isPublicServer) {
+        this(target, isPublicServer, SHARED_CLIENT, SHARED_LIMITS);
+    }
+
+    public static HttpClient buildClient() {
+        return HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    /** The maximum number of requests in flight to each host
+     */
+    public static class HostLimits {
+        private final int maxPerHost;
+        private final Map<String, Limiter> limiters = new ConcurrentHashMap<>();
+
+        public HostLimits(int maxPerHost) {
+            this.maxPerHost = maxPerHost;
+        }
+
+        public <T> CompletableFuture<T> submit(URI uri, Supplier<CompletableFuture<T>> request) {
+            String host = uri.getHost() + ":" + uri.getPort();
+            return limiters.computeIfAbsent(host, h -> new Limiter(maxPerHost)).submit(request);
+        }
+    }
+
+    private static class Limiter {
+        private final int max;
+        private final Queue<Runnable> waiting = new ArrayDeque<>();
+        private final ThreadLocal<int[]> releasing = new ThreadLocal<>();
+        private int running = 0;
+
+        public Limiter(int max) {
+            this.max = max;
+        }
+
+        public <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> request) {
+            CompletableFuture<T> res = new CompletableFuture<>();
+            Runnable task = () -> {
+                CompletableFuture<T> sent;
+                try {
+                    sent = request.get();
+                } catch (Throwable t) {
+                    sent = Futures.errored(t);
+                }
+                sent.whenComplete((r, t) -> {
+                    release();
+                    if (t != null)
+                        res.completeExceptionally(t);
+                    else
+                        res.complete(r);
+                });
+            };
+            synchronized (this) {
+                if (running >= max) {
+                    waiting.add(task);
+                    return res;
+                }
+                running++;
+            }
+            task.run();
+            return res;
+        }
+
+        private void release() {
+            // A queued request which completes synchronously releases its slot from within the call that started it.
+            // Such nested releases are counted and handled by the outermost release on this thread, rather than
+            // recursing, so a long queue of failing requests can't overflow the stack.
+            int[] nested = releasing.get();
+            if (nested != null) {
+                nested[0]++;
+                return;
+            }
+            int[] pending = {1};
+            releasing.set(pending);
+            try {
+                while (pending[0] > 0) {
+                    pending[0]--;
+                    Runnable next;
+                    synchronized (this) {
+                        next = waiting.poll();
+                        if (next == null)
+                            running--;
+                    }
+                    if (next != null)
+                        next.run();
+                }
+            } finally {
+                releasing.remove();
+            }
+        }
+    }
+
+    private URI buildURI(String method) {
+        return target.resolve(method);
+    }
+
+    private CompletableFuture<byte[]> send(HttpRequest request, boolean unzip) {
+        return limits.submit(request.uri(), () -> client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()))
+                .thenApply(resp -> {
+                    if (resp.statusCode() >= 400) {
+                        Optional<String> trailer = resp.headers().firstValue("Trailer");
+                        if (trailer.isPresent())
+                            throw new RuntimeException(trailer.get());
+                        throw new RuntimeException(new IOException("HTTP " + resp.statusCode() + " from " + request.uri()));
+                    }
+                    boolean isGzipped = resp.headers().firstValue("Content-Encoding").map("gzip"::equals).orElse(false);
+                    return isGzipped && unzip ? gunzip(resp.body()) : resp.body();
+                });
+    }
+
+    private static byte[] gunzip(byte[] compressed) {
+        try {
+            return Serialize.readFully(new GZIPInputStream(new ByteArrayInputStream(compressed)));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<byte[]> postUnzip(String url, byte[] payload) {
+        return post(url, payload, true);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> post(String url, byte[] payload, boolean unzip) {
+        HttpRequest request = HttpRequest.newBuilder(buildURI(url))
+                .timeout(TIMEOUT)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(payload))
+                .build();
+        return send(request, unzip);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> postMultipart(String url, List<byte[]> files) {
+        String boundary = Multipart.createBoundary();
+        HttpRequest request = HttpRequest.newBuilder(buildURI(url))
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .POST(HttpRequest.BodyPublishers.ofByteArrays(multipartBody(boundary, files)))
+                .build();
+        return send(request, false);
+    }
+
+    /** The parts of a multipart body, generated as they are sent
+     */
+    private static Iterable<byte[]> multipartBody(String boundary, List<byte[]> files) {
+        byte[] partHeader = ("--" + boundary + "\r\n" +
+                "Content-Disposition: file; name=\"file\";\r\n" +
+                "Content-Type: application/octet-stream\r\n" +
+                "Content-Transfer-Encoding: binary\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        byte[] end = ("--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        return () -> new Iterator<>() {
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return index <= 3 * files.size();
+            }
+
+            @Override
+            public byte[] next() {
+                if (! hasNext())
+                    throw new NoSuchElementException();
+                int i = index++;
+                if (i == 3 * files.size())
+                    return end;
+                switch (i % 3) {
+                    case 0: return partHeader;
+                    case 1: return files.get(i / 3);
+                    default: return CRLF;
+                }
+            }
+        };
+    }
+
+    @Override
+    public CompletableFuture<byte[]> put(String url, byte[] body, Map<String, String> headers) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(buildURI(url))
+                .PUT(HttpRequest.BodyPublishers.ofByteArray(body));
+        for (Map.Entry<String, String> e : headers.entrySet()) {
+            if (! RESTRICTED_HEADERS.contains(e.getKey().toLowerCase()))
+                builder.header(e.getKey(), e.getValue());
+        }
+        return send(builder.build(), false);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> get(String url) {
+        if (useGet) {
+            HttpRequest request = HttpRequest.newBuilder(buildURI(url))
+                    .timeout(TIMEOUT)
+                    .GET()
+                    .build();
+            return send(request, true);
+        } else {
+            // This changes to a POST with an empty body
+            // The reason for this is browsers allow any website to do a get request to localhost
+            // but they block POST requests. So this prevents random websites from calling APIs on localhost
+            return postUnzip(url, new byte[0]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return target.toString();
+    }
+}
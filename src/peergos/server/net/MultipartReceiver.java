@@ -2,83 +2,198 @@ package peergos.server.net;
 
 import java.io.*;
 import java.util.*;
+import java.util.function.*;
 
+/** A streaming parser for multipart bodies.
+ *
+ * The body is read through a fixed size buffer, which is scanned for the part delimiter with Boyer-Moore-Horspool.
+ * Each part is passed on as soon as it has been received, and only the current part is held in memory.
+ */
 public class MultipartReceiver {
     private static final byte[] DOUBLE_NEW_LINE = "\r\n\r\n".getBytes();
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADERS_SIZE = 16 * 1024;
 
-    public static List<byte[]> extractFiles(InputStream rawIn, String boundary) {
-        try {
-            int maxLineSize = 1024;
-            InputStream in = new BufferedInputStream(rawIn);
-            String first = readLine(in, maxLineSize);
-            if (!first.substring(2).equals(boundary))
-                throw new IllegalStateException("Incorrect boundary! " + boundary + " != " + first.substring(2));
-            byte[] firstHeaders = readUntil(DOUBLE_NEW_LINE, in);
-
-            byte[] boundaryBytes = ("\r\n--" + boundary).getBytes();
-            List<byte[]> files = new ArrayList<>();
+    public static List<byte[]> extractFiles(InputStream in, String boundary) {
+        List<byte[]> files = new ArrayList<>();
+        extractFiles(in, boundary, Integer.MAX_VALUE - 8, (i, file) -> files.add(file));
+        return files;
+    }
 
+    /**
+     *
+     * @param in
+     * @param boundary
+     * @param maxPartSize the maximum size of any part, above which parsing will fail
+     * @param consumer called with the index and contents of each part as soon as it has been received
+     * @return the number of parts
+     */
+    public static int extractFiles(InputStream in, String boundary, int maxPartSize, BiConsumer<Integer, byte[]> consumer) {
+        try {
+            PartReader reader = new PartReader(in, boundary, maxPartSize);
+            int count = 0;
             while (true) {
-                byte[] file = readUntil(boundaryBytes, in);
-                files.add(file);
-                byte[] headers = readUntil(DOUBLE_NEW_LINE, in);
-                if (headers.length == 0 || Arrays.equals(headers, "--".getBytes()))
-                    return files;
+                Optional<byte[]> part = reader.next();
+                if (! part.isPresent())
+                    return count;
+                consumer.accept(count++, part.get());
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    /**
-     *
-     * @param pattern the pattern of bytes to search until
-     * @param in
-     * @return the bytes in this stream until pattern is encountered, or the end of the stream is reached
-     * @throws IOException
-     */
-    private static byte[] readUntil(byte[] pattern, InputStream in) throws IOException {
-        ByteArrayOutputStream prior = new ByteArrayOutputStream();
-        int r;
-        int indexInPattern = 0;
-        while ((r = in.read()) != -1) {
-            if ((byte) r == pattern[indexInPattern]) {
-                indexInPattern++;
-                if (indexInPattern == pattern.length)
-                    return prior.toByteArray();
-            } else {
-                if (indexInPattern > 0)
-                    prior.write(pattern, 0, indexInPattern);
-                indexInPattern = 0;
-                // be careful of case where last byte before pattern == first byte of pattern
-                if ((byte) r == pattern[0]) {
-                    indexInPattern = 1;
-                    if (pattern.length == 1)
-                        return prior.toByteArray();
-                } else
-                    prior.write(r);
+    private static class PartReader {
+        private final InputStream in;
+        private final byte[] firstDelimiter, delimiter;
+        private final int[] delimiterShifts, headerEndShifts;
+        private final int maxPartSize;
+        private final byte[] buf;
+        private int pos, limit;
+        private boolean started, finished;
+
+        PartReader(InputStream in, String boundary, int maxPartSize) {
+            this.in = in;
+            this.firstDelimiter = ("--" + boundary).getBytes();
+            this.delimiter = ("\r\n--" + boundary).getBytes();
+            this.delimiterShifts = shifts(delimiter);
+            this.headerEndShifts = shifts(DOUBLE_NEW_LINE);
+            this.maxPartSize = maxPartSize;
+            this.buf = new byte[BUFFER_SIZE + 2 * delimiter.length];
+        }
+
+        private static int[] shifts(byte[] pattern) {
+            int[] res = new int[256];
+            Arrays.fill(res, pattern.length);
+            for (int i=0; i < pattern.length - 1; i++)
+                res[pattern[i] & 0xFF] = pattern.length - 1 - i;
+            return res;
+        }
+
+        Optional<byte[]> next() throws IOException {
+            if (! started) {
+                started = true;
+                if (! ensure(firstDelimiter.length) || ! startsWith(firstDelimiter))
+                    throw new IllegalStateException("Incorrect boundary! " + new String(firstDelimiter).substring(2));
+                pos += firstDelimiter.length;
+                finished = isFinalDelimiter();
             }
+            if (finished)
+                return Optional.empty();
+
+            if (! scanUntil(DOUBLE_NEW_LINE, headerEndShifts, null, MAX_HEADERS_SIZE))
+                throw new IllegalStateException("Unexpected end of multipart headers");
+            Part part = new Part(maxPartSize);
+            if (! scanUntil(delimiter, delimiterShifts, part, maxPartSize))
+                throw new IllegalStateException("Unexpected end of multipart body");
+            finished = isFinalDelimiter();
+            return Optional.of(part.toByteArray());
+        }
+
+        /** Called immediately after a delimiter
+         *
+         * @return true if this was the closing delimiter, or the end of the stream
+         */
+        private boolean isFinalDelimiter() throws IOException {
+            if (! ensure(2))
+                return true;
+            return buf[pos] == '-' && buf[pos + 1] == '-';
+        }
+
+        private boolean startsWith(byte[] prefix) {
+            for (int i=0; i < prefix.length; i++)
+                if (buf[pos + i] != prefix[i])
+                    return false;
+            return true;
+        }
+
+        private boolean ensure(int bytes) throws IOException {
+            while (limit - pos < bytes)
+                if (! fill())
+                    return false;
+            return true;
+        }
+
+        /** Move any unconsumed bytes to the start of the buffer and read more
+         *
+         * @return false if the end of the stream has been reached
+         */
+        private boolean fill() throws IOException {
+            if (pos > 0) {
+                System.arraycopy(buf, pos, buf, 0, limit - pos);
+                limit -= pos;
+                pos = 0;
+            }
+            int read = in.read(buf, limit, buf.length - limit);
+            if (read < 0)
+                return false;
+            limit += read;
+            return true;
+        }
+
+        /** Consume bytes up to and including the next occurrence of pattern, writing the bytes before it to the sink
+         *
+         * @return false if the end of the stream was reached before the pattern
+         */
+        private boolean scanUntil(byte[] pattern, int[] shifts, Part sink, int maxSize) throws IOException {
+            int consumed = 0;
+            while (true) {
+                int found = search(pattern, shifts);
+                int end = found >= 0 ? found : Math.max(pos, limit - (pattern.length - 1));
+                consumed += end - pos;
+                if (consumed > maxSize)
+                    throw new IllegalStateException("Multipart part exceeds maximum size of " + maxSize + " bytes!");
+                if (sink != null)
+                    sink.write(buf, pos, end - pos);
+                pos = end;
+                if (found >= 0) {
+                    pos += pattern.length;
+                    return true;
+                }
+                // the unconsumed tail could be the start of the pattern
+                if (! fill())
+                    return false;
+            }
+        }
+
+        /** Boyer-Moore-Horspool search of the unconsumed bytes
+         *
+         * @return the index of the first occurrence of pattern in the buffer, or -1
+         */
+        private int search(byte[] pattern, int[] shifts) {
+            int last = pattern.length - 1;
+            int i = pos;
+            while (i + last < limit) {
+                int j = last;
+                while (j >= 0 && buf[i + j] == pattern[j])
+                    j--;
+                if (j < 0)
+                    return i;
+                i += shifts[buf[i + last] & 0xFF];
+            }
+            return -1;
         }
-        return prior.toByteArray();
     }
 
-    private static String readLine(InputStream in, int maxSize) throws IOException {
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        int r, total = 0;
-        while ((r = in.read()) >= 0) {
-            total++;
-
-            if (r == '\r') {
-                int next = in.read();
-                if (next == '\n')
-                    break;
-                bout.write(r);
-                bout.write(next);
-            } else
-                bout.write(r);
-            if (total > maxSize)
-                break;
+    private static class Part {
+        private byte[] data;
+        private int size;
+        private final int maxSize;
+
+        Part(int maxSize) {
+            this.maxSize = maxSize;
+            this.data = new byte[Math.min(maxSize, 64 * 1024)];
+        }
+
+        void write(byte[] src, int offset, int length) {
+            if (size + length > data.length)
+                data = Arrays.copyOf(data, (int) Math.min(maxSize, Math.max(size + length, 2L * data.length)));
+            System.arraycopy(src, offset, data, size, length);
+            size += length;
+        }
+
+        byte[] toByteArray() {
+            return size == data.length ? data : Arrays.copyOf(data, size);
         }
-        return new String(bout.toByteArray());
     }
 }
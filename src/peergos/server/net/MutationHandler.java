@@ -3,6 +3,7 @@ package peergos.server.net;
 import com.sun.net.httpserver.*;
 import peergos.server.*;
 import peergos.server.util.*;
+import peergos.shared.cbor.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.mutable.*;
 import peergos.shared.util.*;
@@ -10,6 +11,7 @@ import peergos.shared.util.*;
 import java.io.*;
 import java.util.*;
 import java.util.logging.*;
+import java.util.stream.*;
 
 /** This is the http endpoint for MutablePointer calls
  *
@@ -17,6 +19,8 @@ import java.util.logging.*;
 public class MutationHandler implements HttpHandler {
     private static final Logger LOG = Logging.LOG();
 
+    private static final int MAX_SUBSCRIBE_BODY_SIZE = 1024 * 1024;
+
     private final MutablePointers mutable;
     private final boolean isPublicServer;
 
@@ -41,6 +45,10 @@ public class MutationHandler implements HttpHandler {
 //            LOG.info("core method "+ method +" from path "+ path);
 
         Map<String, List<String>> params = HttpUtil.parseQuery(exchange.getRequestURI().getQuery());
+        if (method.equals("subscribe")) {
+            subscribe(exchange, din, params, t1);
+            return;
+        }
         PublicKeyHash owner = PublicKeyHash.fromString(params.get("owner").get(0));
         PublicKeyHash writer = PublicKeyHash.fromString(params.get("writer").get(0));
         try {
@@ -76,4 +84,55 @@ public class MutationHandler implements HttpHandler {
             LOG.info("Mutable pointers server handled " + method + " request in: " + (t2 - t1) + " mS");
         }
     }
+
+    /** A long poll which replies from another thread when there are updates or it times out, so waiting
+     * subscribers don't hold a handler thread.
+     */
+    private void subscribe(HttpExchange exchange,
+                           DataInputStream din,
+                           Map<String, List<String>> params,
+                           long t1) {
+        try {
+            if (! HttpUtil.allowedQuery(exchange, isPublicServer)) {
+                exchange.sendResponseHeaders(405, 0);
+                exchange.close();
+                return;
+            }
+            AggregatedMetrics.MUTABLE_POINTERS_SUBSCRIBE.inc();
+            long since = Long.parseLong(params.get("since").get(0));
+            CborObject body = CborObject.fromByteArray(Serialize.readFully(din, MAX_SUBSCRIBE_BODY_SIZE));
+            Set<PublicKeyHash> writers = ((CborObject.CborList) body).value.stream()
+                    .map(PublicKeyHash::fromCbor)
+                    .collect(Collectors.toSet());
+            mutable.subscribe(writers, since)
+                    .thenAccept(res -> reply(exchange, res.toCbor().serialize(), t1))
+                    .exceptionally(t -> {
+                        replyError(exchange, t, t1);
+                        return null;
+                    });
+        } catch (Exception e) {
+            replyError(exchange, e, t1);
+        }
+    }
+
+    private static void reply(HttpExchange exchange, byte[] body, long t1) {
+        try {
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+        } finally {
+            exchange.close();
+            LOG.info("Mutable pointers server handled subscribe request in: " + (System.currentTimeMillis() - t1) + " mS");
+        }
+    }
+
+    private static void replyError(HttpExchange exchange, Throwable t, long t1) {
+        try {
+            HttpUtil.replyError(exchange, t);
+        } finally {
+            exchange.close();
+            LOG.info("Mutable pointers server handled subscribe request in: " + (System.currentTimeMillis() - t1) + " mS");
+        }
+    }
 }
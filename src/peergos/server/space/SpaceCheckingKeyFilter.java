@@ -1,5 +1,7 @@
 package peergos.server.space;
 
+import io.prometheus.client.*;
+
 import java.util.concurrent.atomic.*;
 import java.util.logging.*;
 
@@ -20,14 +22,34 @@ import peergos.shared.util.*;
 import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.*;
 import java.util.stream.Collectors;
 
 /** This class checks whether a given user is using more storage space than their quota
  *
+ * Usage is updated by a pipeline of per writer updates. Consecutive pointer updates to a writer are coalesced, so only
+ * the latest root is diffed against the last accounted one. Different writers are processed in parallel, and each
+ * writer by at most one thread at a time, which keeps the updates to a writer in order. When too many writers are
+ * waiting, mutable pointer events block until there is space.
  */
 public class SpaceCheckingKeyFilter implements SpaceUsage {
     private static final Logger LOG = Logging.LOG();
     private static final long USAGE_TOLERANCE = 1024 * 1024;
+    private static final int MAX_PENDING_WRITERS = 1000;
+    private static final Gauge pendingWriters = Gauge.build()
+            .name("space_usage_pending_writers")
+            .help("Number of writers waiting for their space usage to be updated")
+            .register();
+    private static final Counter coalescedUpdates = Counter.build()
+            .name("space_usage_coalesced_updates")
+            .help("Total pointer updates merged into an already pending space usage update")
+            .register();
+    private static final Histogram usageLag = Histogram.build()
+            .name("space_usage_lag")
+            .help("Time (ms) from a writer being queued until its space usage is updated")
+            .exponentialBuckets(1, 2, 25)
+            .register();
+
     private final CoreNode core;
     private final MutablePointers mutable;
     private final ContentAddressedStorage dht;
@@ -35,28 +57,57 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
     private final QuotaAdmin quotaAdmin;
     private final UsageStore usageStore;
     private final AtomicBoolean isRunning = new AtomicBoolean(true);
-    private final BlockingQueue<MutableEvent> mutableQueue = new ArrayBlockingQueue<>(1000);
+    private final ExecutorService pool;
+    // writers waiting to be processed, guarded by itself
+    private final Map<PublicKeyHash, PendingUpdate> pending = new HashMap<>();
+    // writers which have a thread processing them, guarded by pending
+    private final Set<PublicKeyHash> active = new HashSet<>();
+
+    /** A coalesced update to the usage of a writer
+     */
+    private static class PendingUpdate {
+        public final PublicKeyHash owner;
+        public final MaybeMultihash original, updated;
+        public final long queuedAt;
+        public final List<CompletableFuture<Set<PublicKeyHash>>> waiters;
+
+        public PendingUpdate(PublicKeyHash owner,
+                             MaybeMultihash original,
+                             MaybeMultihash updated,
+                             long queuedAt,
+                             List<CompletableFuture<Set<PublicKeyHash>>> waiters) {
+            this.owner = owner;
+            this.original = original;
+            this.updated = updated;
+            this.queuedAt = queuedAt;
+            this.waiters = waiters;
+        }
+
+        public PendingUpdate coalesce(MaybeMultihash latest, CompletableFuture<Set<PublicKeyHash>> waiter) {
+            List<CompletableFuture<Set<PublicKeyHash>>> all = new ArrayList<>(waiters);
+            all.add(waiter);
+            return new PendingUpdate(owner, original, latest, queuedAt, all);
+        }
+    }
 
     public SpaceCheckingKeyFilter(CoreNode core,
                                   MutablePointers mutable,
                                   ContentAddressedStorage dht,
                                   Hasher hasher,
                                   QuotaAdmin quotaAdmin,
-                                  UsageStore usageStore) {
+                                  UsageStore usageStore,
+                                  int parallelism) {
         this.core = core;
         this.mutable = mutable;
         this.dht = dht;
         this.hasher = hasher;
         this.quotaAdmin = quotaAdmin;
         this.usageStore = usageStore;
-        new Thread(() -> {
-            while (isRunning.get()) {
-                try {
-                    MutableEvent event = mutableQueue.take();
-                    processMutablePointerEvent(event);
-                } catch (InterruptedException e) {}
-            }
-        }, "SpaceCheckingKeyFilter").start();
+        this.pool = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "SpaceCheckingKeyFilter");
+            t.setDaemon(true);
+            return t;
+        });
         //add shutdown-hook to call close
         Runtime.getRuntime().addShutdownHook(new Thread(this::close, "SpaceChecker shutdown"));
     }
@@ -66,32 +117,43 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
      */
     private synchronized void close() {
         isRunning.set(false);
+        pool.shutdown();
         usageStore.close();
     }
 
     /**
-     * Walk the virtual file-system to calculate space used by each owner not already checked
+     * Walk the virtual file-system to calculate space used by each owner not already checked. Users, and the writers
+     * of each user, are processed in parallel by the usage pipeline.
      */
     public void calculateUsage() {
         try {
             List<String> usernames = quotaAdmin.getLocalUsernames();
             Logging.LOG().info("Calculating space usage for " + usernames.size() + " local users...");
+            long t0 = System.currentTimeMillis();
+            List<CompletableFuture<Boolean>> done = new ArrayList<>();
             for (String username : usernames) {
-                Logging.LOG().info("Calculating space usage of " + username);
                 try {
                     Optional<PublicKeyHash> identity = core.getPublicKeyHash(username).get();
                     if (identity.isPresent()) {
-                        processCorenodeEvent(username, identity.get());
-                        LOG.info("Updated space usage of user: " + username + " to " + usageStore.getUsage(username).totalUsage());
+                        usageStore.addUserIfAbsent(username);
+                        done.add(recalculate(username, identity.get(), true)
+                                .thenApply(x -> {
+                                    LOG.info("Updated space usage of user: " + username + " to " + usageStore.getUsage(username).totalUsage());
+                                    return true;
+                                }).exceptionally(e -> {
+                                    LOG.log(Level.WARNING, "ERROR calculating usage for user: " + username + "\n" + e.getMessage(), e);
+                                    return false;
+                                }));
                     } else
                         LOG.info("Identity key absent in pki for user: " + username);
                 } catch (Exception e) {
-                    e.printStackTrace();
                     LOG.log(Level.WARNING, "ERROR calculating usage for user: " + username + "\n" + e.getMessage(), e);
                 }
             }
+            Futures.combineAll(done).join();
             usageStore.initialized();
-            Logging.LOG().info("Finished calculating space usage for " + usernames.size() + " local users...");
+            Logging.LOG().info("Finished calculating space usage for " + usernames.size() + " local users in "
+                    + (System.currentTimeMillis() - t0) + " mS");
         } catch (Exception e) {
             LOG.log(Level.WARNING, e.getMessage(), e);
         }
@@ -135,7 +197,8 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
                     for (PublicKeyHash newOwnedKey : newOwnedKeys) {
                         store.addWriter(writerUsage.owner, newOwnedKey);
                         processMutablePointerEvent(store, owner, newOwnedKey, MaybeMultihash.empty(),
-                                mutable.getPointerTarget(owner, newOwnedKey, dht).get(), mutable, dht, hasher);
+                                mutable.getPointerTarget(owner, newOwnedKey, dht).get(), mutable, dht, hasher,
+                                removed -> processRemovedOwnedKeys(store, owner, removed, mutable, dht, hasher));
                     }
                     HashSet<PublicKeyHash> removedOwnedKeys = new HashSet<>(writerUsage.ownedKeys());
                     removedOwnedKeys.removeAll(directOwnedKeys);
@@ -153,74 +216,155 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
     public void accept(CorenodeEvent event) {
         usageStore.addUserIfAbsent(event.username);
         usageStore.addWriter(event.username, event.keyHash);
-        ForkJoinPool.commonPool().submit(() -> processCorenodeEvent(event.username, event.keyHash));
+        // This is called from the pki's commit thread, which mustn't wait for the pointer read in recalculate
+        CompletableFuture.supplyAsync(() -> recalculate(event.username, event.keyHash, false), pool)
+                .thenCompose(x -> x)
+                .exceptionally(e -> {
+                    LOG.severe("Error loading storage for user: " + event.username);
+                    Exceptions.getRootCause(e).printStackTrace();
+                    return false;
+                });
     }
 
     /** Update our view of the world because a user has changed their public key (or registered)
      *
      * @param username
      * @param writer
+     * @param block whether to wait for space in the pipeline
+     * @return when the usage of writer and all its descendants has been updated
      */
-    private void processCorenodeEvent(String username, PublicKeyHash writer) {
-        try {
-            usageStore.addUserIfAbsent(username);
-            Set<PublicKeyHash> childrenKeys = WriterData.getDirectOwnedKeys(writer, writer, mutable, dht, hasher)
-                    .join()
-                    .stream()
-                    .filter(k -> ! k.equals(writer))
-                    .collect(Collectors.toSet());
-            WriterUsage current = usageStore.getUsage(writer);
-            MaybeMultihash updatedRoot = mutable.getPointerTarget(writer, writer, dht).get();
-            processMutablePointerEvent(usageStore, writer, writer, current.target(), updatedRoot, mutable, dht, hasher);
-            for (PublicKeyHash childKey : childrenKeys) {
-                processCorenodeEvent(username, childKey);
-            }
-        } catch (Throwable e) {
-            LOG.severe("Error loading storage for user: " + username);
-            Exceptions.getRootCause(e).printStackTrace();
-        }
+    private CompletableFuture<Boolean> recalculate(String username, PublicKeyHash writer, boolean block) {
+        WriterUsage current = usageStore.getUsage(writer);
+        MaybeMultihash updatedRoot = mutable.getPointerTarget(writer, writer, dht).join();
+        return enqueue(writer, writer, current.target(), updatedRoot, block)
+                .thenCompose(owned -> Futures.combineAll(owned.stream()
+                        .filter(k -> ! k.equals(writer))
+                        // children are queued from pipeline threads, which must never block
+                        .map(child -> recalculate(username, child, false))
+                        .collect(Collectors.toList())))
+                .thenApply(x -> true);
     }
 
     public void accept(MutableEvent event) {
-        mutableQueue.add(event);
         try {
             HashCasPair hashCasPair = dht.getSigningKey(event.writer)
                     .thenApply(signer -> HashCasPair.fromCbor(CborObject.fromByteArray(signer.get()
                             .unsignMessage(event.writerSignedBtreeRootHash)))).get();
-            Set<PublicKeyHash> updatedOwned =
-                    WriterData.getDirectOwnedKeys(event.writer, hashCasPair.updated, dht, hasher).join();
-            WriterUsage current = usageStore.getUsage(event.writer);
-            for (PublicKeyHash owned : updatedOwned) {
-                usageStore.addWriter(current.owner, owned);
-            }
+            enqueue(event.owner, event.writer, hashCasPair.original, hashCasPair.updated, true);
+            registerNewOwnedKeys(event.writer, hashCasPair);
         } catch (Exception e) {
-            e.printStackTrace();
+            LOG.log(Level.WARNING, e.getMessage(), e);
         }
     }
 
-    private void processMutablePointerEvent(MutableEvent event) {
-        try {
-            HashCasPair hashCasPair = dht.getSigningKey(event.writer)
-                    .thenApply(signer -> HashCasPair.fromCbor(CborObject.fromByteArray(signer.get()
-                            .unsignMessage(event.writerSignedBtreeRootHash)))).get();
-            processMutablePointerEvent(usageStore, event.owner, event.writer, hashCasPair.original, hashCasPair.updated,
-                    mutable, dht, hasher);
-        } catch (Exception e) {
-            LOG.log(Level.WARNING, e.getMessage(), e);
+    /** Any new owned keys must be known before the pointer update completes, as the next write may be signed by one.
+     * Most updates don't change the owned keys, so the owned keys are only walked if their roots have changed.
+     */
+    private void registerNewOwnedKeys(PublicKeyHash writer, HashCasPair hashCasPair) {
+        if (! hashCasPair.updated.isPresent())
+            return;
+        if (hashCasPair.original.isPresent()) {
+            WriterData original = WriterData.getWriterData(hashCasPair.original.get(), dht).join().props;
+            WriterData updated = WriterData.getWriterData(hashCasPair.updated.get(), dht).join().props;
+            if (original.ownedKeys.equals(updated.ownedKeys) && original.namedOwnedKeys.equals(updated.namedOwnedKeys))
+                return;
+        }
+        Set<PublicKeyHash> updatedOwned = WriterData.getDirectOwnedKeys(writer, hashCasPair.updated, dht, hasher).join();
+        WriterUsage current = usageStore.getUsage(writer);
+        for (PublicKeyHash owned : updatedOwned) {
+            usageStore.addWriter(current.owner, owned);
         }
     }
 
-    private static void processMutablePointerEvent(UsageStore state,
-                                                   PublicKeyHash owner,
-                                                   PublicKeyHash writer,
-                                                   MaybeMultihash existingRoot,
-                                                   MaybeMultihash newRoot,
-                                                   MutablePointers mutable,
-                                                   ContentAddressedStorage dht,
-                                                   Hasher hasher) {
-        if (existingRoot.equals(newRoot))
-            return;
+    /** Queue an update to the usage of a writer, merging it with any update already waiting for the writer.
+     *
+     * @param block whether to wait for space if there are too many writers waiting
+     * @return the direct owned keys of the writer after the update
+     */
+    private CompletableFuture<Set<PublicKeyHash>> enqueue(PublicKeyHash owner,
+                                                          PublicKeyHash writer,
+                                                          MaybeMultihash original,
+                                                          MaybeMultihash updated,
+                                                          boolean block) {
+        CompletableFuture<Set<PublicKeyHash>> res = new CompletableFuture<>();
+        synchronized (pending) {
+            while (block && pending.size() >= MAX_PENDING_WRITERS && ! pending.containsKey(writer)) {
+                try {
+                    pending.wait();
+                } catch (InterruptedException e) {}
+            }
+            PendingUpdate existing = pending.get(writer);
+            if (existing != null) {
+                pending.put(writer, existing.coalesce(updated, res));
+                coalescedUpdates.inc();
+            } else
+                pending.put(writer, new PendingUpdate(owner, original, updated, System.currentTimeMillis(),
+                        new ArrayList<>(Collections.singletonList(res))));
+            pendingWriters.set(pending.size());
+            if (active.add(writer))
+                pool.execute(() -> processWriter(writer));
+        }
+        return res;
+    }
+
+    /** Process the pending updates of a writer until there are none left
+     */
+    private void processWriter(PublicKeyHash writer) {
+        while (isRunning.get()) {
+            PendingUpdate update;
+            synchronized (pending) {
+                update = pending.remove(writer);
+                pendingWriters.set(pending.size());
+                pending.notifyAll();
+                if (update == null) {
+                    active.remove(writer);
+                    return;
+                }
+            }
+            try {
+                Set<PublicKeyHash> owned = processMutablePointerEvent(usageStore, update.owner, writer, update.original,
+                        update.updated, mutable, dht, hasher, removed -> queueRemovedOwnedKeys(update.owner, removed));
+                usageLag.observe(System.currentTimeMillis() - update.queuedAt);
+                for (CompletableFuture<Set<PublicKeyHash>> waiter : update.waiters)
+                    waiter.complete(owned);
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, "Failed updating usage of writer " + writer, t);
+                for (CompletableFuture<Set<PublicKeyHash>> waiter : update.waiters)
+                    waiter.completeExceptionally(t);
+            }
+        }
+    }
+
+    /** Removed keys are processed in their own writer's turn in the pipeline
+     */
+    private void queueRemovedOwnedKeys(PublicKeyHash owner, Set<PublicKeyHash> removed) {
+        for (PublicKeyHash ownedKey : removed) {
+            try {
+                MaybeMultihash currentTarget = mutable.getPointerTarget(owner, ownedKey, dht).get();
+                enqueue(owner, ownedKey, currentTarget, MaybeMultihash.empty(), false);
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     *
+     * @param removedOwnedKeys is called with any keys no longer owned by writer
+     * @return the direct owned keys of writer after the update
+     */
+    private static Set<PublicKeyHash> processMutablePointerEvent(UsageStore state,
+                                                                 PublicKeyHash owner,
+                                                                 PublicKeyHash writer,
+                                                                 MaybeMultihash existingRoot,
+                                                                 MaybeMultihash newRoot,
+                                                                 MutablePointers mutable,
+                                                                 ContentAddressedStorage dht,
+                                                                 Hasher hasher,
+                                                                 Consumer<Set<PublicKeyHash>> removedOwnedKeys) {
         WriterUsage current = state.getUsage(writer);
+        if (existingRoot.equals(newRoot))
+            return current == null ? Collections.emptySet() : current.ownedKeys();
         if (current == null)
             throw new IllegalStateException("Unknown writer key hash: " + writer);
         if (! newRoot.isPresent()) {
@@ -230,12 +374,12 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
                     // subtract data size from orphaned child keys (this assumes the keys form a tree without dupes)
                     Set<PublicKeyHash> updatedOwned =
                             WriterData.getDirectOwnedKeys(writer, newRoot, dht, hasher).join();
-                    processRemovedOwnedKeys(state, owner, updatedOwned, mutable, dht, hasher);
+                    removedOwnedKeys.accept(updatedOwned);
                 } catch (Exception e) {
                     LOG.log(Level.WARNING, e.getMessage(), e);
                 }
             }
-            return;
+            return Collections.emptySet();
         }
 
         try {
@@ -250,13 +394,15 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
 
                 HashSet<PublicKeyHash> removedChildren = new HashSet<>(current.ownedKeys());
                 removedChildren.removeAll(updatedOwned);
-                processRemovedOwnedKeys(state, owner, removedChildren, mutable, dht, hasher);
+                removedOwnedKeys.accept(removedChildren);
                 HashSet<PublicKeyHash> addedOwnedKeys = new HashSet<>(updatedOwned);
                 addedOwnedKeys.removeAll(current.ownedKeys());
                 state.updateWriterUsage(writer, newRoot, removedChildren, addedOwnedKeys, current.directRetainedStorage() + changeInStorage);
+                return updatedOwned;
             }
         } catch (Exception e) {
             Exceptions.getRootCause(e).printStackTrace();
+            return current.ownedKeys();
         }
     }
 
@@ -269,7 +415,8 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
         for (PublicKeyHash ownedKey : removed) {
             try {
                 MaybeMultihash currentTarget = mutable.getPointerTarget(owner, ownedKey, dht).get();
-                processMutablePointerEvent(state, owner, ownedKey, currentTarget, MaybeMultihash.empty(), mutable, dht, hasher);
+                processMutablePointerEvent(state, owner, ownedKey, currentTarget, MaybeMultihash.empty(), mutable, dht, hasher,
+                        children -> processRemovedOwnedKeys(state, owner, children, mutable, dht, hasher));
             } catch (Exception e) {
                 LOG.log(Level.WARNING, e.getMessage(), e);
             }
@@ -28,6 +28,13 @@ public interface SqlSupplier {
                 "tid varchar(64) not null, owner varchar(64) not null, hash varchar(64) not null);";
     }
 
+    default String createPackIndexTableCommand() {
+        return "CREATE TABLE IF NOT EXISTS packindex (" +
+                "hash " + getByteArrayType() + " primary key not null, " +
+                "segment INTEGER NOT NULL, block_offset BIGINT NOT NULL, block_size INTEGER NOT NULL);" +
+                "CREATE INDEX IF NOT EXISTS packindex_segment ON packindex (segment);";
+    }
+
     String insertOrIgnoreCommand(String prefix, String suffix);
 
     default String createUsageTablesCommand() {
@@ -0,0 +1,202 @@
+package peergos.server.storage;
+
+import io.prometheus.client.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.net.*;
+import java.net.http.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/** A non blocking client for presigned S3 requests.
+ *
+ * The number of concurrent requests across all callers is bounded, and requests which fail with a connection error,
+ * a 5xx or a throttling response are retried with exponential backoff.
+ */
+public class AsyncS3Client {
+    private static final Logger LOG = Logger.getGlobal();
+
+    private static final Histogram operationTimer = Histogram.build()
+            .labelNames("operation")
+            .name("s3_operation_seconds")
+            .help("Time for a single S3 request, including retries")
+            .exponentialBuckets(0.01, 2, 16)
+            .register();
+    private static final Counter retryCounter = Counter.build()
+            .labelNames("operation")
+            .name("s3_operation_retries")
+            .help("Total retried S3 requests")
+            .register();
+
+    // HttpClient sets these itself from the uri and body
+    private static final Set<String> RESTRICTED_HEADERS = new HashSet<>(Arrays.asList("host", "content-length", "connection"));
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+
+    private final HttpClient client;
+    private final Permits permits;
+    private final int maxRetries;
+
+    public AsyncS3Client(int maxConcurrentRequests, int maxRetries) {
+        this.client = HttpClient.newBuilder()
+                // S3 only speaks HTTP/1.1, so don't attempt an upgrade on every connection
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .executor(Executors.newFixedThreadPool(Math.max(2, Math.min(maxConcurrentRequests, 32)), r -> {
+                    Thread t = new Thread(r, "AsyncS3Client");
+                    t.setDaemon(true);
+                    return t;
+                }))
+                .build();
+        this.permits = new Permits(maxConcurrentRequests);
+        this.maxRetries = maxRetries;
+    }
+
+    public CompletableFuture<byte[]> get(PresignedUrl url) {
+        return send("get", url, "GET", Optional.empty(), Collections.emptyMap())
+                .thenApply(resp -> resp.body());
+    }
+
+    /** Read an object using concurrent range requests of at most rangeSize bytes. Only the first range is requested
+     * until the size of the object is known, so objects smaller than rangeSize take a single request.
+     *
+     * @param url
+     * @param rangeSize
+     * @return
+     */
+    public CompletableFuture<byte[]> getInRanges(PresignedUrl url, int rangeSize) {
+        return getRange(url, 0, rangeSize).thenCompose(first -> {
+            if (first.statusCode() == 200)
+                return Futures.of(first.body()); // ranges not supported
+            long total = totalSize(first);
+            if (total <= rangeSize)
+                return Futures.of(first.body());
+            if (total > Integer.MAX_VALUE)
+                throw new IllegalStateException("Object too large to read into memory: " + total);
+            List<CompletableFuture<HttpResponse<byte[]>>> rest = new ArrayList<>();
+            for (long start = rangeSize; start < total; start += rangeSize)
+                rest.add(getRange(url, start, (int) Math.min(rangeSize, total - start)));
+            return Futures.combineAllInOrder(rest).thenApply(parts -> {
+                byte[] res = new byte[(int) total];
+                System.arraycopy(first.body(), 0, res, 0, first.body().length);
+                int offset = first.body().length;
+                for (HttpResponse<byte[]> part : parts) {
+                    System.arraycopy(part.body(), 0, res, offset, part.body().length);
+                    offset += part.body().length;
+                }
+                if (offset != total)
+                    throw new IllegalStateException("Incorrect size of ranged read: " + offset + " != " + total);
+                return res;
+            });
+        });
+    }
+
+    private CompletableFuture<HttpResponse<byte[]>> getRange(PresignedUrl url, long start, int length) {
+        return send("range-get", url, "GET", Optional.empty(),
+                Collections.singletonMap("Range", "bytes=" + start + "-" + (start + length - 1)));
+    }
+
+    private static long totalSize(HttpResponse<?> partial) {
+        // Content-Range: bytes 0-1023/146515
+        String range = partial.headers().firstValue("Content-Range")
+                .orElseThrow(() -> new IllegalStateException("Missing Content-Range in partial response"));
+        return Long.parseLong(range.substring(range.lastIndexOf("/") + 1).trim());
+    }
+
+    public CompletableFuture<byte[]> put(PresignedUrl url, byte[] body) {
+        return send("put", url, "PUT", Optional.of(body), Collections.emptyMap())
+                .thenApply(resp -> resp.body());
+    }
+
+    private CompletableFuture<HttpResponse<byte[]>> send(String operation,
+                                                         PresignedUrl url,
+                                                         String method,
+                                                         Optional<byte[]> body,
+                                                         Map<String, String> extraHeaders) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url.base))
+                .timeout(Duration.ofSeconds(60))
+                .method(method, body.map(HttpRequest.BodyPublishers::ofByteArray)
+                        .orElse(HttpRequest.BodyPublishers.noBody()));
+        for (Map.Entry<String, String> e : url.fields.entrySet()) {
+            if (! RESTRICTED_HEADERS.contains(e.getKey().toLowerCase()))
+                builder.header(e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, String> e : extraHeaders.entrySet())
+            builder.header(e.getKey(), e.getValue());
+        HttpRequest request = builder.build();
+
+        Histogram.Timer timer = operationTimer.labels(operation).startTimer();
+        CompletableFuture<HttpResponse<byte[]>> res = new CompletableFuture<>();
+        sendWithRetries(operation, request, 0, res);
+        return res.whenComplete((r, t) -> timer.observeDuration());
+    }
+
+    private static boolean isRetryable(int status) {
+        return status == 429 || status == 500 || status == 502 || status == 503 || status == 504;
+    }
+
+    private void sendWithRetries(String operation,
+                                 HttpRequest request,
+                                 int attempt,
+                                 CompletableFuture<HttpResponse<byte[]>> res) {
+        permits.acquire()
+                .thenCompose(x -> client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()))
+                .whenComplete((resp, t) -> {
+                    permits.release();
+                    int status = t == null ? resp.statusCode() : 0;
+                    if (t == null && status >= 200 && status < 300) {
+                        res.complete(resp);
+                        return;
+                    }
+                    boolean retryable = t != null ? (t instanceof IOException || t.getCause() instanceof IOException) : isRetryable(status);
+                    if (retryable && attempt < maxRetries) {
+                        retryCounter.labels(operation).inc();
+                        long delay = INITIAL_BACKOFF_MILLIS * (1L << attempt) + ThreadLocalRandom.current().nextLong(INITIAL_BACKOFF_MILLIS);
+                        LOG.info("Retrying S3 " + operation + " in " + delay + "ms after " + (t != null ? t.getMessage() : "HTTP " + status));
+                        CompletableFuture.runAsync(() -> sendWithRetries(operation, request, attempt + 1, res),
+                                CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS));
+                        return;
+                    }
+                    if (t != null)
+                        res.completeExceptionally(t);
+                    else
+                        res.completeExceptionally(new IOException("HTTP " + status + ": " + new String(resp.body())));
+                });
+    }
+
+    /** A non blocking counting semaphore
+     */
+    private static class Permits {
+        private final Queue<CompletableFuture<Boolean>> waiting = new ArrayDeque<>();
+        private int available;
+
+        Permits(int permits) {
+            this.available = permits;
+        }
+
+        synchronized CompletableFuture<Boolean> acquire() {
+            if (available > 0) {
+                available--;
+                return Futures.of(true);
+            }
+            CompletableFuture<Boolean> res = new CompletableFuture<>();
+            waiting.add(res);
+            return res;
+        }
+
+        void release() {
+            CompletableFuture<Boolean> next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (next == null) {
+                    available++;
+                    return;
+                }
+            }
+            next.completeAsync(() -> true);
+        }
+    }
+}
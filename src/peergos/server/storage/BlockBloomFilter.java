@@ -0,0 +1,100 @@
+package peergos.server.storage;
+
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.concurrent.atomic.*;
+
+/** A thread safe bloom filter of block hashes, used to mark reachable blocks during GC.
+ *
+ * A false positive can only cause garbage to be retained, and at a 1% false positive rate this uses ~1.2 bytes per
+ * block. The bit indices are derived from the block's digest, which is already uniformly distributed.
+ */
+public class BlockBloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashFunctions;
+    private final LongAdder added = new LongAdder();
+
+    private BlockBloomFilter(long bitCount, int hashFunctions) {
+        long words = (bitCount + 63) / 64;
+        if (words > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Bloom filter too large: " + bitCount + " bits");
+        this.bits = new AtomicLongArray((int) words);
+        this.bitCount = words * 64;
+        this.hashFunctions = hashFunctions;
+    }
+
+    /**
+     *
+     * @param expectedInsertions
+     * @param falsePositiveRate the desired false positive rate after expectedInsertions blocks have been added
+     * @return
+     */
+    public static BlockBloomFilter create(long expectedInsertions, double falsePositiveRate) {
+        long n = Math.max(1, expectedInsertions);
+        long bits = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int hashes = Math.max(1, (int) Math.round((double) bits / n * Math.log(2)));
+        return new BlockBloomFilter(bits, hashes);
+    }
+
+    private static long[] baseHashes(Multihash hash) {
+        byte[] digest = hash.getHash();
+        if (digest.length < 16)
+            digest = Hash.sha256(hash.toBytes());
+        long h1 = 0, h2 = 0;
+        for (int i=0; i < 8; i++) {
+            h1 = (h1 << 8) | (digest[i] & 0xFF);
+            h2 = (h2 << 8) | (digest[i + 8] & 0xFF);
+        }
+        return new long[]{h1, h2 | 1};
+    }
+
+    private long index(long[] base, int i) {
+        return ((base[0] + i * base[1]) & Long.MAX_VALUE) % bitCount;
+    }
+
+    public void add(Multihash hash) {
+        long[] base = baseHashes(hash);
+        for (int i=0; i < hashFunctions; i++) {
+            long index = index(base, i);
+            int word = (int) (index >>> 6);
+            long mask = 1L << (index & 63);
+            long current;
+            while (((current = bits.get(word)) & mask) == 0 && ! bits.compareAndSet(word, current, current | mask))
+                ;
+        }
+        added.increment();
+    }
+
+    public boolean mightContain(Multihash hash) {
+        long[] base = baseHashes(hash);
+        for (int i=0; i < hashFunctions; i++) {
+            long index = index(base, i);
+            if ((bits.get((int) (index >>> 6)) & (1L << (index & 63))) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @return the number of add calls, including repeated blocks
+     */
+    public long insertions() {
+        return added.sum();
+    }
+
+    public long sizeInBytes() {
+        return bitCount / 8;
+    }
+
+    /**
+     *
+     * @return the expected false positive rate for the current number of insertions
+     */
+    public double expectedFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-(double) hashFunctions * insertions() / bitCount), hashFunctions);
+    }
+}
@@ -0,0 +1,22 @@
+package peergos.server.storage;
+
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/** A block store which keeps each block, exactly as stored, in a file of its own.
+ *
+ * This lets a block be sent straight from the file to a socket, without reading it onto the heap or decoding it.
+ */
+public interface BlockFileSource {
+
+    /**
+     *
+     * @param hash
+     * @return An open channel over the stored bytes of the block, if it is present. The caller must close it.
+     * @throws IOException
+     */
+    Optional<FileChannel> openBlock(Multihash hash) throws IOException;
+}
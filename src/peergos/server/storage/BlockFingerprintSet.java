@@ -0,0 +1,161 @@
+package peergos.server.storage;
+
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.io.*;
+import java.nio.file.*;
+
+/** A compact, thread safe set of block hashes used to mark reachable blocks during GC.
+ *
+ * Each hash is stored as a 128 bit fingerprint of its digest in open addressed long arrays, split into independently
+ * locked stripes. This uses ~32 bytes per block, rather than several hundred for a Set<Multihash>. Blocks with the
+ * same digest but a different codec share a fingerprint, which can only cause garbage to be retained.
+ */
+public class BlockFingerprintSet {
+    private static final int STRIPES = 64;
+    private static final int INITIAL_STRIPE_CAPACITY = 1024;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    public BlockFingerprintSet() {
+        for (int i=0; i < STRIPES; i++)
+            stripes[i] = new Stripe(INITIAL_STRIPE_CAPACITY);
+    }
+
+    private static long[] fingerprint(Multihash hash) {
+        byte[] digest = hash.getHash();
+        if (digest.length < 16)
+            digest = Hash.sha256(hash.toBytes());
+        long high = 0, low = 0;
+        for (int i=0; i < 8; i++) {
+            high = (high << 8) | (digest[i] & 0xFF);
+            low = (low << 8) | (digest[i + 8] & 0xFF);
+        }
+        if (high == 0 && low == 0)
+            low = 1; // (0, 0) marks an empty slot
+        return new long[]{high, low};
+    }
+
+    private Stripe stripeFor(long high) {
+        return stripes[(int) (high >>> 58) & (STRIPES - 1)];
+    }
+
+    /**
+     *
+     * @param hash
+     * @return true if the hash was not already in the set
+     */
+    public boolean add(Multihash hash) {
+        long[] fp = fingerprint(hash);
+        return add(fp[0], fp[1]);
+    }
+
+    private boolean add(long high, long low) {
+        Stripe stripe = stripeFor(high);
+        synchronized (stripe) {
+            return stripe.add(high, low);
+        }
+    }
+
+    public boolean contains(Multihash hash) {
+        long[] fp = fingerprint(hash);
+        Stripe stripe = stripeFor(fp[0]);
+        synchronized (stripe) {
+            return stripe.contains(fp[0], fp[1]);
+        }
+    }
+
+    public long size() {
+        long total = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                total += stripe.size;
+            }
+        }
+        return total;
+    }
+
+    public void writeTo(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1024 * 1024))) {
+            dout.writeLong(size());
+            for (Stripe stripe : stripes) {
+                synchronized (stripe) {
+                    for (int i=0; i < stripe.table.length; i += 2) {
+                        if (stripe.table[i] == 0 && stripe.table[i + 1] == 0)
+                            continue;
+                        dout.writeLong(stripe.table[i]);
+                        dout.writeLong(stripe.table[i + 1]);
+                    }
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static BlockFingerprintSet readFrom(Path file) throws IOException {
+        BlockFingerprintSet res = new BlockFingerprintSet();
+        try (DataInputStream din = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1024 * 1024))) {
+            long count = din.readLong();
+            for (long i=0; i < count; i++)
+                res.add(din.readLong(), din.readLong());
+        }
+        return res;
+    }
+
+    private static class Stripe {
+        private long[] table; // pairs of (high, low)
+        private int size;
+
+        Stripe(int capacity) {
+            this.table = new long[capacity * 2];
+        }
+
+        private int capacity() {
+            return table.length / 2;
+        }
+
+        private int slot(long high, long low) {
+            long h = high ^ low;
+            return (int) (h ^ (h >>> 32)) & (capacity() - 1);
+        }
+
+        boolean contains(long high, long low) {
+            int mask = capacity() - 1;
+            for (int i = slot(high, low); ; i = (i + 1) & mask) {
+                long h = table[2 * i], l = table[2 * i + 1];
+                if (h == 0 && l == 0)
+                    return false;
+                if (h == high && l == low)
+                    return true;
+            }
+        }
+
+        boolean add(long high, long low) {
+            if ((size + 1) * 2 > capacity())
+                resize();
+            int mask = capacity() - 1;
+            for (int i = slot(high, low); ; i = (i + 1) & mask) {
+                long h = table[2 * i], l = table[2 * i + 1];
+                if (h == high && l == low)
+                    return false;
+                if (h == 0 && l == 0) {
+                    table[2 * i] = high;
+                    table[2 * i + 1] = low;
+                    size++;
+                    return true;
+                }
+            }
+        }
+
+        private void resize() {
+            long[] old = table;
+            table = new long[old.length * 2];
+            size = 0;
+            for (int i=0; i < old.length; i += 2)
+                if (old[i] != 0 || old[i + 1] != 0)
+                    add(old[i], old[i + 1]);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package peergos.server.storage;
+
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.asymmetric.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.mutable.*;
+import peergos.shared.storage.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/** The mark phase of a block store GC, which walks the blocks reachable from a set of roots in parallel.
+ */
+public class BlockMarker {
+
+    /**
+     *
+     * @param pointers the signed pointer of each writer
+     * @param dht the store to read the writers' keys from
+     * @return The current target of each pointer
+     */
+    public static List<Multihash> roots(Map<PublicKeyHash, byte[]> pointers, ContentAddressedStorage dht) {
+        List<Multihash> roots = new ArrayList<>();
+        for (PublicKeyHash writerHash : pointers.keySet()) {
+            byte[] signedRawCas = pointers.get(writerHash);
+            PublicSigningKey writer = dht.getSigningKey(writerHash).join().get();
+            byte[] bothHashes = writer.unsignMessage(signedRawCas);
+            HashCasPair cas = HashCasPair.fromCbor(CborObject.fromByteArray(bothHashes));
+            MaybeMultihash updated = cas.updated;
+            if (updated.isPresent())
+                roots.add(updated.get());
+        }
+        return roots;
+    }
+
+    /** Visit every block reachable from the roots. Raw blocks have no links so are visited without being read.
+     *
+     * Any failure to read a reachable block is thrown, as it must abort the GC.
+     *
+     * @param roots
+     * @param visit marks a block, and returns whether to descend into its links
+     * @param links the store to read links from
+     * @param parallelism the maximum number of concurrent block reads
+     */
+    public static void markReachable(List<Multihash> roots,
+                                     Predicate<Multihash> visit,
+                                     ContentAddressedStorage links,
+                                     int parallelism) {
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+        AtomicLong outstanding = new AtomicLong(roots.size());
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+        if (roots.isEmpty())
+            done.complete(true);
+        try {
+            for (Multihash root : roots)
+                pool.execute(() -> mark(root, visit, links, pool, outstanding, done));
+            done.join();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void mark(Multihash hash,
+                             Predicate<Multihash> visit,
+                             ContentAddressedStorage links,
+                             ExecutorService pool,
+                             AtomicLong outstanding,
+                             CompletableFuture<Boolean> done) {
+        try {
+            if (! done.isDone() && visit.test(hash)) {
+                for (Multihash link : links.getLinks(hash).join()) {
+                    outstanding.incrementAndGet();
+                    pool.execute(() -> mark(link, visit, links, pool, outstanding, done));
+                }
+            }
+        } catch (Throwable t) {
+            done.completeExceptionally(t);
+        } finally {
+            if (outstanding.decrementAndGet() == 0)
+                done.complete(true);
+        }
+    }
+}
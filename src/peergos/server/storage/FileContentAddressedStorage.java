@@ -1,10 +1,19 @@
 package peergos.server.storage;
 
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import peergos.server.*;
+import peergos.server.corenode.*;
+import peergos.server.sql.*;
+import peergos.server.util.*;
 import peergos.server.util.Logging;
+import peergos.shared.*;
 import peergos.shared.cbor.*;
+import peergos.shared.crypto.asymmetric.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.mutable.*;
 import peergos.shared.storage.*;
 import peergos.shared.util.*;
 
@@ -12,8 +21,11 @@ import java.io.*;
 import java.nio.channels.*;
 import java.nio.file.*;
 import java.nio.file.attribute.*;
+import java.sql.*;
+import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.logging.*;
 import java.util.stream.*;
@@ -21,10 +33,33 @@ import java.util.stream.*;
 /** A local directory implementation of ContentAddressedStorage.
  *
  */
-public class FileContentAddressedStorage implements ContentAddressedStorage {
+public class FileContentAddressedStorage implements ContentAddressedStorage, BlockFileSource {
     private static final Logger LOG = Logging.LOG();
     private static final int CID_V1 = 1;
     private static final int DIRECTORY_DEPTH = 5;
+
+    private static final Counter gcScannedBlocks = Counter.build()
+            .name("file_gc_scanned_blocks")
+            .help("Total blocks scanned by file store GC")
+            .register();
+    private static final Counter gcMarkedBlocks = Counter.build()
+            .name("file_gc_marked_blocks")
+            .help("Total reachable blocks marked by file store GC")
+            .register();
+    private static final Counter gcDeletedBlocks = Counter.build()
+            .name("file_gc_deleted_blocks")
+            .help("Total blocks deleted by file store GC")
+            .register();
+    private static final Counter gcDeletedBytes = Counter.build()
+            .name("file_gc_deleted_bytes")
+            .help("Total size of blocks deleted by file store GC")
+            .register();
+    private static final Histogram gcPhaseTimer = Histogram.build()
+            .labelNames("phase")
+            .name("file_gc_phase_seconds")
+            .help("Time taken by each phase of file store GC")
+            .exponentialBuckets(1, 2, 20)
+            .register();
     private final Path root;
     private final TransactionStore transactions;
 
@@ -87,9 +122,17 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
                                                    List<byte[]> blocks,
                                                    boolean isRaw,
                                                    TransactionId tid) {
-        return CompletableFuture.completedFuture(blocks.stream()
-                .map(b -> put(b, isRaw, tid, owner))
-                .collect(Collectors.toList()));
+        List<Cid> cids = blocks.stream()
+                .map(b -> hashToCid(b, isRaw))
+                .collect(Collectors.toList());
+        // blocks must be registered in the transaction before they are written
+        transactions.addBlocks(new ArrayList<>(cids), tid, owner);
+        List<Multihash> res = new ArrayList<>(cids.size());
+        for (int i=0; i < cids.size(); i++) {
+            write(cids.get(i), blocks.get(i));
+            res.add(cids.get(i));
+        }
+        return CompletableFuture.completedFuture(res);
     }
 
     @Override
@@ -138,23 +181,43 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
         try {
             if (hash.isIdentity())
                 return Futures.of(Optional.of(hash.getHash()));
-            Path path = getFilePath(hash);
-            File file = root.resolve(path).toFile();
-            if (! file.exists()){
-                return CompletableFuture.completedFuture(Optional.empty());
-            }
-            try (DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
-                return CompletableFuture.completedFuture(Optional.of(Serialize.readFully(din)));
-            }
+            Path path = root.resolve(getFilePath(hash));
+            // read straight into a single array of the right size
+            return CompletableFuture.completedFuture(Optional.of(Files.readAllBytes(path)));
+        } catch (NoSuchFileException e) {
+            return CompletableFuture.completedFuture(Optional.empty());
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage(), e);
         }
     }
 
+    @Override
+    public Optional<FileChannel> openBlock(Multihash hash) throws IOException {
+        if (hash.isIdentity())
+            return Optional.empty();
+        try {
+            return Optional.of(FileChannel.open(root.resolve(getFilePath(hash)), StandardOpenOption.READ));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static Cid hashToCid(byte[] data, boolean isRaw) {
+        return new Cid(CID_V1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor,
+                Multihash.Type.sha2_256, RAMStorage.hash(data));
+    }
+
     public Multihash put(byte[] data, boolean isRaw, TransactionId tid, PublicKeyHash owner) {
+        Cid cid = hashToCid(data, isRaw);
+        transactions.addBlock(cid, tid, owner);
+        write(cid, data);
+        return cid;
+    }
+
+    /** Write a block which has already been registered in a transaction
+     */
+    private void write(Cid cid, byte[] data) {
         try {
-            Cid cid = new Cid(CID_V1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor,
-                    Multihash.Type.sha2_256, RAMStorage.hash(data));
             Path filePath = getFilePath(cid);
             Path target = root.resolve(filePath);
             Path parent = target.getParent();
@@ -170,7 +233,6 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
                         throw new IllegalStateException("Could not make " + someParent.toString() + ", ancestor of " + parentDir.toString() + " writable");
                 }
             }
-            transactions.addBlock(cid, tid, owner);
             File targetFile = target.toFile();
             Path tmp = Files.createTempFile(root, "tmp", "");
             File tmpFile = tmp.toFile();
@@ -197,7 +259,6 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
                 if (tmpFile.exists())
                     tmpFile.delete();
             }
-            return cid;
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage(), e);
         }
@@ -270,20 +331,177 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
     }
 
     public Set<Multihash> retainOnly(Set<Multihash> pins) {
-        List<Multihash> existing = getFiles();
-        Set<Multihash> removed = new HashSet<>();
-        for (Multihash h : existing) {
-            if (! pins.contains(h)) {
-                removed.add(h);
-                File file = root.resolve(getFilePath(h)).toFile();
-                if (file.exists() && !file.delete())
-                    LOG.warning("Could not delete " + file);
-                File legacy = root.resolve(h.toBase58()).toFile();
-                if (legacy.exists() && ! legacy.delete())
-                    LOG.warning("Could not delete " + legacy);
+        Set<Multihash> removed = ConcurrentHashMap.newKeySet();
+        sweep(pins::contains, Long.MAX_VALUE, Runtime.getRuntime().availableProcessors(), removed::add);
+        return removed;
+    }
+
+    public static class GcResult {
+        public final long scannedBlocks, deletedBlocks, deletedBytes;
+
+        public GcResult(long scannedBlocks, long deletedBlocks, long deletedBytes) {
+            this.scannedBlocks = scannedBlocks;
+            this.deletedBlocks = deletedBlocks;
+            this.deletedBytes = deletedBytes;
+        }
+    }
+
+    /** Delete all blocks which are unreachable, not in an open transaction, and haven't been written or read within
+     * the grace period before GC started.
+     *
+     * The shard directories are scanned in parallel and blocks are deleted as they are found, so the block listing is
+     * never held in memory.
+     *
+     * @param isReachable
+     * @param gracePeriod
+     * @param parallelism the number of threads scanning directories
+     * @return
+     */
+    public GcResult collectGarbage(Predicate<Multihash> isReachable, Duration gracePeriod, int parallelism) {
+        long cutoff = System.currentTimeMillis() - gracePeriod.toMillis();
+        Set<Multihash> pending = new HashSet<>(transactions.getOpenTransactionBlocks());
+        return sweep(h -> pending.contains(h) || isReachable.test(h), cutoff, parallelism, h -> {});
+    }
+
+    private GcResult sweep(Predicate<Multihash> isReachable, long cutoffMillis, int parallelism, Consumer<Multihash> onDelete) {
+        LongAdder scanned = new LongAdder(), deleted = new LongAdder(), deletedBytes = new LongAdder();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new SweepDirectory(root, isReachable, cutoffMillis, onDelete, scanned, deleted, deletedBytes));
+        } finally {
+            pool.shutdown();
+        }
+        return new GcResult(scanned.sum(), deleted.sum(), deletedBytes.sum());
+    }
+
+    private static class SweepDirectory extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Path dir;
+        private final Predicate<Multihash> isReachable;
+        private final long cutoffMillis;
+        private final Consumer<Multihash> onDelete;
+        private final LongAdder scanned, deleted, deletedBytes;
+
+        SweepDirectory(Path dir,
+                       Predicate<Multihash> isReachable,
+                       long cutoffMillis,
+                       Consumer<Multihash> onDelete,
+                       LongAdder scanned,
+                       LongAdder deleted,
+                       LongAdder deletedBytes) {
+            this.dir = dir;
+            this.isReachable = isReachable;
+            this.cutoffMillis = cutoffMillis;
+            this.onDelete = onDelete;
+            this.scanned = scanned;
+            this.deleted = deleted;
+            this.deletedBytes = deletedBytes;
+        }
+
+        @Override
+        protected void compute() {
+            List<SweepDirectory> subdirs = new ArrayList<>();
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+                for (Path child : children) {
+                    String filename = child.getFileName().toString();
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(child, BasicFileAttributes.class);
+                    } catch (NoSuchFileException e) {
+                        continue;
+                    }
+                    if (attrs.isDirectory()) {
+                        SweepDirectory sub = new SweepDirectory(child, isReachable, cutoffMillis, onDelete, scanned, deleted, deletedBytes);
+                        sub.fork();
+                        subdirs.add(sub);
+                        continue;
+                    }
+                    if (! filename.startsWith("Q") && ! filename.startsWith("z"))
+                        continue; // tolerate non content addressed files in the same space
+                    Multihash hash;
+                    try {
+                        hash = Cid.decode(filename);
+                    } catch (IllegalStateException e) {
+                        LOG.info("Ignoring file "+ child +" since name is not a valid multihash");
+                        continue;
+                    }
+                    scanned.increment();
+                    gcScannedBlocks.inc();
+                    if (isReachable.test(hash))
+                        continue;
+                    long lastUsed = Math.max(attrs.lastAccessTime().toMillis(), attrs.lastModifiedTime().toMillis());
+                    if (lastUsed >= cutoffMillis)
+                        continue;
+                    if (Files.deleteIfExists(child)) {
+                        deleted.increment();
+                        deletedBytes.add(attrs.size());
+                        gcDeletedBlocks.inc();
+                        gcDeletedBytes.inc(attrs.size());
+                        onDelete.accept(hash);
+                    } else
+                        LOG.warning("Could not delete " + child);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
             }
+            for (SweepDirectory sub : subdirs)
+                sub.join();
         }
-        return removed;
+    }
+
+    private void collectGarbage(JdbcIpnsAndSocial pointers,
+                                long expectedBlocks,
+                                Duration gracePeriod,
+                                int parallelism) {
+        long t0 = System.nanoTime();
+        // The pointers must be listed after GC has started, so that the grace period covers any blocks they reference
+        // which were written before
+        long cutoff = System.currentTimeMillis() - gracePeriod.toMillis();
+        Set<Multihash> pending = new HashSet<>(transactions.getOpenTransactionBlocks());
+        Map<PublicKeyHash, byte[]> allPointers = pointers.getAllEntries();
+        List<Multihash> roots = BlockMarker.roots(allPointers, this);
+        long t1 = System.nanoTime();
+        LOG.info("Listing " + allPointers.size() + " pointers took " + (t1-t0)/1_000_000_000 + "s");
+        gcPhaseTimer.labels("list-pointers").observe((t1-t0)/1e9);
+
+        BlockBloomFilter reachable = BlockBloomFilter.create(expectedBlocks, 0.01);
+        // There is no exact visited set, so a subtree reachable from several roots is traversed once per root
+        BlockMarker.markReachable(roots, h -> {
+            reachable.add(h);
+            gcMarkedBlocks.inc();
+            return true;
+        }, this, parallelism);
+        long t2 = System.nanoTime();
+        LOG.info("Marking " + reachable.insertions() + " reachable blocks took " + (t2-t1)/1_000_000_000
+                + "s, expected false positive rate " + reachable.expectedFalsePositiveRate());
+        gcPhaseTimer.labels("mark").observe((t2-t1)/1e9);
+
+        GcResult res = sweep(h -> pending.contains(h) || reachable.mightContain(h), cutoff,
+                Runtime.getRuntime().availableProcessors(), h -> {});
+        long t3 = System.nanoTime();
+        LOG.info("Scanning " + res.scannedBlocks + " blocks took " + (t3-t2)/1_000_000_000 + "s");
+        gcPhaseTimer.labels("sweep").observe((t3-t2)/1e9);
+        LOG.info("GC complete. Freed " + res.deletedBlocks + " blocks totalling " + res.deletedBytes + " bytes");
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("Performing GC on block store...");
+        Args a = Args.parse(args);
+        SqlSupplier sqlCommands = a.getBoolean("use-postgres", false) ?
+                new PostgresCommands() :
+                new SqliteCommands();
+        Supplier<Connection> database = Main.getDBConnector(a, "mutable-pointers-file");
+        Supplier<Connection> transactionsDb = Main.getDBConnector(a, "transactions-sql-file");
+        TransactionStore transactions = JdbcTransactionStore.build(transactionsDb, sqlCommands);
+        FileContentAddressedStorage store = new FileContentAddressedStorage(
+                a.fromPeergosDir("blockstore_dir", "blockstore"), transactions);
+        JdbcIpnsAndSocial rawPointers = new JdbcIpnsAndSocial(database, sqlCommands);
+        if (a.getBoolean("collect-metrics", false))
+            AggregatedMetrics.startExporter(a.getArg("metrics.address", "localhost"), a.getInt("metrics.port", 8001));
+        store.collectGarbage(rawPointers,
+                a.getLong("gc.expected-blocks", 50_000_000),
+                Duration.ofMinutes(a.getLong("gc.grace-period-minutes", 60)),
+                a.getInt("gc.parallelism", 32));
     }
 
     public boolean contains(Multihash multihash) {
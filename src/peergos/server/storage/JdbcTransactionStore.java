@@ -6,26 +6,50 @@ import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.storage.*;
+import peergos.shared.util.*;
 
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 import java.util.logging.*;
+import java.util.stream.*;
 
+/** A TransactionStore which persists open transactions to a database.
+ *
+ * Block registrations from concurrent requests are group committed: a single writer thread inserts everything which
+ * was queued while its previous commit was in progress in one database transaction. So an idle store adds no latency,
+ * and under load there is one commit per batch rather than per block. Callers still block until their blocks have
+ * been committed, so a block is always registered before it is written.
+ *
+ * Open transactions are also indexed in memory, which is loaded from the database on construction, so listing the open
+ * transaction blocks doesn't need to scan the table. Blocks added by other processes after construction are not
+ * visible in this index, so a garbage collector in a separate process must build its own store when it starts.
+ */
 public class JdbcTransactionStore implements TransactionStore {
 	private static final Logger LOG = Logging.LOG();
 
     private static final String SELECT_TRANSACTIONS_BLOCKS = "SELECT tid, owner, hash FROM transactions;";
     private static final String DELETE_TRANSACTION = "DELETE FROM transactions WHERE tid = ? AND owner = ?;";
+    private static final int MAX_GROUP_COMMIT_ROWS = 10_000;
 
     private Supplier<Connection> conn;
     private final SqlSupplier commands;
+    private final BlockingQueue<PendingInsert> queue = new LinkedBlockingQueue<>();
+    // (owner, tid) => blocks, all access must be synchronized on the map
+    private final Map<Pair<String, String>, Set<Multihash>> open = new HashMap<>();
+    // all database access is done holding this lock, as the connection supplier may return a shared connection
+    private final Object dbLock = new Object();
+    private final Thread writer;
     private volatile boolean isClosed;
 
     public JdbcTransactionStore(Supplier<Connection> conn, SqlSupplier commands) {
         this.conn = conn;
         this.commands = commands;
         init(commands);
+        this.writer = new Thread(this::writeLoop, "Transaction group commit");
+        writer.setDaemon(true);
+        writer.start();
     }
 
     private Connection getConnection() {
@@ -43,10 +67,23 @@ public class JdbcTransactionStore implements TransactionStore {
         if (isClosed)
             return;
 
-        try (Connection conn = getConnection()) {
-            commands.createTable(commands.createTransactionsTableCommand(), conn);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        synchronized (dbLock) {
+            try (Connection conn = getConnection()) {
+                commands.createTable(commands.createTransactionsTableCommand(), conn);
+                try (PreparedStatement select = conn.prepareStatement(SELECT_TRANSACTIONS_BLOCKS)) {
+                    ResultSet rs = select.executeQuery();
+                    synchronized (open) {
+                        while (rs.next()) {
+                            String tid = rs.getString("tid");
+                            String owner = rs.getString("owner");
+                            String hash = rs.getString("hash");
+                            open.computeIfAbsent(new Pair<>(owner, tid), k -> new HashSet<>()).add(Cid.decode(hash));
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
         }
     }
 
@@ -57,47 +94,119 @@ public class JdbcTransactionStore implements TransactionStore {
 
     @Override
     public void addBlock(Multihash hash, TransactionId tid, PublicKeyHash owner) {
-        try (Connection conn = getConnection();
-             PreparedStatement insert = conn.prepareStatement(commands.insertTransactionCommand())) {
-            insert.clearParameters();
-            insert.setString(1, tid.toString());
-            insert.setString(2, owner.toString());
-            insert.setString(3, hash.toString());
-            insert.executeUpdate();
+        addBlocks(Collections.singletonList(hash), tid, owner);
+    }
+
+    @Override
+    public void addBlocks(List<Multihash> hashes, TransactionId tid, PublicKeyHash owner) {
+        if (hashes.isEmpty())
+            return;
+        Pair<String, String> key = new Pair<>(owner.toString(), tid.toString());
+        synchronized (open) {
+            open.computeIfAbsent(key, k -> new HashSet<>()).addAll(hashes);
+        }
+        PendingInsert insert = new PendingInsert(key, hashes);
+        boolean queued;
+        synchronized (this) {
+            // after close the writer thread does a final drain of the queue
+            queued = ! isClosed && queue.add(insert);
+        }
+        if (! queued)
+            commit(Collections.singletonList(insert));
+        try {
+            insert.committed.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void writeLoop() {
+        while (! isClosed) {
+            try {
+                PendingInsert first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null)
+                    continue;
+                List<PendingInsert> batch = new ArrayList<>();
+                batch.add(first);
+                int rows = first.hashes.size();
+                while (rows < MAX_GROUP_COMMIT_ROWS) {
+                    PendingInsert next = queue.poll();
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                    rows += next.hashes.size();
+                }
+                commit(batch);
+            } catch (InterruptedException e) {
+                // closed
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, t.getMessage(), t);
+            }
+        }
+        List<PendingInsert> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        if (! remaining.isEmpty())
+            commit(remaining);
+    }
+
+    /** Insert all the blocks of a batch in a single database transaction and then release the waiting callers
+     */
+    private void commit(List<PendingInsert> batch) {
+        try {
+            synchronized (dbLock) {
+                try (Connection conn = getConnection();
+                     PreparedStatement insert = conn.prepareStatement(commands.insertTransactionCommand())) {
+                    conn.setAutoCommit(false);
+                    try {
+                        for (PendingInsert pending : batch) {
+                            for (Multihash hash : pending.hashes) {
+                                insert.setString(1, pending.key.right);
+                                insert.setString(2, pending.key.left);
+                                insert.setString(3, hash.toString());
+                                insert.addBatch();
+                            }
+                        }
+                        insert.executeBatch();
+                        conn.commit();
+                    } catch (SQLException sqe) {
+                        conn.rollback();
+                        throw sqe;
+                    } finally {
+                        conn.setAutoCommit(true);
+                    }
+                }
+            }
         } catch (SQLException sqe) {
             LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+        } finally {
+            for (PendingInsert pending : batch)
+                pending.committed.complete(true);
         }
     }
 
     @Override
     public void closeTransaction(PublicKeyHash owner, TransactionId tid) {
-        try (Connection conn = getConnection();
-             PreparedStatement delete = conn.prepareStatement(DELETE_TRANSACTION)) {
-            delete.setString(1, tid.toString());
-            delete.setString(2, owner.toString());
-            delete.executeUpdate();
-        } catch (SQLException sqe) {
-            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+        synchronized (dbLock) {
+            try (Connection conn = getConnection();
+                 PreparedStatement delete = conn.prepareStatement(DELETE_TRANSACTION)) {
+                delete.setString(1, tid.toString());
+                delete.setString(2, owner.toString());
+                delete.executeUpdate();
+            } catch (SQLException sqe) {
+                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            }
+        }
+        synchronized (open) {
+            open.remove(new Pair<>(owner.toString(), tid.toString()));
         }
     }
 
     @Override
     public List<Multihash> getOpenTransactionBlocks() {
-        try (Connection conn = getConnection();
-             PreparedStatement select = conn.prepareStatement(SELECT_TRANSACTIONS_BLOCKS)) {
-            ResultSet rs = select.executeQuery();
-            List<Multihash> results = new ArrayList<>();
-            while (rs.next())
-            {
-                String tid = rs.getString("tid");
-                String owner = rs.getString("owner");
-                String hash = rs.getString("hash");
-                results.add(Cid.decode(hash));
-            }
-            return results;
-        } catch (SQLException sqe) {
-            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-            throw new IllegalStateException(sqe);
+        synchronized (open) {
+            return open.values().stream()
+                    .flatMap(Set::stream)
+                    .collect(Collectors.toList());
         }
     }
 
@@ -105,6 +214,18 @@ public class JdbcTransactionStore implements TransactionStore {
         if (isClosed)
             return;
         isClosed = true;
+        writer.interrupt();
+    }
+
+    private static class PendingInsert {
+        private final Pair<String, String> key;
+        private final List<Multihash> hashes;
+        private final CompletableFuture<Boolean> committed = new CompletableFuture<>();
+
+        PendingInsert(Pair<String, String> key, List<Multihash> hashes) {
+            this.key = key;
+            this.hashes = hashes;
+        }
     }
 
     public static JdbcTransactionStore build(Supplier<Connection> conn, SqlSupplier commands) {
@@ -0,0 +1,751 @@
+package peergos.server.storage;
+
+import peergos.server.*;
+import peergos.server.corenode.*;
+import peergos.server.sql.*;
+import peergos.server.util.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** A local implementation of ContentAddressedStorage which appends blocks to large segment files, rather than storing
+ *  each block in its own file.
+ *
+ *  Each record in a segment is [cid length][block length][cid][block], so segments are self describing. The location
+ *  of each block is kept in a sql index of hash => (segment, offset, size). Writes from all callers are queued and
+ *  appended by a single writer thread, which fsyncs the segment once per batch before committing the batch to the
+ *  index. Reads take their own connection and don't wait for the writer. Space used by unreachable blocks is
+ *  reclaimed by collectGarbage, which copies the live blocks out of sealed segments which are mostly garbage.
+ */
+public class PackFileBlockStorage implements ContentAddressedStorage {
+    private static final Logger LOG = Logging.LOG();
+    private static final int CID_V1 = 1;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".pack";
+    private static final String LOCK_FILE = "LOCK";
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_CID_SIZE = 256;
+    private static final int MAX_BATCH_BLOCKS = 1024;
+    private static final long MAX_BATCH_BYTES = 32 * 1024 * 1024;
+
+    private static final String SELECT_LOCATION = "SELECT segment, block_offset, block_size FROM packindex WHERE hash = ?;";
+    private static final String SELECT_SEGMENT = "SELECT hash, block_size FROM packindex WHERE segment = ?;";
+    private static final String SELECT_SEGMENT_END = "SELECT MAX(block_offset + block_size) FROM packindex WHERE segment = ?;";
+    private static final String UPDATE_LOCATION = "UPDATE packindex SET segment = ?, block_offset = ?, block_size = ? WHERE hash = ?;";
+    private static final String DELETE_SEGMENT = "DELETE FROM packindex WHERE segment = ?;";
+
+    private final Path root;
+    private final long maxSegmentSize;
+    private final TransactionStore transactions;
+    private final Supplier<Connection> conn;
+    private final SqlSupplier commands;
+    private final Object indexLock = new Object();
+    private final Map<Integer, FileChannel> readers = new ConcurrentHashMap<>();
+    private final Map<ByteArrayWrapper, PendingWrite> unindexed = new ConcurrentHashMap<>();
+    private final Set<Integer> protectedSegments = ConcurrentHashMap.newKeySet();
+    private final BlockingQueue<PendingWrite> writeQueue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final FileChannel lockFile;
+    private final FileLock lock;
+    private volatile boolean isClosed;
+    private volatile int activeSegment;
+    private FileChannel active; // only used by the writer thread after construction
+
+    public PackFileBlockStorage(Path root,
+                                long maxSegmentSize,
+                                TransactionStore transactions,
+                                Supplier<Connection> conn,
+                                SqlSupplier commands) {
+        this.root = root;
+        this.maxSegmentSize = maxSegmentSize;
+        this.transactions = transactions;
+        this.conn = conn;
+        this.commands = commands;
+        File rootDir = root.toFile();
+        if (! rootDir.exists() && ! rootDir.mkdirs())
+            throw new IllegalStateException("Unable to create directory " + root);
+        if (! rootDir.isDirectory())
+            throw new IllegalStateException("Pack store path must be a directory! " + root);
+        // Recovery truncates the active segment and GC relocates blocks into it, so only one process may use the store
+        try {
+            this.lockFile = FileChannel.open(root.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock acquired;
+            try {
+                acquired = lockFile.tryLock();
+            } catch (OverlappingFileLockException e) {
+                acquired = null;
+            }
+            if (acquired == null) {
+                lockFile.close();
+                throw new IllegalStateException("Pack store " + root + " is in use by another process!");
+            }
+            this.lock = acquired;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try (Connection c = getConnection()) {
+            commands.createTable(commands.createPackIndexTableCommand(), c);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            this.activeSegment = listSegments().stream().mapToInt(x -> x).max().orElse(0);
+            this.active = openForAppend(activeSegment);
+            recoverActiveSegment();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.writer = new Thread(this::writeLoop, "Pack file writer " + root.getFileName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private static final class Location {
+        public final int segment;
+        public final long offset;
+        public final int size;
+
+        public Location(int segment, long offset, int size) {
+            this.segment = segment;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    private static final class PendingWrite {
+        public final Multihash hash;
+        public final ByteArrayWrapper key;
+        public final byte[] data;
+        public final CompletableFuture<Multihash> result = new CompletableFuture<>();
+
+        public PendingWrite(Multihash hash, ByteArrayWrapper key, byte[] data) {
+            this.hash = hash;
+            this.key = key;
+            this.data = data;
+        }
+    }
+
+    private Connection getConnection() {
+        Connection connection = conn.get();
+        try {
+            connection.setAutoCommit(true);
+            return connection;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Reads don't take the index lock, and must not change the auto commit mode, which would commit a batch that is
+     *  being indexed on a shared connection.
+     */
+    private Connection getReadConnection() {
+        return conn.get();
+    }
+
+    private Path segmentPath(int segment) {
+        return root.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private List<Integer> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(root)) {
+            return files.map(p -> p.getFileName().toString())
+                    .filter(n -> n.startsWith(SEGMENT_PREFIX) && n.endsWith(SEGMENT_SUFFIX))
+                    .map(n -> Integer.parseInt(n.substring(SEGMENT_PREFIX.length(), n.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private FileChannel openForAppend(int segment) throws IOException {
+        return FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+    }
+
+    private FileChannel reader(int segment) throws IOException {
+        try {
+            return readers.computeIfAbsent(segment, s -> {
+                try {
+                    return FileChannel.open(segmentPath(s), StandardOpenOption.READ);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /** Index any complete records after the last indexed record in the active segment (which were written, but not
+     *  indexed before a crash), and truncate any partially written record.
+     */
+    private void recoverActiveSegment() throws IOException {
+        long position = indexedEnd(activeSegment);
+        List<PendingWrite> recovered = new ArrayList<>();
+        List<Location> locations = new ArrayList<>();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        long size = active.size();
+        while (position + RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            readFully(active, header, position);
+            header.flip();
+            int cidSize = header.getInt();
+            int blockSize = header.getInt();
+            if (cidSize <= 0 || cidSize > MAX_CID_SIZE || blockSize < 0 ||
+                    position + RECORD_HEADER_SIZE + cidSize + blockSize > size)
+                break;
+            ByteBuffer cidBytes = ByteBuffer.allocate(cidSize);
+            readFully(active, cidBytes, position + RECORD_HEADER_SIZE);
+            ByteBuffer block = ByteBuffer.allocate(blockSize);
+            long blockOffset = position + RECORD_HEADER_SIZE + cidSize;
+            readFully(active, block, blockOffset);
+            Cid cid;
+            try {
+                cid = Cid.cast(cidBytes.array());
+            } catch (RuntimeException e) {
+                break;
+            }
+            if (cid.type != Multihash.Type.sha2_256 || ! Arrays.equals(cid.getHash(), RAMStorage.hash(block.array())))
+                break;
+            recovered.add(new PendingWrite(cid, new ByteArrayWrapper(cidBytes.array()), block.array()));
+            locations.add(new Location(activeSegment, blockOffset, blockSize));
+            position = blockOffset + blockSize;
+        }
+        if (! recovered.isEmpty()) {
+            LOG.info("Recovered " + recovered.size() + " unindexed blocks in " + segmentPath(activeSegment));
+            index(recovered, locations);
+        }
+        if (position < size) {
+            LOG.warning("Truncating partial record at " + position + " in " + segmentPath(activeSegment));
+            active.truncate(position);
+            active.force(true);
+        }
+    }
+
+    private long indexedEnd(int segment) {
+        try (Connection c = getReadConnection();
+             PreparedStatement select = c.prepareStatement(SELECT_SEGMENT_END)) {
+            select.setInt(1, segment);
+            ResultSet rs = select.executeQuery();
+            return rs.next() ? rs.getLong(1) : 0;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dest, long position) throws IOException {
+        while (dest.hasRemaining()) {
+            int read = channel.read(dest, position + dest.position());
+            if (read < 0)
+                throw new EOFException("Unexpected end of segment");
+        }
+    }
+
+    private void writeLoop() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while (! isClosed) {
+            try {
+                PendingWrite first = writeQueue.poll(1, TimeUnit.SECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                long batchBytes = first.data.length;
+                while (batch.size() < MAX_BATCH_BLOCKS && batchBytes < MAX_BATCH_BYTES) {
+                    PendingWrite next = writeQueue.poll();
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                    batchBytes += next.data.length;
+                }
+                try {
+                    List<Location> locations = append(batch);
+                    index(batch, locations);
+                    for (PendingWrite write : batch) {
+                        unindexed.remove(write.key);
+                        write.result.complete(write.hash);
+                    }
+                    if (active.size() >= maxSegmentSize)
+                        rollSegment();
+                } catch (Throwable t) {
+                    LOG.log(Level.SEVERE, "Error writing blocks to " + segmentPath(activeSegment), t);
+                    for (PendingWrite write : batch) {
+                        unindexed.remove(write.key);
+                        write.result.completeExceptionally(t);
+                    }
+                }
+                batch.clear();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /** Append a batch of records to the active segment with a single fsync
+     */
+    private List<Location> append(List<PendingWrite> batch) throws IOException {
+        long start = active.size();
+        long position = start;
+        ByteBuffer[] buffers = new ByteBuffer[batch.size() * 2];
+        List<Location> locations = new ArrayList<>(batch.size());
+        for (int i=0; i < batch.size(); i++) {
+            PendingWrite write = batch.get(i);
+            byte[] cid = write.key.data;
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE + cid.length);
+            header.putInt(cid.length);
+            header.putInt(write.data.length);
+            header.put(cid);
+            header.flip();
+            buffers[2 * i] = header;
+            buffers[2 * i + 1] = ByteBuffer.wrap(write.data);
+            long blockOffset = position + RECORD_HEADER_SIZE + cid.length;
+            locations.add(new Location(activeSegment, blockOffset, write.data.length));
+            position = blockOffset + write.data.length;
+        }
+        active.position(start);
+        long remaining = position - start;
+        while (remaining > 0)
+            remaining -= active.write(buffers);
+        active.force(false);
+        return locations;
+    }
+
+    /** Point the index at the given locations in a single sql transaction
+     */
+    private void index(List<PendingWrite> batch, List<Location> locations) {
+        synchronized (indexLock) {
+            Connection c = getConnection();
+            try (PreparedStatement update = c.prepareStatement(UPDATE_LOCATION);
+                 PreparedStatement insert = c.prepareStatement(commands.insertOrIgnoreCommand("INSERT ",
+                         "INTO packindex (hash, segment, block_offset, block_size) VALUES(?, ?, ?, ?)"))) {
+                c.setAutoCommit(false);
+                for (int i=0; i < batch.size(); i++) {
+                    Location loc = locations.get(i);
+                    update.setInt(1, loc.segment);
+                    update.setLong(2, loc.offset);
+                    update.setInt(3, loc.size);
+                    update.setBytes(4, batch.get(i).key.data);
+                    update.addBatch();
+                }
+                int[] updated = update.executeBatch();
+                boolean inserts = false;
+                for (int i=0; i < batch.size(); i++) {
+                    if (updated[i] > 0)
+                        continue;
+                    Location loc = locations.get(i);
+                    insert.setBytes(1, batch.get(i).key.data);
+                    insert.setInt(2, loc.segment);
+                    insert.setLong(3, loc.offset);
+                    insert.setInt(4, loc.size);
+                    insert.addBatch();
+                    inserts = true;
+                }
+                if (inserts)
+                    insert.executeBatch();
+                c.commit();
+            } catch (SQLException e) {
+                try {
+                    c.rollback();
+                } catch (SQLException f) {
+                    LOG.log(Level.WARNING, f.getMessage(), f);
+                }
+                throw new RuntimeException(e);
+            } finally {
+                try {
+                    c.setAutoCommit(true);
+                    c.close();
+                } catch (SQLException e) {
+                    LOG.log(Level.WARNING, e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        active.close();
+        int next = activeSegment + 1;
+        active = openForAppend(next);
+        activeSegment = next;
+        LOG.info("Started new segment " + segmentPath(next));
+    }
+
+    private Optional<Location> lookup(ByteArrayWrapper key) {
+        try (Connection c = getReadConnection();
+             PreparedStatement select = c.prepareStatement(SELECT_LOCATION)) {
+            select.setBytes(1, key.data);
+            ResultSet rs = select.executeQuery();
+            if (! rs.next())
+                return Optional.empty();
+            return Optional.of(new Location(rs.getInt(1), rs.getLong(2), rs.getInt(3)));
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Optional<byte[]> read(ByteArrayWrapper key) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            Optional<Location> location = lookup(key);
+            if (! location.isPresent())
+                return Optional.empty();
+            Location loc = location.get();
+            try {
+                ByteBuffer block = ByteBuffer.allocate(loc.size);
+                readFully(reader(loc.segment), block, loc.offset);
+                return Optional.of(block.array());
+            } catch (IOException e) {
+                // the segment may have been compacted since we looked up the location
+                if (attempt > 0)
+                    throw e;
+            }
+        }
+    }
+
+    /** Store a block under a given hash. A block which is already stored is only written again if its segment is
+     *  being garbage collected.
+     *
+     * @param hash
+     * @param block
+     * @return
+     */
+    public CompletableFuture<Multihash> write(Multihash hash, byte[] block) {
+        if (isClosed)
+            throw new IllegalStateException("Pack store is closed!");
+        ByteArrayWrapper key = new ByteArrayWrapper(hash.toBytes());
+        PendingWrite inFlight = unindexed.get(key);
+        if (inFlight != null)
+            return inFlight.result;
+        Optional<Location> existing = lookup(key);
+        if (existing.isPresent() && ! protectedSegments.contains(existing.get().segment))
+            return CompletableFuture.completedFuture(hash);
+        PendingWrite write = new PendingWrite(hash, key, block);
+        PendingWrite prior = unindexed.putIfAbsent(key, write);
+        if (prior != null)
+            return prior.result;
+        writeQueue.add(write);
+        return write.result;
+    }
+
+    @Override
+    public CompletableFuture<Multihash> id() {
+        return CompletableFuture.completedFuture(new Multihash(Multihash.Type.sha2_256, RAMStorage.hash("FileStorage".getBytes())));
+    }
+
+    @Override
+    public CompletableFuture<TransactionId> startTransaction(PublicKeyHash owner) {
+        return CompletableFuture.completedFuture(transactions.startTransaction(owner));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> closeTransaction(PublicKeyHash owner, TransactionId tid) {
+        transactions.closeTransaction(owner, tid);
+        return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> gc() {
+        return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                  PublicKeyHash writer,
+                                                  List<byte[]> signedHashes,
+                                                  List<byte[]> blocks,
+                                                  TransactionId tid) {
+        return put(owner, blocks, false, tid);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner,
+                                                     PublicKeyHash writer,
+                                                     List<byte[]> signatures,
+                                                     List<byte[]> blocks,
+                                                     TransactionId tid,
+                                                     ProgressConsumer<Long> progressConsumer) {
+        return put(owner, blocks, true, tid);
+    }
+
+    private CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                   List<byte[]> blocks,
+                                                   boolean isRaw,
+                                                   TransactionId tid) {
+        List<Multihash> cids = blocks.stream()
+                .map(block -> new Cid(CID_V1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor,
+                        Multihash.Type.sha2_256, RAMStorage.hash(block)))
+                .collect(Collectors.toList());
+        // blocks must be registered in the transaction before they are written
+        transactions.addBlocks(cids, tid, owner);
+        List<CompletableFuture<Multihash>> results = new ArrayList<>(blocks.size());
+        for (int i=0; i < blocks.size(); i++)
+            results.add(write(cids.get(i), blocks.get(i)));
+        return Futures.combineAllInOrder(results);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
+        return CompletableFuture.completedFuture(Arrays.asList(existing, updated));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash h) {
+        return CompletableFuture.completedFuture(Arrays.asList(h));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursiveUnpin(PublicKeyHash owner, Multihash h) {
+        return CompletableFuture.completedFuture(Arrays.asList(h));
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+        if (hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw)
+            throw new IllegalStateException("Need to call getRaw if cid is not cbor!");
+        return getRaw(hash).thenApply(opt -> opt.map(CborObject::fromByteArray));
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+        if (hash.isIdentity())
+            return Futures.of(Optional.of(hash.getHash()));
+        ByteArrayWrapper key = new ByteArrayWrapper(hash.toBytes());
+        PendingWrite pending = unindexed.get(key);
+        if (pending != null)
+            return Futures.of(Optional.of(pending.data));
+        try {
+            return Futures.of(read(key));
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash h) {
+        ByteArrayWrapper key = new ByteArrayWrapper(h.toBytes());
+        PendingWrite pending = unindexed.get(key);
+        if (pending != null)
+            return Futures.of(Optional.of(pending.data.length));
+        return Futures.of(lookup(key).map(loc -> loc.size));
+    }
+
+    public boolean contains(Multihash h) {
+        ByteArrayWrapper key = new ByteArrayWrapper(h.toBytes());
+        return unindexed.containsKey(key) || lookup(key).isPresent();
+    }
+
+    /** Reclaim the space used by unreachable blocks.
+     *
+     *  From the start of GC until it completes, blocks in sealed segments are re-written to the active segment if they
+     *  are put again, so a block which becomes reachable concurrently is never lost. Blocks in open transactions
+     *  are also retained. Then the live blocks in each sealed segment with at least minGarbageFraction unreachable
+     *  bytes are copied to the active segment, and the old segment is deleted.
+     *
+     * @param markReachable called after GC has started to determine which blocks are reachable
+     * @param minGarbageFraction the minimum fraction of unreachable bytes for a segment to be compacted
+     * @return the number of bytes reclaimed
+     */
+    public long collectGarbage(Supplier<Predicate<Multihash>> markReachable, double minGarbageFraction) throws IOException {
+        List<Integer> sealed = listSegments().stream()
+                .filter(s -> s < activeSegment)
+                .collect(Collectors.toList());
+        protectedSegments.addAll(sealed);
+        try {
+            Set<ByteArrayWrapper> inTransactions = transactions.getOpenTransactionBlocks().stream()
+                    .map(h -> new ByteArrayWrapper(h.toBytes()))
+                    .collect(Collectors.toSet());
+            Predicate<Multihash> isReachable = markReachable.get();
+            long reclaimed = 0, relocated = 0;
+            int compacted = 0;
+            for (int segment : sealed) {
+                long segmentSize = Files.size(segmentPath(segment));
+                List<Pair<ByteArrayWrapper, Integer>> live = new ArrayList<>();
+                long liveBytes = 0;
+                for (Pair<ByteArrayWrapper, Integer> block : blocksIn(segment)) {
+                    if (inTransactions.contains(block.left) || isReachable.test(Cid.cast(block.left.data))) {
+                        live.add(block);
+                        liveBytes += RECORD_HEADER_SIZE + block.left.data.length + block.right;
+                    }
+                }
+                if (segmentSize == 0 || 1.0 - (double) liveBytes / segmentSize < minGarbageFraction)
+                    continue;
+
+                List<CompletableFuture<Multihash>> copies = new ArrayList<>();
+                for (Pair<ByteArrayWrapper, Integer> block : live) {
+                    Optional<byte[]> data = read(block.left);
+                    if (data.isPresent())
+                        copies.add(write(Cid.cast(block.left.data), data.get()));
+                }
+                Futures.combineAllInOrder(copies).join();
+                relocated += copies.size();
+                deleteSegment(segment);
+                reclaimed += segmentSize - liveBytes;
+                compacted++;
+            }
+            LOG.info("Pack store GC compacted " + compacted + " of " + sealed.size() + " segments, moving "
+                    + relocated + " blocks and reclaiming " + reclaimed + " bytes");
+            return reclaimed;
+        } finally {
+            protectedSegments.removeAll(sealed);
+        }
+    }
+
+    /** Reclaim the space used by blocks which aren't reachable from the current mutable pointers.
+     *
+     * @param pointers
+     * @param parallelism the maximum number of concurrent block reads when marking
+     * @param minGarbageFraction the minimum fraction of unreachable bytes for a segment to be compacted
+     * @return the number of bytes reclaimed
+     */
+    public long collectGarbage(JdbcIpnsAndSocial pointers, int parallelism, double minGarbageFraction) throws IOException {
+        return collectGarbage(() -> {
+            // The pointers must be listed after GC has started, so that blocks they reference are protected
+            long t0 = System.nanoTime();
+            List<Multihash> roots = BlockMarker.roots(pointers.getAllEntries(), this);
+            BlockFingerprintSet reachable = markReachable(roots, this, parallelism);
+            LOG.info("Marking " + reachable.size() + " blocks reachable from " + roots.size() + " pointers took "
+                    + (System.nanoTime() - t0)/1_000_000_000 + "s");
+            return reachable::contains;
+        }, minGarbageFraction);
+    }
+
+    /**
+     *
+     * @param roots
+     * @param links
+     * @param parallelism
+     * @return All the blocks reachable from the roots
+     */
+    public static BlockFingerprintSet markReachable(List<Multihash> roots, ContentAddressedStorage links, int parallelism) {
+        BlockFingerprintSet reachable = new BlockFingerprintSet();
+        BlockMarker.markReachable(roots, reachable::add, links, parallelism);
+        return reachable;
+    }
+
+    private List<Pair<ByteArrayWrapper, Integer>> blocksIn(int segment) {
+        try (Connection c = getReadConnection();
+             PreparedStatement select = c.prepareStatement(SELECT_SEGMENT)) {
+            select.setInt(1, segment);
+            ResultSet rs = select.executeQuery();
+            List<Pair<ByteArrayWrapper, Integer>> res = new ArrayList<>();
+            while (rs.next())
+                res.add(new Pair<>(new ByteArrayWrapper(rs.getBytes(1)), rs.getInt(2)));
+            return res;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void deleteSegment(int segment) throws IOException {
+        synchronized (indexLock) {
+            try (Connection c = getConnection();
+                 PreparedStatement delete = c.prepareStatement(DELETE_SEGMENT)) {
+                delete.setInt(1, segment);
+                delete.executeUpdate();
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        FileChannel reader = readers.remove(segment);
+        if (reader != null)
+            reader.close();
+        Files.deleteIfExists(segmentPath(segment));
+    }
+
+    public void close() {
+        isClosed = true;
+        try {
+            writer.join();
+            active.close();
+            for (FileChannel reader : readers.values())
+                reader.close();
+            lock.release();
+            lockFile.close();
+        } catch (InterruptedException | IOException e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+        }
+    }
+
+    /** Copy all the blocks from a FileContentAddressedStorage
+     *
+     * @param source
+     * @return the number of blocks copied
+     */
+    public long migrateFrom(FileContentAddressedStorage source) {
+        List<CompletableFuture<Multihash>> inFlight = new ArrayList<>();
+        long[] copied = new long[1];
+        source.applyToAll(h -> {
+            Optional<byte[]> block = source.getRaw(h).join();
+            if (! block.isPresent())
+                return;
+            if (h.type == Multihash.Type.sha2_256 && ! Arrays.equals(h.getHash(), RAMStorage.hash(block.get()))) {
+                LOG.warning("Skipping block with incorrect hash: " + h);
+                return;
+            }
+            inFlight.add(write(h, block.get()));
+            if (inFlight.size() >= MAX_BATCH_BLOCKS) {
+                copied[0] += Futures.combineAllInOrder(inFlight).join().size();
+                inFlight.clear();
+                LOG.info("Copied " + copied[0] + " blocks");
+            }
+        });
+        copied[0] += Futures.combineAllInOrder(inFlight).join().size();
+        return copied[0];
+    }
+
+    public static PackFileBlockStorage build(Args a, TransactionStore transactions, SqlSupplier commands) {
+        return new PackFileBlockStorage(a.fromPeergosDir("pack-blockstore-dir", "packstore"),
+                a.getLong("pack.segment-size", 1024 * 1024 * 1024L),
+                transactions,
+                Main.getDBConnector(a, "pack-index-sql-file"),
+                commands);
+    }
+
+    @Override
+    public String toString() {
+        return "PackFileBlockStorage " + root;
+    }
+
+    /** Perform GC on the pack store, or with -migrate true copy the blocks of a file store into it. The server must be
+     *  stopped first, as the store can only be opened by one process at a time.
+     */
+    public static void main(String[] args) throws Exception {
+        Args a = Args.parse(args);
+        SqlSupplier sqlCommands = a.getBoolean("use-postgres", false) ?
+                new PostgresCommands() :
+                new SqliteCommands();
+        if (a.getBoolean("migrate", false)) {
+            migrate(a, sqlCommands);
+            return;
+        }
+        System.out.println("Performing GC on block store...");
+        TransactionStore transactions = JdbcTransactionStore.build(Main.getDBConnector(a, "transactions-sql-file"), sqlCommands);
+        PackFileBlockStorage store = build(a, transactions, sqlCommands);
+        JdbcIpnsAndSocial rawPointers = new JdbcIpnsAndSocial(Main.getDBConnector(a, "mutable-pointers-file"), sqlCommands);
+        store.collectGarbage(rawPointers, a.getInt("gc.parallelism", 32), a.getDouble("gc.min-garbage-fraction", 0.5));
+        store.close();
+    }
+
+    private static void migrate(Args a, SqlSupplier sqlCommands) {
+        System.out.println("Migrating blocks to pack files...");
+        a.setIfAbsent("pack-index-sql-file", "pack-index.sql");
+        TransactionStore transactions = JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+        FileContentAddressedStorage source = new FileContentAddressedStorage(
+                a.fromPeergosDir("blockstore_dir", "blockstore"), transactions);
+        PackFileBlockStorage target = build(a, transactions, sqlCommands);
+        long start = System.currentTimeMillis();
+        long copied = target.migrateFrom(source);
+        target.close();
+        System.out.println("Migrated " + copied + " blocks to " + target + " in "
+                + (System.currentTimeMillis() - start) / 1000 + "s");
+    }
+}
@@ -119,8 +119,8 @@ public class RAMStorage implements ContentAddressedStorage {
     public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
         if (root instanceof Cid && ((Cid) root).codec == Cid.Codec.Raw)
             return CompletableFuture.completedFuture(Collections.emptyList());
-        return get(root).thenApply(opt -> opt
-                .map(cbor -> cbor.links())
+        return getRaw(root).thenApply(opt -> opt
+                .map(CborCursor::links)
                 .orElse(Collections.emptyList())
         );
     }
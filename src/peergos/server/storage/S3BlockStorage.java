@@ -12,6 +12,7 @@ import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.mutable.*;
 import peergos.shared.storage.*;
 import peergos.shared.io.ipfs.multihash.*;
+import io.prometheus.client.Counter;
 import io.prometheus.client.Histogram;
 import peergos.shared.util.*;
 
@@ -21,6 +22,7 @@ import java.sql.*;
 import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -43,12 +45,40 @@ public class S3BlockStorage implements ContentAddressedStorage {
             .exponentialBuckets(0.01, 2, 16)
             .register();
 
+    private static final Counter gcListedBlocks = Counter.build()
+            .name("s3_gc_listed_blocks")
+            .help("Total blocks listed by S3 GC")
+            .register();
+    private static final Counter gcMarkedBlocks = Counter.build()
+            .name("s3_gc_marked_blocks")
+            .help("Total reachable blocks marked by S3 GC")
+            .register();
+    private static final Counter gcDeletedBlocks = Counter.build()
+            .name("s3_gc_deleted_blocks")
+            .help("Total blocks deleted by S3 GC")
+            .register();
+    private static final Counter gcDeletedBytes = Counter.build()
+            .name("s3_gc_deleted_bytes")
+            .help("Total size of blocks deleted by S3 GC")
+            .register();
+    private static final Histogram gcPhaseTimer = Histogram.build()
+            .labelNames("phase")
+            .name("s3_gc_phase_seconds")
+            .help("Time taken by each phase of S3 GC")
+            .exponentialBuckets(1, 2, 20)
+            .register();
+
+    private static final Duration GC_CLOCK_SKEW = Duration.ofMinutes(10);
+    private static final int GC_DELETE_BATCH_SIZE = 1000;
+
     private final Multihash id;
     private final String region, bucket, folder, regionEndpoint, host;
     private final String accessKeyId, secretKey;
     private final BlockStoreProperties props;
     private final TransactionStore transactions;
     private final ContentAddressedStorage p2pFallback;
+    private final AsyncS3Client client;
+    private final int requestConcurrency, rangedReadSize;
 
     public S3BlockStorage(S3Config config,
                           Multihash id,
@@ -67,6 +97,9 @@ public class S3BlockStorage implements ContentAddressedStorage {
         this.props = props;
         this.transactions = transactions;
         this.p2pFallback = p2pFallback;
+        this.client = new AsyncS3Client(config.maxConcurrentRequests, 5);
+        this.requestConcurrency = config.requestConcurrency;
+        this.rangedReadSize = config.rangedReadSize;
     }
 
     private static String hashToKey(Multihash hash) {
@@ -115,11 +148,13 @@ public class S3BlockStorage implements ContentAddressedStorage {
                 Cid cid = new Cid(1, codec, Multihash.Type.sha2_256, writer.unsignMessage(signedHashes.get(i)));
                 blockProps.add(new Pair<>(cid, blockSizes.get(i)));
             }
-            List<PresignedUrl> res = new ArrayList<>();
             for (Pair<Multihash, Integer> props : blockProps) {
                 if (props.left.type != Multihash.Type.sha2_256)
                     throw new IllegalStateException("Can only pre-auth writes of sha256 hashed blocks!");
-                transactions.addBlock(props.left, tid, owner);
+            }
+            transactions.addBlocks(blockProps.stream().map(p -> p.left).collect(Collectors.toList()), tid, owner);
+            List<PresignedUrl> res = new ArrayList<>();
+            for (Pair<Multihash, Integer> props : blockProps) {
                 String s3Key = hashToKey(props.left);
                 String contentSha256 = ArrayOps.bytesToHex(props.left.getHash());
                 String host = bucket + "." + regionEndpoint;
@@ -146,13 +181,11 @@ public class S3BlockStorage implements ContentAddressedStorage {
         PresignedUrl getUrl = S3Request.preSignGet(folder + hashToKey(hash), Optional.of(600),
                 ZonedDateTime.now(), host, region, accessKeyId, secretKey);
         Histogram.Timer readTimer = readTimerLog.labels("read").startTimer();
-        try {
-            return Futures.of(Optional.of(HttpUtil.get(getUrl)));
-        } catch (IOException e) {
-            return p2pFallback.getRaw(hash);
-        } finally {
-            readTimer.observeDuration();
-        }
+        return Futures.asyncExceptionally(
+                () -> (rangedReadSize > 0 ? client.getInRanges(getUrl, rangedReadSize) : client.get(getUrl))
+                        .thenApply(Optional::of),
+                t -> p2pFallback.getRaw(hash))
+                .whenComplete((res, t) -> readTimer.observeDuration());
     }
 
     @Override
@@ -178,73 +211,197 @@ public class S3BlockStorage implements ContentAddressedStorage {
     /** The result of this method is a snapshot of the mutable pointers that is consistent with the blocks store
      * after GC has completed (saved to a file which can be independently backed up).
      *
+     * The set of reachable blocks and the position in the bucket listing are checkpointed to stateDir, so a crashed
+     * GC resumes deleting from where it stopped. Only blocks written before the GC started are deleted.
+     *
      * @param pointers
+     * @param stateDir
+     * @param parallelism the maximum number of concurrent block reads when marking
+     */
+    private void collectGarbage(JdbcIpnsAndSocial pointers, Path stateDir, int parallelism) throws IOException {
+        Files.createDirectories(stateDir);
+        Path checkpointFile = stateDir.resolve("checkpoint.properties");
+        Path reachableFile = stateDir.resolve("reachable.bin");
+
+        GcCheckpoint checkpoint;
+        BlockFingerprintSet reachable;
+        if (Files.exists(checkpointFile) && Files.exists(reachableFile)) {
+            checkpoint = GcCheckpoint.load(checkpointFile);
+            reachable = BlockFingerprintSet.readFrom(reachableFile);
+            LOG.info("Resuming GC of blocks written before " + checkpoint.cutoff + ", " + reachable.size() + " reachable blocks");
+        } else {
+            // Allow for clock skew between us and S3 when deciding which blocks are old enough to delete
+            Instant cutoff = Instant.now().minus(GC_CLOCK_SKEW);
+            long t0 = System.nanoTime();
+            List<Multihash> pending = transactions.getOpenTransactionBlocks();
+            long t1 = System.nanoTime();
+            LOG.info("Listing pending blocks took " + (t1-t0)/1_000_000_000 + "s");
+            gcPhaseTimer.labels("list-pending").observe((t1-t0)/1e9);
+
+            // This pointers call must happen AFTER the previous for correctness
+            Map<PublicKeyHash, byte[]> allPointers = pointers.getAllEntries();
+            long t2 = System.nanoTime();
+            LOG.info("Listing pointers took " + (t2-t1)/1_000_000_000 + "s");
+            gcPhaseTimer.labels("list-pointers").observe((t2-t1)/1e9);
+
+            List<Multihash> roots = BlockMarker.roots(allPointers, this);
+            reachable = markReachable(roots, pending, this, parallelism);
+            long t3 = System.nanoTime();
+            LOG.info("Marking " + reachable.size() + " reachable blocks took " + (t3-t2)/1_000_000_000 + "s");
+            gcPhaseTimer.labels("mark").observe((t3-t2)/1e9);
+
+            // Save pointers snapshot to file
+            Path pointerSnapshotFile = Paths.get("pointers-snapshot-" + LocalDateTime.now() + ".txt");
+            for (Map.Entry<PublicKeyHash, byte[]> entry : allPointers.entrySet()) {
+                Files.write(pointerSnapshotFile, (entry.getKey() + ":" +
+                        ArrayOps.bytesToHex(entry.getValue()) + "\n").getBytes(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            reachable.writeTo(reachableFile);
+            checkpoint = new GcCheckpoint(cutoff, Optional.empty(), 0, 0);
+            checkpoint.save(checkpointFile);
+        }
+
+        long t4 = System.nanoTime();
+        checkpoint = sweep(reachable, checkpoint, checkpointFile);
+        long t5 = System.nanoTime();
+        LOG.info("Deleting blocks took " + (t5-t4)/1_000_000_000 + "s");
+        gcPhaseTimer.labels("sweep").observe((t5-t4)/1e9);
+        Files.delete(checkpointFile);
+        Files.delete(reachableFile);
+        LOG.info("GC complete. Freed " + checkpoint.deletedBlocks + " blocks totalling " + checkpoint.deletedBytes + " bytes");
+    }
+
+    /** Mark all blocks reachable from the roots, then the blocks in open transactions.
+     *
+     * Marking doesn't descend into subtrees which are already marked. A newly committed root is usually still pending,
+     * so the pending blocks must be marked last, otherwise the old subtrees it shares with the previous root would
+     * never be reached.
+     *
+     * @param roots
+     * @param pending the blocks in open transactions
+     * @param links
+     * @param parallelism
      * @return
      */
-    private void collectGarbage(JdbcIpnsAndSocial pointers) throws IOException {
-        // TODO: do this more efficiently with a bloom filter, and streaming
-        long t0 = System.nanoTime();
-        List<Multihash> present = getFiles(Integer.MAX_VALUE);
-        long t1 = System.nanoTime();
-        System.out.println("Listing block store took " + (t1-t0)/1_000_000_000 + "s");
-
-        List<Multihash> pending = transactions.getOpenTransactionBlocks();
-        long t2 = System.nanoTime();
-        System.out.println("Listing pending blocks took " + (t2-t1)/1_000_000_000 + "s");
-
-        // This pointers call must happen AFTER the previous two for correctness
-        Map<PublicKeyHash, byte[]> allPointers = pointers.getAllEntries();
-        long t3 = System.nanoTime();
-        System.out.println("Listing pointers took " + (t3-t2)/1_000_000_000 + "s");
-
-        BitSet reachable = new BitSet(present.size());
-        for (PublicKeyHash writerHash : allPointers.keySet()) {
-            byte[] signedRawCas = allPointers.get(writerHash);
-            PublicSigningKey writer = getSigningKey(writerHash).join().get();
-            byte[] bothHashes = writer.unsignMessage(signedRawCas);
-            HashCasPair cas = HashCasPair.fromCbor(CborObject.fromByteArray(bothHashes));
-            MaybeMultihash updated = cas.updated;
-            if (updated.isPresent())
-                markReachable(updated.get(), present, reachable);
+    public static BlockFingerprintSet markReachable(List<Multihash> roots,
+                                                    List<Multihash> pending,
+                                                    ContentAddressedStorage links,
+                                                    int parallelism) {
+        BlockFingerprintSet reachable = new BlockFingerprintSet();
+        BlockMarker.markReachable(roots, h -> {
+            if (! reachable.add(h))
+                return false;
+            gcMarkedBlocks.inc();
+            return true;
+        }, links, parallelism);
+        for (Multihash additional : pending)
+            reachable.add(additional);
+        return reachable;
+    }
+
+    private GcCheckpoint sweep(BlockFingerprintSet reachable, GcCheckpoint checkpoint, Path checkpointFile) throws IOException {
+        LocalDateTime cutoff = LocalDateTime.ofInstant(checkpoint.cutoff, ZoneOffset.UTC);
+        Optional<String> pageToken = checkpoint.continuationToken;
+        // the listing page containing the oldest block in the current batch
+        Optional<String> batchStartToken = pageToken;
+        List<S3Request.ObjectMetadata> batch = new ArrayList<>();
+        long listed = 0;
+        long start = System.currentTimeMillis(), lastLog = start;
+        S3Request.ListObjectsReply page;
+        do {
+            page = listObjects(pageToken);
+            for (S3Request.ObjectMetadata obj : page.objects) {
+                if (obj.key.endsWith("/"))
+                    continue;
+                listed++;
+                gcListedBlocks.inc();
+                Multihash hash;
+                try {
+                    hash = keyToHash(obj.key);
+                } catch (Exception e) {
+                    LOG.warning("Couldn't parse S3 key to Cid: " + obj.key);
+                    continue;
+                }
+                if (reachable.contains(hash) || ! obj.lastModified.isBefore(cutoff))
+                    continue;
+                if (batch.isEmpty())
+                    batchStartToken = pageToken;
+                batch.add(obj);
+                if (batch.size() >= GC_DELETE_BATCH_SIZE) {
+                    checkpoint = deleteBatch(batch, checkpoint);
+                    batch.clear();
+                }
+            }
+            Optional<String> nextToken = page.continuationToken;
+            checkpoint = checkpoint.withContinuationToken(batch.isEmpty() ? nextToken : batchStartToken);
+            checkpoint.save(checkpointFile);
+            pageToken = nextToken;
+
+            long now = System.currentTimeMillis();
+            if (now - lastLog > 60_000) {
+                lastLog = now;
+                LOG.info("GC listed " + listed + " blocks (" + listed * 1000 / Math.max(1, now - start) + " blocks/s), deleted "
+                        + checkpoint.deletedBlocks + " blocks totalling " + checkpoint.deletedBytes + " bytes");
+            }
+        } while (page.isTruncated);
+
+        if (! batch.isEmpty())
+            checkpoint = deleteBatch(batch, checkpoint);
+        return checkpoint;
+    }
+
+    private GcCheckpoint deleteBatch(List<S3Request.ObjectMetadata> batch, GcCheckpoint checkpoint) {
+        bulkDelete(batch.stream()
+                .map(obj -> keyToHash(obj.key))
+                .collect(Collectors.toList()));
+        long bytes = batch.stream().mapToLong(obj -> obj.size).sum();
+        gcDeletedBlocks.inc(batch.size());
+        gcDeletedBytes.inc(bytes);
+        return checkpoint.withDeleted(batch.size(), bytes);
+    }
+
+    private static class GcCheckpoint {
+        public final Instant cutoff;
+        public final Optional<String> continuationToken;
+        public final long deletedBlocks, deletedBytes;
+
+        public GcCheckpoint(Instant cutoff, Optional<String> continuationToken, long deletedBlocks, long deletedBytes) {
+            this.cutoff = cutoff;
+            this.continuationToken = continuationToken;
+            this.deletedBlocks = deletedBlocks;
+            this.deletedBytes = deletedBytes;
         }
-        for (Multihash additional : pending) {
-            int index = present.indexOf(additional);
-            if (index >= 0)
-                reachable.set(index);
+
+        public GcCheckpoint withContinuationToken(Optional<String> token) {
+            return new GcCheckpoint(cutoff, token, deletedBlocks, deletedBytes);
         }
-        long t4 = System.nanoTime();
-        System.out.println("Marking reachable took " + (t4-t3)/1_000_000_000 + "s");
-        // Save pointers snapshot to file
-        Path pointerSnapshotFile = Paths.get("pointers-snapshot-" + LocalDateTime.now() + ".txt");
-        for (Map.Entry<PublicKeyHash, byte[]> entry : allPointers.entrySet()) {
-            Files.write(pointerSnapshotFile, (entry.getKey() + ":" +
-                    ArrayOps.bytesToHex(entry.getValue()) + "\n").getBytes(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+
+        public GcCheckpoint withDeleted(long blocks, long bytes) {
+            return new GcCheckpoint(cutoff, continuationToken, deletedBlocks + blocks, deletedBytes + bytes);
         }
-        long deletedBlocks = 0;
-        long deletedSize = 0;
-        for (int i = reachable.nextClearBit(0); i >= 0 && i < present.size(); i = reachable.nextClearBit(i + 1)) {
-            Multihash hash = present.get(i);
-            try {
-                int size = getSize(hash).join().get();
-                deletedBlocks++;
-                deletedSize += size;
-                delete(hash);
-            } catch (Exception e) {
-                System.out.println("Unable to read " + hash);
+
+        public void save(Path file) throws IOException {
+            Properties props = new Properties();
+            props.setProperty("cutoff", Long.toString(cutoff.toEpochMilli()));
+            continuationToken.ifPresent(t -> props.setProperty("continuation-token", t));
+            props.setProperty("deleted-blocks", Long.toString(deletedBlocks));
+            props.setProperty("deleted-bytes", Long.toString(deletedBytes));
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                props.store(out, "S3 GC checkpoint");
             }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         }
-        long t5 = System.nanoTime();
-        System.out.println("Deleting blocks took " + (t5-t4)/1_000_000_000 + "s");
-        System.out.println("GC complete. Freed " + deletedBlocks + " blocks totalling " + deletedSize + " bytes");
-    }
 
-    private void markReachable(Multihash root, List<Multihash> present, BitSet reachable) {
-        int index = present.indexOf(root);
-        if (index >= 0)
-            reachable.set(index);
-        List<Multihash> links = getLinks(root).join();
-        for (Multihash link : links) {
-            markReachable(link, present, reachable);
+        public static GcCheckpoint load(Path file) throws IOException {
+            Properties props = new Properties();
+            try (InputStream in = Files.newInputStream(file)) {
+                props.load(in);
+            }
+            return new GcCheckpoint(Instant.ofEpochMilli(Long.parseLong(props.getProperty("cutoff"))),
+                    Optional.ofNullable(props.getProperty("continuation-token")),
+                    Long.parseLong(props.getProperty("deleted-blocks")),
+                    Long.parseLong(props.getProperty("deleted-bytes")));
         }
     }
 
@@ -331,9 +488,31 @@ public class S3BlockStorage implements ContentAddressedStorage {
                                                    List<byte[]> blocks,
                                                    boolean isRaw,
                                                    TransactionId tid) {
-        return CompletableFuture.completedFuture(blocks.stream()
-                .map(b -> put(b, isRaw, tid, owner))
-                .collect(Collectors.toList()));
+        List<Multihash> cids = blocks.stream()
+                .map(b -> hashToCid(b, isRaw))
+                .collect(Collectors.toList());
+        // blocks must be registered in the transaction before they are written
+        transactions.addBlocks(cids, tid, owner);
+        AtomicInteger next = new AtomicInteger(0);
+        List<CompletableFuture<Boolean>> lanes = new ArrayList<>();
+        for (int i=0; i < Math.min(requestConcurrency, blocks.size()); i++)
+            lanes.add(putRemaining(blocks, cids, next));
+        return Futures.combineAll(lanes).thenApply(x -> cids);
+    }
+
+    /** Write the remaining blocks one at a time, so the number of concurrent writes is the number of calls to this
+     */
+    private CompletableFuture<Boolean> putRemaining(List<byte[]> blocks, List<Multihash> cids, AtomicInteger next) {
+        int index = next.getAndIncrement();
+        if (index >= blocks.size())
+            return Futures.of(true);
+        return putAsync(blocks.get(index), cids.get(index))
+                .thenCompose(x -> putRemaining(blocks, cids, next));
+    }
+
+    private static Cid hashToCid(byte[] data, boolean isRaw) {
+        byte[] hash = Hash.sha256(data);
+        return new Cid(1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor, Multihash.Type.sha2_256, hash);
     }
 
     /** Must be atomic relative to reads of the same key
@@ -341,27 +520,26 @@ public class S3BlockStorage implements ContentAddressedStorage {
      * @param data
      */
     public Multihash put(byte[] data, boolean isRaw, TransactionId tid, PublicKeyHash owner) {
+        Cid cid = hashToCid(data, isRaw);
+        transactions.addBlock(cid, tid, owner);
+        return putAsync(data, cid).join();
+    }
+
+    private CompletableFuture<Multihash> putAsync(byte[] data, Multihash cid) {
         Histogram.Timer writeTimer = writeTimerLog.labels("write").startTimer();
-        Multihash hash = new Multihash(Multihash.Type.sha2_256, Hash.sha256(data));
-        Cid cid = new Cid(1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor, hash.type, hash.getHash());
-        String key = hashToKey(cid);
-        try {
-            transactions.addBlock(cid, tid, owner);
-            String s3Key = folder + key;
-            Map<String, String> extraHeaders = new TreeMap<>();
-            extraHeaders.put("Content-Type", "application/octet-stream");
-            boolean hashContent = true;
-            String contentHash = hashContent ? ArrayOps.bytesToHex(hash.getHash()) : "UNSIGNED-PAYLOAD";
-            PresignedUrl putUrl = S3Request.preSignPut(s3Key, data.length, contentHash, false,
-                    ZonedDateTime.now(), host, extraHeaders, region, accessKeyId, secretKey);
-            HttpUtil.put(putUrl, data);
-            return cid;
-        } catch (IOException e) {
-            LOG.log(Level.SEVERE, e.getMessage(), e);
-            throw new RuntimeException(e.getMessage(), e);
-        } finally {
-            writeTimer.observeDuration();
-        }
+        String s3Key = folder + hashToKey(cid);
+        Map<String, String> extraHeaders = new TreeMap<>();
+        extraHeaders.put("Content-Type", "application/octet-stream");
+        String contentHash = ArrayOps.bytesToHex(cid.getHash());
+        PresignedUrl putUrl = S3Request.preSignPut(s3Key, data.length, contentHash, false,
+                ZonedDateTime.now(), host, extraHeaders, region, accessKeyId, secretKey);
+        return client.put(putUrl, data)
+                .thenApply(x -> cid)
+                .whenComplete((res, t) -> {
+                    writeTimer.observeDuration();
+                    if (t != null)
+                        LOG.log(Level.SEVERE, t.getMessage(), t);
+                });
     }
 
     private List<Multihash> getFiles(long maxReturned) {
@@ -382,20 +560,24 @@ public class S3BlockStorage implements ContentAddressedStorage {
         return results;
     }
 
+    private S3Request.ListObjectsReply listObjects(Optional<String> continuationToken) {
+        return S3Request.listObjects(folder, 1_000, continuationToken,
+                ZonedDateTime.now(), host, region, accessKeyId, secretKey, url -> {
+                    try {
+                        return HttpUtil.get(url);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+    }
+
     private void applyToAll(Consumer<S3Request.ObjectMetadata> processor, long maxObjects) {
         try {
             Optional<String> continuationToken = Optional.empty();
             S3Request.ListObjectsReply result;
             long processedObjects = 0;
             do {
-                result = S3Request.listObjects(folder, 1_000, continuationToken,
-                        ZonedDateTime.now(), host, region, accessKeyId, secretKey, url -> {
-                            try {
-                                return HttpUtil.get(url);
-                            } catch (IOException e) {
-                                throw new RuntimeException(e);
-                            }
-                        });
+                result = listObjects(continuationToken);
 
                 for (S3Request.ObjectMetadata objectSummary : result.objects) {
                     if (objectSummary.key.endsWith("/")) {
@@ -458,7 +640,9 @@ public class S3BlockStorage implements ContentAddressedStorage {
         TransactionStore transactions = JdbcTransactionStore.build(transactionsDb, sqlCommands);
         S3BlockStorage s3 = new S3BlockStorage(config, Cid.decode(a.getArg("ipfs.id")), BlockStoreProperties.empty(), transactions, new RAMStorage());
         JdbcIpnsAndSocial rawPointers = new JdbcIpnsAndSocial(database, sqlCommands);
-        s3.collectGarbage(rawPointers);
+        if (a.getBoolean("collect-metrics", false))
+            AggregatedMetrics.startExporter(a.getArg("metrics.address", "localhost"), a.getInt("metrics.port", 8001));
+        s3.collectGarbage(rawPointers, a.fromPeergosDir("gc.state-dir", "s3-gc"), a.getInt("gc.parallelism", 32));
     }
 
     public static void test(String[] args) throws Exception {
@@ -4,6 +4,7 @@ import peergos.server.util.*;
 
 public class S3Config {
     public final String path, bucket, region, accessKey, secretKey, regionEndpoint;
+    public final int maxConcurrentRequests, requestConcurrency, rangedReadSize;
 
     /**
      *
@@ -13,15 +14,34 @@ public class S3Config {
      * @param accessKey The S3 access key
      * @param secretKey The S3 secret key
      * @param regionEndpoint The location of the S3 endpoint e.g. us-east-1.linodeobjects.com
+     * @param maxConcurrentRequests The maximum number of concurrent requests to S3
+     * @param requestConcurrency The maximum number of concurrent S3 requests for a single multi block write
+     * @param rangedReadSize If positive, blocks larger than this are read with concurrent range requests
      */
-    public S3Config(String path, String bucket, String region, String accessKey, String secretKey, String regionEndpoint) {
+    public S3Config(String path,
+                    String bucket,
+                    String region,
+                    String accessKey,
+                    String secretKey,
+                    String regionEndpoint,
+                    int maxConcurrentRequests,
+                    int requestConcurrency,
+                    int rangedReadSize) {
         this.path = path;
         this.bucket = bucket;
         this.region = region;
         this.accessKey = accessKey;
         this.secretKey = secretKey;
         this.regionEndpoint = regionEndpoint;
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.requestConcurrency = requestConcurrency;
+        this.rangedReadSize = rangedReadSize;
     }
+
+    public S3Config(String path, String bucket, String region, String accessKey, String secretKey, String regionEndpoint) {
+        this(path, bucket, region, accessKey, secretKey, regionEndpoint, 64, 8, 0);
+    }
+
     public static boolean useS3(Args a) {
         return a.hasArg("s3.bucket");
     }
@@ -33,6 +53,10 @@ public class S3Config {
         String accessKey = a.getArg("s3.accessKey", "");
         String secretKey = a.getArg("s3.secretKey", "");
         String regionEndpoint = a.getArg("s3.region.endpoint", bucket + ".amazonaws.com");
-        return new S3Config(path, bucket, region, accessKey, secretKey, regionEndpoint);
+        int maxConcurrentRequests = a.getInt("s3.max-concurrent-requests", 64);
+        int requestConcurrency = a.getInt("s3.request-concurrency", 8);
+        int rangedReadSize = a.getInt("s3.ranged-read-size", 0);
+        return new S3Config(path, bucket, region, accessKey, secretKey, regionEndpoint,
+                maxConcurrentRequests, requestConcurrency, rangedReadSize);
     }
 }
@@ -12,6 +12,17 @@ public interface TransactionStore {
 
     void addBlock(Multihash hash, TransactionId tid, PublicKeyHash owner);
 
+    /** Register all the blocks in a transaction. This must return only once they are durably registered.
+     *
+     * @param hashes
+     * @param tid
+     * @param owner
+     */
+    default void addBlocks(List<Multihash> hashes, TransactionId tid, PublicKeyHash owner) {
+        for (Multihash hash : hashes)
+            addBlock(hash, tid, owner);
+    }
+
     void closeTransaction(PublicKeyHash owner, TransactionId tid);
 
     List<Multihash> getOpenTransactionBlocks();
@@ -0,0 +1,62 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.storage.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class BlockCacheTests {
+
+    @Test
+    public void boundedByBytes() {
+        BlockCache<Integer> cache = new BlockCache<>(1024 * 1024, 64 * 1024, 4);
+        for (int i=0; i < 1000; i++)
+            cache.put(i, new byte[10 * 1024]);
+        BlockCache.Stats stats = cache.stats();
+        Assert.assertTrue("Cache size is bounded", stats.bytes <= 1024 * 1024);
+        Assert.assertTrue("Cache is used", stats.entries > 0);
+    }
+
+    @Test
+    public void scanDoesNotFlushHotBlocks() {
+        BlockCache<Integer> cache = new BlockCache<>(1024 * 1024, 64 * 1024, 1);
+        int hotBlocks = 50;
+        for (int i=0; i < hotBlocks; i++)
+            cache.put(i, new byte[10 * 1024]);
+        for (int round=0; round < 5; round++)
+            for (int i=0; i < hotBlocks; i++)
+                cache.getIfPresent(i);
+
+        for (int i=hotBlocks; i < 10_000; i++) {
+            cache.getIfPresent(i);
+            cache.put(i, new byte[10 * 1024]);
+        }
+
+        long retained = 0;
+        for (int i=0; i < hotBlocks; i++)
+            if (cache.getIfPresent(i).isPresent())
+                retained++;
+        Assert.assertTrue("Hot blocks retained: " + retained, retained >= hotBlocks * 9 / 10);
+    }
+
+    @Test
+    public void concurrentLoadsAreCoalesced() throws Exception {
+        BlockCache<Integer> cache = new BlockCache<>(1024 * 1024, 64 * 1024);
+        AtomicInteger loads = new AtomicInteger();
+        CompletableFuture<Optional<byte[]>> upstream = new CompletableFuture<>();
+        List<CompletableFuture<Optional<byte[]>>> results = new ArrayList<>();
+        for (int i=0; i < 10; i++)
+            results.add(cache.get(7, () -> {
+                loads.incrementAndGet();
+                return upstream;
+            }));
+        upstream.complete(Optional.of(new byte[100]));
+        for (CompletableFuture<Optional<byte[]>> result : results)
+            Assert.assertTrue(result.get().isPresent());
+        Assert.assertEquals(1, loads.get());
+        Assert.assertTrue(cache.getIfPresent(7).isPresent());
+        Assert.assertEquals(0, cache.stats().pendingLoads);
+    }
+}
@@ -0,0 +1,124 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.mutable.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class CachingPointersTests {
+
+    /** A MutablePointers whose reads only complete when released
+     */
+    private static class SlowPointers implements MutablePointers {
+        private final Map<PublicKeyHash, byte[]> pointers = new ConcurrentHashMap<>();
+        private final List<CompletableFuture<Boolean>> gates = new CopyOnWriteArrayList<>();
+        private final AtomicInteger reads = new AtomicInteger();
+        private final CompletableFuture<PointerUpdates> subscription = new CompletableFuture<>();
+
+        @Override
+        public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
+            pointers.put(writer, writerSignedBtreeRootHash);
+            return CompletableFuture.completedFuture(true);
+        }
+
+        @Override
+        public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
+            reads.incrementAndGet();
+            Optional<byte[]> current = Optional.ofNullable(pointers.get(writer));
+            CompletableFuture<Boolean> gate = new CompletableFuture<>();
+            gates.add(gate);
+            return gate.thenApply(x -> current);
+        }
+
+        @Override
+        public CompletableFuture<PointerUpdates> subscribe(Set<PublicKeyHash> writers, long since) {
+            return subscription;
+        }
+
+        void release() {
+            for (CompletableFuture<Boolean> gate : gates)
+                gate.complete(true);
+        }
+    }
+
+    private static PublicKeyHash writer(int i) {
+        byte[] hash = new byte[32];
+        hash[0] = (byte) i;
+        hash[1] = (byte) (i >> 8);
+        return new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, hash));
+    }
+
+    @Test
+    public void concurrentMissesAreCoalesced() {
+        SlowPointers target = new SlowPointers();
+        CachingPointers cache = new CachingPointers(target, 60_000);
+        PublicKeyHash writer = writer(1);
+        target.setPointer(writer, writer, new byte[]{1});
+
+        List<CompletableFuture<Optional<byte[]>>> reads = new ArrayList<>();
+        for (int i=0; i < 10; i++)
+            reads.add(cache.getPointer(writer, writer));
+        target.release();
+        for (CompletableFuture<Optional<byte[]>> read : reads)
+            Assert.assertArrayEquals(new byte[]{1}, read.join().get());
+        Assert.assertEquals(1, target.reads.get());
+
+        cache.getPointer(writer, writer).join();
+        Assert.assertEquals(1, target.reads.get());
+        CachingPointers.Stats stats = cache.stats();
+        Assert.assertEquals(1, stats.hits);
+        Assert.assertEquals(10, stats.misses);
+        Assert.assertEquals(9, stats.coalescedReads);
+    }
+
+    @Test
+    public void pushedUpdateWinsOverInFlightRead() {
+        SlowPointers target = new SlowPointers();
+        CachingPointers cache = new CachingPointers(target, 60_000);
+        PublicKeyHash writer = writer(1);
+        target.setPointer(writer, writer, new byte[]{1});
+
+        CompletableFuture<Optional<byte[]>> stale = cache.getPointer(writer, writer);
+        target.setPointer(writer, writer, new byte[]{2});
+        cache.updated(writer, new byte[]{2});
+        target.release();
+        Assert.assertArrayEquals(new byte[]{1}, stale.join().get());
+
+        Assert.assertArrayEquals(new byte[]{2}, cache.getPointer(writer, writer).join().get());
+        Assert.assertEquals(1, target.reads.get());
+    }
+
+    @Test
+    public void boundedSize() {
+        SlowPointers target = new SlowPointers();
+        CachingPointers cache = new CachingPointers(target, 60_000, 160);
+        for (int i=0; i < 1000; i++)
+            cache.updated(writer(i), new byte[]{(byte) i});
+        CachingPointers.Stats stats = cache.stats();
+        Assert.assertTrue("Cache size is bounded", stats.entries <= 160);
+        Assert.assertEquals(1000 - stats.entries, stats.evictions);
+    }
+
+    @Test
+    public void delayedUpdateDoesNotRollBackCache() {
+        SlowPointers target = new SlowPointers();
+        CachingPointers cache = new CachingPointers(target, 60_000);
+        PublicKeyHash writer = writer(1);
+
+        CompletableFuture<PointerUpdates> poll = cache.subscribe(Collections.singleton(writer), 0);
+        cache.setPointer(writer, writer, new byte[]{1}).join();
+        cache.setPointer(writer, writer, new byte[]{2}).join();
+        // the reply to the poll only carries the first commit
+        target.subscription.complete(new PointerUpdates(1, false,
+                Arrays.asList(new PointerUpdate(writer, writer, new byte[]{1}))));
+        poll.join();
+
+        CompletableFuture<Optional<byte[]>> read = cache.getPointer(writer, writer);
+        target.release();
+        Assert.assertArrayEquals(new byte[]{2}, read.join().get());
+    }
+}
@@ -2,6 +2,7 @@ package peergos.server.tests;
 
 import org.junit.*;
 import peergos.shared.cbor.*;
+import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.util.*;
 
@@ -106,6 +107,69 @@ public class CborObjects {
         compatibleAndIdempotentSerialization(cborList);
     }
 
+    private Multihash randomCid() {
+        return new Cid(1, Cid.Codec.DagCbor, Multihash.Type.sha2_256, random(32));
+    }
+
+    private CborObject.CborMap nested() {
+        SortedMap<String, Cborable> inner = new TreeMap<>();
+        inner.put("link", new CborObject.CborMerkleLink(randomCid()));
+        inner.put("negative", new CborObject.CborLong(-1_000_000_000_000L));
+        inner.put("data", new CborObject.CborByteArray(random(300)));
+        SortedMap<String, Cborable> outer = new TreeMap<>();
+        outer.put("inner", CborObject.CborMap.build(inner));
+        outer.put("links", new CborObject.CborList(Arrays.asList(
+                new CborObject.CborMerkleLink(randomCid()),
+                new CborObject.CborNull(),
+                new CborObject.CborList(Arrays.asList(new CborObject.CborMerkleLink(randomCid()))))));
+        outer.put("name", new CborObject.CborString("G'day mate!"));
+        outer.put("flag", new CborObject.CborBoolean(true));
+        return CborObject.CborMap.build(outer);
+    }
+
+    @Test
+    public void cursorLinksMatchDecoded() {
+        CborObject.CborMap cbor = nested();
+        byte[] raw = cbor.toByteArray();
+        Assert.assertEquals(cbor.links(), CborCursor.links(raw));
+        Assert.assertEquals(Collections.emptyList(), CborCursor.links(new CborObject.CborString("no links").toByteArray()));
+    }
+
+    @Test
+    public void cursorFieldLookup() {
+        CborObject.CborMap cbor = nested();
+        CborCursor cursor = CborCursor.of(cbor.toByteArray());
+        Assert.assertEquals("G'day mate!", cursor.get("name").get().getString());
+        Assert.assertTrue(cursor.get("flag").get().getBoolean());
+        Assert.assertFalse(cursor.get("missing").isPresent());
+
+        CborObject.CborMap inner = cbor.get("inner", c -> (CborObject.CborMap) c);
+        CborCursor innerCursor = cursor.get("inner").get();
+        Assert.assertEquals(-1_000_000_000_000L, innerCursor.get("negative").get().getLong());
+        Assert.assertArrayEquals(inner.getByteArray("data"), innerCursor.get("data").get().getByteArray());
+        Assert.assertEquals(((CborObject.CborMerkleLink) inner.get("link")).target, innerCursor.get("link").get().getLink());
+        Assert.assertEquals(inner, innerCursor.materialize());
+
+        CborCursor links = cursor.get("links").get();
+        Assert.assertEquals(3, links.length());
+        Assert.assertTrue(links.get(1).isNull());
+        Assert.assertEquals(cbor.get("links").toCbor().links().get(1), links.get(2).get(0).getLink());
+    }
+
+    @Test
+    public void cursorRejectsTruncated() {
+        byte[] raw = nested().toByteArray();
+        byte[] truncated = Arrays.copyOfRange(raw, 0, raw.length - 10);
+        try {
+            CborCursor.links(truncated);
+            Assert.fail("Should have failed!");
+        } catch (RuntimeException e) {}
+        try {
+            CborCursor.links(ArrayOps.hexToBytes("5b0004000000000000"));
+            Assert.fail("Should have failed!");
+        } catch (RuntimeException e) {}
+    }
+
     public void compatibleAndIdempotentSerialization(CborObject value) {
         byte[] raw = value.toByteArray();
         CborObject deserialized = CborObject.fromByteArray(raw);
@@ -9,16 +9,20 @@ import peergos.server.sql.*;
 import peergos.server.storage.*;
 import peergos.server.util.*;
 import peergos.shared.*;
+import peergos.shared.cbor.*;
 import peergos.shared.crypto.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.hamt.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.storage.*;
+import peergos.shared.user.*;
 import peergos.shared.util.*;
 
 import java.nio.file.*;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.stream.*;
 
@@ -346,6 +350,258 @@ public class ChampTests {
         }
     }
 
+    @Test
+    public void batchedMutations() throws Exception {
+        RAMStorage ram = new RAMStorage();
+        AtomicLong nodesWritten = new AtomicLong(), putCalls = new AtomicLong();
+        ContentAddressedStorage storage = new DelegatingStorage(ram) {
+            @Override
+            public CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                          PublicKeyHash writer,
+                                                          List<byte[]> signedHashes,
+                                                          List<byte[]> blocks,
+                                                          TransactionId tid) {
+                putCalls.incrementAndGet();
+                nodesWritten.addAndGet(blocks.size());
+                return super.put(owner, writer, signedHashes, blocks, tid);
+            }
+        };
+        SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
+        Random r = new Random(28);
+        Supplier<Multihash> randomHash = () -> {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            return new Multihash(Multihash.Type.sha2_256, hash);
+        };
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).get();
+        ChampWrapper base = ChampWrapper.create(user.publicKeyHash, user, hasher, tid, storage, writeHasher).get();
+        Multihash baseRoot = base.put(user.publicKeyHash, user, randomHash.get().toBytes(), MaybeMultihash.empty(),
+                randomHash.get(), tid).get();
+
+        int nKeys = 200;
+        List<ImmutableTree.Mutation> inserts = new ArrayList<>();
+        for (int i = 0; i < nKeys; i++)
+            inserts.add(ImmutableTree.Mutation.put(randomHash.get().toBytes(), MaybeMultihash.empty(), randomHash.get()));
+        // update and remove some of the new keys in the same batch
+        List<ImmutableTree.Mutation> mutations = new ArrayList<>(inserts);
+        for (int i = 0; i < 20; i++)
+            mutations.add(ImmutableTree.Mutation.put(inserts.get(i).key, inserts.get(i).value, randomHash.get()));
+        for (int i = 20; i < 40; i++)
+            mutations.add(ImmutableTree.Mutation.remove(inserts.get(i).key, inserts.get(i).value));
+
+        nodesWritten.set(0);
+        putCalls.set(0);
+        long t0 = System.currentTimeMillis();
+        ChampWrapper sequential = ChampWrapper.create(baseRoot, hasher, storage, writeHasher).get();
+        Multihash sequentialRoot = baseRoot;
+        for (ImmutableTree.Mutation m : mutations)
+            sequentialRoot = m.value.isPresent() ?
+                    sequential.put(user.publicKeyHash, user, m.key, m.existing, m.value.get(), tid).get() :
+                    sequential.remove(user.publicKeyHash, user, m.key, m.existing, tid).get();
+        long t1 = System.currentTimeMillis();
+        long sequentialWrites = nodesWritten.get(), sequentialPuts = putCalls.get();
+
+        nodesWritten.set(0);
+        putCalls.set(0);
+        ChampWrapper batched = ChampWrapper.create(baseRoot, hasher, storage, writeHasher).get();
+        Multihash batchRoot = batched.applyBatch(user.publicKeyHash, user, mutations, tid).get();
+        long t2 = System.currentTimeMillis();
+        long batchWrites = nodesWritten.get(), batchPuts = putCalls.get();
+
+        System.out.printf("Champ mutations: %d, sequential: %.2f nodes written per mutation in %d puts (%d ms), " +
+                        "batched: %.2f nodes written per mutation in %d puts (%d ms)\n", mutations.size(),
+                (double) sequentialWrites / mutations.size(), sequentialPuts, t1 - t0,
+                (double) batchWrites / mutations.size(), batchPuts, t2 - t1);
+        Assert.assertEquals("Batch is equivalent to sequential mutations", sequentialRoot, batchRoot);
+        Assert.assertEquals("Single write for a batch", 1, batchPuts);
+        Assert.assertTrue("Fewer nodes written", batchWrites < sequentialWrites);
+        Assert.assertEquals(nKeys + 1, (long) batched.size().get());
+        for (int i = 0; i < 40; i++) {
+            MaybeMultihash expected = i < 20 ? mutations.get(nKeys + i).value : MaybeMultihash.empty();
+            Assert.assertEquals(expected, batched.get(inserts.get(i).key).get());
+        }
+
+        // a stale expected value fails the whole batch
+        try {
+            batched.applyBatch(user.publicKeyHash, user, Arrays.asList(inserts.get(150)), tid).get();
+            Assert.fail("Batch should fail CAS check");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof MutableTree.CasException);
+        }
+        Assert.assertEquals(batchRoot, batched.applyBatch(user.publicKeyHash, user, Collections.emptyList(), tid).get());
+    }
+
+    @Test
+    public void lookupFromPrefetchedBlocks() throws Exception {
+        RAMStorage ram = new RAMStorage();
+        SigningPrivateKeyAndPublicHash user = createUser(ram, crypto);
+        Random r = new Random(28);
+        TransactionId tid = ram.startTransaction(user.publicKeyHash).get();
+        List<ImmutableTree.Mutation> inserts = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            byte[] key = new byte[32];
+            r.nextBytes(key);
+            byte[] value = new byte[100];
+            r.nextBytes(value);
+            Multihash valueHash = ram.putRaw(user.publicKeyHash, user.publicKeyHash, new byte[0], value, tid, x -> {}).get();
+            inserts.add(ImmutableTree.Mutation.put(key, MaybeMultihash.empty(), valueHash));
+        }
+        ChampWrapper champ = ChampWrapper.create(user.publicKeyHash, user, hasher, tid, ram, writeHasher).get();
+        Multihash root = champ.applyBatch(user.publicKeyHash, user, inserts, tid).get();
+
+        byte[] absentKey = new byte[32];
+        r.nextBytes(absentKey);
+        List<byte[]> keys = Stream.concat(inserts.subList(0, 20).stream().map(m -> m.key), Stream.of(absentKey))
+                .collect(Collectors.toList());
+        List<byte[]> blocks = ChampWrapper.getLookupBlocks(root, keys, hasher, ram).get();
+
+        AtomicLong fallbackReads = new AtomicLong();
+        ContentAddressedStorage fallback = new DelegatingStorage(ram) {
+            @Override
+            public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+                fallbackReads.incrementAndGet();
+                return super.getRaw(hash);
+            }
+
+            @Override
+            public CompletableFuture<List<Optional<byte[]>>> getAll(List<Multihash> hashes) {
+                fallbackReads.addAndGet(hashes.size());
+                return super.getAll(hashes);
+            }
+        };
+        // make sure the nodes come from the prefetched blocks, and not from decoding them earlier
+        Champ.CACHE.clear();
+        PrefetchedStorage prefetched = PrefetchedStorage.build(blocks, writeHasher, fallback).get();
+        ChampWrapper local = ChampWrapper.create(root, hasher, prefetched, writeHasher).get();
+        for (int i = 0; i < 20; i++) {
+            MaybeMultihash value = local.get(keys.get(i)).get();
+            Assert.assertEquals(inserts.get(i).value, value);
+            Assert.assertTrue(prefetched.getAll(Collections.singletonList(value.get())).get().get(0).isPresent());
+        }
+        Assert.assertFalse(local.get(absentKey).get().isPresent());
+        Assert.assertEquals("All lookups done locally", 0, fallbackReads.get());
+
+        // tampered blocks are never used
+        List<byte[]> tampered = blocks.stream()
+                .map(b -> {
+                    byte[] copy = Arrays.copyOf(b, b.length);
+                    copy[copy.length - 1] ^= 1;
+                    return copy;
+                }).collect(Collectors.toList());
+        Champ.CACHE.clear();
+        PrefetchedStorage untrusted = PrefetchedStorage.build(tampered, writeHasher, fallback).get();
+        ChampWrapper checked = ChampWrapper.create(root, hasher, untrusted, writeHasher).get();
+        for (int i = 0; i < 20; i++)
+            Assert.assertEquals(inserts.get(i).value, checked.get(keys.get(i)).get());
+        Assert.assertTrue("Tampered blocks retrieved from fallback", fallbackReads.get() > 0);
+    }
+
+    @Test
+    public void cachedLookupsNeedNoRequest() throws Exception {
+        // champ lookups over the network use the raw keys as their hashes
+        Function<ByteArrayWrapper, byte[]> keyHasher = x -> x.data;
+        RAMStorage ram = new RAMStorage();
+        SigningPrivateKeyAndPublicHash user = createUser(ram, crypto);
+        Random r = new Random(28);
+        TransactionId tid = ram.startTransaction(user.publicKeyHash).get();
+        List<ImmutableTree.Mutation> inserts = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            byte[] key = new byte[32];
+            r.nextBytes(key);
+            byte[] value = new byte[100];
+            r.nextBytes(value);
+            Multihash valueHash = ram.put(user.publicKeyHash, user.publicKeyHash, new byte[0],
+                    new CborObject.CborByteArray(value).serialize(), tid).get();
+            inserts.add(ImmutableTree.Mutation.put(key, MaybeMultihash.empty(), valueHash));
+        }
+        ChampWrapper champ = ChampWrapper.create(user.publicKeyHash, user, keyHasher, tid, ram, writeHasher).get();
+        Multihash root = champ.applyBatch(user.publicKeyHash, user, inserts, tid).get();
+
+        List<List<byte[]>> requested = new ArrayList<>();
+        ContentAddressedStorage remote = new DelegatingStorage(ram) {
+            @Override
+            public CompletableFuture<List<byte[]>> getChampLookup(Multihash root, List<byte[]> champKeys) {
+                requested.add(champKeys);
+                return super.getChampLookup(root, champKeys);
+            }
+        };
+        CachingStorage cache = new CachingStorage(remote, 1024 * 1024, 50 * 1024);
+        List<byte[]> keys = inserts.subList(0, 20).stream()
+                .map(m -> m.key)
+                .collect(Collectors.toList());
+
+        List<byte[]> cold = cache.getChampLookup(root, keys).get();
+        Assert.assertEquals(1, requested.size());
+        cache.putVerified(PrefetchedStorage.build(cold, writeHasher, remote).get().getCborBlocks());
+
+        Champ.CACHE.clear();
+        List<byte[]> warm = cache.getChampLookup(root, keys).get();
+        Assert.assertEquals("Cached lookups done locally", 1, requested.size());
+        PrefetchedStorage prefetched = PrefetchedStorage.build(warm, writeHasher, new DelegatingStorage(ram) {
+            @Override
+            public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+                throw new IllegalStateException("Block missing from lookup: " + hash);
+            }
+        }).get();
+        ChampWrapper local = ChampWrapper.create(root, keyHasher, prefetched, writeHasher).get();
+        for (int i = 0; i < 20; i++) {
+            MaybeMultihash value = local.get(keys.get(i)).get();
+            Assert.assertEquals(inserts.get(i).value, value);
+            Assert.assertTrue(prefetched.get(value.get()).get().isPresent());
+        }
+
+        // only the keys with uncached blocks are requested
+        List<byte[]> mixed = Arrays.asList(keys.get(0), inserts.get(100).key);
+        cache.getChampLookup(root, mixed).get();
+        Assert.assertEquals(2, requested.size());
+        Assert.assertEquals(1, requested.get(1).size());
+        Assert.assertArrayEquals(inserts.get(100).key, requested.get(1).get(0));
+    }
+
+    @Test
+    public void decodedNodeCache() throws Exception {
+        RAMStorage ram = new RAMStorage();
+        SigningPrivateKeyAndPublicHash user = createUser(ram, crypto);
+        Random r = new Random(28);
+        TransactionId tid = ram.startTransaction(user.publicKeyHash).get();
+        List<ImmutableTree.Mutation> inserts = new ArrayList<>();
+        for (int i = 0; i < 5_000; i++) {
+            byte[] key = new byte[32];
+            r.nextBytes(key);
+            byte[] value = new byte[32];
+            r.nextBytes(value);
+            inserts.add(ImmutableTree.Mutation.put(key, MaybeMultihash.empty(), new Multihash(Multihash.Type.sha2_256, value)));
+        }
+        ChampWrapper champ = ChampWrapper.create(user.publicKeyHash, user, hasher, tid, ram, writeHasher).get();
+        Multihash root = champ.applyBatch(user.publicKeyHash, user, inserts, tid).get();
+
+        java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+        int lookups = 20_000;
+        // every lookup starts from the root hash, like MutableTreeImpl.get
+        Function<Boolean, Long> cpuPerLookup = clearCache -> {
+            long t0 = threads.getCurrentThreadCpuTime();
+            for (int i = 0; i < lookups; i++) {
+                if (clearCache)
+                    Champ.CACHE.clear();
+                ImmutableTree.Mutation m = inserts.get(i % inserts.size());
+                MaybeMultihash value = ChampWrapper.create(root, hasher, ram, writeHasher)
+                        .thenCompose(tree -> tree.get(m.key)).join();
+                Assert.assertEquals(m.value, value);
+            }
+            return (threads.getCurrentThreadCpuTime() - t0) / lookups;
+        };
+        cpuPerLookup.apply(true); // warm up
+        long uncached = cpuPerLookup.apply(true);
+        Champ.CACHE.clear();
+        ObjectCache.Stats before = Champ.CACHE.stats();
+        long cached = cpuPerLookup.apply(false);
+        ObjectCache.Stats after = Champ.CACHE.stats();
+        double hitRate = (double) (after.hits - before.hits) / (after.hits - before.hits + after.misses - before.misses);
+        System.out.printf("Champ lookups: %d nS CPU per lookup uncached, %d nS cached, hit rate %.3f\n",
+                uncached, cached, hitRate);
+        Assert.assertTrue("Most nodes are decoded once", hitRate > 0.9);
+    }
+
     private static byte[] randomKey(byte[] startingWith, int extraBytes, Random r) {
         byte[] suffix = new byte[extraBytes];
         r.nextBytes(suffix);
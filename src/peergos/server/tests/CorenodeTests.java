@@ -1,11 +1,26 @@
 package peergos.server.tests;
 
 import org.junit.*;
-import peergos.server.corenode.UsernameValidator;
+import peergos.server.*;
+import peergos.server.corenode.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.corenode.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.mutable.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+import peergos.shared.util.*;
 
+import java.time.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
 
 public class CorenodeTests {
+    private static final Crypto crypto = Main.initCrypto();
 
     @Test
     public void isValidUsernameTest() {
@@ -46,4 +61,107 @@ public class CorenodeTests {
         areValid.forEach(username -> Assert.assertTrue(username + " is valid", UsernameValidator.isValidUsername(username)));
         areNotValid.forEach(username -> Assert.assertFalse(username +" is not valid", UsernameValidator.isValidUsername(username)));
     }
+
+    @Test
+    public void usernamePrefixPages() {
+        UsernameIndex index = new UsernameIndex(Arrays.asList("bob", "alice", "al"));
+        index.add("alan");
+        index.addAll(Arrays.asList("albert", "bob", "carol", "alfred"));
+        Assert.assertEquals(7, index.size());
+        Assert.assertEquals(Arrays.asList("al", "alan", "albert", "alfred", "alice"), index.getUsernames("al"));
+        Assert.assertEquals(Collections.emptyList(), index.getUsernames("dave"));
+
+        List<String> paged = new ArrayList<>();
+        Optional<String> after = Optional.empty();
+        while (true) {
+            List<String> page = index.getUsernames("al", 2, after);
+            if (page.isEmpty())
+                break;
+            paged.addAll(page);
+            after = Optional.of(page.get(page.size() - 1));
+        }
+        Assert.assertEquals(index.getUsernames("al"), paged);
+        Assert.assertEquals(Arrays.asList("al", "alan"), index.getUsernames("al", 2, Optional.of("a")));
+        Assert.assertEquals(index.all(), index.getUsernames(""));
+    }
+
+    private static class RamPointers implements MutablePointers {
+        private final Map<PublicKeyHash, byte[]> pointers = new ConcurrentHashMap<>();
+        private final AtomicInteger updates = new AtomicInteger();
+
+        @Override
+        public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
+            pointers.put(writer, writerSignedBtreeRootHash);
+            updates.incrementAndGet();
+            return CompletableFuture.completedFuture(true);
+        }
+
+        @Override
+        public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
+            return CompletableFuture.completedFuture(Optional.ofNullable(pointers.get(writer)));
+        }
+    }
+
+    private static SigningPrivateKeyAndPublicHash randomSigner() {
+        SigningKeyPair pair = SigningKeyPair.random(crypto.random, crypto.signer);
+        return new SigningPrivateKeyAndPublicHash(ContentAddressedStorage.hashKey(pair.publicSigningKey), pair.secretSigningKey);
+    }
+
+    private static List<UserPublicKeyLink> claim(String username, SigningPrivateKeyAndPublicHash signer) {
+        return UserPublicKeyLink.createInitial(signer, username, LocalDate.now().plusMonths(2), Collections.emptyList());
+    }
+
+    @Test
+    public void concurrentSignUpsAreGroupCommitted() throws Exception {
+        RAMStorage storage = new RAMStorage();
+        RamPointers mutable = new RamPointers();
+        SigningPrivateKeyAndPublicHash pki = randomSigner();
+        PublicKeyHash peergosIdentity = pki.publicKeyHash;
+        TransactionId tid = storage.startTransaction(peergosIdentity).join();
+        CommittedWriterData root = WriterData.createEmpty(peergosIdentity, pki, storage, crypto.hasher, tid)
+                .thenCompose(wd -> wd.commit(peergosIdentity, pki, MaybeMultihash.empty(), mutable, storage, crypto.hasher, tid))
+                .join().get(pki);
+        IpfsCoreNode core = new IpfsCoreNode(pki, root.hash, storage, crypto.hasher, mutable, peergosIdentity);
+
+        Assert.assertTrue(core.updateChain("taken", claim("taken", randomSigner())).join());
+
+        int users = 500;
+        List<Pair<String, List<UserPublicKeyLink>>> claims = IntStream.range(0, users)
+                .mapToObj(i -> "user" + i)
+                .map(name -> new Pair<>(name, claim(name, randomSigner())))
+                .collect(Collectors.toList());
+        ExecutorService pool = Executors.newFixedThreadPool(32);
+        int updatesBefore = mutable.updates.get();
+        CompletableFuture<Boolean> invalid = CompletableFuture.supplyAsync(
+                () -> core.updateChain("taken", claim("taken", randomSigner())), pool)
+                .thenCompose(x -> x);
+        List<CompletableFuture<Boolean>> signUps = claims.stream()
+                .map(c -> CompletableFuture.supplyAsync(() -> core.updateChain(c.left, c.right), pool)
+                        .thenCompose(x -> x))
+                .collect(Collectors.toList());
+        for (CompletableFuture<Boolean> signUp : signUps)
+            Assert.assertTrue(signUp.join());
+        pool.shutdown();
+        int pkiCommits = mutable.updates.get() - updatesBefore;
+        Assert.assertTrue("Sign ups are batched: " + pkiCommits + " commits", pkiCommits < users / 10);
+
+        try {
+            invalid.join();
+            Assert.fail("Claimed an existing username with a different key");
+        } catch (CompletionException expected) {}
+        for (Pair<String, List<UserPublicKeyLink>> c : claims)
+            Assert.assertEquals(c.right, core.getChain(c.left).join());
+        Assert.assertEquals(users + 1, core.getUsernames("").join().size());
+
+        // a fresh corenode loading the committed pki root sees all the sign ups
+        MaybeMultihash pkiRoot = mutable.getPointerTarget(peergosIdentity, pki.publicKeyHash, storage).join();
+        IpfsCoreNode reloaded = new IpfsCoreNode(pki, pkiRoot, storage, crypto.hasher, mutable, peergosIdentity);
+        Assert.assertEquals(users + 1, reloaded.getUsernames("").join().size());
+
+        core.close();
+        try {
+            core.updateChain("late", claim("late", randomSigner())).join();
+            Assert.fail("Updated a closed pki");
+        } catch (CompletionException expected) {}
+    }
 }
@@ -0,0 +1,69 @@
+package peergos.server.tests;
+
+import com.sun.net.httpserver.*;
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.net.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class DHTHandlerTests {
+    private static final Crypto crypto = Main.initCrypto();
+
+    private static FileContentAddressedStorage store;
+    private static HttpServer server;
+    private static Multihash present, absent;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        TransactionStore transactions = JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+        store = new FileContentAddressedStorage(Files.createTempDirectory("peergos-blocks"), transactions);
+        PublicKeyHash owner = new PublicKeyHash(TransactionsStoreTests.hashToCid(new byte[2], true));
+        TransactionId tid = store.startTransaction(owner).join();
+        present = store.put(new byte[]{1, 2, 3}, true, tid, owner);
+        store.closeTransaction(owner, tid).join();
+        absent = TransactionsStoreTests.hashToCid(new byte[]{4, 5, 6}, true);
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 10);
+        server.createContext("/api/v0/", new DHTHandler(store, crypto.hasher, (h, i) -> true, true, Optional.of(store)));
+        server.start();
+    }
+
+    @AfterClass
+    public static void cleanup() {
+        server.stop(0);
+    }
+
+    private static int blockGet(Multihash hash, Optional<String> ifNoneMatch) throws Exception {
+        URL url = new URL("http://localhost:" + server.getAddress().getPort() + "/api/v0/"
+                + ContentAddressedStorage.HTTP.BLOCK_GET + "?arg=" + hash);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        ifNoneMatch.ifPresent(v -> conn.setRequestProperty("If-None-Match", v));
+        try {
+            return conn.getResponseCode();
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    @Test
+    public void matchingEtagIsNotModified() throws Exception {
+        Assert.assertEquals(304, blockGet(present, Optional.of("\"" + present + "\"")));
+        Assert.assertEquals(200, blockGet(present, Optional.of("\"" + absent + "\"")));
+        Assert.assertEquals(200, blockGet(present, Optional.empty()));
+    }
+
+    @Test
+    public void wildcardOnlyMatchesPresentBlocks() throws Exception {
+        Assert.assertEquals(304, blockGet(present, Optional.of("*")));
+        Assert.assertEquals(404, blockGet(absent, Optional.of("*")));
+    }
+}
@@ -0,0 +1,91 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.time.*;
+import java.util.*;
+import java.util.stream.*;
+
+public class FileContentAddressedStorageTests {
+
+    private static void setLastUsed(Path root, Multihash h, long millis) throws Exception {
+        String name = h.toString();
+        Path file = root;
+        for (int i=0; i < 5; i++)
+            file = file.resolve(name.substring(i, i + 1));
+        FileTime time = FileTime.fromMillis(millis);
+        Files.getFileAttributeView(file.resolve(name), BasicFileAttributeView.class).setTimes(time, time, null);
+    }
+
+    @Test
+    public void gcRetainsReachableRecentAndPendingBlocks() throws Exception {
+        Path root = Files.createTempDirectory("peergos-blocks");
+        TransactionStore transactions = JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+        FileContentAddressedStorage store = new FileContentAddressedStorage(root, transactions);
+        PublicKeyHash owner = new PublicKeyHash(TransactionsStoreTests.hashToCid(new byte[2], true));
+        Random r = new Random(1);
+        TransactionId tid = store.startTransaction(owner).join();
+        List<Multihash> blocks = IntStream.range(0, 200)
+                .mapToObj(i -> {
+                    byte[] block = new byte[1000];
+                    r.nextBytes(block);
+                    return store.put(block, true, tid, owner);
+                }).collect(Collectors.toList());
+        store.closeTransaction(owner, tid).join();
+        TransactionId open = store.startTransaction(owner).join();
+        Multihash pending = store.put(new byte[]{1, 2, 3}, true, open, owner);
+
+        long old = System.currentTimeMillis() - Duration.ofDays(1).toMillis();
+        for (Multihash block : blocks.subList(0, 150))
+            setLastUsed(root, block, old);
+        setLastUsed(root, pending, old);
+
+        BlockBloomFilter reachable = BlockBloomFilter.create(100, 0.01);
+        blocks.subList(0, 50).forEach(reachable::add);
+        FileContentAddressedStorage.GcResult res = store.collectGarbage(reachable::mightContain, Duration.ofHours(1), 4);
+
+        Assert.assertEquals(201, res.scannedBlocks);
+        Assert.assertTrue(res.deletedBlocks > 90 && res.deletedBlocks <= 100);
+        Assert.assertEquals(res.deletedBlocks * 1000, res.deletedBytes);
+        for (int i=0; i < blocks.size(); i++) {
+            boolean garbage = i >= 50 && i < 150;
+            if (! garbage || ! reachable.mightContain(blocks.get(i)))
+                Assert.assertEquals(! garbage, store.contains(blocks.get(i)));
+        }
+        Assert.assertTrue(store.contains(pending));
+    }
+
+    @Test
+    public void bloomFilterFalsePositiveRate() {
+        Random r = new Random(2);
+        BlockBloomFilter filter = BlockBloomFilter.create(100_000, 0.01);
+        List<Multihash> added = new ArrayList<>();
+        for (int i=0; i < 100_000; i++) {
+            byte[] digest = new byte[32];
+            r.nextBytes(digest);
+            Multihash h = new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, digest);
+            filter.add(h);
+            added.add(h);
+        }
+        for (Multihash h : added)
+            Assert.assertTrue(filter.mightContain(h));
+        int falsePositives = 0;
+        for (int i=0; i < 100_000; i++) {
+            byte[] digest = new byte[32];
+            r.nextBytes(digest);
+            if (filter.mightContain(new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, digest)))
+                falsePositives++;
+        }
+        Assert.assertTrue("False positive rate " + falsePositives, falsePositives < 1_500);
+        Assert.assertTrue(filter.sizeInBytes() < 150_000);
+    }
+}
@@ -0,0 +1,34 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.net.*;
+import peergos.shared.util.*;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class HttpClientPosterTests {
+
+    @Test
+    public void queuedSynchronousFailuresDoNotOverflowStack() {
+        HttpClientPoster.HostLimits limits = new HttpClientPoster.HostLimits(1);
+        URI host = URI.create("http://localhost:8000/");
+        CompletableFuture<Boolean> first = new CompletableFuture<>();
+        CompletableFuture<Boolean> firstResult = limits.submit(host, () -> first);
+
+        List<CompletableFuture<Boolean>> queued = new ArrayList<>();
+        for (int i=0; i < 100_000; i++)
+            queued.add(limits.submit(host, () -> {
+                throw new IllegalStateException("Failed to send");
+            }));
+        Assert.assertTrue(queued.stream().noneMatch(CompletableFuture::isDone));
+
+        first.complete(true);
+        Assert.assertTrue(firstResult.join());
+        Assert.assertTrue(queued.stream().allMatch(CompletableFuture::isCompletedExceptionally));
+
+        // every slot has been released
+        Assert.assertTrue(limits.submit(host, () -> Futures.of(true)).isDone());
+    }
+}
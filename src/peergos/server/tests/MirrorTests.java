@@ -0,0 +1,66 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.storage.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class MirrorTests {
+    private static final PublicKeyHash owner = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, new byte[32]));
+
+    private static Multihash raw(RAMStorage storage, int i) {
+        byte[] data = new byte[1024];
+        new Random(i).nextBytes(data);
+        return storage.putRaw(owner, owner, new byte[0], data, new TransactionId("1"), x -> {}).join();
+    }
+
+    private static Multihash node(RAMStorage storage, List<Multihash> children) {
+        CborObject.CborList node = new CborObject.CborList(children.stream()
+                .map(CborObject.CborMerkleLink::new)
+                .collect(Collectors.toList()));
+        return storage.put(owner, owner, new byte[0], node.serialize(), new TransactionId("1")).join();
+    }
+
+    /** A two level tree with fanout 10 and raw leaves
+     */
+    private static Multihash tree(RAMStorage storage, int changedLeaf) {
+        List<Multihash> branches = new ArrayList<>();
+        for (int b=0; b < 10; b++) {
+            List<Multihash> leaves = new ArrayList<>();
+            for (int l=0; l < 10; l++) {
+                int leaf = b * 10 + l;
+                leaves.add(raw(storage, leaf == changedLeaf ? -1 : leaf));
+            }
+            branches.add(node(storage, leaves));
+        }
+        return node(storage, branches);
+    }
+
+    @Test
+    public void onlyNewBlocksAreCopied() {
+        RAMStorage source = new RAMStorage();
+        RAMStorage target = new RAMStorage();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        TransactionId tid = new TransactionId("1");
+
+        Multihash original = tree(source, -2);
+        long copied = Mirror.copyNewBlocks(owner, owner, original, Collections.emptyList(), source, target, tid, pool).join();
+        Assert.assertEquals("Whole tree copied", 111, copied);
+        Assert.assertEquals(source.size(), target.size());
+
+        Multihash updated = tree(source, 42);
+        long updateCopied = Mirror.copyNewBlocks(owner, owner, updated, Collections.singletonList(original),
+                source, target, tid, pool).join();
+        Assert.assertEquals("Only the path to the changed leaf is copied", 3, updateCopied);
+        Assert.assertEquals(source.size(), target.size());
+        Assert.assertTrue(target.getRaw(updated).join().isPresent());
+        pool.shutdown();
+    }
+}
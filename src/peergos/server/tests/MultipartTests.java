@@ -93,4 +93,112 @@ public class MultipartTests {
                 .collect(Collectors.toList());
         Assert.assertTrue("Same result on other end: " + differences, differences.size() == 0);
     }
+
+    public static byte[] encode(String boundary, List<byte[]> parts) {
+        try {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            for (byte[] part : parts) {
+                bout.write(("--" + boundary + "\r\n").getBytes());
+                bout.write("Content-Disposition: file; name=\"file\";\r\n".getBytes());
+                bout.write("Content-Type: application/octet-stream\r\n".getBytes());
+                bout.write("Content-Transfer-Encoding: binary\r\n\r\n".getBytes());
+                bout.write(part);
+                bout.write("\r\n".getBytes());
+            }
+            bout.write(("--" + boundary + "--\r\n").getBytes());
+            return bout.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** An input stream which returns at most maxRead bytes from each read
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        private final int maxRead;
+
+        public TrickleInputStream(byte[] data, int maxRead) {
+            super(data);
+            this.maxRead = maxRead;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, maxRead));
+        }
+    }
+
+    @Test
+    public void smallReads() {
+        String boundary = "abcdefgh";
+        List<byte[]> parts = IntStream.range(0, 20)
+                .mapToObj(i -> randomArray(r.nextInt(200_000)))
+                .collect(Collectors.toList());
+        parts.add(new byte[0]);
+        byte[] body = encode(boundary, parts);
+        for (int maxRead : new int[]{1, 3, 17, 4096}) {
+            List<byte[]> result = MultipartReceiver.extractFiles(new TrickleInputStream(body, maxRead), boundary);
+            Assert.assertEquals(parts.size(), result.size());
+            for (int i=0; i < parts.size(); i++)
+                Assert.assertArrayEquals(parts.get(i), result.get(i));
+        }
+    }
+
+    @Test
+    public void partialDelimitersInData() {
+        String boundary = "abcdefgh";
+        byte[] delimiter = ("\r\n--" + boundary).getBytes();
+        List<byte[]> parts = new ArrayList<>();
+        for (int prefix = 1; prefix < delimiter.length; prefix++) {
+            byte[] part = new byte[3 * prefix + 10];
+            for (int i=0; i < part.length; i++)
+                part[i] = delimiter[i % prefix];
+            parts.add(part);
+            // data which ends with a prefix of the delimiter
+            parts.add(Arrays.copyOfRange(delimiter, 0, prefix));
+        }
+        byte[] body = encode(boundary, parts);
+        List<byte[]> result = MultipartReceiver.extractFiles(new TrickleInputStream(body, 5), boundary);
+        Assert.assertEquals(parts.size(), result.size());
+        for (int i=0; i < parts.size(); i++)
+            Assert.assertArrayEquals(parts.get(i), result.get(i));
+    }
+
+    @Test
+    public void partsAreStreamed() {
+        String boundary = "abcdefgh";
+        List<byte[]> parts = IntStream.range(0, 5)
+                .mapToObj(i -> randomArray(1000))
+                .collect(Collectors.toList());
+        List<Integer> indices = new ArrayList<>();
+        int count = MultipartReceiver.extractFiles(new ByteArrayInputStream(encode(boundary, parts)), boundary, 1000,
+                (i, part) -> {
+                    indices.add(i);
+                    Assert.assertArrayEquals(parts.get(i), part);
+                });
+        Assert.assertEquals(5, count);
+        Assert.assertEquals(Arrays.asList(0, 1, 2, 3, 4), indices);
+    }
+
+    @Test
+    public void maxPartSize() {
+        String boundary = "abcdefgh";
+        List<byte[]> parts = Arrays.asList(randomArray(1000), randomArray(1001));
+        List<byte[]> received = new ArrayList<>();
+        try {
+            MultipartReceiver.extractFiles(new ByteArrayInputStream(encode(boundary, parts)), boundary, 1000, (i, part) -> received.add(part));
+            Assert.fail("Oversized part accepted");
+        } catch (IllegalStateException expected) {}
+        Assert.assertEquals(1, received.size());
+    }
+
+    @Test
+    public void truncatedBody() {
+        String boundary = "abcdefgh";
+        byte[] body = encode(boundary, Arrays.asList(randomArray(1000), randomArray(1000)));
+        try {
+            MultipartReceiver.extractFiles(new ByteArrayInputStream(Arrays.copyOfRange(body, 0, 1500)), boundary);
+            Assert.fail("Truncated body accepted");
+        } catch (IllegalStateException expected) {}
+    }
 }
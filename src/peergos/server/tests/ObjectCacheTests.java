@@ -0,0 +1,37 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.storage.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ObjectCacheTests {
+
+    @Test
+    public void boundedByBytes() {
+        ObjectCache<Integer, String> cache = new ObjectCache<>(100 * 1024, 64 * 1024);
+        for (int i=0; i < 1000; i++)
+            cache.put(i, "value " + i, 1024);
+        ObjectCache.Stats stats = cache.stats();
+        Assert.assertTrue("Cache size is bounded", stats.bytes <= 100 * 1024);
+        Assert.assertEquals(100, stats.entries);
+        Assert.assertEquals(900, stats.evictions);
+        Assert.assertTrue("Most recent entries kept", cache.getIfPresent(999).isPresent());
+        Assert.assertFalse("Eldest entries evicted", cache.getIfPresent(0).isPresent());
+    }
+
+    @Test
+    public void largeValuesAreNotCached() {
+        ObjectCache<Integer, String> cache = new ObjectCache<>(1024 * 1024, 64 * 1024);
+        byte[] large = new byte[64 * 1024];
+        Optional<String> decoded = cache.get(1, () -> CompletableFuture.completedFuture(Optional.of(large)),
+                raw -> "large").join();
+        Assert.assertEquals(Optional.of("large"), decoded);
+        Assert.assertFalse(cache.getIfPresent(1).isPresent());
+
+        cache.get(2, () -> CompletableFuture.completedFuture(Optional.of(new byte[100])), raw -> "small").join();
+        Assert.assertEquals(Optional.of("small"), cache.getIfPresent(2));
+        Assert.assertEquals(100, cache.stats().bytes);
+    }
+}
@@ -0,0 +1,198 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.server.util.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+public class PackFileBlockStorageTests {
+
+    private static Supplier<Connection> index(Path dir) throws SQLException {
+        Connection instance = new Sqlite.UncloseableConnection(Sqlite.build(dir.resolve("index.sql").toString()));
+        return () -> instance;
+    }
+
+    private static List<byte[]> randomBlocks(Random r, int count, int size) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> {
+                    byte[] block = new byte[size];
+                    r.nextBytes(block);
+                    return block;
+                }).collect(Collectors.toList());
+    }
+
+    @Test
+    public void putGetAndReopen() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-pack");
+        TransactionStore transactions = JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+        Supplier<Connection> index = index(dir);
+        PackFileBlockStorage store = new PackFileBlockStorage(dir.resolve("segments"), 64 * 1024, transactions, index, new SqliteCommands());
+        PublicKeyHash owner = new PublicKeyHash(TransactionsStoreTests.hashToCid(new byte[2], true));
+        TransactionId tid = store.startTransaction(owner).join();
+        List<byte[]> blocks = randomBlocks(new Random(42), 200, 1024);
+        List<Multihash> hashes = store.putRaw(owner, owner, blocks, blocks, tid, x -> {}).join();
+        // a repeated block is only stored once
+        store.putRaw(owner, owner, blocks.subList(0, 10), blocks.subList(0, 10), tid, x -> {}).join();
+        for (int i=0; i < blocks.size(); i++)
+            Assert.assertArrayEquals(blocks.get(i), store.getRaw(hashes.get(i)).join().get());
+        store.close();
+
+        long segmentBytes;
+        try (Stream<Path> segments = Files.list(dir.resolve("segments"))) {
+            List<Path> files = segments.filter(f -> f.toString().endsWith(".pack")).collect(Collectors.toList());
+            Assert.assertTrue("Multiple segments", files.size() > 1);
+            segmentBytes = files.stream().mapToLong(f -> f.toFile().length()).sum();
+        }
+        Assert.assertTrue("No duplicate writes", segmentBytes < 201 * 1024 + 200 * 50);
+
+        PackFileBlockStorage reopened = new PackFileBlockStorage(dir.resolve("segments"), 64 * 1024, transactions, index, new SqliteCommands());
+        for (int i=0; i < blocks.size(); i++)
+            Assert.assertArrayEquals(blocks.get(i), reopened.getRaw(hashes.get(i)).join().get());
+        Assert.assertEquals(Optional.of(1024), reopened.getSize(hashes.get(0)).join());
+        reopened.close();
+    }
+
+    @Test
+    public void recoverUnindexedAndTruncateTornWrites() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-pack");
+        TransactionStore transactions = JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+        Path segments = dir.resolve("segments");
+        PackFileBlockStorage store = new PackFileBlockStorage(segments, 1024 * 1024, transactions, index(dir), new SqliteCommands());
+        PublicKeyHash owner = new PublicKeyHash(TransactionsStoreTests.hashToCid(new byte[2], true));
+        TransactionId tid = store.startTransaction(owner).join();
+        List<byte[]> blocks = randomBlocks(new Random(7), 20, 1000);
+        List<Multihash> hashes = store.putRaw(owner, owner, blocks, blocks, tid, x -> {}).join();
+        store.close();
+
+        // simulate a crash after an fsync but before the index was committed, followed by a torn write
+        Path segment = Files.list(segments).filter(f -> f.toString().endsWith(".pack")).findFirst().get();
+        try (RandomAccessFile raf = new RandomAccessFile(segment.toFile(), "rw")) {
+            raf.seek(raf.length());
+            raf.write(new byte[]{0, 0, 0, 36, 0, 0, 3});
+        }
+        PackFileBlockStorage reopened = new PackFileBlockStorage(segments, 1024 * 1024, transactions, index(Files.createTempDirectory("peergos-pack")), new SqliteCommands());
+        for (int i=0; i < blocks.size(); i++)
+            Assert.assertArrayEquals(blocks.get(i), reopened.getRaw(hashes.get(i)).join().get());
+        Assert.assertEquals(20 * (8 + 36 + 1000), segment.toFile().length());
+        reopened.close();
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-pack");
+        TransactionStore transactions = JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+        PackFileBlockStorage store = new PackFileBlockStorage(dir.resolve("segments"), 16 * 1024, transactions, index(dir), new SqliteCommands());
+        PublicKeyHash owner = new PublicKeyHash(TransactionsStoreTests.hashToCid(new byte[2], true));
+        TransactionId tid = store.startTransaction(owner).join();
+        List<byte[]> blocks = randomBlocks(new Random(3), 100, 1024);
+        List<Multihash> hashes = new ArrayList<>();
+        for (byte[] block : blocks)
+            hashes.addAll(store.putRaw(owner, owner, Arrays.asList(block), Arrays.asList(block), tid, x -> {}).join());
+        store.closeTransaction(owner, tid).join();
+
+        Set<Multihash> reachable = new HashSet<>(hashes.subList(0, 10));
+        long reclaimed = store.collectGarbage(() -> reachable::contains, 0.5);
+        Assert.assertTrue("Reclaimed space", reclaimed > 80 * 1024);
+        for (int i=0; i < blocks.size(); i++) {
+            Optional<byte[]> res = store.getRaw(hashes.get(i)).join();
+            if (i < 10)
+                Assert.assertArrayEquals(blocks.get(i), res.get());
+            else if (res.isPresent()) // the active segment is never compacted
+                Assert.assertArrayEquals(blocks.get(i), res.get());
+        }
+        store.close();
+    }
+
+    @Test
+    public void markFromRoots() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-pack");
+        TransactionStore transactions = JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+        PackFileBlockStorage store = new PackFileBlockStorage(dir.resolve("segments"), 16 * 1024, transactions, index(dir), new SqliteCommands());
+        PublicKeyHash owner = new PublicKeyHash(TransactionsStoreTests.hashToCid(new byte[2], true));
+        TransactionId tid = store.startTransaction(owner).join();
+        List<byte[]> blocks = randomBlocks(new Random(5), 40, 1024);
+        List<Multihash> raw = store.putRaw(owner, owner, blocks, blocks, tid, x -> {}).join();
+        byte[] root = new CborObject.CborList(Arrays.asList(
+                new CborObject.CborMerkleLink(raw.get(0)),
+                new CborObject.CborMerkleLink(raw.get(1)))).serialize();
+        Multihash rootHash = store.put(owner, owner, Arrays.asList(root), Arrays.asList(root), tid).join().get(0);
+        // fill the active segment so everything above is sealed
+        List<byte[]> later = randomBlocks(new Random(6), 20, 1024);
+        store.putRaw(owner, owner, later, later, tid, x -> {}).join();
+        store.closeTransaction(owner, tid).join();
+
+        long reclaimed = store.collectGarbage(() ->
+                PackFileBlockStorage.markReachable(Arrays.asList(rootHash), store, 4)::contains, 0.5);
+        Assert.assertTrue("Reclaimed space", reclaimed > 30 * 1024);
+        Assert.assertTrue(store.getRaw(rootHash).join().isPresent());
+        Assert.assertArrayEquals(blocks.get(0), store.getRaw(raw.get(0)).join().get());
+        Assert.assertArrayEquals(blocks.get(1), store.getRaw(raw.get(1)).join().get());
+        Assert.assertFalse(store.getRaw(raw.get(2)).join().isPresent());
+        store.close();
+    }
+
+    @Test
+    public void concurrentReadsDuringWrites() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-pack");
+        TransactionStore transactions = JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+        PackFileBlockStorage store = new PackFileBlockStorage(dir.resolve("segments"), 256 * 1024, transactions, index(dir), new SqliteCommands());
+        PublicKeyHash owner = new PublicKeyHash(TransactionsStoreTests.hashToCid(new byte[2], true));
+        TransactionId tid = store.startTransaction(owner).join();
+        List<byte[]> blocks = randomBlocks(new Random(9), 100, 1024);
+        List<Multihash> hashes = store.putRaw(owner, owner, blocks, blocks, tid, x -> {}).join();
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            Future<?> writes = pool.submit(() -> {
+                Random r = new Random(10);
+                for (int i = 0; i < 50; i++) {
+                    List<byte[]> batch = randomBlocks(r, 20, 1024);
+                    store.putRaw(owner, owner, batch, batch, tid, x -> {}).join();
+                }
+            });
+            List<Future<?>> reads = new ArrayList<>();
+            for (int t = 0; t < 7; t++)
+                reads.add(pool.submit(() -> {
+                    for (int i = 0; i < 2_000; i++) {
+                        int index = ThreadLocalRandom.current().nextInt(blocks.size());
+                        Assert.assertArrayEquals(blocks.get(index), store.getRaw(hashes.get(index)).join().get());
+                    }
+                }));
+            for (Future<?> read : reads)
+                read.get();
+            writes.get();
+        } finally {
+            pool.shutdown();
+        }
+        store.close();
+    }
+
+    @Test
+    public void storeCanOnlyBeOpenedOnce() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-pack");
+        TransactionStore transactions = JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+        Supplier<Connection> index = index(dir);
+        PackFileBlockStorage store = new PackFileBlockStorage(dir.resolve("segments"), 1024 * 1024, transactions, index, new SqliteCommands());
+        try {
+            new PackFileBlockStorage(dir.resolve("segments"), 1024 * 1024, transactions, index, new SqliteCommands());
+            Assert.fail("Opened a pack store which is in use");
+        } catch (IllegalStateException expected) {}
+        store.close();
+
+        PackFileBlockStorage reopened = new PackFileBlockStorage(dir.resolve("segments"), 1024 * 1024, transactions, index, new SqliteCommands());
+        reopened.close();
+    }
+}
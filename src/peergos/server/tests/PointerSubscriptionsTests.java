@@ -0,0 +1,75 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.mutable.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.mutable.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class PointerSubscriptionsTests {
+
+    private static PublicKeyHash writer(int i) {
+        byte[] hash = new byte[32];
+        hash[0] = (byte) i;
+        hash[1] = (byte) (i >> 8);
+        return new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, hash));
+    }
+
+    private static void set(PointerSubscriptions subs, PublicKeyHash writer, int value) {
+        subs.accept(new MutableEvent(writer, writer, new byte[]{(byte) value}));
+    }
+
+    @Test
+    public void idleSubscribersAreNotifiedOfTheirWritersOnly() throws Exception {
+        PointerSubscriptions subs = new PointerSubscriptions(100, 60_000);
+        long start = subs.subscribe(Collections.emptySet(), -1).join().sequence;
+
+        int nSubscribers = 5_000;
+        List<CompletableFuture<PointerUpdates>> polls = new ArrayList<>();
+        for (int i = 0; i < nSubscribers; i++)
+            polls.add(subs.subscribe(Collections.singleton(writer(i)), start));
+        Assert.assertEquals(nSubscribers, subs.waitingSubscribers());
+        Assert.assertTrue(polls.stream().noneMatch(CompletableFuture::isDone));
+
+        set(subs, writer(7), 1);
+        PointerUpdates res = polls.get(7).get(5, TimeUnit.SECONDS);
+        Assert.assertFalse(res.reset);
+        Assert.assertEquals(1, res.updates.size());
+        Assert.assertEquals(writer(7), res.updates.get(0).writer);
+        Assert.assertEquals(nSubscribers - 1, subs.waitingSubscribers());
+        Assert.assertFalse(polls.get(8).isDone());
+
+        // a subscriber that missed the update gets it straight away
+        PointerUpdates missed = subs.subscribe(Collections.singleton(writer(7)), start).join();
+        Assert.assertEquals(1, missed.updates.size());
+        Assert.assertEquals(res.sequence, missed.sequence);
+        // and one that saw it waits for the next
+        Assert.assertFalse(subs.subscribe(Collections.singleton(writer(7)), res.sequence).isDone());
+    }
+
+    @Test
+    public void pollsTimeOut() throws Exception {
+        PointerSubscriptions subs = new PointerSubscriptions(100, 100);
+        long start = subs.subscribe(Collections.emptySet(), -1).join().sequence;
+        PointerUpdates res = subs.subscribe(Collections.singleton(writer(1)), start).get(5, TimeUnit.SECONDS);
+        Assert.assertFalse(res.reset);
+        Assert.assertTrue(res.updates.isEmpty());
+        Assert.assertEquals(start, res.sequence);
+        Assert.assertEquals(0, subs.waitingSubscribers());
+    }
+
+    @Test
+    public void resetWhenBehindTheLog() {
+        PointerSubscriptions subs = new PointerSubscriptions(10, 60_000);
+        PointerUpdates first = subs.subscribe(Collections.singleton(writer(1)), -1).join();
+        Assert.assertTrue("New subscribers start with a reset", first.reset);
+
+        for (int i = 0; i < 20; i++)
+            set(subs, writer(2), i);
+        Assert.assertTrue(subs.subscribe(Collections.singleton(writer(1)), first.sequence).join().reset);
+        Assert.assertTrue("Sequence from a previous run", subs.subscribe(Collections.singleton(writer(1)), first.sequence + 1000).join().reset);
+    }
+}
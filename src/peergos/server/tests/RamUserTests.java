@@ -6,14 +6,21 @@ import org.junit.runners.*;
 import peergos.server.*;
 import peergos.server.util.*;
 import peergos.shared.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.crypto.symmetric.*;
+import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.social.*;
+import peergos.shared.storage.*;
 import peergos.shared.user.*;
 import peergos.shared.user.fs.*;
 import peergos.shared.util.*;
 
 import java.nio.file.*;
+import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 @RunWith(Parameterized.class)
 public class RamUserTests extends UserTests {
@@ -267,4 +274,121 @@ public class RamUserTests extends UserTests {
         // check user1 can still log in
         UserContext freshUser1 = PeergosNetworkUtils.ensureSignedUp(username1, password, network, crypto);
     }
+
+    /** Upload a file with a FileUploader, without adding it to a directory, and return it
+     */
+    private static FileWrapper uploadDirectly(UserContext context,
+                                              NetworkAccess network,
+                                              byte[] data,
+                                              int window,
+                                              AtomicInteger commits) {
+        FileWrapper dir = context.getUserRoot().join();
+        String filename = "direct.bin";
+        SymmetricKey fileKey = SymmetricKey.random();
+        byte[] mapKey = crypto.random.randomBytes(32);
+        FileProperties props = new FileProperties(filename, false, false, "application/octet-stream", data.length,
+                LocalDateTime.now(), false, Optional.empty(), Optional.of(crypto.random.randomBytes(32)));
+        SymmetricKey parentKey = dir.getPointer().fileAccess.getParentKey(dir.getPointer().capability.rBaseKey);
+        FileUploader uploader = new FileUploader(filename, props.mimeType, new AsyncReader.ArrayBacked(data), 0,
+                data.length, fileKey, SymmetricKey.random(), dir.getLocation(), parentKey, l -> {}, props, mapKey);
+        SigningPrivateKeyAndPublicHash signer = dir.signingPair();
+        Snapshot version = network.synchronizer.applyComplexUpdate(dir.owner(), signer,
+                (s, committer) -> uploader.upload(s, (owner, writer, wd, existing, tid) -> {
+                    commits.incrementAndGet();
+                    return committer.commit(owner, writer, wd, existing, tid);
+                }, network, dir.owner(), signer, crypto.hasher, window)).join();
+        AbsoluteCapability cap = new AbsoluteCapability(dir.owner(), signer.publicKeyHash, mapKey, fileKey);
+        return network.getFile(version, cap, Optional.empty(), context.username).join().get();
+    }
+
+    private static NetworkAccess withStorage(NetworkAccess network, ContentAddressedStorage dht) {
+        return new NetworkAccess(network.coreNode, network.social, dht, network.mutable, network.tree,
+                network.synchronizer, network.instanceAdmin, network.spaceUsage, network.usernames, false);
+    }
+
+    @Test
+    public void pipelinedUploadOfMoreChunksThanWindow() {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+
+        byte[] data = new byte[6 * Chunk.MAX_SIZE + 1024];
+        new Random(42).nextBytes(data);
+        AtomicInteger commits = new AtomicInteger();
+        FileWrapper file = uploadDirectly(context, context.network, data, 4, commits);
+        Assert.assertEquals("Single pointer update for a pipelined upload", 1, commits.get());
+        checkFileContents(data, file, context);
+    }
+
+    @Test
+    public void failedFragmentUploadDoesNotCommit() {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper root = context.getUserRoot().join();
+        Optional<byte[]> before = context.network.mutable.getPointer(root.owner(), root.writer()).join();
+
+        AtomicInteger rawPuts = new AtomicInteger();
+        ContentAddressedStorage failing = new DelegatingStorage(context.network.dhtClient) {
+            @Override
+            public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner,
+                                                             PublicKeyHash writer,
+                                                             List<byte[]> signatures,
+                                                             List<byte[]> blocks,
+                                                             TransactionId tid,
+                                                             ProgressConsumer<Long> progressCounter) {
+                if (rawPuts.incrementAndGet() == 4)
+                    return Futures.errored(new IllegalStateException("Simulated fragment upload failure"));
+                return super.putRaw(owner, writer, signatures, blocks, tid, progressCounter);
+            }
+        };
+        byte[] data = new byte[6 * Chunk.MAX_SIZE];
+        new Random(43).nextBytes(data);
+        String filename = "failed.bin";
+        try {
+            root.uploadOrReplaceFile(filename, new AsyncReader.ArrayBacked(data), data.length,
+                    withStorage(context.network, failing), crypto, l -> {}, crypto.random.randomBytes(32)).join();
+            Assert.fail("Upload should fail");
+        } catch (CompletionException expected) {}
+
+        Assert.assertTrue(rawPuts.get() >= 4);
+        Optional<byte[]> after = context.network.mutable.getPointer(root.owner(), root.writer()).join();
+        Assert.assertTrue("Pointer unchanged", Arrays.equals(before.get(), after.get()));
+        Assert.assertFalse(context.getByPath(Paths.get(username, filename)).join().isPresent());
+    }
+
+    @Test
+    public void sequentialUploads() {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+
+        AtomicInteger transactions = new AtomicInteger();
+        NetworkAccess counting = withStorage(context.network, new DelegatingStorage(context.network.dhtClient) {
+            @Override
+            public CompletableFuture<TransactionId> startTransaction(PublicKeyHash owner) {
+                transactions.incrementAndGet();
+                return super.startTransaction(owner);
+            }
+        });
+
+        // a window of 1 uploads and commits each chunk in its own transaction
+        byte[] data = new byte[2 * Chunk.MAX_SIZE + 1024];
+        new Random(44).nextBytes(data);
+        AtomicInteger commits = new AtomicInteger();
+        FileWrapper file = uploadDirectly(context, counting, data, 1, commits);
+        Assert.assertEquals(3, commits.get());
+        Assert.assertEquals(3, transactions.get());
+        checkFileContents(data, file, context);
+
+        // as does a single chunk file
+        byte[] small = new byte[1024 * 1024];
+        new Random(45).nextBytes(small);
+        commits.set(0);
+        transactions.set(0);
+        FileWrapper smallFile = uploadDirectly(context, counting, small, 4, commits);
+        Assert.assertEquals(1, commits.get());
+        Assert.assertEquals(1, transactions.get());
+        checkFileContents(small, smallFile, context);
+    }
 }
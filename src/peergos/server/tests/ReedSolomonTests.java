@@ -0,0 +1,67 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.user.fs.erasure.*;
+
+import java.util.*;
+
+public class ReedSolomonTests {
+    private static final Random random = new Random(1);
+
+    private static byte[] randomBytes(int size) {
+        byte[] res = new byte[size];
+        random.nextBytes(res);
+        return res;
+    }
+
+    @Test
+    public void compatibleWithPolynomialEncoding() {
+        for (int original : ErasureFragmenter.ALLOWED_ORIGINAL) {
+            for (int failures : ErasureFragmenter.ALLOWED_FAILURES) {
+                byte[] input = randomBytes(random.nextInt(20_000) + 1);
+                byte[][] expected = Erasure.split(input, new GaloisField256(), original, failures);
+                byte[][] actual = new ReedSolomon(original, failures).split(input);
+                Assert.assertEquals(expected.length, actual.length);
+                for (int i=0; i < expected.length; i++)
+                    Assert.assertArrayEquals("(" + original + ", " + failures + ") fragment " + i, expected[i], actual[i]);
+            }
+        }
+    }
+
+    @Test
+    public void recoverMissingFragments() {
+        for (int original : ErasureFragmenter.ALLOWED_ORIGINAL) {
+            for (int failures : ErasureFragmenter.ALLOWED_FAILURES) {
+                ReedSolomon coder = new ReedSolomon(original, failures);
+                byte[] input = randomBytes(random.nextInt(200_000) + 1);
+                byte[][] encoded = coder.split(input);
+                List<Integer> indices = new ArrayList<>();
+                for (int i=0; i < encoded.length; i++)
+                    indices.add(i);
+                Collections.shuffle(indices, random);
+
+                byte[][] lossy = encoded.clone();
+                for (int i=0; i < 2 * failures; i++)
+                    lossy[indices.get(i)] = i % 2 == 0 ? null : new byte[0];
+                Assert.assertArrayEquals("(" + original + ", " + failures + ")", input, coder.recombine(lossy, input.length));
+
+                lossy[indices.get(2 * failures)] = null;
+                try {
+                    coder.recombine(lossy, input.length);
+                    Assert.fail("Should fail with too many missing fragments!");
+                } catch (IllegalStateException expected) {}
+            }
+        }
+    }
+
+    @Test
+    public void missingParityUsesFastPath() {
+        ReedSolomon coder = new ReedSolomon(ErasureFragmenter.ERASURE_ORIGINAL, ErasureFragmenter.ERASURE_ALLOWED_FAILURES);
+        byte[] input = randomBytes(Chunk.MAX_SIZE);
+        byte[][] encoded = coder.split(input);
+        for (int i = ErasureFragmenter.ERASURE_ORIGINAL; i < encoded.length; i++)
+            encoded[i] = null;
+        Assert.assertArrayEquals(input, coder.recombine(encoded, input.length));
+    }
+}
@@ -0,0 +1,38 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.util.*;
+
+public class S3GcTests {
+
+    @Test
+    public void pendingRootMarksOldSubtrees() {
+        RAMStorage storage = new RAMStorage();
+        PublicKeyHash owner = new PublicKeyHash(TransactionsStoreTests.hashToCid(new byte[2], true));
+        Multihash oldData = storage.putRaw(owner, owner, Collections.singletonList(new byte[0]),
+                Collections.singletonList(new byte[]{1, 2, 3}), null, x -> {}).join().get(0);
+        Multihash oldLeaf = put(storage, owner, new CborObject.CborList(Arrays.asList(
+                new CborObject.CborMerkleLink(oldData))));
+        Multihash newLeaf = put(storage, owner, new CborObject.CborString("new"));
+        // a newly committed root, still in an open transaction, which shares a subtree with the previous root
+        Multihash newRoot = put(storage, owner, new CborObject.CborList(Arrays.asList(
+                new CborObject.CborMerkleLink(oldLeaf),
+                new CborObject.CborMerkleLink(newLeaf))));
+
+        BlockFingerprintSet reachable = S3BlockStorage.markReachable(Arrays.asList(newRoot),
+                Arrays.asList(newRoot, newLeaf), storage, 2);
+        for (Multihash h : Arrays.asList(newRoot, newLeaf, oldLeaf, oldData))
+            Assert.assertTrue("Reachable block marked", reachable.contains(h));
+    }
+
+    private static Multihash put(RAMStorage storage, PublicKeyHash owner, CborObject block) {
+        return storage.put(owner, owner, Collections.singletonList(new byte[0]),
+                Collections.singletonList(block.serialize()), null).join().get(0);
+    }
+}
@@ -15,6 +15,9 @@ import peergos.shared.storage.*;
 import java.security.*;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
 
 @RunWith(Parameterized.class)
 public class TransactionsStoreTests {
@@ -66,4 +69,40 @@ public class TransactionsStoreTests {
         List<Multihash> empty = store.getOpenTransactionBlocks();
         Assert.assertTrue("All blocks removed", empty.isEmpty());
     }
+
+    @Test
+    public void concurrentBatches() throws Exception {
+        Supplier<Connection> db = Main.buildEphemeralSqlite();
+        JdbcTransactionStore store = JdbcTransactionStore.build(db, new SqliteCommands());
+        PublicKeyHash owner = new PublicKeyHash(hashToCid(new byte[3], true));
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<List<Multihash>>> added = new ArrayList<>();
+        for (int t=0; t < 8; t++) {
+            int thread = t;
+            added.add(pool.submit(() -> {
+                List<Multihash> all = new ArrayList<>();
+                for (int i=0; i < 20; i++) {
+                    int round = i;
+                    TransactionId tid = store.startTransaction(owner);
+                    List<Multihash> blocks = IntStream.range(0, 5)
+                            .mapToObj(j -> (Multihash) hashToCid(new byte[]{(byte) thread, (byte) round, (byte) j}, true))
+                            .collect(Collectors.toList());
+                    store.addBlocks(blocks, tid, owner);
+                    all.addAll(blocks);
+                }
+                return all;
+            }));
+        }
+        Set<Multihash> expected = new HashSet<>();
+        for (Future<List<Multihash>> f : added)
+            expected.addAll(f.get());
+        pool.shutdown();
+        Assert.assertEquals(expected, new HashSet<>(store.getOpenTransactionBlocks()));
+
+        // A new store over the same database must load the committed transactions
+        JdbcTransactionStore reopened = JdbcTransactionStore.build(db, new SqliteCommands());
+        Assert.assertEquals(expected, new HashSet<>(reopened.getOpenTransactionBlocks()));
+        store.close();
+        reopened.close();
+    }
 }
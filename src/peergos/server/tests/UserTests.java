@@ -14,6 +14,8 @@ import peergos.shared.crypto.*;
 import peergos.shared.crypto.asymmetric.*;
 import peergos.shared.crypto.asymmetric.curve25519.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.crypto.random.*;
 import peergos.shared.crypto.symmetric.*;
 import peergos.server.*;
@@ -332,6 +334,168 @@ public abstract class UserTests {
         Assert.assertTrue("Malicious pointer update failed", updated.equals(current));
     }
 
+    @Test
+    public void pointerSubscription() throws Exception {
+        String username = generateUsername();
+        String password = "test";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        NetworkAccess otherNetwork = network.clear();
+        UserContext other = PeergosNetworkUtils.ensureSignedUp(username, password, otherNetwork, crypto);
+        FileWrapper userRoot = context.getUserRoot().join();
+        PublicKeyHash writer = userRoot.writer();
+        Set<PublicKeyHash> writers = Collections.singleton(writer);
+
+        PointerUpdates initial = otherNetwork.mutable.subscribe(writers, -1).join();
+        Assert.assertTrue(initial.reset);
+        CompletableFuture<PointerUpdates> poll = otherNetwork.mutable.subscribe(writers, initial.sequence);
+
+        byte[] data = "G'day".getBytes();
+        userRoot.uploadOrReplaceFile("file.txt", new AsyncReader.ArrayBacked(data), data.length,
+                context.network, crypto, l -> {}, crypto.random.randomBytes(32)).join();
+
+        PointerUpdates res = poll.get(30, TimeUnit.SECONDS);
+        Assert.assertFalse(res.updates.isEmpty());
+        Assert.assertTrue(res.updates.stream().allMatch(u -> u.writer.equals(writer)));
+
+        // the upload commits more than once, the first of which woke up the poll
+        PointerUpdates all = otherNetwork.mutable.subscribe(writers, initial.sequence).join();
+        MaybeMultihash latest = network.mutable.getPointerTarget(context.signer.publicKeyHash, writer, network.dhtClient).join();
+        MaybeMultihash notified = MutablePointers.parsePointerTarget(all.updates.get(all.updates.size() - 1).writerSignedBtreeRootHash,
+                writer, otherNetwork.dhtClient).join();
+        Assert.assertEquals(latest, notified);
+
+        otherNetwork.synchronizer.refresh(context.signer.publicKeyHash, writer, Optional.of(notified)).join();
+        Assert.assertTrue(other.getByPath(Paths.get(username, "file.txt")).join().isPresent());
+    }
+
+    @Test
+    public void getAllBlocks() throws Exception {
+        String username = generateUsername();
+        String password = "test";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        PublicKeyHash owner = context.signer.publicKeyHash;
+
+        // more than one batch, and too large to be served from the client's cache
+        int nBlocks = ContentAddressedStorage.HTTP.MAX_BLOCKS_PER_GET_ALL + 10;
+        List<byte[]> blocks = new ArrayList<>();
+        for (int i=0; i < nBlocks; i++)
+            blocks.add(crypto.random.randomBytes(64 * 1024));
+        List<Multihash> hashes = IpfsTransaction.call(owner, tid -> Futures.combineAllInOrder(blocks.stream()
+                .map(b -> network.dhtClient.putRaw(owner, owner,
+                        context.signer.secret.signMessage(crypto.hasher.sha256(b).join()), b, tid, x -> {}))
+                .collect(Collectors.toList())), network.dhtClient).join();
+
+        Multihash absent = Cid.buildCidV1(Cid.Codec.Raw, Multihash.Type.sha2_256, crypto.random.randomBytes(32));
+        byte[] inlined = "inline".getBytes();
+        Multihash identity = new Multihash(Multihash.Type.id, inlined);
+        List<Multihash> requested = new ArrayList<>(hashes);
+        requested.add(1, absent);
+        requested.add(identity);
+
+        List<Optional<byte[]>> retrieved = network.dhtClient.getAll(requested).join();
+        Assert.assertEquals(requested.size(), retrieved.size());
+        Assert.assertFalse(retrieved.get(1).isPresent());
+        Assert.assertArrayEquals(inlined, retrieved.get(retrieved.size() - 1).get());
+        List<byte[]> found = retrieved.subList(0, retrieved.size() - 1).stream()
+                .filter(Optional::isPresent)
+                .map(Optional::get)
+                .collect(Collectors.toList());
+        Assert.assertEquals(nBlocks, found.size());
+        for (int i=0; i < nBlocks; i++)
+            Assert.assertArrayEquals(blocks.get(i), found.get(i));
+    }
+
+    @Test
+    public void downloadProgressIsReportedBeforeAllFragmentsArrive() throws Exception {
+        String username = generateUsername();
+        String password = "test";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        PublicKeyHash owner = context.signer.publicKeyHash;
+
+        int nBlocks = 20, blockSize = 16 * 1024;
+        List<byte[]> blocks = new ArrayList<>();
+        for (int i=0; i < nBlocks; i++)
+            blocks.add(crypto.random.randomBytes(blockSize));
+        List<Multihash> hashes = IpfsTransaction.call(owner, tid -> Futures.combineAllInOrder(blocks.stream()
+                .map(b -> network.dhtClient.putRaw(owner, owner,
+                        context.signer.secret.signMessage(crypto.hasher.sha256(b).join()), b, tid, x -> {}))
+                .collect(Collectors.toList())), network.dhtClient).join();
+
+        // hold back the retrieval of the last fragment
+        Multihash last = hashes.get(nBlocks - 1);
+        CompletableFuture<Boolean> releaseLast = new CompletableFuture<>();
+        ContentAddressedStorage delayed = new DelegatingStorage(network.dhtClient) {
+            @Override
+            public CompletableFuture<List<Optional<byte[]>>> getAll(List<Multihash> requested) {
+                if (requested.contains(last))
+                    return releaseLast.thenCompose(x -> super.getAll(requested));
+                return super.getAll(requested);
+            }
+        };
+        AtomicLong progress = new AtomicLong();
+        CompletableFuture<List<FragmentWithHash>> download =
+                NetworkAccess.downloadFragments(hashes, delayed, progress::addAndGet, 1.0);
+
+        long lastGroupSize = nBlocks % 8 == 0 ? 8 : nBlocks % 8;
+        long beforeLastGroup = (nBlocks - lastGroupSize) * blockSize;
+        for (int i=0; i < 100 && progress.get() < beforeLastGroup; i++)
+            Thread.sleep(50);
+        Assert.assertEquals("Progress of earlier fragments reported", beforeLastGroup, progress.get());
+        Assert.assertFalse(download.isDone());
+
+        releaseLast.complete(true);
+        List<FragmentWithHash> fragments = download.join();
+        Assert.assertEquals(nBlocks, fragments.size());
+        for (int i=0; i < nBlocks; i++)
+            Assert.assertArrayEquals(blocks.get(i), fragments.get(i).fragment.data);
+        Assert.assertEquals((long) nBlocks * blockSize, progress.get());
+    }
+
+    @Test
+    public void pointerWatcher() throws Exception {
+        String username = generateUsername();
+        String password = "test";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        NetworkAccess otherNetwork = network.clear();
+        UserContext other = PeergosNetworkUtils.ensureSignedUp(username, password, otherNetwork, crypto);
+        FileWrapper userRoot = context.getUserRoot().join();
+        PublicKeyHash owner = context.signer.publicKeyHash;
+        PublicKeyHash writer = userRoot.writer();
+
+        byte[] data = "G'day".getBytes();
+        userRoot = userRoot.uploadOrReplaceFile("before.txt", new AsyncReader.ArrayBacked(data), data.length,
+                context.network, crypto, l -> {}, crypto.random.randomBytes(32)).join();
+        Assert.assertNotEquals("Cached writer is stale", latest(owner, writer), cached(otherNetwork, owner, writer));
+
+        otherNetwork.pointerWatcher.start();
+        try {
+            waitUntilCached(otherNetwork, owner, writer);
+            userRoot.uploadOrReplaceFile("after.txt", new AsyncReader.ArrayBacked(data), data.length,
+                    context.network, crypto, l -> {}, crypto.random.randomBytes(32)).join();
+            waitUntilCached(otherNetwork, owner, writer);
+            Assert.assertTrue(other.getByPath(Paths.get(username, "after.txt")).join().isPresent());
+        } finally {
+            otherNetwork.pointerWatcher.stop();
+        }
+    }
+
+    private MaybeMultihash latest(PublicKeyHash owner, PublicKeyHash writer) {
+        return network.mutable.getPointerTarget(owner, writer, network.dhtClient).join();
+    }
+
+    private static MaybeMultihash cached(NetworkAccess network, PublicKeyHash owner, PublicKeyHash writer) {
+        return network.synchronizer.getCachedValue(owner, writer).get().join().get(writer).hash;
+    }
+
+    private void waitUntilCached(NetworkAccess other, PublicKeyHash owner, PublicKeyHash writer) throws InterruptedException {
+        long end = System.currentTimeMillis() + 30_000;
+        while (! latest(owner, writer).equals(cached(other, owner, writer))) {
+            if (System.currentTimeMillis() > end)
+                throw new AssertionError("Watcher never updated cached writer");
+            Thread.sleep(100);
+        }
+    }
+
     @Test
     public void concurrentFileModificationFailure() throws Exception {
         String username = generateUsername();
@@ -728,7 +892,8 @@ public abstract class UserTests {
                     context.crypto, l -> {}, transaction.getLocations().get(0).getMapKey()).get();
         } catch (Exception e) {}
         int during = context.getTotalSpaceUsed(context.signer.publicKeyHash, context.signer.publicKeyHash).get().intValue();
-        Assert.assertTrue("One chunk uploaded", during > 5 * 1024*1024);
+        // chunks are only committed once the whole file has been uploaded
+        Assert.assertTrue("No chunks committed", during < prior + 5 * 1024*1024);
 
         context.network.synchronizer.applyComplexUpdate(userRoot.owner(), transactions.getSigner(),
                 (current, committer) -> {
@@ -1064,12 +1229,27 @@ public abstract class UserTests {
         folder = folder.mkdir(subfoldername, context.network, false, crypto).join();
         FileWrapper subfolder = context.getByPath(home.resolve(foldername).resolve(subfoldername)).join().get();
 
-        folder.remove(context.getUserRoot().join(), context).join();
-
-        AbsoluteCapability pointer = subfolder.getPointer().capability;
-        CommittedWriterData cwd = network.synchronizer.getValue(pointer.owner, pointer.writer).join().get(pointer.writer);
-        Optional<CryptreeNode> subdir = network.getMetadata(cwd.props, pointer).join();
-        Assert.assertTrue("Child deleted", ! subdir.isPresent());
+        // a 2 chunk file and some small files
+        byte[] data = randomData(6*1024*1024);
+        subfolder = subfolder.uploadOrReplaceFile("large.bin", new AsyncReader.ArrayBacked(data), data.length,
+                context.network, crypto, x -> {}, context.crypto.random.randomBytes(32)).join();
+        for (int i=0; i < 5; i++)
+            subfolder = subfolder.uploadOrReplaceFile("small" + i, new AsyncReader.ArrayBacked(new byte[i]), i,
+                    context.network, crypto, x -> {}, context.crypto.random.randomBytes(32)).join();
+        FileWrapper large = context.getByPath(home.resolve(foldername).resolve(subfoldername).resolve("large.bin")).join().get();
+        AbsoluteCapability secondChunk = large.getPointer().capability
+                .withMapKey(large.getMapKey(Chunk.MAX_SIZE, context.network, crypto).join());
+
+        folder = context.getByPath(home.resolve(foldername)).join().get();
+        AtomicLong deleted = new AtomicLong();
+        folder.remove(context.getUserRoot().join(), context, deleted::addAndGet).join();
+        Assert.assertTrue("Deleted all chunks", deleted.get() == 9);
+
+        for (AbsoluteCapability pointer : Arrays.asList(subfolder.getPointer().capability, secondChunk)) {
+            CommittedWriterData cwd = network.synchronizer.getValue(pointer.owner, pointer.writer).join().get(pointer.writer);
+            Optional<CryptreeNode> subdir = network.getMetadata(cwd.props, pointer).join();
+            Assert.assertTrue("Child deleted", ! subdir.isPresent());
+        }
     }
 
     @Test
@@ -1277,8 +1457,32 @@ public abstract class UserTests {
         FileWrapper copy = context.getByPath(home.resolve(foldername).resolve(filename)).join().get();
         Assert.assertTrue("Different base key", ! copy.getPointer().capability.rBaseKey.equals(original.getPointer().capability.rBaseKey));
         Assert.assertTrue("Different metadata key", ! getMetaKey(copy).equals(getMetaKey(original)));
-        Assert.assertTrue("Different data key", ! getDataKey(copy).equals(getDataKey(original)));
+        // within the same owner the copy links to the original fragments
+        Assert.assertTrue("Same data key", Arrays.equals(getDataKey(copy).getKey(), getDataKey(original).getKey()));
+        Assert.assertTrue("Same fragments", copy.getPointer().fileAccess.toCbor().links()
+                .equals(original.getPointer().fileAccess.toCbor().links()));
+        Assert.assertTrue("Copy is dirty", copy.isDirty());
         checkFileContents(data, copy, context);
+
+        // a copy with isolated keys is re-encrypted
+        String foldername2 = "bfolder";
+        context.getUserRoot().join().mkdir(foldername2, context.network, false, crypto).join();
+        FileWrapper subfolder2 = context.getByPath(home.resolve(foldername2)).join().get();
+        original.copyTo(subfolder2, true, context).join();
+        FileWrapper isolated = context.getByPath(home.resolve(foldername2).resolve(filename)).join().get();
+        Assert.assertTrue("Different data key", ! Arrays.equals(getDataKey(isolated).getKey(), getDataKey(original).getKey()));
+        checkFileContents(data, isolated, context);
+
+        // modifying the copy doesn't change the original
+        byte[] newData = randomData(6*1024*1024);
+        subfolder = context.getByPath(home.resolve(foldername)).join().get();
+        subfolder.uploadOrReplaceFile(filename, new AsyncReader.ArrayBacked(newData), newData.length, context.network,
+                crypto, x -> {}, context.crypto.random.randomBytes(32)).join();
+        FileWrapper modified = context.getByPath(home.resolve(foldername).resolve(filename)).join().get();
+        Assert.assertTrue("Modified copy is clean", ! modified.isDirty());
+        Assert.assertTrue("Different data key", ! Arrays.equals(getDataKey(modified).getKey(), getDataKey(original).getKey()));
+        checkFileContents(newData, modified, context);
+        checkFileContents(data, context.getByPath(home.resolve(filename)).join().get(), context);
     }
 
     @Test
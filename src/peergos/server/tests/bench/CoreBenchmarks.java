@@ -0,0 +1,269 @@
+package peergos.server.tests.bench;
+
+import peergos.server.*;
+import peergos.server.crypto.*;
+import peergos.server.storage.*;
+import peergos.server.util.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.asymmetric.curve25519.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.crypto.random.*;
+import peergos.shared.crypto.symmetric.*;
+import peergos.shared.hamt.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.user.fs.erasure.*;
+import peergos.shared.util.*;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.regex.*;
+import java.util.stream.*;
+
+/** Micro benchmarks of the crypto, CBOR, CHAMP and fragmenting hot paths.
+ *
+ * Run with "ant benchmark", optionally passing -Dbench.args="-bench.filter secretbox -bench.baseline old.json".
+ */
+public class CoreBenchmarks {
+    private static final List<Integer> DEFAULT_SIZES = Arrays.asList(1024, 64 * 1024, 1024 * 1024, Chunk.MAX_SIZE);
+    private static final Random random = new Random(42);
+
+    private static byte[] randomBytes(int size) {
+        byte[] res = new byte[size];
+        random.nextBytes(res);
+        return res;
+    }
+
+    private static Map<String, String> backend(String name) {
+        return Collections.singletonMap("backend", name);
+    }
+
+    private static Map<String, String> impl(String name) {
+        return Collections.singletonMap("impl", name);
+    }
+
+    private static List<MicroBenchmark.Benchmark> symmetric(String backend, Salsa20Poly1305 impl, List<Integer> sizes) {
+        byte[] key = randomBytes(32);
+        byte[] nonce = randomBytes(24);
+        return Arrays.asList(
+                new MicroBenchmark.Benchmark("crypto.secretbox", backend(backend), sizes, size -> {
+                    byte[] data = randomBytes(size);
+                    return () -> impl.secretbox(data, nonce, key);
+                }),
+                new MicroBenchmark.Benchmark("crypto.secretbox_open", backend(backend), sizes, size -> {
+                    byte[] cipherText = impl.secretbox(randomBytes(size), nonce, key);
+                    return () -> impl.secretbox_open(cipherText, nonce, key);
+                }));
+    }
+
+    private static List<MicroBenchmark.Benchmark> signing(String backend, Ed25519 impl) {
+        byte[] publicKey = new byte[32];
+        byte[] secretKey = new byte[64];
+        impl.crypto_sign_keypair(publicKey, secretKey);
+        // We sign block hashes
+        byte[] message = randomBytes(32);
+        return Arrays.asList(
+                new MicroBenchmark.Benchmark("crypto.sign", backend(backend), Arrays.asList(0), size ->
+                        () -> impl.crypto_sign(message, secretKey)),
+                new MicroBenchmark.Benchmark("crypto.sign_open", backend(backend), Arrays.asList(0), size -> {
+                    byte[] signed = impl.crypto_sign(message, secretKey);
+                    return () -> impl.crypto_sign_open(signed, publicKey);
+                }));
+    }
+
+    /** A RAMStorage which can stop storing writes, so the tree under test doesn't grow for the length of the run
+     */
+    private static class WriteDiscardingStorage extends RAMStorage {
+        private volatile boolean discardWrites;
+
+        @Override
+        public CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                      PublicKeyHash writer,
+                                                      List<byte[]> signedHashes,
+                                                      List<byte[]> blocks,
+                                                      TransactionId tid) {
+            if (! discardWrites)
+                return super.put(owner, writer, signedHashes, blocks, tid);
+            return Futures.of(blocks.stream()
+                    .map(b -> (Multihash) hashToCid(b, false))
+                    .collect(Collectors.toList()));
+        }
+    }
+
+    private static List<MicroBenchmark.Benchmark> champ(Crypto crypto) throws Exception {
+        int bitWidth = 5, maxCollisions = 3, nKeys = 10_000;
+        Function<ByteArrayWrapper, byte[]> keyHasher = k -> Arrays.copyOfRange(k.data, 0, 32);
+        WriteDiscardingStorage storage = new WriteDiscardingStorage();
+        SigningKeyPair keys = SigningKeyPair.random(crypto.random, crypto.signer);
+        PublicKeyHash owner = ContentAddressedStorage.hashKey(keys.publicSigningKey);
+        SigningPrivateKeyAndPublicHash writer = new SigningPrivateKeyAndPublicHash(owner, keys.secretSigningKey);
+        TransactionId tid = storage.startTransaction(owner).join();
+
+        Champ root = Champ.empty();
+        Multihash rootHash = storage.put(owner, writer, root.serialize(), crypto.hasher, tid).join();
+        List<ByteArrayWrapper> existing = new ArrayList<>();
+        for (int i = 0; i < nKeys; i++) {
+            ByteArrayWrapper key = new ByteArrayWrapper(randomBytes(32));
+            Pair<Champ, Multihash> updated = root.put(owner, writer, key, keyHasher.apply(key), 0, MaybeMultihash.empty(),
+                    MaybeMultihash.of(new Multihash(Multihash.Type.sha2_256, randomBytes(32))), bitWidth, maxCollisions,
+                    keyHasher, tid, storage, crypto.hasher, rootHash).join();
+            root = updated.left;
+            rootHash = updated.right;
+            existing.add(key);
+        }
+        storage.discardWrites = true;
+        Champ base = root;
+        Multihash baseHash = rootHash;
+        Map<String, String> params = Collections.singletonMap("keys", Integer.toString(nKeys));
+        return Arrays.asList(
+                new MicroBenchmark.Benchmark("champ.get", params, Arrays.asList(0), size -> {
+                    int[] index = {0};
+                    return () -> {
+                        ByteArrayWrapper key = existing.get(index[0]++ % existing.size());
+                        return base.get(key, keyHasher.apply(key), 0, bitWidth, storage).join();
+                    };
+                }),
+                new MicroBenchmark.Benchmark("champ.decode", impl("decode"), Arrays.asList(0), size -> {
+                    byte[] raw = base.serialize();
+                    return () -> Champ.fromCbor(CborObject.fromByteArray(raw));
+                }),
+                new MicroBenchmark.Benchmark("champ.decode", impl("cursor"), Arrays.asList(0), size -> {
+                    byte[] raw = base.serialize();
+                    return () -> Champ.fromBytes(raw);
+                }),
+                new MicroBenchmark.Benchmark("champ.put", params, Arrays.asList(0), size -> {
+                    MaybeMultihash value = MaybeMultihash.of(new Multihash(Multihash.Type.sha2_256, randomBytes(32)));
+                    return () -> {
+                        ByteArrayWrapper key = new ByteArrayWrapper(randomBytes(32));
+                        return base.put(owner, writer, key, keyHasher.apply(key), 0, MaybeMultihash.empty(), value,
+                                bitWidth, maxCollisions, keyHasher, tid, storage, crypto.hasher, baseHash).join();
+                    };
+                }));
+    }
+
+    private static Map<String, String> erasureParams(int original, int failures) {
+        Map<String, String> res = new TreeMap<>();
+        res.put("original", Integer.toString(original));
+        res.put("failures", Integer.toString(failures));
+        return res;
+    }
+
+    /** Erasure coding of full chunks for every allowed (original, failures) pair
+     */
+    private static List<MicroBenchmark.Benchmark> erasure() {
+        List<Integer> chunk = Arrays.asList(Chunk.MAX_SIZE);
+        List<MicroBenchmark.Benchmark> res = new ArrayList<>();
+        for (int original : new TreeSet<>(ErasureFragmenter.ALLOWED_ORIGINAL)) {
+            for (int failures : new TreeSet<>(ErasureFragmenter.ALLOWED_FAILURES)) {
+                Map<String, String> params = erasureParams(original, failures);
+                ErasureFragmenter erasure = new ErasureFragmenter(original, failures);
+                res.add(new MicroBenchmark.Benchmark("fragment.erasure.split", params, chunk, size -> {
+                    byte[] data = randomBytes(size);
+                    return () -> erasure.split(data);
+                }));
+                res.add(new MicroBenchmark.Benchmark("fragment.erasure.recombine", params, chunk, size -> {
+                    byte[][] fragments = erasure.split(randomBytes(size));
+                    return () -> erasure.recombine(fragments, 0, size);
+                }));
+                res.add(new MicroBenchmark.Benchmark("fragment.erasure.recover", params, chunk, size -> {
+                    byte[][] fragments = erasure.split(randomBytes(size));
+                    // lose as many original fragments as can be recovered from
+                    for (int i=0; i < Math.min(original, 2 * failures); i++)
+                        fragments[i] = null;
+                    return () -> erasure.recombine(fragments, 0, size);
+                }));
+            }
+        }
+        // the previous polynomial based encoder, for comparison
+        int original = ErasureFragmenter.ERASURE_ORIGINAL, failures = ErasureFragmenter.ERASURE_ALLOWED_FAILURES;
+        Map<String, String> legacy = new TreeMap<>(erasureParams(original, failures));
+        legacy.put("impl", "polynomial");
+        res.add(new MicroBenchmark.Benchmark("fragment.erasure.split", legacy, chunk, size -> {
+            byte[] data = randomBytes(size);
+            return () -> Erasure.split(data, new GaloisField256(), original, failures);
+        }));
+        return res;
+    }
+
+    private static CborObject cborObject(int size) {
+        SortedMap<String, Cborable> fields = new TreeMap<>();
+        for (int i = 0; i < 10; i++)
+            fields.put("field" + i, new CborObject.CborLong(i));
+        fields.put("links", new CborObject.CborList(IntStream.range(0, 10)
+                .mapToObj(i -> new CborObject.CborMerkleLink(new Multihash(Multihash.Type.sha2_256, randomBytes(32))))
+                .collect(Collectors.toList())));
+        fields.put("data", new CborObject.CborByteArray(randomBytes(size)));
+        return CborObject.CborMap.build(fields);
+    }
+
+    public static List<MicroBenchmark.Benchmark> all(List<Integer> sizes) throws Exception {
+        Crypto crypto = Main.initCrypto();
+        List<MicroBenchmark.Benchmark> res = new ArrayList<>();
+        res.addAll(symmetric("java", new Salsa20Poly1305.Java(), sizes));
+        res.addAll(signing("java", new Ed25519.Java()));
+        try {
+            JniTweetNacl nativeNacl = JniTweetNacl.build();
+            res.addAll(symmetric("jni", new JniTweetNacl.Symmetric(nativeNacl), sizes));
+            res.addAll(signing("jni", new JniTweetNacl.Signer(nativeNacl)));
+        } catch (Throwable t) {
+            System.err.println("Native crypto unavailable, skipping jni benchmarks: " + t.getMessage());
+        }
+
+        res.add(new MicroBenchmark.Benchmark("hash.blake2b", Collections.emptyMap(), sizes, size -> {
+            byte[] data = randomBytes(size);
+            return () -> Blake2b.Digest.newInstance(32).digest(data);
+        }));
+        res.add(new MicroBenchmark.Benchmark("cbor.encode", Collections.emptyMap(), sizes, size -> {
+            CborObject obj = cborObject(size);
+            return obj::toByteArray;
+        }));
+        res.add(new MicroBenchmark.Benchmark("cbor.decode", Collections.emptyMap(), sizes, size -> {
+            byte[] raw = cborObject(size).toByteArray();
+            return () -> CborObject.fromByteArray(raw);
+        }));
+        res.add(new MicroBenchmark.Benchmark("cbor.links", impl("decode"), sizes, size -> {
+            byte[] raw = cborObject(size).toByteArray();
+            return () -> CborObject.fromByteArray(raw).links();
+        }));
+        res.add(new MicroBenchmark.Benchmark("cbor.links", impl("cursor"), sizes, size -> {
+            byte[] raw = cborObject(size).toByteArray();
+            return () -> CborCursor.links(raw);
+        }));
+        res.addAll(champ(crypto));
+
+        res.addAll(erasure());
+        SymmetricKey key = TweetNaClKey.random(crypto.symmetricProvider, crypto.random);
+        res.add(new MicroBenchmark.Benchmark("fragment.padded.build", Collections.emptyMap(), sizes, size -> {
+            CborObject.CborByteArray chunk = new CborObject.CborByteArray(randomBytes(size));
+            return () -> FragmentedPaddedCipherText.build(key, chunk, 4096, Fragment.MAX_LENGTH, crypto.hasher, false).join();
+        }));
+        return res;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Args a = Args.parse(args);
+        // don't let per operation logging distort the measurements
+        Logger.getGlobal().setLevel(Level.WARNING);
+        List<Integer> sizes = a.hasArg("bench.sizes") ?
+                Arrays.stream(a.getArg("bench.sizes").split(","))
+                        .map(Integer::parseInt)
+                        .collect(Collectors.toList()) :
+                DEFAULT_SIZES;
+        MicroBenchmark runner = new MicroBenchmark(a.getInt("bench.warmup-iterations", 3),
+                a.getInt("bench.iterations", 5), a.getLong("bench.iteration-millis", 1000));
+        List<MicroBenchmark.Result> results = runner.run(all(sizes), Pattern.compile(a.getArg("bench.filter", "")));
+
+        Path output = Paths.get(a.getArg("bench.output", "benchmark-results.json"));
+        MicroBenchmark.writeJson(results, output);
+        System.out.println("Wrote results to " + output.toAbsolutePath());
+        if (a.hasArg("bench.baseline"))
+            MicroBenchmark.compare(MicroBenchmark.readJson(Paths.get(a.getArg("bench.baseline"))), results);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,212 @@
+package peergos.server.tests.bench;
+
+import peergos.shared.io.ipfs.api.*;
+
+import java.lang.management.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.*;
+import java.util.stream.*;
+
+/** A minimal JMH style benchmark runner.
+ *
+ * Each benchmark is run for a number of timed warmup and measurement iterations on a single thread. The throughput,
+ * its 99.9% confidence interval and the bytes allocated per operation (like JMH's -prof gc) are recorded. Results are
+ * written as JSON in the same shape as JMH's, so they can be compared between commits.
+ */
+public class MicroBenchmark {
+
+    public interface Operation {
+        /**
+         *
+         * @return a value derived from the work done, so the JIT can't eliminate it
+         */
+        Object run() throws Exception;
+    }
+
+    public interface Setup {
+        Operation setup(int size) throws Exception;
+    }
+
+    public static class Benchmark {
+        public final String name;
+        public final Map<String, String> params;
+        public final List<Integer> sizes;
+        public final Setup setup;
+
+        public Benchmark(String name, Map<String, String> params, List<Integer> sizes, Setup setup) {
+            this.name = name;
+            this.params = params;
+            this.sizes = sizes;
+            this.setup = setup;
+        }
+    }
+
+    public static class Result {
+        public final String benchmark;
+        public final Map<String, String> params;
+        public final double opsPerSecond, error, bytesAllocatedPerOp, megabytesPerSecond;
+
+        public Result(String benchmark,
+                      Map<String, String> params,
+                      double opsPerSecond,
+                      double error,
+                      double bytesAllocatedPerOp,
+                      double megabytesPerSecond) {
+            this.benchmark = benchmark;
+            this.params = params;
+            this.opsPerSecond = opsPerSecond;
+            this.error = error;
+            this.bytesAllocatedPerOp = bytesAllocatedPerOp;
+            this.megabytesPerSecond = megabytesPerSecond;
+        }
+
+        public String key() {
+            return benchmark + params;
+        }
+
+        public Map<String, Object> toJson() {
+            Map<String, Object> res = new LinkedHashMap<>();
+            res.put("benchmark", benchmark);
+            res.put("mode", "thrpt");
+            res.put("params", params);
+            Map<String, Object> primary = new LinkedHashMap<>();
+            primary.put("score", opsPerSecond);
+            primary.put("scoreError", error);
+            primary.put("scoreUnit", "ops/s");
+            res.put("primaryMetric", primary);
+            Map<String, Object> secondary = new LinkedHashMap<>();
+            secondary.put("gc.alloc.rate.norm", metric(bytesAllocatedPerOp, "B/op"));
+            if (megabytesPerSecond > 0)
+                secondary.put("throughput", metric(megabytesPerSecond, "MiB/s"));
+            res.put("secondaryMetrics", secondary);
+            return res;
+        }
+
+        private static Map<String, Object> metric(double score, String unit) {
+            Map<String, Object> res = new LinkedHashMap<>();
+            res.put("score", score);
+            res.put("scoreUnit", unit);
+            return res;
+        }
+
+        @SuppressWarnings("unchecked")
+        public static Result fromJson(Map<String, Object> json) {
+            Map<String, Object> primary = (Map<String, Object>) json.get("primaryMetric");
+            Map<String, Object> secondary = (Map<String, Object>) json.get("secondaryMetrics");
+            Map<String, Object> alloc = (Map<String, Object>) secondary.get("gc.alloc.rate.norm");
+            Map<String, Object> throughput = (Map<String, Object>) secondary.get("throughput");
+            Map<String, String> params = new TreeMap<>();
+            ((Map<String, Object>) json.get("params")).forEach((k, v) -> params.put(k, v.toString()));
+            return new Result((String) json.get("benchmark"), params,
+                    ((Number) primary.get("score")).doubleValue(),
+                    ((Number) primary.get("scoreError")).doubleValue(),
+                    ((Number) alloc.get("score")).doubleValue(),
+                    throughput == null ? 0 : ((Number) throughput.get("score")).doubleValue());
+        }
+    }
+
+    private final int warmupIterations, iterations;
+    private final long iterationMillis;
+    private volatile int sink;
+
+    public MicroBenchmark(int warmupIterations, int iterations, long iterationMillis) {
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+        this.iterationMillis = iterationMillis;
+    }
+
+    public List<Result> run(List<Benchmark> benchmarks, Pattern filter) throws Exception {
+        List<Result> results = new ArrayList<>();
+        for (Benchmark benchmark : benchmarks) {
+            if (! filter.matcher(benchmark.name).find())
+                continue;
+            for (int size : benchmark.sizes) {
+                Map<String, String> params = new TreeMap<>(benchmark.params);
+                if (size > 0)
+                    params.put("size", Integer.toString(size));
+                Result res = run(benchmark.name, params, benchmark.setup.setup(size), size);
+                System.out.printf("%-40s %-40s %14.1f +- %10.1f ops/s %14.0f B/op%s\n", res.benchmark, res.params,
+                        res.opsPerSecond, res.error, res.bytesAllocatedPerOp,
+                        res.megabytesPerSecond > 0 ? String.format(" %10.1f MiB/s", res.megabytesPerSecond) : "");
+                results.add(res);
+            }
+        }
+        return results;
+    }
+
+    private Result run(String name, Map<String, String> params, Operation op, int size) throws Exception {
+        for (int i = 0; i < warmupIterations; i++)
+            iteration(op);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        double[] scores = new double[iterations];
+        long totalOps = 0, totalAllocated = 0;
+        for (int i = 0; i < iterations; i++) {
+            long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+            long[] opsAndNanos = iteration(op);
+            totalAllocated += threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+            totalOps += opsAndNanos[0];
+            scores[i] = opsAndNanos[0] * 1e9 / opsAndNanos[1];
+        }
+        double mean = Arrays.stream(scores).average().orElse(0);
+        double variance = iterations < 2 ? 0 :
+                Arrays.stream(scores).map(s -> (s - mean) * (s - mean)).sum() / (iterations - 1);
+        // the 99.9% confidence interval, using the normal approximation
+        double error = 3.29 * Math.sqrt(variance / iterations);
+        double megabytesPerSecond = size > 0 ? mean * size / (1024 * 1024) : 0;
+        return new Result(name, params, mean, error, (double) totalAllocated / totalOps, megabytesPerSecond);
+    }
+
+    /**
+     *
+     * @return the number of operations and the elapsed nanoseconds
+     */
+    private long[] iteration(Operation op) throws Exception {
+        long start = System.nanoTime();
+        long end = start + iterationMillis * 1_000_000;
+        long ops = 0;
+        long now;
+        int acc = 0;
+        do {
+            Object res = op.run();
+            acc += System.identityHashCode(res);
+            ops++;
+        } while ((now = System.nanoTime()) < end);
+        sink += acc;
+        return new long[]{ops, now - start};
+    }
+
+    public static void writeJson(List<Result> results, Path file) throws Exception {
+        List<Object> json = results.stream()
+                .map(Result::toJson)
+                .collect(Collectors.toList());
+        Files.write(file, JSONParser.toString(json).getBytes());
+    }
+
+    @SuppressWarnings("unchecked")
+    public static List<Result> readJson(Path file) throws Exception {
+        List<Object> json = (List<Object>) JSONParser.parse(new String(Files.readAllBytes(file)));
+        return json.stream()
+                .map(j -> Result.fromJson((Map<String, Object>) j))
+                .collect(Collectors.toList());
+    }
+
+    /** Print the change in throughput and allocation of each benchmark relative to a baseline run
+     */
+    public static void compare(List<Result> baseline, List<Result> current) {
+        Map<String, Result> before = baseline.stream()
+                .collect(Collectors.toMap(Result::key, r -> r, (a, b) -> b));
+        System.out.println("Change relative to baseline (throughput outside the combined error is marked *):");
+        for (Result after : current) {
+            Result old = before.get(after.key());
+            if (old == null)
+                continue;
+            double change = (after.opsPerSecond - old.opsPerSecond) / old.opsPerSecond * 100;
+            boolean significant = Math.abs(after.opsPerSecond - old.opsPerSecond) > after.error + old.error;
+            System.out.printf("%-40s %-40s %+7.1f%%%s alloc %+7.1f%%\n", after.benchmark, after.params, change,
+                    significant ? "*" : " ",
+                    old.bytesAllocatedPerOp == 0 ? 0 : (after.bytesAllocatedPerOp - old.bytesAllocatedPerOp) / old.bytesAllocatedPerOp * 100);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package peergos.server.tests.slow;
+
+import com.sun.net.httpserver.*;
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.net.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.server.tests.*;
+import peergos.server.util.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+/** Compares the throughput of, and the server allocation per request for, block gets from a file store, when blocks
+ * are read onto the heap and when they are sent straight from their files.
+ */
+public class BlockGetBenchmark {
+    private static final int THREADS = 8;
+    private static final int REQUESTS = 4_000;
+    private static final Crypto crypto = Main.initCrypto();
+    private static final AtomicLong received = new AtomicLong();
+
+    private static FileContentAddressedStorage store;
+    private static List<Multihash> raw, cbor;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        // otherwise small responses stall waiting for delayed acks
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        Logging.LOG().setLevel(Level.WARNING);
+        TransactionStore transactions = JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+        store = new FileContentAddressedStorage(Files.createTempDirectory("peergos-blocks"), transactions);
+        PublicKeyHash owner = new PublicKeyHash(TransactionsStoreTests.hashToCid(new byte[2], true));
+        TransactionId tid = store.startTransaction(owner).join();
+        Random r = new Random(42);
+        raw = new ArrayList<>();
+        cbor = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] fragment = new byte[128 * 1024];
+            r.nextBytes(fragment);
+            raw.add(store.put(fragment, true, tid, owner));
+            byte[] node = new byte[4 * 1024];
+            r.nextBytes(node);
+            cbor.add(store.put(new CborObject.CborByteArray(node).serialize(), false, tid, owner));
+        }
+        store.closeTransaction(owner, tid).join();
+    }
+
+    @Test
+    public void compareBlockGets() throws Exception {
+        for (int round = 0; round < 3; round++) {
+            benchmark("heap", Optional.empty(), raw, "raw 128 KiB");
+            benchmark("file", Optional.of(store), raw, "raw 128 KiB");
+            benchmark("heap", Optional.empty(), cbor, "cbor 4 KiB");
+            benchmark("file", Optional.of(store), cbor, "cbor 4 KiB");
+        }
+    }
+
+    private static void benchmark(String name,
+                                  Optional<BlockFileSource> blockFiles,
+                                  List<Multihash> blocks,
+                                  String type) throws Exception {
+        List<Long> serverThreads = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService handlers = Executors.newFixedThreadPool(THREADS, task -> {
+            Thread t = new Thread(task);
+            serverThreads.add(t.getId());
+            return t;
+        });
+        // start all the handler threads before measuring
+        for (int i = 0; i < THREADS; i++)
+            handlers.submit(() -> {}).get();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 100);
+        server.createContext("/api/v0/", new DHTHandler(store, crypto.hasher, (h, i) -> true, false, blockFiles));
+        server.setExecutor(handlers);
+        server.start();
+        try {
+            String base = "http://localhost:" + server.getAddress().getPort() + "/api/v0/"
+                    + ContentAddressedStorage.HTTP.BLOCK_GET + "?arg=";
+            ExecutorService clients = Executors.newFixedThreadPool(THREADS);
+            Runnable get = () -> get(base + blocks.get(ThreadLocalRandom.current().nextInt(blocks.size())));
+            // warm up
+            runAll(clients, get, REQUESTS / 4);
+
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long[] ids = serverThreads.stream().mapToLong(x -> x).toArray();
+            long allocatedBefore = Arrays.stream(threads.getThreadAllocatedBytes(ids)).sum();
+            long t0 = System.nanoTime();
+            long bytes = runAll(clients, get, REQUESTS);
+            long duration = System.nanoTime() - t0;
+            long allocated = Arrays.stream(threads.getThreadAllocatedBytes(ids)).sum() - allocatedBefore;
+            clients.shutdown();
+            System.out.printf("%s %s: %d req/s, %d MiB/s, %d KiB allocated per request\n", name, type,
+                    REQUESTS * 1_000_000_000L / duration,
+                    bytes * 1_000_000_000L / duration / 1024 / 1024,
+                    allocated / REQUESTS / 1024);
+        } finally {
+            server.stop(0);
+            handlers.shutdown();
+        }
+    }
+
+    private static long runAll(ExecutorService clients, Runnable get, int count) throws Exception {
+        List<Future<?>> done = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            done.add(clients.submit(get));
+        for (Future<?> f : done)
+            f.get();
+        return received.getAndSet(0);
+    }
+
+    private static void get(String url) {
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+            conn.setRequestMethod("POST");
+            conn.setDoOutput(true);
+            conn.getOutputStream().close();
+            byte[] buf = new byte[16 * 1024];
+            long total = 0;
+            try (InputStream in = conn.getInputStream()) {
+                int r;
+                while ((r = in.read(buf)) >= 0)
+                    total += r;
+            }
+            Assert.assertEquals(200, conn.getResponseCode());
+            received.addAndGet(total);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
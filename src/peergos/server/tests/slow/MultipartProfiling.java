@@ -6,6 +6,7 @@ import peergos.server.util.Logging;
 import com.sun.net.httpserver.*;
 import org.junit.*;
 import peergos.server.net.*;
+import peergos.server.tests.*;
 import peergos.shared.io.ipfs.api.*;
 
 import java.io.*;
@@ -85,4 +86,68 @@ public class MultipartProfiling {
 
         Assert.assertTrue("Same length on other end", sameLength);
     }
+
+    @Test
+    public void parserThroughput() {
+        String boundary = "Peergos-" + r.nextLong();
+        // a typical BLOCK_PUT of full encrypted chunk fragments
+        List<byte[]> parts = new ArrayList<>();
+        for (int i = 0; i < 40; i++)
+            parts.add(randomArray(1024 * 1024));
+        byte[] body = MultipartTests.encode(boundary, parts);
+
+        for (int round = 0; round < 5; round++) {
+            long t1 = System.nanoTime();
+            List<byte[]> streamed = MultipartReceiver.extractFiles(new ByteArrayInputStream(body), boundary);
+            long t2 = System.nanoTime();
+            List<byte[]> legacy = legacyExtractFiles(new ByteArrayInputStream(body), boundary);
+            long t3 = System.nanoTime();
+            Assert.assertEquals(parts.size(), streamed.size());
+            Assert.assertEquals(parts.size(), legacy.size());
+            System.out.printf("Parsed %d MiB: streaming %d MiB/s, legacy %d MiB/s\n", body.length >> 20,
+                    (body.length * 1000L) / Math.max(1, t2 - t1), (body.length * 1000L) / Math.max(1, t3 - t2));
+        }
+    }
+
+    /** The previous byte at a time parser, kept as a reference for the benchmark
+     */
+    private static List<byte[]> legacyExtractFiles(InputStream rawIn, String boundary) {
+        try {
+            InputStream in = new BufferedInputStream(rawIn);
+            readUntil("\r\n".getBytes(), in);
+            readUntil("\r\n\r\n".getBytes(), in);
+            byte[] boundaryBytes = ("\r\n--" + boundary).getBytes();
+            List<byte[]> files = new ArrayList<>();
+            while (true) {
+                files.add(readUntil(boundaryBytes, in));
+                byte[] headers = readUntil("\r\n\r\n".getBytes(), in);
+                if (headers.length == 0 || Arrays.equals(headers, "--".getBytes()))
+                    return files;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] readUntil(byte[] pattern, InputStream in) throws IOException {
+        ByteArrayOutputStream prior = new ByteArrayOutputStream();
+        int r;
+        int indexInPattern = 0;
+        while ((r = in.read()) != -1) {
+            if ((byte) r == pattern[indexInPattern]) {
+                indexInPattern++;
+                if (indexInPattern == pattern.length)
+                    return prior.toByteArray();
+            } else {
+                if (indexInPattern > 0)
+                    prior.write(pattern, 0, indexInPattern);
+                indexInPattern = 0;
+                if ((byte) r == pattern[0]) {
+                    indexInPattern = 1;
+                } else
+                    prior.write(r);
+            }
+        }
+        return prior.toByteArray();
+    }
 }
@@ -0,0 +1,89 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import org.junit.runner.*;
+import org.junit.runners.*;
+import peergos.server.*;
+import peergos.server.net.*;
+import peergos.server.tests.*;
+import peergos.server.util.*;
+import peergos.shared.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+import peergos.shared.util.*;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/** Compares the throughput of many parallel fragment downloads from a local server using the blocking JavaPoster and
+ * the asynchronous HttpClientPoster.
+ */
+@RunWith(Parameterized.class)
+public class ParallelDownloadBenchmark {
+    private static final int FRAGMENT_SIZE = 128 * 1024;
+    private static final int FRAGMENTS = 512;
+    private static final Args args = UserTests.buildArgs()
+            .with("useIPFS", "false")
+            .with("logToConsole", "false")
+            .with("default-quota", Long.toString(1024 * 1024 * 1024));
+
+    private final String name;
+    private final NetworkAccess network;
+    private final Crypto crypto = Main.initCrypto();
+    private final Random random = new Random(666);
+
+    public ParallelDownloadBenchmark(String name, Function<URL, HttpPoster> poster) throws Exception {
+        this.name = name;
+        this.network = NetworkAccess.buildJava(poster.apply(new URL("http://localhost:" + args.getInt("port")))).get();
+    }
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> parameters() {
+        Function<URL, HttpPoster> javaPoster = u -> new JavaPoster(u, false);
+        Function<URL, HttpPoster> httpClientPoster = u -> new HttpClientPoster(u, false);
+        return Arrays.asList(new Object[][] {
+                {"JavaPoster", javaPoster},
+                {"HttpClientPoster", httpClientPoster}
+        });
+    }
+
+    @BeforeClass
+    public static void init() {
+        Main.PKI_INIT.main(args);
+    }
+
+    @Test
+    public void parallelFragmentDownloads() throws Exception {
+        String username = "bench" + Math.abs(random.nextInt() % 10000);
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, "password", network, crypto);
+
+        List<Multihash> fragments = new ArrayList<>();
+        TransactionId tid = network.dhtClient.startTransaction(context.signer.publicKeyHash).join();
+        for (int i = 0; i < FRAGMENTS; i++) {
+            byte[] data = new byte[FRAGMENT_SIZE];
+            random.nextBytes(data);
+            byte[] signature = context.signer.secret.signMessage(crypto.hasher.sha256(data).join());
+            fragments.add(network.dhtClient.putRaw(context.signer.publicKeyHash, context.signer.publicKeyHash,
+                    signature, data, tid, x -> {}).join());
+        }
+
+        for (int round = 0; round < 3; round++) {
+            long t0 = System.currentTimeMillis();
+            List<CompletableFuture<Optional<byte[]>>> downloads = fragments.stream()
+                    .map(network.dhtClient::getRaw)
+                    .collect(Collectors.toList());
+            long total = Futures.combineAllInOrder(downloads).join().stream()
+                    .mapToLong(b -> b.get().length)
+                    .sum();
+            long duration = Math.max(1, System.currentTimeMillis() - t0);
+            Assert.assertEquals((long) FRAGMENTS * FRAGMENT_SIZE, total);
+            System.out.printf("%s: downloaded %d fragments in %d mS, %d MiB/s\n", name, FRAGMENTS, duration,
+                    total * 1000 / duration / 1024 / 1024);
+        }
+        network.dhtClient.closeTransaction(context.signer.publicKeyHash, tid).join();
+    }
+}
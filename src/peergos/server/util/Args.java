@@ -97,6 +97,12 @@ public class Args {
         return Double.parseDouble(params.get(param));
     }
 
+    public double getDouble(String param, double def) {
+        if (!params.containsKey(param))
+            return def;
+        return Double.parseDouble(params.get(param));
+    }
+
     public String getFirstArg(String[] paramNames, String def) {
         for (int i = 0; i < paramNames.length; i++) {
             String result = getArg(paramNames[i], null);
@@ -29,6 +29,8 @@ import java.util.stream.*;
  */
 public class NetworkAccess {
     private static final Logger LOG = Logger.getGlobal();
+    // fragments are retrieved in groups of this many, so download progress is reported as each group arrives
+    private static final int FRAGMENTS_PER_PROGRESS_UPDATE = 8;
 
     public final Hasher hasher;
     public final CoreNode coreNode;
@@ -39,6 +41,7 @@ public class NetworkAccess {
     public final WriteSynchronizer synchronizer;
     public final InstanceAdmin instanceAdmin;
     public final SpaceUsage spaceUsage;
+    public final PointerWatcher pointerWatcher;
 
     @JsProperty
     public final List<String> usernames;
@@ -67,6 +70,7 @@ public class NetworkAccess {
         this.usernames = usernames;
         this.creationTime = LocalDateTime.now();
         this.isJavascript = isJavascript;
+        this.pointerWatcher = new PointerWatcher(this);
     }
 
     public boolean isJavascript() {
@@ -209,7 +213,7 @@ public class NetworkAccess {
                             localDht :
                             new ContentAddressedStorage.Proxying(localDht, proxingDht, nodeId, core);
                     HashVerifyingStorage verifyingStorage = new HashVerifyingStorage(new RetryStorage(storage, 3), isJavascript ? new ScryptJS() : new ScryptJava());
-                    ContentAddressedStorage p2pDht = new CachingStorage(verifyingStorage, 1_000, 50 * 1024);
+                    ContentAddressedStorage p2pDht = new CachingStorage(verifyingStorage, 20 * 1024 * 1024, 50 * 1024);
                     MutablePointersProxy httpMutable = new HttpMutablePointers(apiPoster, p2pPoster);
                     MutablePointers p2pMutable =
                             isPeergosServer ?
@@ -248,7 +252,17 @@ public class NetworkAccess {
     }
 
     public static CompletableFuture<NetworkAccess> buildNonCachingJava(URL target, boolean isPublicServer) {
-        JavaPoster poster = new JavaPoster(target, isPublicServer);
+        return buildNonCachingJava(new JavaPoster(target, isPublicServer));
+    }
+
+    /** Build a network access to a Peergos server using the supplied poster for all requests
+     */
+    public static CompletableFuture<NetworkAccess> buildJava(HttpPoster poster) {
+        return buildNonCachingJava(poster)
+                .thenApply(e -> e.withMutablePointerCache(7_000));
+    }
+
+    public static CompletableFuture<NetworkAccess> buildNonCachingJava(HttpPoster poster) {
         Multihash pkiNodeId = null; // This is not required when talking to a Peergos server
         ContentAddressedStorage localDht = buildLocalDht(poster, true);
         return build(poster, poster, pkiNodeId, localDht, new ScryptJava(), false);
@@ -278,30 +292,40 @@ public class NetworkAccess {
     }
 
     public CompletableFuture<List<RetrievedCapability>> retrieveAllMetadata(List<AbsoluteCapability> links, Snapshot current) {
-        List<CompletableFuture<Optional<RetrievedCapability>>> all = links.stream()
-                .map(link -> {
-                    PublicKeyHash owner = link.owner;
-                    PublicKeyHash writer = link.writer;
-                    byte[] mapKey = link.getMapKey();
-                    return current.withWriter(owner, writer, this).thenCompose(version ->
-                            tree.get(version.get(writer).props, owner, writer, mapKey))
-                            .thenCompose(key -> {
-                                if (key.isPresent())
-                                    return dhtClient.get(key.get())
-                                            .thenApply(dataOpt ->  dataOpt
-                                                    .map(cbor -> new RetrievedCapability(
-                                                            link,
-                                                            CryptreeNode.fromCbor(cbor, link.rBaseKey, key.get()))));
-                                LOG.severe("Couldn't download link at: " + new Location(owner, writer, mapKey));
-                                Optional<RetrievedCapability> result = Optional.empty();
-                                return CompletableFuture.completedFuture(result);
-                            });
+        // each writer has its own champ, so look up the links of each writer together
+        Map<PublicKeyHash, List<Integer>> byWriter = new LinkedHashMap<>();
+        for (int i=0; i < links.size(); i++)
+            byWriter.computeIfAbsent(links.get(i).writer, w -> new ArrayList<>()).add(i);
+
+        List<CompletableFuture<List<Pair<Integer, Optional<CryptreeNode>>>>> groups = byWriter.entrySet().stream()
+                .map(e -> {
+                    PublicKeyHash writer = e.getKey();
+                    List<Integer> indices = e.getValue();
+                    List<AbsoluteCapability> caps = indices.stream()
+                            .map(links::get)
+                            .collect(Collectors.toList());
+                    return current.withWriter(caps.get(0).owner, writer, this)
+                            .thenCompose(version -> getAllMetadata(version.get(writer).props, caps))
+                            .thenApply(nodes -> IntStream.range(0, nodes.size())
+                                    .mapToObj(j -> new Pair<>(indices.get(j), nodes.get(j)))
+                                    .collect(Collectors.toList()));
                 }).collect(Collectors.toList());
 
-        return Futures.combineAll(all).thenApply(optSet -> optSet.stream()
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .collect(Collectors.toList()));
+        return Futures.combineAllInOrder(groups).thenApply(retrieved -> {
+            List<Optional<CryptreeNode>> nodes = new ArrayList<>(Collections.nCopies(links.size(), Optional.empty()));
+            retrieved.stream()
+                    .flatMap(List::stream)
+                    .forEach(p -> nodes.set(p.left, p.right));
+            List<RetrievedCapability> res = new ArrayList<>();
+            for (int i=0; i < links.size(); i++) {
+                AbsoluteCapability link = links.get(i);
+                if (nodes.get(i).isPresent())
+                    res.add(new RetrievedCapability(link, nodes.get(i).get()));
+                else
+                    LOG.severe("Couldn't download link at: " + new Location(link.owner, link.writer, link.getMapKey()));
+            }
+            return res;
+        });
     }
 
     public CompletableFuture<Set<FileWrapper>> retrieveAll(List<EntryPoint> entries) {
@@ -405,10 +429,45 @@ public class NetworkAccess {
     }
 
     public CompletableFuture<Optional<CryptreeNode>> getMetadata(WriterData base, AbsoluteCapability cap) {
+        return getAllMetadata(base, Collections.singletonList(cap))
+                .thenApply(nodes -> nodes.get(0));
+    }
+
+    /** Retrieve the cryptree nodes for capabilities with the same writer. The champ nodes on every lookup path and the
+     * cryptree nodes themselves are retrieved in at most a single request, and then verified against their hashes as
+     * the lookups are done locally. Lookups whose blocks are all cached don't need a request at all.
+     */
+    private CompletableFuture<List<Optional<CryptreeNode>>> getAllMetadata(WriterData base, List<AbsoluteCapability> caps) {
+        if (hasher == null) // read only public access can't verify prefetched blocks
+            return Futures.combineAllInOrder(caps.stream()
+                    .map(cap -> getMetadata(base, cap, tree, dhtClient))
+                    .collect(Collectors.toList()));
+        if (! base.tree.isPresent())
+            throw new IllegalStateException("Tree root not present for " + caps.get(0).writer);
+        List<byte[]> mapKeys = caps.stream()
+                .map(AbsoluteCapability::getMapKey)
+                .collect(Collectors.toList());
+        return dhtClient.getChampLookup(base.tree.get(), mapKeys)
+                .thenCompose(blocks -> PrefetchedStorage.build(blocks, hasher, dhtClient))
+                .thenCompose(prefetched -> {
+                    // the prefetched blocks have been verified, so later lookups can use them without a request
+                    if (dhtClient instanceof CachingStorage)
+                        ((CachingStorage) dhtClient).putVerified(prefetched.getCborBlocks());
+                    MutableTree prefetchedTree = new MutableTreeImpl(mutable, prefetched, hasher, synchronizer);
+                    return Futures.combineAllInOrder(caps.stream()
+                            .map(cap -> getMetadata(base, cap, prefetchedTree, prefetched))
+                            .collect(Collectors.toList()));
+                });
+    }
+
+    private static CompletableFuture<Optional<CryptreeNode>> getMetadata(WriterData base,
+                                                                         AbsoluteCapability cap,
+                                                                         MutableTree tree,
+                                                                         ContentAddressedStorage dhtClient) {
         return tree.get(base, cap.owner, cap.writer, cap.getMapKey()).thenCompose(btreeValue -> {
             if (btreeValue.isPresent())
-                return dhtClient.get(btreeValue.get())
-                        .thenApply(value -> value.map(cbor -> CryptreeNode.fromCbor(cbor,  cap.rBaseKey, btreeValue.get())));
+                return CryptreeNode.CACHE.get(new Pair<>(btreeValue.get(), cap.rBaseKey), () -> dhtClient.getRaw(btreeValue.get()),
+                        raw -> CryptreeNode.fromCbor(CborObject.fromByteArray(raw), cap.rBaseKey, btreeValue.get()));
             return CompletableFuture.completedFuture(Optional.empty());
         });
     }
@@ -476,6 +535,57 @@ public class NetworkAccess {
         }
     }
 
+    /** Upload the metadata of several new chunks, add them to the writer's champ and commit them with a single
+     * pointer update.
+     *
+     * @param chunks pairs of map key and chunk metadata
+     * @return
+     */
+    public CompletableFuture<Snapshot> uploadChunks(Snapshot current,
+                                                    Committer committer,
+                                                    List<Pair<byte[], CryptreeNode>> chunks,
+                                                    PublicKeyHash owner,
+                                                    SigningPrivateKeyAndPublicHash writer,
+                                                    TransactionId tid) {
+        if (! current.versions.containsKey(writer.publicKeyHash))
+            throw new IllegalStateException("Trying to commit to incorrect writer!");
+        if (chunks.isEmpty())
+            return Futures.of(current);
+        CommittedWriterData version = current.get(writer);
+        return addChunks(version.props, chunks, owner, writer, tid)
+                .thenCompose(wd -> committer.commit(owner, writer, wd, version, tid))
+                .thenApply(committed -> current.withVersion(writer.publicKeyHash, committed.get(writer)));
+    }
+
+    /** Upload the metadata of several new chunks and add them to the writer's champ, without committing.
+     *
+     * @param base the writer data to add the chunks to
+     * @param chunks pairs of map key and chunk metadata
+     * @return the updated writer data, whose blocks are protected by the transaction until it is committed
+     */
+    public CompletableFuture<WriterData> addChunks(WriterData base,
+                                                   List<Pair<byte[], CryptreeNode>> chunks,
+                                                   PublicKeyHash owner,
+                                                   SigningPrivateKeyAndPublicHash writer,
+                                                   TransactionId tid) {
+        if (chunks.isEmpty())
+            return Futures.of(base);
+        LOG.info("Uploading " + chunks.size() + " chunks in a single champ update");
+        List<byte[]> metaBlobs = chunks.stream()
+                .map(c -> c.right.serialize())
+                .collect(Collectors.toList());
+        return Futures.combineAllInOrder(metaBlobs.stream()
+                .map(hasher::sha256)
+                .collect(Collectors.toList()))
+                .thenCompose(blobShas -> dhtClient.put(owner, writer.publicKeyHash, blobShas.stream()
+                        .map(writer.secret::signMessage)
+                        .collect(Collectors.toList()), metaBlobs, tid))
+                .thenCompose(blobHashes -> tree.applyBatch(base, owner, writer, IntStream.range(0, chunks.size())
+                        .mapToObj(i -> ImmutableTree.Mutation.put(chunks.get(i).left,
+                                chunks.get(i).right.committedHash(), blobHashes.get(i)))
+                        .collect(Collectors.toList()), tid));
+    }
+
     public CompletableFuture<Snapshot> addPreexistingChunk(CryptreeNode metadata,
                                                            PublicKeyHash owner,
                                                            byte[] mapKey,
@@ -501,41 +611,80 @@ public class NetworkAccess {
                 .thenApply(committed -> current.withVersion(writer.publicKeyHash, committed.get(writer)));
     }
 
-    public CompletableFuture<Snapshot> deleteChunkIfPresent(Snapshot current,
-                                                            Committer committer,
-                                                            PublicKeyHash owner,
-                                                            SigningPrivateKeyAndPublicHash writer,
-                                                            byte[] mapKey) {
+    /** Remove several chunks from the writer's champ and commit them with a single pointer update.
+     *
+     * @param chunks pairs of map key and the current value
+     * @return
+     */
+    public CompletableFuture<Snapshot> deleteChunks(Snapshot current,
+                                                    Committer committer,
+                                                    List<Pair<byte[], MaybeMultihash>> chunks,
+                                                    PublicKeyHash owner,
+                                                    SigningPrivateKeyAndPublicHash writer,
+                                                    TransactionId tid) {
+        if (chunks.isEmpty())
+            return Futures.of(current);
+        LOG.info("Deleting " + chunks.size() + " chunks in a single commit");
         CommittedWriterData version = current.get(writer);
-        return tree.get(version.props, owner, writer.publicKeyHash, mapKey)
-                .thenCompose(valueHash ->
-                        ! valueHash.isPresent() ? CompletableFuture.completedFuture(current) :
-                                IpfsTransaction.call(owner,
-                                        tid -> tree.remove(version.props, owner, writer, mapKey, valueHash, tid)
-                                                .thenCompose(wd -> committer.commit(owner, writer, wd, version, tid)),
-                                        dhtClient))
+        return tree.applyBatch(version.props, owner, writer, chunks.stream()
+                .map(c -> ImmutableTree.Mutation.remove(c.left, c.right))
+                .collect(Collectors.toList()), tid)
+                .thenCompose(wd -> committer.commit(owner, writer, wd, version, tid))
                 .thenApply(committed -> current.withVersion(writer.publicKeyHash, committed.get(writer)));
     }
 
+    public CompletableFuture<Snapshot> deleteChunksIfPresent(Snapshot current,
+                                                             Committer committer,
+                                                             PublicKeyHash owner,
+                                                             SigningPrivateKeyAndPublicHash writer,
+                                                             List<byte[]> mapKeys) {
+        CommittedWriterData version = current.get(writer);
+        return Futures.combineAllInOrder(mapKeys.stream()
+                .map(mapKey -> tree.get(version.props, owner, writer.publicKeyHash, mapKey)
+                        .thenApply(valueHash -> new Pair<>(mapKey, valueHash)))
+                .collect(Collectors.toList()))
+                .thenCompose(values -> {
+                    List<Pair<byte[], MaybeMultihash>> present = values.stream()
+                            .filter(p -> p.right.isPresent())
+                            .collect(Collectors.toList());
+                    if (present.isEmpty())
+                        return Futures.of(current);
+                    return IpfsTransaction.call(owner,
+                            tid -> deleteChunks(current, committer, present, owner, writer, tid), dhtClient);
+                });
+    }
+
     public static CompletableFuture<List<FragmentWithHash>> downloadFragments(List<Multihash> hashes,
                                                                               ContentAddressedStorage dhtClient,
                                                                               ProgressConsumer<Long> monitor,
                                                                               double spaceIncreaseFactor) {
-        List<CompletableFuture<Optional<FragmentWithHash>>> futures = hashes.stream().parallel()
-                .map(h -> (h.isIdentity() ?
-                        CompletableFuture.completedFuture(Optional.of(h.getHash())) :
-                        (h instanceof Cid) && ((Cid) h).codec == Cid.Codec.Raw ?
-                                dhtClient.getRaw(h) :
-                                dhtClient.get(h)
-                                        .thenApply(cborOpt -> cborOpt.map(cbor -> ((CborObject.CborByteArray) cbor).value))) // for backwards compatibility
-                        .thenApply(dataOpt -> {
-                            Optional<byte[]> bytes = dataOpt;
-                            bytes.ifPresent(arr -> monitor.accept((long)(arr.length / spaceIncreaseFactor)));
-                            return bytes.map(data -> new FragmentWithHash(new Fragment(data), h.isIdentity() ? Optional.empty() : Optional.of(h)));
-                        }))
-                .collect(Collectors.toList());
-
-        return Futures.combineAllInOrder(futures)
-                .thenApply(optList -> optList.stream().filter(Optional::isPresent).map(Optional::get).collect(Collectors.toList()));
+        int groups = (hashes.size() + FRAGMENTS_PER_PROGRESS_UPDATE - 1) / FRAGMENTS_PER_PROGRESS_UPDATE;
+        return Futures.combineAllInOrder(IntStream.range(0, groups)
+                .mapToObj(g -> hashes.subList(g * FRAGMENTS_PER_PROGRESS_UPDATE,
+                        Math.min(hashes.size(), (g + 1) * FRAGMENTS_PER_PROGRESS_UPDATE)))
+                .map(group -> downloadFragmentGroup(group, dhtClient, monitor, spaceIncreaseFactor))
+                .collect(Collectors.toList()))
+                .thenApply(fragments -> fragments.stream()
+                        .flatMap(List::stream)
+                        .collect(Collectors.toList()));
+    }
+
+    private static CompletableFuture<List<FragmentWithHash>> downloadFragmentGroup(List<Multihash> hashes,
+                                                                                   ContentAddressedStorage dhtClient,
+                                                                                   ProgressConsumer<Long> monitor,
+                                                                                   double spaceIncreaseFactor) {
+        return dhtClient.getAll(hashes)
+                .thenApply(blocks -> IntStream.range(0, hashes.size())
+                        .filter(i -> blocks.get(i).isPresent())
+                        .mapToObj(i -> {
+                            Multihash h = hashes.get(i);
+                            byte[] block = blocks.get(i).get();
+                            byte[] data = h.isIdentity() || (h instanceof Cid) && ((Cid) h).codec == Cid.Codec.Raw ?
+                                    block :
+                                    ((CborObject.CborByteArray) CborObject.fromByteArray(block)).value; // for backwards compatibility
+                            monitor.accept((long)(data.length / spaceIncreaseFactor));
+                            return new FragmentWithHash(new Fragment(data), h.isIdentity() ? Optional.empty() : Optional.of(h));
+                        })
+                        .collect(Collectors.toList()));
     }
 }
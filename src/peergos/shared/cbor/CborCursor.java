@@ -0,0 +1,325 @@
+package peergos.shared.cbor;
+
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.io.*;
+import java.util.*;
+
+import static peergos.shared.cbor.CborConstants.*;
+
+/** A lazy, read only view of a single CBOR data item inside a byte[].
+ *
+ * Nothing is decoded until it is asked for, so looking up one field of a large object only walks the headers of the
+ * items before it, without building the intermediate CborMaps and CborLists. Use links() to get the merkle links of a
+ * block in a single pass.
+ */
+public final class CborCursor {
+    private final byte[] data;
+    public final int offset;
+
+    private CborCursor(byte[] data, int offset) {
+        this.data = data;
+        this.offset = offset;
+        if (offset >= data.length)
+            throw new IllegalStateException("Invalid cbor: item starts after end of data!");
+    }
+
+    public static CborCursor of(byte[] cbor) {
+        return new CborCursor(cbor, 0);
+    }
+
+    public int majorType() {
+        return (data[offset] & 0xff) >>> 5;
+    }
+
+    public boolean isNull() {
+        return (data[offset] & 0xff) == ((TYPE_FLOAT_SIMPLE << 5) | NULL);
+    }
+
+    public boolean isLink() {
+        return majorType() == TYPE_TAG && headerValue(data, offset) == CborObject.LINK_TAG;
+    }
+
+    /**
+     *
+     * @return The number of elements in an array, the number of key-value pairs in a map, or the number of bytes in a
+     * string
+     */
+    public int length() {
+        int type = majorType();
+        if (type != TYPE_ARRAY && type != TYPE_MAP && type != TYPE_BYTE_STRING && type != TYPE_TEXT_STRING)
+            throw new IllegalStateException("Cbor item has no length: type " + type);
+        return (int) headerValue(data, offset);
+    }
+
+    public long getLong() {
+        long value = headerValue(data, offset);
+        switch (majorType()) {
+            case TYPE_UNSIGNED_INTEGER:
+                return value;
+            case TYPE_NEGATIVE_INTEGER:
+                return -1 - value;
+            default:
+                throw new IllegalStateException("Cbor item is not an integer: type " + majorType());
+        }
+    }
+
+    public boolean getBoolean() {
+        int b = data[offset] & 0xff;
+        if (b == ((TYPE_FLOAT_SIMPLE << 5) | TRUE))
+            return true;
+        if (b == ((TYPE_FLOAT_SIMPLE << 5) | FALSE))
+            return false;
+        throw new IllegalStateException("Cbor item is not a boolean!");
+    }
+
+    public byte[] getByteArray() {
+        checkType(TYPE_BYTE_STRING);
+        int start = offset + headerLength(data, offset);
+        return Arrays.copyOfRange(data, start, end());
+    }
+
+    public String getString() {
+        checkType(TYPE_TEXT_STRING);
+        int start = offset + headerLength(data, offset);
+        try {
+            return new String(data, start, end() - start, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public Multihash getLink() {
+        if (! isLink())
+            throw new IllegalStateException("Cbor item is not a merkle link!");
+        int target = offset + headerLength(data, offset);
+        return parseLink(data, target, skip(data, target));
+    }
+
+    /**
+     *
+     * @param index
+     * @return The element at index in this array
+     */
+    public CborCursor get(int index) {
+        checkType(TYPE_ARRAY);
+        if (index < 0 || index >= length())
+            throw new IllegalStateException("Cbor array index out of bounds: " + index);
+        int pos = offset + headerLength(data, offset);
+        for (int i=0; i < index; i++)
+            pos = skip(data, pos);
+        return new CborCursor(data, pos);
+    }
+
+    public List<CborCursor> elements() {
+        checkType(TYPE_ARRAY);
+        int n = length();
+        List<CborCursor> res = new ArrayList<>(n);
+        int pos = offset + headerLength(data, offset);
+        for (int i=0; i < n; i++) {
+            res.add(new CborCursor(data, pos));
+            pos = skip(data, pos);
+        }
+        return res;
+    }
+
+    /**
+     *
+     * @param key
+     * @return The value for a text key in this map, if present
+     */
+    public Optional<CborCursor> get(String key) {
+        checkType(TYPE_MAP);
+        byte[] keyBytes;
+        try {
+            keyBytes = key.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        int n = length();
+        int pos = offset + headerLength(data, offset);
+        for (int i=0; i < n; i++) {
+            int valueStart = skip(data, pos);
+            if (isTextEqual(pos, valueStart, keyBytes))
+                return Optional.of(new CborCursor(data, valueStart));
+            pos = skip(data, valueStart);
+        }
+        return Optional.empty();
+    }
+
+    private boolean isTextEqual(int start, int end, byte[] text) {
+        if ((data[start] & 0xff) >>> 5 != TYPE_TEXT_STRING)
+            return false;
+        int contentStart = start + headerLength(data, start);
+        if (end - contentStart != text.length)
+            return false;
+        for (int i=0; i < text.length; i++)
+            if (data[contentStart + i] != text[i])
+                return false;
+        return true;
+    }
+
+    /**
+     *
+     * @return The offset of the first byte after this item
+     */
+    public int end() {
+        return skip(data, offset);
+    }
+
+    /**
+     *
+     * @return This item fully decoded
+     */
+    public CborObject materialize() {
+        int end = end();
+        return CborObject.deserialize(new CborDecoder(new ByteArrayInputStream(data, offset, end - offset)), end - offset);
+    }
+
+    private void checkType(int type) {
+        if (majorType() != type)
+            throw new IllegalStateException("Expected cbor type " + type + " but was " + majorType());
+    }
+
+    /** Scan a cbor block for merkle links, without decoding anything else
+     *
+     * @param cbor
+     * @return The targets of all the merkle links in the block, in order
+     */
+    public static List<Multihash> links(byte[] cbor) {
+        List<Multihash> res = new ArrayList<>();
+        int pos = 0;
+        // the number of items still to be read, this avoids recursion for nested items
+        long remaining = 1;
+        while (remaining > 0) {
+            remaining--;
+            int header = headerLength(cbor, pos);
+            long value = headerValue(cbor, pos);
+            switch ((cbor[pos] & 0xff) >>> 5) {
+                case TYPE_TAG:
+                    pos += header;
+                    if (value == CborObject.LINK_TAG) {
+                        int end = skip(cbor, pos);
+                        res.add(parseLink(cbor, pos, end));
+                        pos = end;
+                    } else
+                        remaining++;
+                    break;
+                case TYPE_ARRAY:
+                    remaining += checkCount(cbor, pos, value);
+                    pos += header;
+                    break;
+                case TYPE_MAP:
+                    remaining += 2 * checkCount(cbor, pos, value);
+                    pos += header;
+                    break;
+                default:
+                    pos = skip(cbor, pos);
+            }
+        }
+        return res;
+    }
+
+    private static Multihash parseLink(byte[] data, int start, int end) {
+        int type = (data[start] & 0xff) >>> 5;
+        int contentStart = start + headerLength(data, start);
+        if (type == TYPE_BYTE_STRING) {
+            if (contentStart == end || data[contentStart] != 0) // multibase for binary
+                throw new IllegalStateException("Unknown Multibase decoding Merkle link");
+            return Cid.cast(Arrays.copyOfRange(data, contentStart + 1, end));
+        }
+        if (type == TYPE_TEXT_STRING) {
+            try {
+                return Cid.decode(new String(data, contentStart, end - contentStart, "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        throw new IllegalStateException("Invalid type for merkle link: " + type);
+    }
+
+    /**
+     *
+     * @return the offset after the item starting at pos
+     */
+    private static int skip(byte[] data, int pos) {
+        long remaining = 1;
+        while (remaining > 0) {
+            remaining--;
+            if (pos >= data.length)
+                throw new IllegalStateException("Invalid cbor: truncated item!");
+            int header = headerLength(data, pos);
+            long value = headerValue(data, pos);
+            switch ((data[pos] & 0xff) >>> 5) {
+                case TYPE_BYTE_STRING:
+                case TYPE_TEXT_STRING:
+                    if (value > data.length - pos - header)
+                        throw new IllegalStateException("Invalid cbor: string longer than original bytes!");
+                    pos += header + (int) value;
+                    break;
+                case TYPE_ARRAY:
+                    remaining += checkCount(data, pos, value);
+                    pos += header;
+                    break;
+                case TYPE_MAP:
+                    remaining += 2 * checkCount(data, pos, value);
+                    pos += header;
+                    break;
+                case TYPE_TAG:
+                    remaining++;
+                    pos += header;
+                    break;
+                default:
+                    pos += header;
+            }
+        }
+        if (pos > data.length)
+            throw new IllegalStateException("Invalid cbor: truncated item!");
+        return pos;
+    }
+
+    private static long checkCount(byte[] data, int pos, long count) {
+        // every item is at least one byte
+        if (count > data.length - pos)
+            throw new IllegalStateException("Invalid cbor: more elements than original bytes!");
+        return count;
+    }
+
+    /**
+     *
+     * @return The number of bytes in the header of the item at pos, including any integer, length or float payload
+     */
+    private static int headerLength(byte[] data, int pos) {
+        int info = data[pos] & 0x1f;
+        if (info < ONE_BYTE)
+            return 1;
+        switch (info) {
+            case ONE_BYTE: return 2;
+            case TWO_BYTES: return 3;
+            case FOUR_BYTES: return 5;
+            case EIGHT_BYTES: return 9;
+            default:
+                throw new IllegalStateException("Unsupported cbor additional info: " + info);
+        }
+    }
+
+    /**
+     *
+     * @return The integer value, length or tag in the header of the item at pos
+     */
+    private static long headerValue(byte[] data, int pos) {
+        int info = data[pos] & 0x1f;
+        if (info < ONE_BYTE)
+            return info;
+        int len = headerLength(data, pos) - 1;
+        if (pos + len >= data.length)
+            throw new IllegalStateException("Invalid cbor: truncated header!");
+        long res = 0;
+        for (int i=1; i <= len; i++)
+            res = (res << 8) | (data[pos + i] & 0xff);
+        if (res < 0)
+            throw new IllegalStateException("Invalid cbor: length too large!");
+        return res;
+    }
+}
@@ -6,6 +6,7 @@ import peergos.shared.social.*;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.*;
 
 public interface CoreNode {
     int MAX_USERNAME_SIZE = 64;
@@ -40,6 +41,22 @@ public interface CoreNode {
      */
     CompletableFuture<List<String>> getUsernames(String prefix);
 
+    /**
+     *
+     * @param prefix
+     * @param limit the maximum number of usernames to return
+     * @param after only return usernames after this one, which is the last username of the previous page
+     * @return The next page of usernames starting with prefix, in order
+     */
+    default CompletableFuture<List<String>> getUsernames(String prefix, int limit, Optional<String> after) {
+        return getUsernames(prefix).thenApply(all -> all.stream()
+                .filter(u -> u.startsWith(prefix))
+                .filter(u -> ! after.isPresent() || u.compareTo(after.get()) > 0)
+                .sorted()
+                .limit(limit)
+                .collect(Collectors.toList()));
+    }
+
     /** This is only implemented by caching corenodes
      *
      * @param username
@@ -153,5 +153,27 @@ public class HTTPCoreNode implements CoreNode {
                 .thenApply(raw -> (List) JSONParser.parse(new String(raw)));
     }
 
+    @Override
+    public CompletableFuture<List<String>> getUsernames(String prefix, int limit, Optional<String> after) {
+        try {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            DataOutputStream dout = new DataOutputStream(bout);
+
+            Serialize.serialize(prefix, dout);
+            dout.writeInt(limit);
+            dout.writeBoolean(after.isPresent());
+            if (after.isPresent())
+                Serialize.serialize(after.get(), dout);
+            dout.flush();
+
+            return poster.postUnzip(urlPrefix + Constants.CORE_URL + "getUsernamesPage", bout.toByteArray())
+                    .thenApply(res -> ((CborObject.CborList) CborObject.fromByteArray(res))
+                            .map(c -> ((CborObject.CborString) c).value));
+        } catch (IOException ioe) {
+            LOG.log(Level.WARNING, ioe.getMessage(), ioe);
+            throw new IllegalStateException(ioe);
+        }
+    }
+
     @Override public void close() {}
 }
@@ -20,6 +20,11 @@ import java.util.stream.*;
 public class Champ implements Cborable {
 
     private static final int HASH_CODE_LENGTH = 32;
+    private static final long CACHE_BYTES = 10 * 1024 * 1024;
+    private static final int MAX_CACHED_NODE_SIZE = 64 * 1024;
+    /** Decoded nodes, shared by all champs
+     */
+    public static final ObjectCache<Multihash, Champ> CACHE = new ObjectCache<>(CACHE_BYTES, MAX_CACHED_NODE_SIZE);
 
     private static class KeyElement {
         public final ByteArrayWrapper key;
@@ -118,12 +123,22 @@ public class Champ implements Cborable {
         return total;
     }
 
+    /** Retrieve a node, decoding it only if it isn't already cached
+     *
+     * @param hash
+     * @param storage
+     * @return
+     */
+    public static CompletableFuture<Optional<Champ>> load(Multihash hash, ContentAddressedStorage storage) {
+        return CACHE.get(hash, () -> storage.getRaw(hash), Champ::fromBytes);
+    }
+
     CompletableFuture<Pair<Multihash, Optional<Champ>>> getChild(byte[] hash, int depth, int bitWidth, ContentAddressedStorage storage) {
         int bitpos = mask(hash, depth, bitWidth);
         int index = contents.length - 1 - getIndex(this.nodeMap, bitpos);
         Multihash childHash = contents[index].link.get();
-        return storage.get(childHash)
-                .thenApply(x -> new Pair<>(childHash, x.map(Champ::fromCbor)));
+        return load(childHash, storage)
+                .thenApply(x -> new Pair<>(childHash, x));
     }
 
     public CompletableFuture<Long> size(int depth, ContentAddressedStorage storage) {
@@ -136,9 +151,8 @@ public class Champ implements Cborable {
             HashPrefixPayload pointer = contents[i];
             if (! pointer.isShard())
                 break; // we reach the key section
-            childCounts.add(storage.get(pointer.link.get())
-                    .thenApply(x -> new Pair<>(pointer.link.get(), x.map(Champ::fromCbor)))
-                    .thenCompose(child -> child.right.map(c -> c.size(depth + 1, storage))
+            childCounts.add(load(pointer.link.get(), storage)
+                    .thenCompose(child -> child.map(c -> c.size(depth + 1, storage))
                             .orElse(CompletableFuture.completedFuture(0L)))
             );
         }
@@ -158,6 +172,25 @@ public class Champ implements Cborable {
      * @return The value, if any, that this key maps to
      */
     public CompletableFuture<MaybeMultihash> get(ByteArrayWrapper key, byte[] hash, int depth, int bitWidth, ContentAddressedStorage storage) {
+        return get(key, hash, depth, bitWidth, storage, h -> {});
+    }
+
+    /**
+     *
+     * @param key The key to get the value for
+     * @param hash The hash of the key
+     * @param depth The current depth in the champ (top = 0)
+     * @param bitWidth The champ bitwidth
+     * @param storage The storage
+     * @param visited Called with the hash of each node below this one on the path to the key
+     * @return The value, if any, that this key maps to
+     */
+    public CompletableFuture<MaybeMultihash> get(ByteArrayWrapper key,
+                                                 byte[] hash,
+                                                 int depth,
+                                                 int bitWidth,
+                                                 ContentAddressedStorage storage,
+                                                 Consumer<Multihash> visited) {
         final int bitpos = mask(hash, depth, bitWidth);
 
         if (dataMap.get(bitpos)) { // local value
@@ -174,8 +207,11 @@ public class Champ implements Cborable {
 
         if (nodeMap.get(bitpos)) { // child node
             return getChild(hash, depth, bitWidth, storage)
-                    .thenCompose(child -> child.right.map(c -> c.get(key, hash, depth + 1, bitWidth, storage))
-                            .orElse(CompletableFuture.completedFuture(MaybeMultihash.empty())));
+                    .thenCompose(child -> {
+                        visited.accept(child.left);
+                        return child.right.map(c -> c.get(key, hash, depth + 1, bitWidth, storage, visited))
+                                .orElse(CompletableFuture.completedFuture(MaybeMultihash.empty()));
+                    });
         }
 
         return CompletableFuture.completedFuture(MaybeMultihash.empty());
@@ -261,6 +297,162 @@ public class Champ implements Cborable {
         }
     }
 
+    /** A single change to a mapping, applied as part of a batch
+     */
+    public static final class KeyMutation {
+        public final ByteArrayWrapper key;
+        public final byte[] hash;
+        public final MaybeMultihash expected, value;
+
+        public KeyMutation(ByteArrayWrapper key, byte[] hash, MaybeMultihash expected, MaybeMultihash value) {
+            this.key = key;
+            this.hash = hash;
+            this.expected = expected;
+            this.value = value;
+        }
+    }
+
+    /** The result of applying a batch of mutations. The new champ nodes have not been written to storage, they are
+     *  returned as (sha256, serialized node) pairs, children before their parents.
+     */
+    public static final class BatchResult {
+        public final Champ champ;
+        public final Multihash hash;
+        public final List<Pair<byte[], byte[]>> newNodes;
+
+        public BatchResult(Champ champ, Multihash hash, List<Pair<byte[], byte[]>> newNodes) {
+            this.champ = champ;
+            this.hash = hash;
+            this.newNodes = newNodes;
+        }
+    }
+
+    /** Apply a batch of puts in a single walk of the tree. Each modified node is serialized and hashed exactly once,
+     *  and nothing is written to storage, so the caller can write all the new nodes in a single call. Mutations to
+     *  the same key are applied in order. The resulting champ is identical to applying the mutations one at a time
+     *  with put.
+     *
+     * @param mutations The mutations to apply
+     * @param depth The current depth in the champ (top = 0)
+     * @param bitWidth The champ bitwidth
+     * @param maxCollisions The maximum number of hash collision per layer in this champ
+     * @param hasher The function to calculate the hash of keys
+     * @param storage The storage to read existing nodes from
+     * @param writeHasher The hasher for new nodes
+     * @param ourHash The hash of the current champ node, if it has been stored
+     * @return The new champ, its hash and the new nodes which need to be written
+     */
+    public CompletableFuture<BatchResult> applyBatch(List<KeyMutation> mutations,
+                                                     int depth,
+                                                     int bitWidth,
+                                                     int maxCollisions,
+                                                     Function<ByteArrayWrapper, byte[]> hasher,
+                                                     ContentAddressedStorage storage,
+                                                     Hasher writeHasher,
+                                                     Optional<Multihash> ourHash) {
+        SortedMap<Integer, List<KeyMutation>> byPrefix = new TreeMap<>();
+        for (KeyMutation mutation : mutations)
+            byPrefix.computeIfAbsent(mask(mutation.hash, depth, bitWidth), b -> new ArrayList<>()).add(mutation);
+        List<Integer> prefixes = new ArrayList<>(byPrefix.keySet());
+        List<CompletableFuture<Pair<HashPrefixPayload, List<Pair<byte[], byte[]>>>>> updates = prefixes.stream()
+                .map(bitpos -> applyBatchToPrefix(bitpos, byPrefix.get(bitpos), depth, bitWidth, maxCollisions,
+                        hasher, storage, writeHasher))
+                .collect(Collectors.toList());
+
+        return Futures.combineAllInOrder(updates).thenCompose(updated -> {
+            Map<Integer, HashPrefixPayload> payloads = new HashMap<>();
+            List<Pair<byte[], byte[]>> newNodes = new ArrayList<>();
+            for (int i=0; i < prefixes.size(); i++) {
+                payloads.put(prefixes.get(i), updated.get(i).left);
+                newNodes.addAll(updated.get(i).right);
+            }
+            // mappings go at the front in order of hash prefix, links at the end in reverse order
+            BitSet newDataMap = new BitSet(), newNodeMap = new BitSet();
+            List<HashPrefixPayload> data = new ArrayList<>(), links = new ArrayList<>();
+            for (int bitpos = 0; bitpos < 1 << bitWidth; bitpos++) {
+                HashPrefixPayload payload = payloads.containsKey(bitpos) ? payloads.get(bitpos) : getPayload(bitpos);
+                if (payload == null)
+                    continue;
+                if (payload.isShard()) {
+                    newNodeMap.set(bitpos);
+                    links.add(0, payload);
+                } else {
+                    newDataMap.set(bitpos);
+                    data.add(payload);
+                }
+            }
+            data.addAll(links);
+            Champ champ = new Champ(newDataMap, newNodeMap, data.toArray(new HashPrefixPayload[0]));
+            byte[] raw = champ.serialize();
+            if (ourHash.isPresent() && Arrays.equals(raw, serialize()))
+                return CompletableFuture.completedFuture(new BatchResult(this, ourHash.get(), Collections.emptyList()));
+            return writeHasher.sha256(raw).thenApply(sha256 -> {
+                newNodes.add(new Pair<>(sha256, raw));
+                return new BatchResult(champ, CommittableStorage.hashToCid(sha256, false), newNodes);
+            });
+        });
+    }
+
+    private CompletableFuture<Pair<HashPrefixPayload, List<Pair<byte[], byte[]>>>> applyBatchToPrefix(int bitpos,
+                                                                                                       List<KeyMutation> mutations,
+                                                                                                       int depth,
+                                                                                                       int bitWidth,
+                                                                                                       int maxCollisions,
+                                                                                                       Function<ByteArrayWrapper, byte[]> hasher,
+                                                                                                       ContentAddressedStorage storage,
+                                                                                                       Hasher writeHasher) {
+        if (nodeMap.get(bitpos)) { // child node
+            Multihash childHash = contents[contents.length - 1 - getIndex(nodeMap, bitpos)].link.get();
+            return load(childHash, storage)
+                    .thenCompose(child -> {
+                        if (! child.isPresent())
+                            throw new IllegalStateException("Champ node not present: " + childHash);
+                        return child.get().applyBatch(mutations, depth + 1, bitWidth, maxCollisions,
+                                hasher, storage, writeHasher, Optional.of(childHash));
+                    }).thenApply(res -> new Pair<>(new HashPrefixPayload(MaybeMultihash.of(res.hash)), res.newNodes));
+        }
+
+        List<KeyElement> mappings = new ArrayList<>();
+        if (dataMap.get(bitpos))
+            mappings.addAll(Arrays.asList(contents[getIndex(dataMap, bitpos)].mappings));
+        for (KeyMutation mutation : mutations) {
+            boolean updated = false;
+            for (int i=0; i < mappings.size() && ! updated; i++) {
+                KeyElement current = mappings.get(i);
+                if (! current.key.equals(mutation.key))
+                    continue;
+                if (! current.valueHash.equals(mutation.expected))
+                    return Futures.errored(new MutableTree.CasException(current.valueHash, mutation.expected));
+                mappings.set(i, new KeyElement(mutation.key, mutation.value));
+                updated = true;
+            }
+            if (! updated)
+                mappings.add(new KeyElement(mutation.key, mutation.value));
+        }
+        if (mappings.size() <= maxCollisions) {
+            KeyElement[] prefix = mappings.toArray(new KeyElement[0]);
+            // ensure canonical structure
+            Arrays.sort(prefix, Comparator.comparing(m -> m.key));
+            return CompletableFuture.completedFuture(new Pair<>(new HashPrefixPayload(prefix), Collections.emptyList()));
+        }
+
+        if (depth + 1 >= HASH_CODE_LENGTH)
+            throw new IllegalStateException("Hash collision!");
+        List<KeyMutation> pushedDown = mappings.stream()
+                .map(m -> new KeyMutation(m.key, hasher.apply(m.key), MaybeMultihash.empty(), m.valueHash))
+                .collect(Collectors.toList());
+        return empty().applyBatch(pushedDown, depth + 1, bitWidth, maxCollisions, hasher, storage, writeHasher, Optional.empty())
+                .thenApply(res -> new Pair<>(new HashPrefixPayload(MaybeMultihash.of(res.hash)), res.newNodes));
+    }
+
+    private HashPrefixPayload getPayload(int bitpos) {
+        if (dataMap.get(bitpos))
+            return contents[getIndex(dataMap, bitpos)];
+        if (nodeMap.get(bitpos))
+            return contents[contents.length - 1 - getIndex(nodeMap, bitpos)];
+        return null;
+    }
+
     private CompletableFuture<Pair<Champ, Multihash>> pushMappingsDownALevel(PublicKeyHash owner,
                                                                              SigningPrivateKeyAndPublicHash writer,
                                                                              KeyElement[] mappings,
@@ -564,8 +756,8 @@ public class Champ implements Cborable {
                         CompletableFuture.completedFuture(res)
                 ).thenCompose(newRes ->
                         payload.isShard() && payload.link.isPresent() ?
-                                storage.get(payload.link.get())
-                                        .thenApply(rawOpt -> Champ.fromCbor(rawOpt.orElseThrow(() -> new IllegalStateException("Hash not present! " + payload.link))))
+                                load(payload.link.get(), storage)
+                                        .thenApply(child -> child.orElseThrow(() -> new IllegalStateException("Hash not present! " + payload.link)))
                                         .thenCompose(child -> child.applyToAllMappings(newRes, consumer, storage)) :
                                 CompletableFuture.completedFuture(newRes)
                 ), (a, b) -> a);
@@ -608,10 +800,8 @@ public class Champ implements Cborable {
 
         if (updated.equals(original))
             return CompletableFuture.completedFuture(true);
-        return original.map(storage::get).orElseGet(() -> CompletableFuture.completedFuture(Optional.empty()))
-                .thenApply(rawOpt -> rawOpt.map(Champ::fromCbor))
-                .thenCompose(left -> updated.map(storage::get).orElseGet(() -> CompletableFuture.completedFuture(Optional.empty()))
-                        .thenApply(rawOpt -> rawOpt.map(Champ::fromCbor))
+        return original.map(h -> load(h, storage)).orElseGet(() -> CompletableFuture.completedFuture(Optional.empty()))
+                .thenCompose(left -> updated.map(h -> load(h, storage)).orElseGet(() -> CompletableFuture.completedFuture(Optional.empty()))
                         .thenCompose(right -> {
                             int leftMax = left.map(c -> Math.max(c.dataMap.length(), c.nodeMap.length())).orElse(0);
                             int rightMax = right.map(c -> Math.max(c.dataMap.length(), c.nodeMap.length())).orElse(0);
@@ -745,4 +935,40 @@ public class Champ implements Cborable {
         }
         return new Champ(dataMap, nodeMap, contents.toArray(new HashPrefixPayload[contents.size()]));
     }
+
+    /** Parse a node directly from its serialized form, without building the intermediate cbor objects
+     *
+     * @param raw
+     * @return
+     */
+    public static Champ fromBytes(byte[] raw) {
+        CborCursor cbor = CborCursor.of(raw);
+        if (cbor.majorType() != CborConstants.TYPE_ARRAY)
+            throw new IllegalStateException("Invalid cbor for CHAMP!");
+        List<CborCursor> list = cbor.elements();
+
+        if (list.get(0).majorType() != CborConstants.TYPE_BYTE_STRING)
+            throw new IllegalStateException("Invalid cbor for a champ, is this a btree?");
+        BitSet dataMap = BitSet.valueOf(list.get(0).getByteArray());
+        BitSet nodeMap = BitSet.valueOf(list.get(1).getByteArray());
+        List<CborCursor> contentsCbor = list.get(2).elements();
+
+        HashPrefixPayload[] contents = new HashPrefixPayload[contentsCbor.size()];
+        for (int i=0; i < contents.length; i++) {
+            CborCursor keyOrHash = contentsCbor.get(i);
+            if (keyOrHash.majorType() == CborConstants.TYPE_ARRAY) {
+                List<CborCursor> mappingsCbor = keyOrHash.elements();
+                KeyElement[] mappings = new KeyElement[mappingsCbor.size() / 2];
+                for (int j=0; j < mappings.length; j++) {
+                    CborCursor value = mappingsCbor.get(2 * j + 1);
+                    mappings[j] = new KeyElement(new ByteArrayWrapper(mappingsCbor.get(2 * j).getByteArray()),
+                            value.isNull() ? MaybeMultihash.empty() : MaybeMultihash.of(value.getLink()));
+                }
+                contents[i] = new HashPrefixPayload(mappings);
+            } else {
+                contents[i] = new HashPrefixPayload(MaybeMultihash.of(keyOrHash.getLink()));
+            }
+        }
+        return new Champ(dataMap, nodeMap, contents);
+    }
 }
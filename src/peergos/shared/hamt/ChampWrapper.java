@@ -9,8 +9,10 @@ import peergos.shared.user.*;
 import peergos.shared.util.*;
 
 import java.io.*;
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
+import java.util.stream.*;
 
 public class ChampWrapper implements ImmutableTree
 {
@@ -40,10 +42,10 @@ public class ChampWrapper implements ImmutableTree
                                                          Function<ByteArrayWrapper, byte[]> hasher,
                                                          ContentAddressedStorage dht,
                                                          Hasher writeHasher) {
-        return dht.get(rootHash).thenApply(rawOpt -> {
-            if (! rawOpt.isPresent())
+        return Champ.load(rootHash, dht).thenApply(rootOpt -> {
+            if (! rootOpt.isPresent())
                 throw new IllegalStateException("Champ root not present: " + rootHash);
-            return new ChampWrapper(Champ.fromCbor(rawOpt.get()), rootHash, hasher, dht, writeHasher, BIT_WIDTH);
+            return new ChampWrapper(rootOpt.get(), rootHash, hasher, dht, writeHasher, BIT_WIDTH);
         });
     }
 
@@ -60,6 +62,35 @@ public class ChampWrapper implements ImmutableTree
                 .thenApply(put -> new ChampWrapper(newRoot, put, hasher, dht, writeHasher, BIT_WIDTH));
     }
 
+    /** Look up keys, recording the nodes visited along the way
+     *
+     * @param rootHash
+     * @param rawKeys
+     * @param hasher
+     * @param storage
+     * @return the raw bytes of the champ nodes on the path to each key, and of the blocks the keys map to
+     */
+    public static CompletableFuture<List<byte[]>> getLookupBlocks(Multihash rootHash,
+                                                                  List<byte[]> rawKeys,
+                                                                  Function<ByteArrayWrapper, byte[]> hasher,
+                                                                  ContentAddressedStorage storage) {
+        Map<Multihash, Boolean> visited = new ConcurrentHashMap<>();
+        visited.put(rootHash, true);
+        return create(rootHash, hasher, storage, null)
+                .thenCompose(tree -> Futures.combineAllInOrder(rawKeys.stream()
+                        .map(k -> tree.get(k, h -> visited.put(h, true)))
+                        .collect(Collectors.toList())))
+                .thenCompose(values -> storage.getAll(Stream.concat(visited.keySet().stream(), values.stream()
+                                .filter(MaybeMultihash::isPresent)
+                                .map(MaybeMultihash::get))
+                        .distinct()
+                        .collect(Collectors.toList())))
+                .thenApply(blocks -> blocks.stream()
+                        .filter(Optional::isPresent)
+                        .map(Optional::get)
+                        .collect(Collectors.toList()));
+    }
+
     /**
      *
      * @param rawKey
@@ -68,8 +99,18 @@ public class ChampWrapper implements ImmutableTree
      */
     @Override
     public CompletableFuture<MaybeMultihash> get(byte[] rawKey) {
+        return get(rawKey, h -> {});
+    }
+
+    /**
+     *
+     * @param rawKey
+     * @param visited Called with the hash of each node below the root on the path to rawKey
+     * @return value stored under rawKey
+     */
+    public CompletableFuture<MaybeMultihash> get(byte[] rawKey, Consumer<Multihash> visited) {
         ByteArrayWrapper key = new ByteArrayWrapper(rawKey);
-        return root.left.get(key, hasher.apply(key), 0, BIT_WIDTH, storage);
+        return root.left.get(key, hasher.apply(key), 0, BIT_WIDTH, storage, visited);
     }
 
     /**
@@ -110,8 +151,53 @@ public class ChampWrapper implements ImmutableTree
                 .thenCompose(newRoot -> commit(writer, newRoot));
     }
 
+    /**
+     *
+     * @param mutations
+     * @return hash of new tree root
+     */
+    @Override
+    public CompletableFuture<Multihash> applyBatch(PublicKeyHash owner,
+                                                   SigningPrivateKeyAndPublicHash writer,
+                                                   List<Mutation> mutations,
+                                                   TransactionId tid) {
+        if (mutations.isEmpty())
+            return CompletableFuture.completedFuture(root.right);
+        List<Champ.KeyMutation> hashed = mutations.stream()
+                .map(m -> {
+                    ByteArrayWrapper key = new ByteArrayWrapper(m.key);
+                    return new Champ.KeyMutation(key, hasher.apply(key), m.existing, m.value);
+                }).collect(Collectors.toList());
+        return root.left.applyBatch(hashed, 0, BIT_WIDTH, MAX_HASH_COLLISIONS_PER_LEVEL, hasher, storage, writeHasher,
+                Optional.of(root.right))
+                .thenCompose(res -> writeNodes(owner, writer, res.newNodes, tid)
+                        .thenCompose(x -> commit(writer, new Pair<>(res.champ, res.hash))));
+    }
+
+    private CompletableFuture<Boolean> writeNodes(PublicKeyHash owner,
+                                                  SigningPrivateKeyAndPublicHash writer,
+                                                  List<Pair<byte[], byte[]>> nodes,
+                                                  TransactionId tid) {
+        if (nodes.isEmpty())
+            return CompletableFuture.completedFuture(true);
+        List<byte[]> signatures = nodes.stream()
+                .map(n -> writer.secret.signMessage(n.left))
+                .collect(Collectors.toList());
+        List<byte[]> blocks = nodes.stream()
+                .map(n -> n.right)
+                .collect(Collectors.toList());
+        return storage.put(owner, writer.publicKeyHash, signatures, blocks, tid)
+                .thenApply(hashes -> {
+                    for (int i=0; i < hashes.size(); i++)
+                        if (! hashes.get(i).equals(CommittableStorage.hashToCid(nodes.get(i).left, false)))
+                            throw new IllegalStateException("Incorrect hash for champ node: " + hashes.get(i));
+                    return true;
+                });
+    }
+
     private CompletableFuture<Multihash> commit(SigningPrivateKeyAndPublicHash writer, Pair<Champ, Multihash> newRoot) {
         root = newRoot;
+        Champ.CACHE.put(newRoot.right, newRoot.left, newRoot.left.serialize().length);
         return CompletableFuture.completedFuture(newRoot.right);
     }
 
@@ -1,52 +1,186 @@
 package peergos.shared.mutable;
 
 import peergos.shared.crypto.hash.*;
+import peergos.shared.storage.*;
 import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
 
 /*
- * A CoreNode that caches previous metadata blob reads for a certain time
+ * A MutablePointers that caches previous pointer reads for a certain time
+ *
+ * The cache is split into independently locked segments, each an LRU bounded by its number of entries. Concurrent
+ * misses for the same writer result in a single upstream read. Pointer updates which don't go through this instance
+ * can be pushed in with updated(), so they are visible immediately rather than after the TTL.
  */
 public class CachingPointers implements MutablePointers {
+    private static final int DEFAULT_MAX_ENTRIES = 10_000;
+    private static final int SEGMENTS = 16;
 
     private final MutablePointers target;
     private final int cacheTTL;
-    private final Map<PublicKeyHash, Pair<Optional<byte[]>, Long>> cache = new HashMap<>();
+    private final List<Segment> segments;
 
     public CachingPointers(MutablePointers target, int cacheTTL) {
+        this(target, cacheTTL, DEFAULT_MAX_ENTRIES);
+    }
+
+    public CachingPointers(MutablePointers target, int cacheTTL, int maxEntries) {
         this.target = target;
         this.cacheTTL = cacheTTL;
+        this.segments = new ArrayList<>(SEGMENTS);
+        for (int i=0; i < SEGMENTS; i++)
+            segments.add(new Segment(Math.max(1, maxEntries / SEGMENTS)));
+    }
+
+    private Segment segmentFor(PublicKeyHash writer) {
+        int h = writer.hashCode() * 0x9E3779B9;
+        return segments.get((h ^ (h >>> 16)) & (SEGMENTS - 1));
     }
 
     @Override
     public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
-        synchronized (cache) {
-            Pair<Optional<byte[]>, Long> cached = cache.get(writer);
-            if (cached != null && System.currentTimeMillis() - cached.right < cacheTTL)
+        Segment segment = segmentFor(writer);
+        CompletableFuture<Optional<byte[]>> result = new CompletableFuture<>();
+        synchronized (segment) {
+            Pair<Optional<byte[]>, Long> cached = segment.cache.get(writer);
+            if (cached != null && System.currentTimeMillis() - cached.right < cacheTTL) {
+                segment.hits++;
                 return CompletableFuture.completedFuture(cached.left);
+            }
+            segment.misses++;
+            CompletableFuture<Optional<byte[]>> inFlight = segment.pending.get(writer);
+            if (inFlight != null) {
+                segment.coalesced++;
+                return inFlight;
+            }
+            segment.pending.put(writer, result);
         }
-        return target.getPointer(owner, writer).thenApply(m -> {
-            synchronized (cache) {
-                cache.put(writer, new Pair<>(m, System.currentTimeMillis()));
+        target.getPointer(owner, writer).thenAccept(m -> {
+            synchronized (segment) {
+                // Don't overwrite a newer value which was set while this read was in flight
+                if (segment.pending.get(writer) == result) {
+                    segment.pending.remove(writer);
+                    segment.cache.put(writer, new Pair<>(m, System.currentTimeMillis()));
+                }
+            }
+            result.complete(m);
+        }).exceptionally(t -> {
+            synchronized (segment) {
+                if (segment.pending.get(writer) == result)
+                    segment.pending.remove(writer);
             }
-            return m;
+            result.completeExceptionally(t);
+            return null;
         });
+        return result;
     }
 
     @Override
     public CompletableFuture<Boolean> setPointer(PublicKeyHash ownerPublicKey, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
-        synchronized (cache) {
-            cache.remove(writer);
-        }
+        invalidate(writer);
         return target.setPointer(ownerPublicKey, writer, writerSignedBtreeRootHash).thenApply(res -> {
-            if (res) {
-                synchronized (cache) {
-                    cache.put(writer, new Pair<>(Optional.of(writerSignedBtreeRootHash), System.currentTimeMillis()));
-                }
-            }
+            if (res)
+                updated(writer, writerSignedBtreeRootHash);
             return res;
         });
     }
+
+    /** Subscribe to updates, invalidating the cached pointers of the updated writers as they arrive.
+     *
+     * An update can arrive after a newer one has been cached, e.g. this client's own earlier commit, so the cache is
+     * only ever refilled from the target rather than from an update.
+     */
+    @Override
+    public CompletableFuture<PointerUpdates> subscribe(Set<PublicKeyHash> writers, long since) {
+        return target.subscribe(writers, since).thenApply(res -> {
+            if (res.reset)
+                for (PublicKeyHash writer : writers)
+                    invalidate(writer);
+            for (PointerUpdate update : res.updates)
+                invalidate(update.writer);
+            return res;
+        });
+    }
+
+    /** Record a successful update to a pointer
+     *
+     * @param writer
+     * @param writerSignedBtreeRootHash
+     */
+    public void updated(PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
+        Segment segment = segmentFor(writer);
+        synchronized (segment) {
+            segment.pending.remove(writer);
+            segment.cache.put(writer, new Pair<>(Optional.of(writerSignedBtreeRootHash), System.currentTimeMillis()));
+        }
+    }
+
+    public void invalidate(PublicKeyHash writer) {
+        Segment segment = segmentFor(writer);
+        synchronized (segment) {
+            segment.pending.remove(writer);
+            segment.cache.remove(writer);
+        }
+    }
+
+    public Stats stats() {
+        long hits = 0, misses = 0, coalesced = 0, evictions = 0, entries = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                hits += segment.hits;
+                misses += segment.misses;
+                coalesced += segment.coalesced;
+                evictions += segment.cache.evictions;
+                entries += segment.cache.size();
+            }
+        }
+        return new Stats(hits, misses, coalesced, evictions, entries);
+    }
+
+    public static class Stats extends CacheStats {
+        public final long coalescedReads;
+
+        public Stats(long hits, long misses, long coalescedReads, long evictions, long entries) {
+            super(hits, misses, evictions, entries);
+            this.coalescedReads = coalescedReads;
+        }
+
+        @Override
+        public String toString() {
+            return "hits: " + hits + ", misses: " + misses + ", coalesced: " + coalescedReads + ", entries: " + entries;
+        }
+    }
+
+    /** All access to a segment must be synchronized on the segment
+     */
+    private static class Segment {
+        private final BoundedLru cache;
+        private final Map<PublicKeyHash, CompletableFuture<Optional<byte[]>>> pending = new HashMap<>();
+        private long hits, misses, coalesced;
+
+        Segment(int maxEntries) {
+            this.cache = new BoundedLru(maxEntries);
+        }
+    }
+
+    private static class BoundedLru extends LinkedHashMap<PublicKeyHash, Pair<Optional<byte[]>, Long>> {
+        private static final long serialVersionUID = 1L;
+        private final int maxEntries;
+        private long evictions;
+
+        BoundedLru(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<PublicKeyHash, Pair<Optional<byte[]>, Long>> eldest) {
+            boolean evict = size() > maxEntries;
+            if (evict)
+                evictions++;
+            return evict;
+        }
+    }
 }
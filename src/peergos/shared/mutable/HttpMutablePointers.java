@@ -2,6 +2,7 @@
 package peergos.shared.mutable;
 import java.util.logging.*;
 
+import peergos.shared.cbor.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.user.*;
@@ -93,6 +94,13 @@ public class HttpMutablePointers implements MutablePointersProxy {
         return getPointer(getProxyUrlPrefix(targetId), p2p, owner, writer);
     }
 
+    @Override
+    public CompletableFuture<PointerUpdates> subscribe(Set<PublicKeyHash> writers, long since) {
+        CborObject.CborList body = new CborObject.CborList(new ArrayList<>(writers));
+        return direct.postUnzip(directUrlPrefix + Constants.MUTABLE_POINTERS_URL + "subscribe?since=" + since, body.serialize())
+                .thenApply(res -> PointerUpdates.fromCbor(CborObject.fromByteArray(res)));
+    }
+
     public CompletableFuture<Optional<byte[]>> getPointer(String urlPrefix, HttpPoster poster, PublicKeyHash owner, PublicKeyHash writer) {
         long t1 = System.currentTimeMillis();
         try {
@@ -28,6 +28,18 @@ public interface MutablePointers {
      */
     CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer);
 
+    /** Wait for updates to the pointers of any of the given writers
+     *
+     * @param writers The public signing keys to watch
+     * @param since The sequence of the previous reply, or -1 for a new subscription
+     * @return The updates after since as soon as there are any, or no updates after a timeout chosen by the server
+     */
+    default CompletableFuture<PointerUpdates> subscribe(Set<PublicKeyHash> writers, long since) {
+        CompletableFuture<PointerUpdates> res = new CompletableFuture<>();
+        res.completeExceptionally(new IllegalStateException("Pointer subscriptions are not supported!"));
+        return res;
+    }
+
     /**
      * Get the CAS key-hash for the data pointed to by a writer-key.
      * @param writerKeyHash
@@ -0,0 +1,40 @@
+package peergos.shared.mutable;
+
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+
+import java.util.*;
+
+/** A change in the target of a writer's mutable pointer
+ *
+ */
+public class PointerUpdate implements Cborable {
+
+    public final PublicKeyHash owner;
+    public final PublicKeyHash writer;
+    public final byte[] writerSignedBtreeRootHash;
+
+    public PointerUpdate(PublicKeyHash owner, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
+        this.owner = owner;
+        this.writer = writer;
+        this.writerSignedBtreeRootHash = writerSignedBtreeRootHash;
+    }
+
+    @Override
+    public CborObject toCbor() {
+        return new CborObject.CborList(Arrays.asList(
+                owner.toCbor(),
+                writer.toCbor(),
+                new CborObject.CborByteArray(writerSignedBtreeRootHash)
+        ));
+    }
+
+    public static PointerUpdate fromCbor(Cborable cbor) {
+        if (! (cbor instanceof CborObject.CborList))
+            throw new IllegalStateException("Incorrect cbor for PointerUpdate: " + cbor);
+
+        List<? extends Cborable> value = ((CborObject.CborList) cbor).value;
+        return new PointerUpdate(PublicKeyHash.fromCbor(value.get(0)), PublicKeyHash.fromCbor(value.get(1)),
+                ((CborObject.CborByteArray) value.get(2)).value);
+    }
+}
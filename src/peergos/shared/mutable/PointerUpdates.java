@@ -0,0 +1,40 @@
+package peergos.shared.mutable;
+
+import peergos.shared.cbor.*;
+
+import java.util.*;
+
+/** The reply to a pointer subscription.
+ *
+ * The sequence is passed to the next subscription to continue from this point. If reset is true then updates may have
+ * been missed since the last subscription, and any cached state for the subscribed writers must be invalidated.
+ */
+public class PointerUpdates implements Cborable {
+
+    public final long sequence;
+    public final boolean reset;
+    public final List<PointerUpdate> updates;
+
+    public PointerUpdates(long sequence, boolean reset, List<PointerUpdate> updates) {
+        this.sequence = sequence;
+        this.reset = reset;
+        this.updates = updates;
+    }
+
+    @Override
+    public CborObject toCbor() {
+        Map<String, Cborable> res = new TreeMap<>();
+        res.put("s", new CborObject.CborLong(sequence));
+        res.put("r", new CborObject.CborBoolean(reset));
+        res.put("u", new CborObject.CborList(updates));
+        return CborObject.CborMap.build(res);
+    }
+
+    public static PointerUpdates fromCbor(Cborable cbor) {
+        if (! (cbor instanceof CborObject.CborMap))
+            throw new IllegalStateException("Incorrect cbor for PointerUpdates: " + cbor);
+
+        CborObject.CborMap map = (CborObject.CborMap) cbor;
+        return new PointerUpdates(map.getLong("s"), map.getBoolean("r"), map.getList("u", PointerUpdate::fromCbor));
+    }
+}
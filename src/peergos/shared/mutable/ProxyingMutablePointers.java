@@ -36,6 +36,11 @@ public class ProxyingMutablePointers implements MutablePointers {
                 target -> p2p.getPointer(target, owner, writer));
     }
 
+    @Override
+    public CompletableFuture<PointerUpdates> subscribe(Set<PublicKeyHash> writers, long since) {
+        return local.subscribe(writers, since);
+    }
+
     public <V> CompletableFuture<V> redirectCall(PublicKeyHash ownerKey, Supplier<CompletableFuture<V>> direct, Function<Multihash, CompletableFuture<V>> proxied) {
         return core.getUsername(ownerKey)
                 .thenCompose(owner -> core.getChain(owner)
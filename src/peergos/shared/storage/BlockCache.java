@@ -0,0 +1,281 @@
+package peergos.shared.storage;
+
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** A thread safe cache of blocks bounded by the total size in bytes of the cached values.
+ *
+ * The cache is split into independently locked segments. Each segment has a small LRU admission window and a main
+ * LRU region. Blocks evicted from the window only displace blocks in the main region if they have been requested more
+ * often (approximated with a TinyLFU count-min sketch), so a single large scan cannot flush frequently used blocks.
+ *
+ * In flight loads are tracked in the same segments, outside the size bound, so they are never evicted and concurrent
+ * requests for the same key result in a single load.
+ *
+ * @param <K>
+ */
+public class BlockCache<K> {
+    private static final int DEFAULT_SEGMENTS = 16;
+    private static final int WINDOW_PERCENT = 1;
+
+    private final List<Segment<K>> segments;
+    private final int segmentMask;
+    private final int maxValueSize;
+
+    public BlockCache(long maxBytes, int maxValueSize) {
+        this(maxBytes, maxValueSize, DEFAULT_SEGMENTS);
+    }
+
+    public BlockCache(long maxBytes, int maxValueSize, int segmentCount) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("Cache size must be positive!");
+        int nSegments = Integer.highestOneBit(Math.max(1, segmentCount));
+        this.segments = new ArrayList<>(nSegments);
+        for (int i=0; i < nSegments; i++)
+            segments.add(new Segment<>(Math.max(1, maxBytes / nSegments)));
+        this.segmentMask = nSegments - 1;
+        this.maxValueSize = maxValueSize;
+    }
+
+    private static int spread(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private Segment<K> segmentFor(K key) {
+        return segments.get(spread(key.hashCode()) & segmentMask);
+    }
+
+    private boolean isCacheable(byte[] value) {
+        return value.length > 0 && value.length < maxValueSize;
+    }
+
+    public Optional<byte[]> getIfPresent(K key) {
+        Segment<K> segment = segmentFor(key);
+        synchronized (segment) {
+            return Optional.ofNullable(segment.get(key));
+        }
+    }
+
+    public void put(K key, byte[] value) {
+        if (! isCacheable(value))
+            return;
+        Segment<K> segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, value);
+        }
+    }
+
+    /**
+     *
+     * @param key
+     * @param loader called to retrieve the value if it is neither cached nor already being loaded
+     * @return The cached value, the result of an in flight load of the same key or the result of a new load
+     */
+    public CompletableFuture<Optional<byte[]>> get(K key, Supplier<CompletableFuture<Optional<byte[]>>> loader) {
+        Segment<K> segment = segmentFor(key);
+        CompletableFuture<Optional<byte[]>> result = new CompletableFuture<>();
+        synchronized (segment) {
+            byte[] cached = segment.get(key);
+            if (cached != null)
+                return CompletableFuture.completedFuture(Optional.of(cached));
+            CompletableFuture<Optional<byte[]>> inFlight = segment.pending.get(key);
+            if (inFlight != null) {
+                segment.coalesced++;
+                return inFlight;
+            }
+            segment.pending.put(key, result);
+        }
+
+        CompletableFuture<Optional<byte[]>> load;
+        try {
+            load = loader.get();
+        } catch (Throwable t) {
+            load = Futures.errored(t);
+        }
+        load.thenAccept(valueOpt -> {
+            synchronized (segment) {
+                segment.pending.remove(key);
+                if (valueOpt.isPresent() && isCacheable(valueOpt.get()))
+                    segment.put(key, valueOpt.get());
+            }
+            result.complete(valueOpt);
+        }).exceptionally(t -> {
+            synchronized (segment) {
+                segment.pending.remove(key);
+            }
+            result.completeExceptionally(t);
+            return null;
+        });
+        return result;
+    }
+
+    public Stats stats() {
+        long hits = 0, misses = 0, coalesced = 0, evictions = 0, rejections = 0, bytes = 0, entries = 0, pending = 0;
+        for (Segment<K> segment : segments) {
+            synchronized (segment) {
+                hits += segment.hits;
+                misses += segment.misses;
+                coalesced += segment.coalesced;
+                evictions += segment.evictions;
+                rejections += segment.rejections;
+                bytes += segment.windowBytes + segment.mainBytes;
+                entries += segment.window.size() + segment.main.size();
+                pending += segment.pending.size();
+            }
+        }
+        return new Stats(hits, misses, coalesced, evictions, rejections, bytes, entries, pending);
+    }
+
+    public static class Stats extends CacheStats {
+        public final long coalescedLoads, rejections, bytes, pendingLoads;
+
+        public Stats(long hits,
+                     long misses,
+                     long coalescedLoads,
+                     long evictions,
+                     long rejections,
+                     long bytes,
+                     long entries,
+                     long pendingLoads) {
+            super(hits, misses, evictions, entries);
+            this.coalescedLoads = coalescedLoads;
+            this.rejections = rejections;
+            this.bytes = bytes;
+            this.pendingLoads = pendingLoads;
+        }
+
+        @Override
+        public String toString() {
+            return "hits: " + hits + ", misses: " + misses + ", evictions: " + evictions + ", bytes: " + bytes;
+        }
+    }
+
+    /** All access to a segment must be synchronized on the segment
+     */
+    private static class Segment<K> {
+        private final long maxWindowBytes, maxMainBytes;
+        private final LinkedHashMap<K, byte[]> window = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<K, byte[]> main = new LinkedHashMap<>(16, 0.75f, true);
+        private final Map<K, CompletableFuture<Optional<byte[]>>> pending = new HashMap<>();
+        private final FrequencySketch sketch;
+        private long windowBytes, mainBytes;
+        private long hits, misses, coalesced, evictions, rejections;
+
+        Segment(long maxBytes) {
+            this.maxWindowBytes = Math.max(1, maxBytes * WINDOW_PERCENT / 100);
+            this.maxMainBytes = Math.max(1, maxBytes - maxWindowBytes);
+            // assume an average block of ~1 KiB for sizing the sketch
+            this.sketch = new FrequencySketch((int) Math.min(1 << 16, Math.max(64, maxBytes / 1024)));
+        }
+
+        byte[] get(K key) {
+            sketch.increment(key.hashCode());
+            byte[] value = main.get(key);
+            if (value == null)
+                value = window.get(key);
+            if (value == null)
+                misses++;
+            else
+                hits++;
+            return value;
+        }
+
+        void put(K key, byte[] value) {
+            if (main.containsKey(key) || window.containsKey(key))
+                return;
+            window.put(key, value);
+            windowBytes += value.length;
+            while (windowBytes > maxWindowBytes && ! window.isEmpty()) {
+                Iterator<Map.Entry<K, byte[]>> eldest = window.entrySet().iterator();
+                Map.Entry<K, byte[]> candidate = eldest.next();
+                eldest.remove();
+                windowBytes -= candidate.getValue().length;
+                admit(candidate.getKey(), candidate.getValue());
+            }
+        }
+
+        /** Move a block from the window to the main region if it is used more often than the blocks it would evict
+         */
+        private void admit(K key, byte[] value) {
+            if (value.length > maxMainBytes) {
+                rejections++;
+                evictions++;
+                return;
+            }
+            int candidateFrequency = sketch.frequency(key.hashCode());
+            List<Map.Entry<K, byte[]>> victims = new ArrayList<>();
+            long freed = 0;
+            Iterator<Map.Entry<K, byte[]>> lru = main.entrySet().iterator();
+            while (mainBytes - freed + value.length > maxMainBytes && lru.hasNext()) {
+                Map.Entry<K, byte[]> victim = lru.next();
+                if (sketch.frequency(victim.getKey().hashCode()) >= candidateFrequency) {
+                    rejections++;
+                    evictions++;
+                    return;
+                }
+                victims.add(victim);
+                freed += victim.getValue().length;
+            }
+            for (Map.Entry<K, byte[]> victim : victims)
+                main.remove(victim.getKey());
+            evictions += victims.size();
+            mainBytes += value.length - freed;
+            main.put(key, value);
+        }
+    }
+
+    /** A count-min sketch of 4 bit saturating counters with periodic aging, as used by TinyLFU
+     */
+    private static class FrequencySketch {
+        private static final int[] SEEDS = {0x97CB3127, 0xB492B66F, 0x9AE16A3B, 0xCBF29CE5};
+        private static final int MAX_COUNT = 15;
+
+        private final byte[][] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int expectedEntries) {
+            int width = Integer.highestOneBit(Math.max(16, expectedEntries - 1) * 2);
+            this.table = new byte[SEEDS.length][width];
+            this.mask = width - 1;
+            this.sampleSize = 10 * width;
+        }
+
+        private int index(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * 0x85EBCA6B;
+            return (h ^ (h >>> 13)) & mask;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int row = 0; row < table.length; row++) {
+                int i = index(hash, row);
+                if (table[row][i] < MAX_COUNT) {
+                    table[row][i]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize)
+                age();
+        }
+
+        int frequency(int hash) {
+            int min = MAX_COUNT;
+            for (int row = 0; row < table.length; row++)
+                min = Math.min(min, table[row][index(hash, row)]);
+            return min;
+        }
+
+        private void age() {
+            for (byte[] row : table)
+                for (int i = 0; i < row.length; i++)
+                    row[i] = (byte) (row[i] >> 1);
+            additions /= 2;
+        }
+    }
+}
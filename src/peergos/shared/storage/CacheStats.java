@@ -0,0 +1,24 @@
+package peergos.shared.storage;
+
+/** The counters common to all our caches
+ */
+public class CacheStats {
+    public final long hits, misses, evictions, entries;
+
+    public CacheStats(long hits, long misses, long evictions, long entries) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.entries = entries;
+    }
+
+    public double hitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return "hits: " + hits + ", misses: " + misses + ", evictions: " + evictions + ", entries: " + entries;
+    }
+}
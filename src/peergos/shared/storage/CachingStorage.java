@@ -2,26 +2,35 @@ package peergos.shared.storage;
 
 import peergos.shared.cbor.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.*;
 
 public class CachingStorage extends DelegatingStorage {
     private final ContentAddressedStorage target;
-    private final LRUCache<Multihash, byte[]> cache;
-    private final LRUCache<Multihash, CompletableFuture<Optional<CborObject>>> pending;
-    private final LRUCache<Multihash, CompletableFuture<Optional<byte[]>>> pendingRaw;
-    private final int maxValueSize;
+    private final BlockCache<Multihash> cache;
 
-    public CachingStorage(ContentAddressedStorage target, int cacheSize, int maxValueSize) {
+    public CachingStorage(ContentAddressedStorage target, long cacheSizeBytes, int maxValueSize) {
         super(target);
         this.target = target;
-        this.cache = new LRUCache<>(cacheSize);
-        this.maxValueSize = maxValueSize;
-        this.pending = new LRUCache<>(100);
-        this.pendingRaw = new LRUCache<>(100);
+        this.cache = new BlockCache<>(cacheSizeBytes, maxValueSize);
+    }
+
+    public BlockCache.Stats getCacheStats() {
+        return cache.stats();
+    }
+
+    /** Cache blocks which have already been verified against their hashes
+     *
+     * @param blocks
+     */
+    public void putVerified(Map<Multihash, byte[]> blocks) {
+        for (Map.Entry<Multihash, byte[]> e : blocks.entrySet())
+            cache.put(e.getKey(), e.getValue());
     }
 
     @Override
@@ -32,43 +41,16 @@ public class CachingStorage extends DelegatingStorage {
                                                   TransactionId tid) {
         return target.put(owner, writer, signedHashes, blocks, tid)
                 .thenApply(res -> {
-                    for (int i=0; i < blocks.size(); i++) {
-                        byte[] block = blocks.get(i);
-                        if (block.length < maxValueSize)
-                            cache.put(res.get(i), block);
-                    }
+                    for (int i=0; i < blocks.size(); i++)
+                        cache.put(res.get(i), blocks.get(i));
                     return res;
                 });
     }
 
     @Override
     public CompletableFuture<Optional<CborObject>> get(Multihash key) {
-        if (cache.containsKey(key))
-            return CompletableFuture.completedFuture(Optional.of(CborObject.fromByteArray(cache.get(key))));
-
-        if (pending.containsKey(key))
-            return pending.get(key);
-
-        CompletableFuture<Optional<CborObject>> pipe = new CompletableFuture<>();
-        pending.put(key, pipe);
-
-        CompletableFuture<Optional<CborObject>> result = new CompletableFuture<>();
-        target.get(key).thenAccept(cborOpt -> {
-            if (cborOpt.isPresent()) {
-                byte[] value = cborOpt.get().toByteArray();
-                if (value.length > 0 && value.length < maxValueSize)
-                    cache.put(key, value);
-            }
-            pending.remove(key);
-            pipe.complete(cborOpt);
-            result.complete(cborOpt);
-        }).exceptionally(t -> {
-            pending.remove(key);
-            pipe.completeExceptionally(t);
-            result.completeExceptionally(t);
-            return null;
-        });
-        return result;
+        return cache.get(key, () -> target.get(key).thenApply(cborOpt -> cborOpt.map(CborObject::toByteArray)))
+                .thenApply(rawOpt -> rawOpt.map(CborObject::fromByteArray));
     }
 
     @Override
@@ -80,38 +62,106 @@ public class CachingStorage extends DelegatingStorage {
                                                      ProgressConsumer<Long> progressConsumer) {
         return target.putRaw(owner, writer, signatures, blocks, tid, progressConsumer)
                 .thenApply(res -> {
-                    for (int i=0; i < blocks.size(); i++) {
-                        byte[] block = blocks.get(i);
-                        if (block.length < maxValueSize)
-                            cache.put(res.get(i), block);
-                    }
+                    for (int i=0; i < blocks.size(); i++)
+                        cache.put(res.get(i), blocks.get(i));
                     return res;
                 });
     }
 
     @Override
     public CompletableFuture<Optional<byte[]>> getRaw(Multihash key) {
-        if (cache.containsKey(key))
-            return CompletableFuture.completedFuture(Optional.of(cache.get(key)));
-
-        if (pendingRaw.containsKey(key))
-            return pendingRaw.get(key);
-
-        CompletableFuture<Optional<byte[]>> pipe = new CompletableFuture<>();
-        pendingRaw.put(key, pipe);
-        return target.getRaw(key).thenApply(rawOpt -> {
-            if (rawOpt.isPresent()) {
-                byte[] value = rawOpt.get();
-                if (value.length > 0 && value.length < maxValueSize)
-                    cache.put(key, value);
-            }
-            pendingRaw.remove(key);
-            pipe.complete(rawOpt);
-            return rawOpt;
-        }).exceptionally(t -> {
-            pending.remove(key);
-            pipe.completeExceptionally(t);
-            return null;
-        });
+        return cache.get(key, () -> target.getRaw(key));
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Multihash> keys) {
+        List<Optional<byte[]>> res = keys.stream()
+                .map(cache::getIfPresent)
+                .collect(Collectors.toList());
+        List<Integer> misses = IntStream.range(0, keys.size())
+                .filter(i -> ! res.get(i).isPresent())
+                .boxed()
+                .collect(Collectors.toList());
+        if (misses.isEmpty())
+            return Futures.of(res);
+        return target.getAll(misses.stream().map(keys::get).collect(Collectors.toList()))
+                .thenApply(retrieved -> {
+                    for (int i=0; i < misses.size(); i++) {
+                        int index = misses.get(i);
+                        Optional<byte[]> block = retrieved.get(i);
+                        block.ifPresent(b -> cache.put(keys.get(index), b));
+                        res.set(index, block);
+                    }
+                    return res;
+                });
+    }
+
+    /** Lookups whose champ nodes and values are all cached are done locally, and only the rest are requested.
+     */
+    @Override
+    public CompletableFuture<List<byte[]>> getChampLookup(Multihash root, List<byte[]> champKeys) {
+        ContentAddressedStorage cachedOnly = new CachedOnly();
+        return Futures.combineAllInOrder(champKeys.stream()
+                .map(key -> getCachedLookup(root, key, cachedOnly))
+                .collect(Collectors.toList()))
+                .thenCompose(local -> {
+                    List<byte[]> misses = IntStream.range(0, champKeys.size())
+                            .filter(i -> ! local.get(i).isPresent())
+                            .mapToObj(champKeys::get)
+                            .collect(Collectors.toList());
+                    List<byte[]> cached = local.stream()
+                            .flatMap(blocks -> blocks.map(List::stream).orElse(Stream.empty()))
+                            .collect(Collectors.toList());
+                    if (misses.isEmpty())
+                        return Futures.of(cached);
+                    return target.getChampLookup(root, misses)
+                            .thenApply(retrieved -> Stream.concat(cached.stream(), retrieved.stream())
+                                    .collect(Collectors.toList()));
+                });
+    }
+
+    private static CompletableFuture<Optional<List<byte[]>>> getCachedLookup(Multihash root,
+                                                                             byte[] champKey,
+                                                                             ContentAddressedStorage cachedOnly) {
+        try {
+            return ChampWrapper.getLookupBlocks(root, Collections.singletonList(champKey), x -> x.data, cachedOnly)
+                    .thenApply(Optional::of)
+                    .exceptionally(t -> Optional.empty());
+        } catch (RuntimeException e) {
+            return Futures.of(Optional.empty());
+        }
+    }
+
+    /** A view of the cache which fails to retrieve anything not in it
+     */
+    private class CachedOnly extends DelegatingStorage {
+
+        CachedOnly() {
+            super(target);
+        }
+
+        private CompletableFuture<Optional<byte[]>> getCached(Multihash hash) {
+            Optional<byte[]> cached = cache.getIfPresent(hash);
+            if (! cached.isPresent())
+                return Futures.errored(new IllegalStateException("Block not cached: " + hash));
+            return Futures.of(cached);
+        }
+
+        @Override
+        public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+            return getCached(hash).thenApply(opt -> opt.map(CborObject::fromByteArray));
+        }
+
+        @Override
+        public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+            return getCached(hash);
+        }
+
+        @Override
+        public CompletableFuture<List<Optional<byte[]>>> getAll(List<Multihash> hashes) {
+            return Futures.combineAllInOrder(hashes.stream()
+                    .map(this::getCached)
+                    .collect(Collectors.toList()));
+        }
     }
 }
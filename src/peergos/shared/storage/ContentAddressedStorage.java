@@ -6,6 +6,7 @@ import peergos.shared.corenode.*;
 import peergos.shared.crypto.*;
 import peergos.shared.crypto.asymmetric.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
 import peergos.shared.io.ipfs.api.*;
 import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
@@ -143,6 +144,30 @@ public interface ContentAddressedStorage {
      */
     CompletableFuture<Optional<byte[]>> getRaw(Multihash hash);
 
+    /**
+     * Get many blocks at once, in either raw or ipld cbor format
+     * @param hashes
+     * @return The bytes of each block, or Optional.empty() if it cannot be found, in the same order as hashes
+     */
+    default CompletableFuture<List<Optional<byte[]>>> getAll(List<Multihash> hashes) {
+        return Futures.combineAllInOrder(hashes.stream()
+                .map(h -> h.isIdentity() ?
+                        Futures.of(Optional.of(h.getHash())) :
+                        getRaw(h))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Get every block needed to look up keys in the champ of a writer's file tree, so a client can do the lookups
+     * locally. The result is unverified, so the hash of each block must be checked before it is used.
+     * @param root The hash of the champ root
+     * @param champKeys The keys to look up
+     * @return The raw bytes of the champ nodes on the path to each key, and of the blocks the keys map to
+     */
+    default CompletableFuture<List<byte[]>> getChampLookup(Multihash root, List<byte[]> champKeys) {
+        return ChampWrapper.getLookupBlocks(root, champKeys, x -> x.data, this);
+    }
+
     /**
      * Update an existing pin with a new root. This is useful when modifying a tree of ipld objects where only a small
      * number of components are changed
@@ -183,8 +208,8 @@ public interface ContentAddressedStorage {
     default CompletableFuture<List<Multihash>> getLinks(Multihash root) {
         if (root instanceof Cid && ((Cid) root).codec == Cid.Codec.Raw)
             return CompletableFuture.completedFuture(Collections.emptyList());
-        return get(root).thenApply(opt -> opt
-                .map(cbor -> cbor.links())
+        return getRaw(root).thenApply(opt -> opt
+                .map(CborCursor::links)
                 .orElse(Collections.emptyList())
         );
     }
@@ -319,12 +344,17 @@ public interface ContentAddressedStorage {
         public static final String GC = "repo/gc";
         public static final String BLOCK_PUT = "block/put";
         public static final String BLOCK_GET = "block/get";
+        public static final String BLOCK_GET_ALL = "block/get-all";
         public static final String BLOCK_STAT = "block/stat";
+        public static final String CHAMP_GET = "champ/get";
         public static final String PIN_ADD = "pin/add";
         public static final String PIN_RM = "pin/rm";
         public static final String PIN_UPDATE = "pin/update";
         public static final String REFS = "refs";
 
+        public static final int MAX_BLOCKS_PER_GET_ALL = 64;
+        public static final int MAX_KEYS_PER_CHAMP_GET = 256;
+
         private final boolean isPeergosServer;
         private final Random r = new Random();
 
@@ -539,6 +569,79 @@ public interface ContentAddressedStorage {
                     .thenApply(raw -> raw.length == 0 ? Optional.empty() : Optional.of(raw));
         }
 
+        @Override
+        public CompletableFuture<List<Optional<byte[]>>> getAll(List<Multihash> hashes) {
+            if (! isPeergosServer)
+                return ContentAddressedStorage.super.getAll(hashes);
+            List<Multihash> remote = hashes.stream()
+                    .filter(h -> ! h.isIdentity())
+                    .collect(Collectors.toList());
+            // Split into several requests to bound the url length, and so the batches are retrieved in parallel
+            int batches = (remote.size() + MAX_BLOCKS_PER_GET_ALL - 1) / MAX_BLOCKS_PER_GET_ALL;
+            List<CompletableFuture<List<Optional<byte[]>>>> futures = IntStream.range(0, batches)
+                    .parallel()
+                    .mapToObj(i -> remote.subList(i * MAX_BLOCKS_PER_GET_ALL, Math.min(remote.size(), (i + 1) * MAX_BLOCKS_PER_GET_ALL)))
+                    .map(batch -> poster.get(apiPrefix + BLOCK_GET_ALL + "?stream-channels=true" + batch.stream()
+                                    .map(h -> "&arg=" + h)
+                                    .collect(Collectors.joining()))
+                            .thenApply(raw -> parseBlocks(raw, batch.size())))
+                    .collect(Collectors.toList());
+            return Futures.combineAllInOrder(futures)
+                    .thenApply(retrieved -> {
+                        Iterator<Optional<byte[]>> fetched = retrieved.stream()
+                                .flatMap(List::stream)
+                                .iterator();
+                        return hashes.stream()
+                                .map(h -> h.isIdentity() ? Optional.of(h.getHash()) : fetched.next())
+                                .collect(Collectors.toList());
+                    });
+        }
+
+        @Override
+        public CompletableFuture<List<byte[]>> getChampLookup(Multihash root, List<byte[]> champKeys) {
+            if (! isPeergosServer)
+                return ContentAddressedStorage.super.getChampLookup(root, champKeys);
+            int batches = (champKeys.size() + MAX_KEYS_PER_CHAMP_GET - 1) / MAX_KEYS_PER_CHAMP_GET;
+            List<CompletableFuture<List<byte[]>>> futures = IntStream.range(0, batches)
+                    .parallel()
+                    .mapToObj(i -> champKeys.subList(i * MAX_KEYS_PER_CHAMP_GET, Math.min(champKeys.size(), (i + 1) * MAX_KEYS_PER_CHAMP_GET)))
+                    .map(batch -> poster.postUnzip(apiPrefix + CHAMP_GET + "?arg=" + root,
+                                    new CborObject.CborList(batch.stream()
+                                            .map(CborObject.CborByteArray::new)
+                                            .collect(Collectors.toList())).serialize())
+                            .thenApply(raw -> ((CborObject.CborList) CborObject.fromByteArray(raw)).value.stream()
+                                    .map(cbor -> ((CborObject.CborByteArray) cbor).value)
+                                    .collect(Collectors.toList())))
+                    .collect(Collectors.toList());
+            return Futures.combineAllInOrder(futures)
+                    .thenApply(all -> all.stream()
+                            .flatMap(List::stream)
+                            .collect(Collectors.toList()));
+        }
+
+        /** Parse a response to BLOCK_GET_ALL, which is each block prefixed by its length as a 4 byte big endian
+         *  integer, with a length of -1 for blocks that are absent.
+         */
+        public static List<Optional<byte[]>> parseBlocks(byte[] raw, int count) {
+            try {
+                DataInputStream din = new DataInputStream(new ByteArrayInputStream(raw));
+                List<Optional<byte[]>> res = new ArrayList<>(count);
+                for (int i=0; i < count; i++) {
+                    int length = din.readInt();
+                    if (length < 0) {
+                        res.add(Optional.empty());
+                        continue;
+                    }
+                    byte[] block = new byte[length];
+                    din.readFully(block);
+                    res.add(Optional.of(block));
+                }
+                return res;
+            } catch (IOException e) {
+                throw new IllegalStateException("Truncated response to " + BLOCK_GET_ALL, e);
+            }
+        }
+
         @Override
         public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash hash) {
             return poster.get(apiPrefix + PIN_ADD + "?stream-channels=true&arg=" + hash.toString()
@@ -648,6 +751,16 @@ public interface ContentAddressedStorage {
             return local.getRaw(object);
         }
 
+        @Override
+        public CompletableFuture<List<Optional<byte[]>>> getAll(List<Multihash> hashes) {
+            return local.getAll(hashes);
+        }
+
+        @Override
+        public CompletableFuture<List<byte[]>> getChampLookup(Multihash root, List<byte[]> champKeys) {
+            return local.getChampLookup(root, champKeys);
+        }
+
         @Override
         public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
             return local.getLinks(root);
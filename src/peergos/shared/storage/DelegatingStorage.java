@@ -46,6 +46,16 @@ public abstract class DelegatingStorage implements ContentAddressedStorage {
         return target.get(hash);
     }
 
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Multihash> hashes) {
+        return target.getAll(hashes);
+    }
+
+    @Override
+    public CompletableFuture<List<byte[]>> getChampLookup(Multihash root, List<byte[]> champKeys) {
+        return target.getChampLookup(root, champKeys);
+    }
+
     @Override
     public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner,
                                                      PublicKeyHash writer,
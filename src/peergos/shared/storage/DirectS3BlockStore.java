@@ -277,6 +277,18 @@ public class DirectS3BlockStore implements ContentAddressedStorage {
         return fallback.getRaw(hash);
     }
 
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Multihash> hashes) {
+        if (publicReads || authedReads)
+            return ContentAddressedStorage.super.getAll(hashes);
+        return fallback.getAll(hashes);
+    }
+
+    @Override
+    public CompletableFuture<List<byte[]>> getChampLookup(Multihash root, List<byte[]> champKeys) {
+        return fallback.getChampLookup(root, champKeys);
+    }
+
     @Override
     public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
         return fallback.getSize(block);
@@ -0,0 +1,107 @@
+package peergos.shared.storage;
+
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** A thread safe LRU cache of objects decoded from immutable blocks, bounded by the total size of the blocks.
+ *
+ * The keys include the hash of the block an object was decoded from, so a cached object can never be stale and
+ * entries never need to be invalidated. This saves re-parsing the same blocks, e.g. the champ nodes near the root of a
+ * writer's tree, on every traversal. Objects decoded from large blocks aren't cached, as they would displace many
+ * smaller ones and are rarely shared.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class ObjectCache<K, V> {
+
+    private final long maxBytes;
+    private final int maxValueSize;
+    // key -> (value, size of the block it was decoded from)
+    private final LinkedHashMap<K, Pair<V, Integer>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes, hits, misses, evictions;
+
+    public ObjectCache(long maxBytes, int maxValueSize) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("Cache size must be positive!");
+        this.maxBytes = maxBytes;
+        this.maxValueSize = maxValueSize;
+    }
+
+    public synchronized Optional<V> getIfPresent(K key) {
+        Pair<V, Integer> entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return Optional.empty();
+        }
+        hits++;
+        return Optional.of(entry.left);
+    }
+
+    /**
+     *
+     * @param key
+     * @param value
+     * @param size the size of the block value was decoded from
+     */
+    public synchronized void put(K key, V value, int size) {
+        if (size >= maxValueSize)
+            return;
+        Pair<V, Integer> prior = entries.put(key, new Pair<>(value, size));
+        if (prior != null)
+            bytes -= prior.right;
+        bytes += size;
+        Iterator<Pair<V, Integer>> eldest = entries.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().right;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     *
+     * @param key
+     * @param block retrieves the block if the value isn't cached
+     * @param decoder
+     * @return The cached value, or the decoded block
+     */
+    public CompletableFuture<Optional<V>> get(K key,
+                                              Supplier<CompletableFuture<Optional<byte[]>>> block,
+                                              Function<byte[], V> decoder) {
+        Optional<V> cached = getIfPresent(key);
+        if (cached.isPresent())
+            return CompletableFuture.completedFuture(cached);
+        return block.get().thenApply(raw -> raw.map(data -> {
+            V value = decoder.apply(data);
+            put(key, value, data.length);
+            return value;
+        }));
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(hits, misses, evictions, entries.size(), bytes);
+    }
+
+    public static class Stats extends CacheStats {
+        public final long bytes;
+
+        public Stats(long hits, long misses, long evictions, long entries, long bytes) {
+            super(hits, misses, evictions, entries);
+            this.bytes = bytes;
+        }
+
+        @Override
+        public String toString() {
+            return super.toString() + ", bytes: " + bytes;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package peergos.shared.storage;
+
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/** Serves reads from a set of blocks retrieved in advance, falling back to the target for anything else.
+ *
+ * The prefetched blocks come from an untrusted source, so each one is indexed under the hash we compute for it
+ * ourselves. A block that doesn't match what was asked for is never found, and is retrieved from the target instead.
+ */
+public class PrefetchedStorage extends DelegatingStorage {
+
+    private final ContentAddressedStorage target;
+    private final Map<Multihash, byte[]> blocks;
+
+    private PrefetchedStorage(ContentAddressedStorage target, Map<Multihash, byte[]> blocks) {
+        super(target);
+        this.target = target;
+        this.blocks = blocks;
+    }
+
+    public static CompletableFuture<PrefetchedStorage> build(List<byte[]> unverified,
+                                                             Hasher hasher,
+                                                             ContentAddressedStorage target) {
+        return Futures.combineAllInOrder(unverified.stream()
+                .map(hasher::sha256)
+                .collect(Collectors.toList()))
+                .thenApply(hashes -> {
+                    Map<Multihash, byte[]> verified = new HashMap<>();
+                    for (int i=0; i < hashes.size(); i++) {
+                        verified.put(CommittableStorage.hashToCid(hashes.get(i), false), unverified.get(i));
+                        verified.put(CommittableStorage.hashToCid(hashes.get(i), true), unverified.get(i));
+                    }
+                    return new PrefetchedStorage(target, verified);
+                });
+    }
+
+    /**
+     *
+     * @return The prefetched cbor blocks, indexed by their verified hashes
+     */
+    public Map<Multihash, byte[]> getCborBlocks() {
+        return blocks.entrySet().stream()
+                .filter(e -> ! (e.getKey() instanceof Cid && ((Cid) e.getKey()).codec == Cid.Codec.Raw))
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+        byte[] block = blocks.get(hash);
+        if (block != null)
+            return Futures.of(Optional.of(CborObject.fromByteArray(block)));
+        return target.get(hash);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+        byte[] block = blocks.get(hash);
+        if (block != null)
+            return Futures.of(Optional.of(block));
+        return target.getRaw(hash);
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Multihash> hashes) {
+        List<Multihash> missing = hashes.stream()
+                .filter(h -> ! blocks.containsKey(h))
+                .collect(Collectors.toList());
+        return (missing.isEmpty() ?
+                Futures.of(Collections.<Optional<byte[]>>emptyList()) :
+                target.getAll(missing))
+                .thenApply(retrieved -> {
+                    Iterator<Optional<byte[]>> fetched = retrieved.iterator();
+                    return hashes.stream()
+                            .map(h -> blocks.containsKey(h) ? Optional.of(blocks.get(h)) : fetched.next())
+                            .collect(Collectors.toList());
+                });
+    }
+}
@@ -5,8 +5,10 @@ import peergos.shared.crypto.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.storage.*;
+import peergos.shared.util.*;
 
 import java.io.*;
+import java.util.*;
 import java.util.concurrent.*;
 
 /**
@@ -47,4 +49,63 @@ public interface ImmutableTree {
                                         byte[] rawKey,
                                         MaybeMultihash existing,
                                         TransactionId tid);
+
+    /** Apply several mutations in a single walk of the tree, writing each modified node once
+     *
+     * @param mutations
+     * @return hash of new tree root
+     */
+    CompletableFuture<Multihash> applyBatch(PublicKeyHash owner,
+                                            SigningPrivateKeyAndPublicHash writer,
+                                            List<Mutation> mutations,
+                                            TransactionId tid);
+
+    /**
+     *
+     * @param puts
+     * @return hash of new tree root
+     */
+    default CompletableFuture<Multihash> putAll(PublicKeyHash owner,
+                                                SigningPrivateKeyAndPublicHash writer,
+                                                List<Mutation> puts,
+                                                TransactionId tid) {
+        for (Mutation put : puts)
+            if (! put.value.isPresent())
+                throw new IllegalArgumentException("Missing value for put!");
+        return applyBatch(owner, writer, puts, tid);
+    }
+
+    /**
+     *
+     * @param keysAndExisting
+     * @return hash of new tree root
+     */
+    default CompletableFuture<Multihash> removeAll(PublicKeyHash owner,
+                                                   SigningPrivateKeyAndPublicHash writer,
+                                                   List<Pair<byte[], MaybeMultihash>> keysAndExisting,
+                                                   TransactionId tid) {
+        List<Mutation> removes = new ArrayList<>();
+        for (Pair<byte[], MaybeMultihash> remove : keysAndExisting)
+            removes.add(Mutation.remove(remove.left, remove.right));
+        return applyBatch(owner, writer, removes, tid);
+    }
+
+    class Mutation {
+        public final byte[] key;
+        public final MaybeMultihash existing, value;
+
+        public Mutation(byte[] key, MaybeMultihash existing, MaybeMultihash value) {
+            this.key = key;
+            this.existing = existing;
+            this.value = value;
+        }
+
+        public static Mutation put(byte[] key, MaybeMultihash existing, Multihash value) {
+            return new Mutation(key, existing, MaybeMultihash.of(value));
+        }
+
+        public static Mutation remove(byte[] key, MaybeMultihash existing) {
+            return new Mutation(key, existing, MaybeMultihash.empty());
+        }
+    }
 }
@@ -7,6 +7,7 @@ import peergos.shared.MaybeMultihash;
 import peergos.shared.storage.*;
 
 import java.io.*;
+import java.util.*;
 import java.util.concurrent.*;
 
 public interface MutableTree {
@@ -55,6 +56,19 @@ public interface MutableTree {
                                          MaybeMultihash existing,
                                          TransactionId tid);
 
+    /** Apply several mutations to the tree for a writer, writing each modified tree node once
+     *
+     * @param base The WriterData at the current mutable pointer for the writer
+     * @param owner
+     * @param sharingKey
+     * @param mutations
+     * @return the new root WriterData
+     */
+    CompletableFuture<WriterData> applyBatch(WriterData base,
+                                             PublicKeyHash owner,
+                                             SigningPrivateKeyAndPublicHash sharingKey,
+                                             List<ImmutableTree.Mutation> mutations,
+                                             TransactionId tid);
 
     class CasException extends RuntimeException {
         public CasException(MaybeMultihash actualExisting, MaybeMultihash claimedExisting) {
@@ -10,6 +10,7 @@ import peergos.shared.mutable.*;
 import peergos.shared.storage.*;
 import peergos.shared.util.*;
 
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
 
@@ -80,4 +81,19 @@ public class MutableTreeImpl implements MutableTree {
                         + ArrayOps.bytesToHex(mapKey) + "  => " + pair) : pair)
                 .thenApply(newTreeRoot -> base.withChamp(newTreeRoot));
     }
+
+    @Override
+    public CompletableFuture<WriterData> applyBatch(WriterData base,
+                                                    PublicKeyHash owner,
+                                                    SigningPrivateKeyAndPublicHash writer,
+                                                    List<ImmutableTree.Mutation> mutations,
+                                                    TransactionId tid) {
+        return (base.tree.isPresent() ?
+                ChampWrapper.create(base.tree.get(), hasher, dht, writeHasher) :
+                ChampWrapper.create(owner, writer, x -> x.data, tid, dht, writeHasher)
+        ).thenCompose(tree -> tree.applyBatch(owner, writer, mutations, tid))
+                .thenApply(newRoot -> LOGGING ? log(newRoot, "TREE.batch (" + mutations.size()
+                        + " mutations) => CAS(" + base.tree + ", " + newRoot + ")") : newRoot)
+                .thenApply(base::withChamp);
+    }
 }
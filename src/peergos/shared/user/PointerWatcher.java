@@ -0,0 +1,114 @@
+package peergos.shared.user;
+
+import peergos.shared.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.mutable.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** Keeps the cached pointers and writer data of a NetworkAccess up to date with changes made by other clients.
+ *
+ * Every writer cached by the WriteSynchronizer is watched, as well as any watched explicitly. Rather than polling each
+ * of them, this makes a long poll subscription for all of them. Each update invalidates the pointer cache (if the
+ * mutable pointers are caching) and then refreshes the WriteSynchronizer, which only fetches the new writer data if it
+ * has a version of the writer that is out of date. Writers which are cached or watched while a subscription is waiting are
+ * included in the next one.
+ *
+ * Each poll is run on the watcher's executor, as posts block the calling thread in Java.
+ */
+public class PointerWatcher {
+    private static final Logger LOG = Logger.getGlobal();
+    private static final int RETRY_DELAY_MILLIS = 5_000;
+    private static final int IDLE_DELAY_MILLIS = 1_000;
+
+    private final NetworkAccess network;
+    // writer -> owner
+    private final Map<PublicKeyHash, PublicKeyHash> watched = new ConcurrentHashMap<>();
+    private ScheduledThreadPoolExecutor executor;
+    private volatile long sequence = -1;
+    private volatile boolean running;
+
+    public PointerWatcher(NetworkAccess network) {
+        this.network = network;
+    }
+
+    public void watch(PublicKeyHash owner, PublicKeyHash writer) {
+        watched.put(writer, owner);
+    }
+
+    public void unwatch(PublicKeyHash writer) {
+        watched.remove(writer);
+    }
+
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        executor = new ScheduledThreadPoolExecutor(1);
+        pollAfter(0);
+    }
+
+    public synchronized void stop() {
+        if (! running)
+            return;
+        running = false;
+        executor.shutdownNow();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private synchronized void pollAfter(int milliseconds) {
+        if (! running)
+            return;
+        // a poll scheduled before a restart must not start a second poll loop
+        ScheduledThreadPoolExecutor current = executor;
+        executor.schedule(() -> poll(current), milliseconds, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized boolean isCurrent(ScheduledThreadPoolExecutor scheduledOn) {
+        return running && scheduledOn == executor;
+    }
+
+    private boolean poll(ScheduledThreadPoolExecutor scheduledOn) {
+        if (! isCurrent(scheduledOn))
+            return false;
+        Map<PublicKeyHash, PublicKeyHash> writers = network.synchronizer.getCachedWriters();
+        writers.putAll(watched);
+        if (writers.isEmpty()) {
+            pollAfter(IDLE_DELAY_MILLIS);
+            return false;
+        }
+        network.mutable.subscribe(writers.keySet(), sequence)
+                .thenCompose(res -> apply(writers, res))
+                .thenApply(done -> {
+                    pollAfter(0);
+                    return true;
+                }).exceptionally(t -> {
+                    if (running)
+                        LOG.log(Level.WARNING, "Error watching pointers: " + t.getMessage(), t);
+                    pollAfter(RETRY_DELAY_MILLIS);
+                    return false;
+                });
+        return true;
+    }
+
+    private CompletableFuture<Boolean> apply(Map<PublicKeyHash, PublicKeyHash> writers, PointerUpdates res) {
+        sequence = res.sequence;
+        if (res.reset)
+            return Futures.combineAll(writers.entrySet().stream()
+                    .map(e -> network.synchronizer.refresh(e.getValue(), e.getKey(), Optional.empty()))
+                    .collect(Collectors.toList()))
+                    .thenApply(x -> true);
+        return Futures.combineAll(res.updates.stream()
+                .map(u -> MutablePointers.parsePointerTarget(u.writerSignedBtreeRootHash, u.writer, network.dhtClient)
+                        .thenCompose(target -> network.synchronizer.refresh(u.owner, u.writer, Optional.of(target))))
+                .collect(Collectors.toList()))
+                .thenApply(x -> true);
+    }
+}
@@ -89,6 +89,9 @@ public class UserContext {
         this.writeSynchronizer = network.synchronizer;
         if (signer != null) {
             writeSynchronizer.put(signer.publicKeyHash, signer.publicKeyHash, userData);
+            // Java clients start watching explicitly, as the poll thread would keep the JVM alive
+            if (network.isJavascript())
+                network.pointerWatcher.start();
         }
         this.transactions = transactions;
         this.sharedWithCache = new SharedWithCache();
@@ -1829,6 +1832,7 @@ public class UserContext {
 
     public void logout() {
         entrie = TrieNodeImpl.empty();
+        network.pointerWatcher.stop();
     }
 
     @JsMethod
@@ -10,6 +10,7 @@ import peergos.shared.storage.*;
 import peergos.shared.util.*;
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
@@ -47,6 +48,28 @@ public class WriteSynchronizer {
         put(owner, writer, emptyUserData);
     }
 
+    /**
+     *
+     * @return The writers which have a cached version, mapped to their owners
+     */
+    public Map<PublicKeyHash, PublicKeyHash> getCachedWriters() {
+        Map<PublicKeyHash, PublicKeyHash> res = new HashMap<>();
+        for (Pair<PublicKeyHash, PublicKeyHash> ownerAndWriter : pending.keySet())
+            res.put(ownerAndWriter.right, ownerAndWriter.left);
+        return res;
+    }
+
+    /**
+     *
+     * @param owner
+     * @param writer
+     * @return The cached version of writer, after any pending updates, without fetching a newer one
+     */
+    public Optional<CompletableFuture<Snapshot>> getCachedValue(PublicKeyHash owner, PublicKeyHash writer) {
+        return Optional.ofNullable(pending.get(new Pair<>(owner, writer)))
+                .map(AsyncLock::getValue);
+    }
+
     public CompletableFuture<Snapshot> getWriterData(PublicKeyHash owner, PublicKeyHash writer) {
         return mutable.getPointer(owner, writer)
                 .thenCompose(dataOpt -> dht.getSigningKey(writer)
@@ -69,6 +92,28 @@ public class WriteSynchronizer {
                 .runWithLock(x -> getWriterData(owner, writer), () -> getWriterData(owner, writer));
     }
 
+    /** Bring a writer's cached version up to date with a change made elsewhere, after any pending local updates.
+     * Nothing is fetched if the writer isn't cached, or if the cached version is already at the updated target.
+     *
+     * An update can be older than the cached version, e.g. a notification of this client's own earlier commit, so the
+     * new version is always read from the mutable pointers, never taken from the update, and a writer never moves
+     * backwards.
+     *
+     * @param updatedTarget The new target of the writer's pointer, or empty if it is unknown
+     */
+    public CompletableFuture<Boolean> refresh(PublicKeyHash owner,
+                                              PublicKeyHash writer,
+                                              Optional<MaybeMultihash> updatedTarget) {
+        AsyncLock<Snapshot> lock = pending.get(new Pair<>(owner, writer));
+        if (lock == null)
+            return CompletableFuture.completedFuture(true);
+        return lock.runWithLock(current -> updatedTarget.isPresent() && current.get(writer).hash.equals(updatedTarget.get()) ?
+                        CompletableFuture.completedFuture(current) :
+                        getWriterData(owner, writer),
+                () -> getWriterData(owner, writer))
+                .thenApply(x -> true);
+    }
+
     public CompletableFuture<Snapshot> applyUpdate(PublicKeyHash owner,
                                                    SigningPrivateKeyAndPublicHash writer,
                                                    Mutation transformer) {
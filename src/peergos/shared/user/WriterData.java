@@ -22,6 +22,11 @@ public class WriterData implements Cborable {
      *  Represents the merkle node that a public key maps to
      */
 
+    private static final long CACHE_BYTES = 1024 * 1024;
+    private static final int MAX_CACHED_SIZE = 64 * 1024;
+    // Decoded WriterData by hash
+    public static final ObjectCache<Multihash, WriterData> CACHE = new ObjectCache<>(CACHE_BYTES, MAX_CACHED_SIZE);
+
     // the public signing key controlling this subspace
     public final PublicKeyHash controller;
 
@@ -419,11 +424,11 @@ public class WriterData implements Cborable {
     }
 
     public static CompletableFuture<CommittedWriterData> getWriterData(Multihash hash, ContentAddressedStorage dht) {
-        return dht.get(hash)
-                .thenApply(cborOpt -> {
-                    if (! cborOpt.isPresent())
+        return CACHE.get(hash, () -> dht.getRaw(hash), raw -> WriterData.fromCbor(CborObject.fromByteArray(raw)))
+                .thenApply(wdOpt -> {
+                    if (! wdOpt.isPresent())
                         throw new IllegalStateException("Couldn't retrieve WriterData from dht! " + hash);
-                    return new CommittedWriterData(MaybeMultihash.of(hash), WriterData.fromCbor(cborOpt.get()));
+                    return new CommittedWriterData(MaybeMultihash.of(hash), wdOpt.get());
                 });
     }
 }
@@ -0,0 +1,202 @@
+package peergos.shared.user.fs;
+
+import java.util.logging.*;
+import peergos.shared.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+import peergos.shared.user.fs.cryptree.*;
+import peergos.shared.util.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/** Deletes whole subtrees of files and directories.
+ *
+ * First all the chunks to remove are found, walking subtrees in parallel, and grouped by writer. Then the chunks of
+ * each writer are removed from its champ in a single batched mutation and commit. Finally the signing keys of any
+ * deleted writing subspaces are removed from the writers that own them.
+ */
+public class BulkDeleter {
+    private static final Logger LOG = Logger.getGlobal();
+
+    private static class ChunkRemoval {
+        public final SigningPrivateKeyAndPublicHash writer;
+        public final byte[] mapKey;
+        public final MaybeMultihash existing;
+
+        public ChunkRemoval(SigningPrivateKeyAndPublicHash writer, byte[] mapKey, MaybeMultihash existing) {
+            this.writer = writer;
+            this.mapKey = mapKey;
+            this.existing = existing;
+        }
+    }
+
+    private static class OwnedKeyRemoval {
+        public final SigningPrivateKeyAndPublicHash parent;
+        public final PublicKeyHash owned;
+
+        public OwnedKeyRemoval(SigningPrivateKeyAndPublicHash parent, PublicKeyHash owned) {
+            this.parent = parent;
+            this.owned = owned;
+        }
+    }
+
+    private static class DeletePlan {
+        public final List<ChunkRemoval> chunks;
+        public final List<OwnedKeyRemoval> ownedKeys;
+
+        public DeletePlan(List<ChunkRemoval> chunks, List<OwnedKeyRemoval> ownedKeys) {
+            this.chunks = chunks;
+            this.ownedKeys = ownedKeys;
+        }
+
+        public static DeletePlan merge(List<DeletePlan> plans) {
+            return new DeletePlan(
+                    plans.stream().flatMap(p -> p.chunks.stream()).collect(Collectors.toList()),
+                    plans.stream().flatMap(p -> p.ownedKeys.stream()).collect(Collectors.toList()));
+        }
+
+        public static final DeletePlan EMPTY = new DeletePlan(Collections.emptyList(), Collections.emptyList());
+    }
+
+    /** Delete a file or directory, all its subsequent chunks and all its descendants
+     *
+     * @param root the first chunk to delete
+     * @param parentSigner the signer of the parent directory, or of the root itself
+     * @param progress is given the number of chunks removed after each writer is committed
+     * @return
+     */
+    public static CompletableFuture<Snapshot> deleteAll(WritableAbsoluteCapability root,
+                                                        SigningPrivateKeyAndPublicHash parentSigner,
+                                                        ProgressConsumer<Long> progress,
+                                                        Hasher hasher,
+                                                        NetworkAccess network,
+                                                        TransactionId tid,
+                                                        Snapshot version,
+                                                        Committer committer) {
+        long t0 = System.currentTimeMillis();
+        return collect(root, parentSigner, hasher, network, version)
+                .thenCompose(plan -> {
+                    LOG.info("Found " + plan.chunks.size() + " chunks to delete in " + (System.currentTimeMillis() - t0) + " mS");
+                    return apply(root.owner, plan, progress, network, tid, version, committer);
+                });
+    }
+
+    private static CompletableFuture<DeletePlan> collect(WritableAbsoluteCapability cap,
+                                                         SigningPrivateKeyAndPublicHash parentSigner,
+                                                         Hasher hasher,
+                                                         NetworkAccess network,
+                                                         Snapshot version) {
+        return version.withWriter(cap.owner, cap.writer, network)
+                .thenCompose(s -> network.getMetadata(s.get(cap.writer).props, cap)
+                        .thenCompose(mOpt -> {
+                            if (! mOpt.isPresent())
+                                return Futures.of(DeletePlan.EMPTY);
+                            CryptreeNode first = mOpt.get();
+                            SigningPrivateKeyAndPublicHash signer = first.getSigner(cap.rBaseKey, cap.wBaseKey.get(),
+                                    Optional.of(parentSigner));
+                            List<ChunkRemoval> chunks = new ArrayList<>();
+                            List<CompletableFuture<DeletePlan>> children = new ArrayList<>();
+                            return collectChunks(first, cap, signer, chunks, children, hasher, network, s)
+                                    .thenCompose(done -> Futures.combineAllInOrder(children))
+                                    .thenApply(childPlans -> {
+                                        List<OwnedKeyRemoval> ownedKeys = cap.writer.equals(parentSigner.publicKeyHash) ?
+                                                Collections.emptyList() :
+                                                Collections.singletonList(new OwnedKeyRemoval(parentSigner, cap.writer));
+                                        List<DeletePlan> all = new ArrayList<>(childPlans);
+                                        all.add(new DeletePlan(chunks, ownedKeys));
+                                        return DeletePlan.merge(all);
+                                    });
+                        }));
+    }
+
+    /** Follow the chain of chunks of a file or directory, starting a collection for the children of each directory
+     * chunk as soon as it is found.
+     */
+    private static CompletableFuture<Boolean> collectChunks(CryptreeNode chunk,
+                                                            WritableAbsoluteCapability cap,
+                                                            SigningPrivateKeyAndPublicHash signer,
+                                                            List<ChunkRemoval> chunks,
+                                                            List<CompletableFuture<DeletePlan>> children,
+                                                            Hasher hasher,
+                                                            NetworkAccess network,
+                                                            Snapshot version) {
+        chunks.add(new ChunkRemoval(signer, cap.getMapKey(), chunk.committedHash()));
+        if (chunk.isDirectory())
+            children.add(chunk.getDirectChildrenCapabilities(cap, network)
+                    .thenCompose(childCaps -> Futures.combineAllInOrder(childCaps.stream()
+                            .map(c -> collect((WritableAbsoluteCapability) c, signer, hasher, network, version))
+                            .collect(Collectors.toList())))
+                    .thenApply(DeletePlan::merge));
+
+        Optional<byte[]> streamSecret = chunk.getProperties(chunk.getParentKey(cap.rBaseKey)).streamSecret;
+        return chunk.getNextChunkLocation(cap.rBaseKey, streamSecret, cap.getMapKey(), hasher)
+                .thenCompose(nextMapKey -> {
+                    WritableAbsoluteCapability nextCap = cap.withMapKey(nextMapKey);
+                    return network.getMetadata(version.get(cap.writer).props, nextCap)
+                            .thenCompose(nextOpt -> nextOpt.isPresent() ?
+                                    collectChunks(nextOpt.get(), nextCap, signer, chunks, children, hasher, network, version) :
+                                    Futures.of(true));
+                });
+    }
+
+    private static CompletableFuture<Snapshot> apply(PublicKeyHash owner,
+                                                     DeletePlan plan,
+                                                     ProgressConsumer<Long> progress,
+                                                     NetworkAccess network,
+                                                     TransactionId tid,
+                                                     Snapshot version,
+                                                     Committer committer) {
+        Map<PublicKeyHash, List<ChunkRemoval>> byWriter = new LinkedHashMap<>();
+        for (ChunkRemoval chunk : plan.chunks)
+            byWriter.computeIfAbsent(chunk.writer.publicKeyHash, w -> new ArrayList<>()).add(chunk);
+
+        // no need to update the owned keys of a writer which is itself being removed
+        Set<PublicKeyHash> removedWriters = plan.ownedKeys.stream()
+                .map(k -> k.owned)
+                .collect(Collectors.toSet());
+        Map<PublicKeyHash, List<OwnedKeyRemoval>> byParent = new LinkedHashMap<>();
+        for (OwnedKeyRemoval key : plan.ownedKeys)
+            if (! removedWriters.contains(key.parent.publicKeyHash))
+                byParent.computeIfAbsent(key.parent.publicKeyHash, w -> new ArrayList<>()).add(key);
+
+        return Futures.reduceAll(byWriter.values(), version,
+                (s, chunks) -> {
+                    SigningPrivateKeyAndPublicHash writer = chunks.get(0).writer;
+                    List<Pair<byte[], MaybeMultihash>> removals = chunks.stream()
+                            .map(c -> new Pair<>(c.mapKey, c.existing))
+                            .collect(Collectors.toList());
+                    return s.withWriter(owner, writer.publicKeyHash, network)
+                            .thenCompose(withWriter -> network.deleteChunks(withWriter, committer, removals, owner, writer, tid))
+                            .thenApply(res -> {
+                                progress.accept((long) chunks.size());
+                                return res;
+                            });
+                }, (a, b) -> b)
+                .thenCompose(s -> Futures.reduceAll(byParent.values(), s,
+                        (v, keys) -> removeOwnedKeys(owner, keys.get(0).parent, keys.stream()
+                                .map(k -> k.owned)
+                                .collect(Collectors.toList()), network, v, committer),
+                        (a, b) -> b));
+    }
+
+    private static CompletableFuture<Snapshot> removeOwnedKeys(PublicKeyHash owner,
+                                                               SigningPrivateKeyAndPublicHash parent,
+                                                               List<PublicKeyHash> ownedKeys,
+                                                               NetworkAccess network,
+                                                               Snapshot current,
+                                                               Committer committer) {
+        PublicKeyHash parentWriter = parent.publicKeyHash;
+        return current.withWriter(owner, parentWriter, network)
+                .thenCompose(s -> Futures.reduceAll(ownedKeys, s.get(parent).props,
+                        (wd, key) -> wd.removeOwnedKey(owner, parent, key, network.dhtClient, network.hasher),
+                        (a, b) -> b)
+                        .thenCompose(removed -> IpfsTransaction.call(owner,
+                                tid -> committer.commit(owner, parent, removed, s.get(parent), tid),
+                                network.dhtClient))
+                        .thenApply(committed -> s.withVersion(parentWriter, committed.get(parentWriter))));
+    }
+}
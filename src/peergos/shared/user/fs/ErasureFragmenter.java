@@ -2,7 +2,7 @@ package peergos.shared.user.fs;
 
 
 import peergos.shared.cbor.*;
-import peergos.shared.user.fs.erasure.Erasure;
+import peergos.shared.user.fs.erasure.*;
 import peergos.shared.util.*;
 
 import java.util.*;
@@ -12,10 +12,12 @@ public class ErasureFragmenter implements Fragmenter {
 
     private final int nOriginalFragments;
     private final int nAllowedFailures;
+    private final ReedSolomon coder;
 
     public ErasureFragmenter(int nOriginalFragments, int nAllowedFailures) {
         this.nOriginalFragments = nOriginalFragments;
         this.nAllowedFailures = nAllowedFailures;
+        this.coder = new ReedSolomon(nOriginalFragments, nAllowedFailures);
     }
 
     @Override
@@ -24,12 +26,12 @@ public class ErasureFragmenter implements Fragmenter {
     }
 
     public byte[][] split(byte[] input) {
-        return Erasure.split(input, nOriginalFragments, nAllowedFailures);
+        return coder.split(input);
     }
 
     public byte[] recombine(byte[][] encoded, int startOffset, int truncateLength) {
         // truncateTo should be  input.length
-        byte[] withoutPrefix = Erasure.recombine(encoded, truncateLength, nOriginalFragments, nAllowedFailures);
+        byte[] withoutPrefix = coder.recombine(encoded, truncateLength);
         byte[] withPrefix = new byte[startOffset + withoutPrefix.length];
         System.arraycopy(withoutPrefix, 0, withPrefix, startOffset, withoutPrefix.length);
         return withPrefix;
@@ -18,6 +18,7 @@ import java.util.stream.*;
 
 public class FileUploader implements AutoCloseable {
 	private static final Logger LOG = Logger.getGlobal();
+    private static final int DEFAULT_PIPELINE_WINDOW = 4;
 
     private final String name;
     private final long offset, length;
@@ -111,38 +112,221 @@ public class FileUploader implements AutoCloseable {
                                               PublicKeyHash owner,
                                               SigningPrivateKeyAndPublicHash writer,
                                               Hasher hasher) {
+        return upload(current, committer, network, owner, writer, hasher, DEFAULT_PIPELINE_WINDOW);
+    }
+
+    /** Upload all the chunks of the file
+     *
+     * @param window the maximum number of chunks which have been read but not added to the writer's champ. Reading,
+     *               encrypting and uploading the fragments of chunks within the window overlap, and ready chunks are
+     *               added together. The pointer is only committed once all chunks have been added, so a failed upload
+     *               leaves it unchanged. A window of 1 uploads and commits each chunk in turn.
+     * @return
+     */
+    public CompletableFuture<Snapshot> upload(Snapshot current,
+                                              Committer committer,
+                                              NetworkAccess network,
+                                              PublicKeyHash owner,
+                                              SigningPrivateKeyAndPublicHash writer,
+                                              Hasher hasher,
+                                              int window) {
         long t1 = System.currentTimeMillis();
 
-        List<Integer> input = IntStream.range(0, (int) nchunks).mapToObj(i -> Integer.valueOf(i)).collect(Collectors.toList());
-        return Futures.reduceAll(input, current, (cwd, i) -> uploadChunk(cwd, committer, network, owner, writer, i,
-                MaybeMultihash.empty(), monitor, hasher), (a, b) -> b)
+        if (window <= 1 || nchunks == 1) {
+            List<Integer> input = IntStream.range(0, (int) nchunks).mapToObj(i -> Integer.valueOf(i)).collect(Collectors.toList());
+            return Futures.reduceAll(input, current, (cwd, i) -> uploadChunk(cwd, committer, network, owner, writer, i,
+                    MaybeMultihash.empty(), monitor, hasher), (a, b) -> b)
+                    .thenApply(x -> {
+                        LOG.info("File encryption, upload took: " +(System.currentTimeMillis()-t1) + " mS");
+                        return x;
+                    });
+        }
+
+        PipelineStats stats = new PipelineStats();
+        return IpfsTransaction.call(owner,
+                tid -> pipelinedUpload(current, committer, network, owner, writer, hasher, window, tid, stats),
+                network.dhtClient)
                 .thenApply(x -> {
-                    LOG.info("File encryption, upload took: " +(System.currentTimeMillis()-t1) + " mS");
+                    long duration = System.currentTimeMillis() - t1;
+                    LOG.info("File encryption, upload took: " + duration + " mS, " + stats.summary(length, duration));
                     return x;
                 });
     }
 
-    public static CompletableFuture<Snapshot> uploadChunk(Snapshot current,
-                                                          Committer committer,
-                                                          SigningPrivateKeyAndPublicHash writer,
-                                                          FileProperties props,
-                                                          Location parentLocation,
-                                                          SymmetricKey parentparentKey,
-                                                          SymmetricKey baseKey,
-                                                          LocatedChunk chunk,
-                                                          Location nextChunkLocation,
-                                                          Optional<SymmetricLinkToSigner> writerLink,
-                                                          Hasher hasher,
-                                                          NetworkAccess network,
-                                                          ProgressConsumer<Long> monitor) {
-        CappedProgressConsumer progress = new CappedProgressConsumer(monitor, chunk.chunk.length());
+    private CompletableFuture<Snapshot> pipelinedUpload(Snapshot current,
+                                                        Committer committer,
+                                                        NetworkAccess network,
+                                                        PublicKeyHash owner,
+                                                        SigningPrivateKeyAndPublicHash writer,
+                                                        Hasher hasher,
+                                                        int window,
+                                                        TransactionId tid,
+                                                        PipelineStats stats) {
+        int n = (int) nchunks;
+        List<CompletableFuture<Pair<byte[], CryptreeNode>>> prepared = new ArrayList<>(n);
+        List<CompletableFuture<Boolean>> added = new ArrayList<>(n);
+        for (int i=0; i < n; i++)
+            added.add(new CompletableFuture<>());
+
+        CompletableFuture<Boolean> previousRead = Futures.of(true);
+        for (int i=0; i < n; i++) {
+            int chunkIndex = i;
+            // reads are sequential, and wait for a free slot in the window
+            CompletableFuture<Boolean> slot = i >= window ? added.get(i - window) : Futures.of(true);
+            CompletableFuture<byte[]> read = previousRead.thenCombine(slot, (a, b) -> true)
+                    .thenCompose(x -> readChunk(chunkIndex, stats));
+            previousRead = read.thenApply(x -> true);
+            prepared.add(read.thenCompose(data -> prepareChunk(data, chunkIndex, network, owner, writer, hasher, tid, stats)));
+        }
+
+        CommittedWriterData version = current.get(writer);
+        CompletableFuture<WriterData> result = addPrepared(0, version.props, network, owner, writer, window,
+                prepared, added, tid, stats);
+        // stop reading further chunks on failure
+        result.exceptionally(t -> {
+            added.forEach(f -> f.completeExceptionally(t));
+            return null;
+        });
+        return result.thenCompose(wd -> {
+            long commitStart = System.currentTimeMillis();
+            return committer.commit(owner, writer, wd, version, tid)
+                    .thenApply(committed -> {
+                        stats.addCommit(System.currentTimeMillis() - commitStart);
+                        return current.withVersion(writer.publicKeyHash, committed.get(writer));
+                    });
+        });
+    }
+
+    private CompletableFuture<byte[]> readChunk(long chunkIndex, PipelineStats stats) {
+        long position = chunkIndex * Chunk.MAX_SIZE;
+        boolean isLastChunk = length < position + Chunk.MAX_SIZE;
+        int chunkLength = isLastChunk ? (int)(length - position) : Chunk.MAX_SIZE;
+        byte[] data = new byte[chunkLength];
+        long start = System.currentTimeMillis();
+        return reader.readIntoArray(data, 0, data.length).thenApply(x -> {
+            stats.addRead(System.currentTimeMillis() - start);
+            return data;
+        });
+    }
+
+    private CompletableFuture<Pair<byte[], CryptreeNode>> prepareChunk(byte[] data,
+                                                                       long chunkIndex,
+                                                                       NetworkAccess network,
+                                                                       PublicKeyHash owner,
+                                                                       SigningPrivateKeyAndPublicHash writer,
+                                                                       Hasher hasher,
+                                                                       TransactionId tid,
+                                                                       PipelineStats stats) {
+        LOG.info("uploading chunk: "+chunkIndex + " of "+name);
+        byte[] nonce = baseKey.createNonce();
+        return FileProperties.calculateMapKey(props.streamSecret.get(), firstLocation,
+                chunkIndex * Chunk.MAX_SIZE, hasher)
+                .thenCompose(mapKey -> FileProperties.calculateNextMapKey(props.streamSecret.get(), mapKey, hasher)
+                        .thenCompose(nextMapKey -> {
+                            Chunk chunk = new Chunk(data, dataKey, mapKey, nonce);
+                            LocatedChunk locatedChunk = new LocatedChunk(new Location(owner, writer.publicKeyHash, chunk.mapKey()), MaybeMultihash.empty(), chunk);
+                            Location nextLocation = new Location(owner, writer.publicKeyHash, nextMapKey);
+                            CappedProgressConsumer progress = new CappedProgressConsumer(monitor, chunk.length());
+                            long encryptStart = System.currentTimeMillis();
+                            return encryptChunk(writer, props, parentLocation, parentparentKey, baseKey, locatedChunk,
+                                    nextLocation, Optional.empty(), hasher, network, progress)
+                                    .thenCompose(file -> {
+                                        long uploadStart = System.currentTimeMillis();
+                                        stats.addEncrypt(uploadStart - encryptStart);
+                                        return network.uploadFragments(file.right, owner, writer, progress, tid)
+                                                .thenApply(hashes -> {
+                                                    stats.addFragmentUpload(System.currentTimeMillis() - uploadStart);
+                                                    return new Pair<>(mapKey, file.left);
+                                                });
+                                    });
+                        }));
+    }
+
+    /** Add all the contiguous prepared chunks from startIndex, up to the window size, to the champ in a single update
+     */
+    private CompletableFuture<WriterData> addPrepared(int startIndex,
+                                                      WriterData current,
+                                                      NetworkAccess network,
+                                                      PublicKeyHash owner,
+                                                      SigningPrivateKeyAndPublicHash writer,
+                                                      int window,
+                                                      List<CompletableFuture<Pair<byte[], CryptreeNode>>> prepared,
+                                                      List<CompletableFuture<Boolean>> added,
+                                                      TransactionId tid,
+                                                      PipelineStats stats) {
+        if (startIndex >= prepared.size())
+            return Futures.of(current);
+        return prepared.get(startIndex).thenCompose(first -> {
+            int end = startIndex + 1;
+            while (end < prepared.size() && end < startIndex + window &&
+                    prepared.get(end).isDone() && ! prepared.get(end).isCompletedExceptionally())
+                end++;
+            int nextIndex = end;
+            long addStart = System.currentTimeMillis();
+            // these are all complete already
+            return Futures.combineAllInOrder(prepared.subList(startIndex, nextIndex))
+                    .thenCompose(batch -> network.addChunks(current, batch, owner, writer, tid))
+                    .thenCompose(updated -> {
+                        stats.addChampUpdate(System.currentTimeMillis() - addStart);
+                        for (int i = startIndex; i < nextIndex; i++)
+                            added.get(i).complete(true);
+                        return addPrepared(nextIndex, updated, network, owner, writer, window,
+                                prepared, added, tid, stats);
+                    });
+        });
+    }
+
+    /** Cumulative time spent in each stage of a pipelined upload
+     */
+    private static class PipelineStats {
+        private long readMillis, encryptMillis, fragmentUploadMillis, champMillis, champUpdates, commitMillis;
+
+        synchronized void addRead(long millis) {
+            readMillis += millis;
+        }
+
+        synchronized void addEncrypt(long millis) {
+            encryptMillis += millis;
+        }
+
+        synchronized void addFragmentUpload(long millis) {
+            fragmentUploadMillis += millis;
+        }
+
+        synchronized void addChampUpdate(long millis) {
+            champMillis += millis;
+            champUpdates++;
+        }
+
+        synchronized void addCommit(long millis) {
+            commitMillis += millis;
+        }
+
+        synchronized String summary(long bytes, long durationMillis) {
+            return "throughput: " + (bytes * 1000 / Math.max(1, durationMillis) / 1024) + " KiB/s, stage times (mS) read: "
+                    + readMillis + ", encrypt: " + encryptMillis + ", fragment upload: " + fragmentUploadMillis
+                    + ", champ: " + champMillis + " in " + champUpdates + " updates, commit: " + commitMillis;
+        }
+    }
+
+    private static CompletableFuture<Pair<CryptreeNode, List<Fragment>>> encryptChunk(SigningPrivateKeyAndPublicHash writer,
+                                                                                       FileProperties props,
+                                                                                       Location parentLocation,
+                                                                                       SymmetricKey parentparentKey,
+                                                                                       SymmetricKey baseKey,
+                                                                                       LocatedChunk chunk,
+                                                                                       Location nextChunkLocation,
+                                                                                       Optional<SymmetricLinkToSigner> writerLink,
+                                                                                       Hasher hasher,
+                                                                                       NetworkAccess network,
+                                                                                       CappedProgressConsumer progress) {
         if (! writer.publicKeyHash.equals(chunk.location.writer))
             throw new IllegalStateException("Trying to write a chunk to the wrong signing key space!");
         RelativeCapability nextChunk = RelativeCapability.buildSubsequentChunk(nextChunkLocation.getMapKey(), baseKey);
         return CryptreeNode.createFile(chunk.existingHash, chunk.location.writer, baseKey,
                 chunk.chunk.key(), props, chunk.chunk.data(), parentLocation, parentparentKey, nextChunk,
                 hasher, network.isJavascript())
-                .thenCompose(file -> {
+                .thenApply(file -> {
                     CryptreeNode metadata = file.left.withWriterLink(baseKey, writerLink);
 
                     List<Fragment> fragments = file.right.stream()
@@ -153,14 +337,33 @@ public class FileUploader implements AutoCloseable {
                     if (fragments.size() < file.right.size())
                         progress.accept((long) chunk.chunk.length());
                     LOG.info("Uploading chunk with " + fragments.size() + " fragments\n");
-                    return IpfsTransaction.call(chunk.location.owner,
-                            tid -> network.uploadFragments(fragments, chunk.location.owner, writer, progress, tid)
-                                    .thenCompose(hashes -> network.uploadChunk(current, committer, metadata, chunk.location.owner,
-                                            chunk.chunk.mapKey(), writer, tid)),
-                            network.dhtClient);
+                    return new Pair<>(metadata, fragments);
                 });
     }
 
+    public static CompletableFuture<Snapshot> uploadChunk(Snapshot current,
+                                                          Committer committer,
+                                                          SigningPrivateKeyAndPublicHash writer,
+                                                          FileProperties props,
+                                                          Location parentLocation,
+                                                          SymmetricKey parentparentKey,
+                                                          SymmetricKey baseKey,
+                                                          LocatedChunk chunk,
+                                                          Location nextChunkLocation,
+                                                          Optional<SymmetricLinkToSigner> writerLink,
+                                                          Hasher hasher,
+                                                          NetworkAccess network,
+                                                          ProgressConsumer<Long> monitor) {
+        CappedProgressConsumer progress = new CappedProgressConsumer(monitor, chunk.chunk.length());
+        return encryptChunk(writer, props, parentLocation, parentparentKey, baseKey, chunk, nextChunkLocation,
+                writerLink, hasher, network, progress)
+                .thenCompose(file -> IpfsTransaction.call(chunk.location.owner,
+                        tid -> network.uploadFragments(file.right, chunk.location.owner, writer, progress, tid)
+                                .thenCompose(hashes -> network.uploadChunk(current, committer, file.left, chunk.location.owner,
+                                        chunk.chunk.mapKey(), writer, tid)),
+                        network.dhtClient));
+    }
+
     public void close() {
         reader.close();
     }
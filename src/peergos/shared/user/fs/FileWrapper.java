@@ -35,6 +35,8 @@ public class FileWrapper {
 	private static final Logger LOG = Logger.getGlobal();
 
     private final static int THUMBNAIL_SIZE = 100;
+    // The maximum number of copied file chunks to commit in a single update
+    private static final int COPY_COMMIT_BATCH_SIZE = 64;
     private static final NativeJSThumbnail thumbnail = new NativeJSThumbnail();
 
     private final RetrievedCapability pointer;
@@ -1204,6 +1206,17 @@ public class FileWrapper {
 
     @JsMethod
     public CompletableFuture<Boolean> copyTo(FileWrapper target, UserContext context) {
+        return copyTo(target, false, context);
+    }
+
+    /**
+     *
+     * @param target
+     * @param isolateKeys If true, re-encrypt the copy with new keys, even within the same owner's space
+     * @param context
+     * @return
+     */
+    public CompletableFuture<Boolean> copyTo(FileWrapper target, boolean isolateKeys, UserContext context) {
         ensureUnmodified();
         NetworkAccess network = context.network;
         Crypto crypto = context.crypto;
@@ -1213,7 +1226,7 @@ public class FileWrapper {
 
         return context.network.synchronizer.applyComplexUpdate(target.owner(), target.signingPair(),
                 (version, committer) -> version.withWriter(owner(), writer(), network)
-                        .thenCompose(both -> copyTo(target, network, crypto, both, committer)))
+                        .thenCompose(both -> copyTo(target, isolateKeys, network, crypto, both, committer)))
                 .thenApply(newAccess -> true);
     }
 
@@ -1222,6 +1235,29 @@ public class FileWrapper {
                                               Crypto crypto,
                                               Snapshot version,
                                               Committer committer) {
+        return copyTo(target, false, network, crypto, version, committer);
+    }
+
+    /** Copy this file or directory into the target directory.
+     *
+     * Within the same owner, files are copied without downloading or re-uploading their data. The copy gets new
+     * metadata which links to the existing encrypted fragments. Copies to another owner, or with isolated keys,
+     * re-encrypt the data.
+     *
+     * @param target
+     * @param isolateKeys
+     * @param network
+     * @param crypto
+     * @param version
+     * @param committer
+     * @return
+     */
+    public CompletableFuture<Snapshot> copyTo(FileWrapper target,
+                                              boolean isolateKeys,
+                                              NetworkAccess network,
+                                              Crypto crypto,
+                                              Snapshot version,
+                                              Committer committer) {
         if (! target.isDirectory()) {
             return Futures.errored(new IllegalStateException("CopyTo target " + target + " must be a directory"));
         }
@@ -1243,14 +1279,12 @@ public class FileWrapper {
                                 getFileProperties().isHidden, network, crypto, version, committer)
                                 .thenCompose(versionWithDir ->
                                         network.getFile(versionWithDir, newCap, target.getChildsEntryWriter(), target.ownername)
-                                                .thenCompose(subTargetOpt -> {
-                                                    FileWrapper newTarget = subTargetOpt.get();
-                                                    return Futures.reduceAll(children, versionWithDir,
-                                                            (s, child) -> newTarget.getUpdated(s, network)
-                                                                    .thenCompose(updated ->
-                                                                            child.copyTo(updated, network, crypto, s, committer)),
-                                                            (a, b) -> a.merge(b));
-                                                })));
+                                                .thenCompose(subTargetOpt -> copyChildren(children, subTargetOpt.get(),
+                                                        isolateKeys, network, crypto, versionWithDir, committer))));
+            } else if (! isolateKeys && target.owner().equals(owner())) {
+                return copyWithoutReupload(target, network, crypto, version)
+                        .thenCompose(copy -> commitCopies(Collections.singletonList(copy), target, network, crypto,
+                                version, committer));
             } else {
                 return version.withWriter(owner(), writer(), network).thenCompose(snapshot ->
                         getInputStream(snapshot.get(writer()).props, network, crypto, x -> {})
@@ -1262,6 +1296,107 @@ public class FileWrapper {
         });
     }
 
+    /** Copy the children of a directory into a new empty directory. Files which can be copied without re-uploading are
+     * prepared in parallel, and then committed together. Everything else is copied in turn.
+     */
+    private static CompletableFuture<Snapshot> copyChildren(Set<FileWrapper> children,
+                                                            FileWrapper newDir,
+                                                            boolean isolateKeys,
+                                                            NetworkAccess network,
+                                                            Crypto crypto,
+                                                            Snapshot version,
+                                                            Committer committer) {
+        Predicate<FileWrapper> withoutReupload = c -> ! c.isDirectory() && ! isolateKeys && c.owner().equals(newDir.owner());
+        List<CompletableFuture<Pair<WritableAbsoluteCapability, List<Pair<byte[], CryptreeNode>>>>> prepared = children.stream()
+                .filter(withoutReupload)
+                .map(c -> c.copyWithoutReupload(newDir, network, crypto, version))
+                .collect(Collectors.toList());
+        List<FileWrapper> others = children.stream()
+                .filter(withoutReupload.negate())
+                .collect(Collectors.toList());
+        return Futures.combineAllInOrder(prepared)
+                .thenCompose(copies -> copies.isEmpty() ?
+                        Futures.of(version) :
+                        commitCopies(copies, newDir, network, crypto, version, committer))
+                .thenCompose(withFiles -> Futures.reduceAll(others, withFiles,
+                        (s, child) -> newDir.getUpdated(s, network)
+                                .thenCompose(updated -> child.copyTo(updated, isolateKeys, network, crypto, s, committer)),
+                        (a, b) -> b));
+    }
+
+    /** Build the metadata for a copy of this file in the target directory which links to our encrypted fragments
+     *
+     * @return the capability for the copy and its chunks, labelled by their map keys
+     */
+    private CompletableFuture<Pair<WritableAbsoluteCapability, List<Pair<byte[], CryptreeNode>>>> copyWithoutReupload(
+            FileWrapper target,
+            NetworkAccess network,
+            Crypto crypto,
+            Snapshot version) {
+        WritableAbsoluteCapability newCap = new WritableAbsoluteCapability(target.owner(), target.writer(),
+                crypto.random.randomBytes(32), SymmetricKey.random(), SymmetricKey.random());
+        byte[] newStreamSecret = crypto.random.randomBytes(32);
+        RelativeCapability toParent = new RelativeCapability(Optional.empty(), target.getLocation().getMapKey(),
+                target.getParentKey(), Optional.empty());
+        List<Pair<byte[], CryptreeNode>> copied = new ArrayList<>();
+        return version.withWriter(owner(), writer(), network)
+                .thenCompose(snapshot -> copyChunks(pointer.fileAccess, pointer.capability, getFileProperties().streamSecret,
+                        newCap, newStreamSecret, Optional.of(toParent), copied, snapshot, network, crypto.hasher))
+                .thenApply(done -> new Pair<>(newCap, copied));
+    }
+
+    private static CompletableFuture<Boolean> copyChunks(CryptreeNode chunk,
+                                                         AbsoluteCapability cap,
+                                                         Optional<byte[]> streamSecret,
+                                                         WritableAbsoluteCapability newCap,
+                                                         byte[] newStreamSecret,
+                                                         Optional<RelativeCapability> newParentCap,
+                                                         List<Pair<byte[], CryptreeNode>> copied,
+                                                         Snapshot version,
+                                                         NetworkAccess network,
+                                                         Hasher hasher) {
+        return chunk.getNextChunkLocation(cap.rBaseKey, streamSecret, cap.getMapKey(), hasher)
+                .thenCompose(nextMapKey -> FileProperties.calculateNextMapKey(newStreamSecret, newCap.getMapKey(), hasher)
+                        .thenCompose(newNextMapKey -> {
+                            copied.add(new Pair<>(newCap.getMapKey(), chunk.copyFileChunk(cap.rBaseKey, newCap.rBaseKey,
+                                    newStreamSecret, newParentCap,
+                                    RelativeCapability.buildSubsequentChunk(newNextMapKey, newCap.rBaseKey))));
+                            return chunk.getNextChunk(version, cap.withMapKey(nextMapKey), network)
+                                    .thenCompose(next -> ! next.isPresent() ?
+                                            Futures.of(true) :
+                                            copyChunks(next.get().fileAccess, next.get().capability, streamSecret,
+                                                    newCap.withMapKey(newNextMapKey), newStreamSecret, Optional.empty(),
+                                                    copied, version, network, hasher));
+                        }));
+    }
+
+    /** Commit the chunks of copied files in batches, then add them all to the target directory in one update
+     */
+    private static CompletableFuture<Snapshot> commitCopies(List<Pair<WritableAbsoluteCapability, List<Pair<byte[], CryptreeNode>>>> copies,
+                                                            FileWrapper target,
+                                                            NetworkAccess network,
+                                                            Crypto crypto,
+                                                            Snapshot version,
+                                                            Committer committer) {
+        List<Pair<byte[], CryptreeNode>> chunks = copies.stream()
+                .flatMap(p -> p.right.stream())
+                .collect(Collectors.toList());
+        List<List<Pair<byte[], CryptreeNode>>> batches = new ArrayList<>();
+        for (int i=0; i < chunks.size(); i += COPY_COMMIT_BATCH_SIZE)
+            batches.add(chunks.subList(i, Math.min(chunks.size(), i + COPY_COMMIT_BATCH_SIZE)));
+        SigningPrivateKeyAndPublicHash signer = target.signingPair();
+        List<WritableAbsoluteCapability> newCaps = copies.stream()
+                .map(p -> p.left)
+                .collect(Collectors.toList());
+        return IpfsTransaction.call(target.owner(),
+                tid -> Futures.reduceAll(batches, version,
+                        (s, batch) -> network.uploadChunks(s, committer, batch, target.owner(), signer, tid),
+                        (a, b) -> b), network.dhtClient)
+                .thenCompose(withChunks -> target.getUpdated(withChunks, network)
+                        .thenCompose(latest -> latest.pointer.fileAccess.addChildLinks(latest.writableFilePointer(),
+                                signer, newCaps, network, crypto, withChunks, committer)));
+    }
+
     @JsMethod
     public CompletableFuture<Boolean> hasChild(String fileName, Hasher hasher, NetworkAccess network) {
         if (!isLegalName(fileName)) {
@@ -1373,37 +1508,7 @@ public class FileWrapper {
                                                               NetworkAccess network,
                                                               Snapshot version,
                                                               Committer committer) {
-        return version.withWriter(currentCap.owner, currentCap.writer, network)
-                .thenCompose(current -> network.getMetadata(current.get(currentCap.writer).props, currentCap)
-                        .thenCompose(mOpt -> {
-                            if (! mOpt.isPresent()) {
-                                return CompletableFuture.completedFuture(current);
-                            }
-                            SigningPrivateKeyAndPublicHash ourSigner = mOpt.get()
-                                    .getSigner(currentCap.rBaseKey, currentCap.wBaseKey.get(), Optional.of(signer));
-                            return network.deleteChunk(current, committer, mOpt.get(), currentCap.owner,
-                                    currentCap.getMapKey(), ourSigner, tid)
-                                    .thenCompose(deletedVersion -> {
-                                        CryptreeNode chunk = mOpt.get();
-                                        Optional<byte[]> streamSecret = chunk.getProperties(chunk
-                                                .getParentKey(currentCap.rBaseKey)).streamSecret;
-                                        return chunk.getNextChunkLocation(currentCap.rBaseKey, streamSecret,
-                                                currentCap.getMapKey(), hasher).thenCompose(nextChunkMapKey ->
-                                                deleteAllChunks(currentCap.withMapKey(nextChunkMapKey), signer, tid, hasher,
-                                                        network, deletedVersion, committer));
-                                    })
-                                    .thenCompose(updatedVersion -> {
-                                        if (! mOpt.get().isDirectory())
-                                            return CompletableFuture.completedFuture(updatedVersion);
-                                        return mOpt.get().getDirectChildrenCapabilities(currentCap, network).thenCompose(childCaps ->
-                                                Futures.reduceAll(childCaps,
-                                                        updatedVersion,
-                                                        (v, cap) -> deleteAllChunks((WritableAbsoluteCapability) cap, signer,
-                                                                tid, hasher, network, v, committer),
-                                                        (x, y) -> y));
-                                    })
-                                    .thenCompose(s -> removeSigningKey(currentCap.writer, signer, currentCap.owner, network, s, committer));
-                        }));
+        return BulkDeleter.deleteAll(currentCap, signer, x -> {}, hasher, network, tid, version, committer);
     }
 
     /**
@@ -1413,6 +1518,18 @@ public class FileWrapper {
      */
     @JsMethod
     public CompletableFuture<FileWrapper> remove(FileWrapper parent, UserContext userContext) {
+        return remove(parent, userContext, x -> {});
+    }
+
+    /**
+     * @param parent
+     * @param userContext
+     * @param progress is given the number of chunks deleted as they are committed
+     * @return updated parent
+     */
+    public CompletableFuture<FileWrapper> remove(FileWrapper parent,
+                                                 UserContext userContext,
+                                                 ProgressConsumer<Long> progress) {
         NetworkAccess network = userContext.network;
         Hasher hasher = userContext.crypto.hasher;
         ensureUnmodified();
@@ -1423,39 +1540,19 @@ public class FileWrapper {
         return (writableParent ? parent.removeChild(this, network, hasher) : CompletableFuture.completedFuture(parent))
                 .thenCompose(updatedParent -> network.synchronizer.applyComplexUpdate(owner(), signingPair(),
                         (version, committer) -> IpfsTransaction.call(owner(),
-                                tid -> FileWrapper.deleteAllChunks(
+                                tid -> BulkDeleter.deleteAll(
                                         isLink() ?
                                                 (WritableAbsoluteCapability) getLinkPointer().capability :
                                                 writableFilePointer(),
                                         writableParent ?
                                                 parent.signingPair() :
-                                                signingPair(), tid, hasher, network, version, committer), network.dhtClient))
+                                                signingPair(), progress, hasher, network, tid, version, committer), network.dhtClient))
                         .thenApply(b -> {
                             userContext.sharedWithCache.clearSharedWith(pointer.capability);
                             return updatedParent;
                         }));
     }
 
-    public static CompletableFuture<Snapshot> removeSigningKey(PublicKeyHash signerToRemove,
-                                                               SigningPrivateKeyAndPublicHash parentSigner,
-                                                               PublicKeyHash owner,
-                                                               NetworkAccess network,
-                                                               Snapshot current,
-                                                               Committer committer) {
-        PublicKeyHash parentWriter = parentSigner.publicKeyHash;
-        if (parentWriter.equals(signerToRemove))
-            return CompletableFuture.completedFuture(current);
-
-        return current.withWriter(owner, parentWriter, network)
-                .thenCompose(s -> s.get(parentSigner).props
-                        .removeOwnedKey(owner, parentSigner, signerToRemove, network.dhtClient, network.hasher)
-                        .thenCompose(removed -> IpfsTransaction.call(
-                                owner,
-                                tid -> committer.commit(owner, parentSigner, removed, s.get(parentSigner), tid),
-                                network.dhtClient))
-                        .thenApply(committed -> s.withVersion(parentWriter, committed.get(parentWriter))));
-    }
-
     public CompletableFuture<? extends AsyncReader> getInputStream(NetworkAccess network,
                                                                    Crypto crypto,
                                                                    ProgressConsumer<Long> monitor) {
@@ -45,6 +45,10 @@ public class CryptreeNode implements Cborable {
     private static final int BASE_BLOCK_PADDING_BLOCKSIZE = 64;
     private static final int MIN_FRAGMENT_SIZE = 4096;
     private static int MAX_CHILD_LINKS_PER_BLOB = 500;
+    private static final long CACHE_BYTES = 10 * 1024 * 1024;
+    private static final int MAX_CACHED_SIZE = 64 * 1024;
+    // Decoded nodes by hash and the base key they were decoded with
+    public static final ObjectCache<Pair<Multihash, SymmetricKey>, CryptreeNode> CACHE = new ObjectCache<>(CACHE_BYTES, MAX_CACHED_SIZE);
 
     public static synchronized void setMaxChildLinkPerBlob(int newValue) {
         MAX_CHILD_LINKS_PER_BLOB = newValue;
@@ -675,6 +679,31 @@ public class CryptreeNode implements Cborable {
         });
     }
 
+    /** Create a copy of this file chunk under a new base key, which links to the same encrypted fragments.
+     *
+     * Only the data key is re-wrapped. It is marked dirty because holders of the original can decrypt the fragments,
+     * so the copy is cleaned before it is modified.
+     *
+     * @param baseKey our current base key
+     * @param newBaseKey
+     * @param newStreamSecret the stream secret of the copy, which determines its subsequent chunk locations
+     * @param newParentCap only the first chunk of a file has a link to its parent
+     * @param newNextChunk
+     * @return the uncommitted copy
+     */
+    public CryptreeNode copyFileChunk(SymmetricKey baseKey,
+                                      SymmetricKey newBaseKey,
+                                      byte[] newStreamSecret,
+                                      Optional<RelativeCapability> newParentCap,
+                                      RelativeCapability newNextChunk) {
+        if (isDirectory())
+            throw new IllegalStateException("Only file chunks can be copied!");
+        FileProperties props = getProperties(getParentKey(baseKey)).withNewStreamSecret(newStreamSecret);
+        SymmetricKey dataKey = getDataKey(baseKey).makeDirty();
+        return createFile(MaybeMultihash.empty(), Optional.empty(), newBaseKey, dataKey, props, childrenOrData,
+                newParentCap, newNextChunk);
+    }
+
     public CompletableFuture<Snapshot> cleanAndCommit(Snapshot current,
                                                       Committer committer,
                                                       WritableAbsoluteCapability cap,
@@ -9,7 +9,7 @@ public class Erasure {
 
     public static byte[][] split(byte[] input, int originalBlobs, int allowedFailures)
     {
-        return split(input, new GaloisField256(), originalBlobs, allowedFailures);
+        return new ReedSolomon(originalBlobs, allowedFailures).split(input);
     }
 
     public static byte[][] split(byte[] input, GaloisField f, int originalBlobs, int allowedFailures)
@@ -49,12 +49,12 @@ public class Erasure {
 
     public static byte[] recombine(byte[][] encoded, int truncateTo, int originalBlobs, int allowedFailures)
     {
-        return recombine(new GaloisField256(), encoded, truncateTo, originalBlobs, allowedFailures);
+        return new ReedSolomon(originalBlobs, allowedFailures).recombine(encoded, truncateTo);
     }
 
     public static byte[] recombine(List<byte[]> encoded, int truncateTo, int originalBlobs, int allowedFailures)
     {
-        return recombine(new GaloisField256(), encoded.toArray(new byte[0][]), truncateTo, originalBlobs, allowedFailures);
+        return recombine(encoded.toArray(new byte[0][]), truncateTo, originalBlobs, allowedFailures);
     }
 
     public static byte[] recombine(GaloisField f, byte[][] encoded, int truncateTo, int originalBlobs, int allowedFailures)
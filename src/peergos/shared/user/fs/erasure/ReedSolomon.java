@@ -0,0 +1,292 @@
+package peergos.shared.user.fs.erasure;
+
+import java.util.*;
+import java.util.stream.*;
+
+/** A table driven systematic Reed-Solomon coder over GF(256).
+ *
+ * The output is byte for byte identical to Erasure.split with a GaloisField256. Each stripe of input bytes is encoded
+ * as one codeword, whose symbols are dealt out to the fragments in runs of symbolSize bytes. The first
+ * nOriginalFragments fragments are the input itself, so recombining when they are all present is just concatenation.
+ * Missing fragments are treated as erasures at known positions, so up to 2 * nAllowedFailures can be recovered.
+ * Multiplications are all table lookups, with the products of each symbol precomputed for the encoding and decoding
+ * inner loops, which are then plain xors of byte arrays.
+ *
+ * Stripes are independent and are encoded and decoded in parallel.
+ */
+public class ReedSolomon {
+    private static final int STRIPES_PER_TASK = 256;
+    private static final int[] EXP = new int[512];
+    private static final int[] LOG = new int[256];
+    // MUL[a][b] = a * b in GF(256)
+    private static final byte[][] MUL = new byte[256][256];
+    static {
+        GaloisField256 f = new GaloisField256();
+        for (int i=0; i < 512; i++)
+            EXP[i] = f.exp(i);
+        for (int i=0; i < 255; i++)
+            LOG[EXP[i]] = i;
+        for (int a=0; a < 256; a++)
+            for (int b=0; b < 256; b++)
+                MUL[a][b] = (byte) f.mul(a, b);
+    }
+
+    private final int nOriginalFragments, nFragments;
+    private final int symbolSize, inputSize, encodeSize, nec;
+    // generatorMultiples[c][j] = c * (coefficient j of the generator polynomial, highest order first)
+    private final byte[][] generatorMultiples;
+
+    public ReedSolomon(int nOriginalFragments, int nAllowedFailures) {
+        this.nOriginalFragments = nOriginalFragments;
+        this.nFragments = nOriginalFragments + 2 * nAllowedFailures;
+        this.encodeSize = (256 / nFragments) * nFragments;
+        this.symbolSize = encodeSize / nFragments;
+        this.inputSize = symbolSize * nOriginalFragments;
+        this.nec = encodeSize - inputSize;
+        if (symbolSize == 0)
+            throw new IllegalStateException("Too many fragments for GF(256): " + nFragments);
+        int[] g = {1};
+        for (int i=0; i < nec; i++) {
+            int[] next = new int[g.length + 1];
+            for (int j=0; j < g.length; j++) {
+                next[j] ^= g[j];
+                next[j + 1] ^= mul(g[j], EXP[i]);
+            }
+            g = next;
+        }
+        this.generatorMultiples = new byte[256][g.length];
+        for (int c=0; c < 256; c++)
+            for (int j=0; j < g.length; j++)
+                generatorMultiples[c][j] = MUL[c][g[j]];
+    }
+
+    private static int mul(int a, int b) {
+        return MUL[a][b] & 0xff;
+    }
+
+    private static int inverse(int a) {
+        if (a == 0)
+            throw new IllegalStateException("Zero has no inverse!");
+        return EXP[255 - LOG[a]];
+    }
+
+    public byte[][] split(byte[] input) {
+        int nStripes = (input.length + inputSize - 1) / inputSize;
+        int fragmentSize = nStripes * symbolSize;
+        byte[][] res = new byte[nFragments][fragmentSize];
+        forEachStripeRange(nStripes, (start, end) -> {
+            byte[] codeword = new byte[encodeSize];
+            for (int s = start; s < end; s++)
+                encodeStripe(input, s, codeword, res);
+        });
+        return res;
+    }
+
+    private void encodeStripe(byte[] input, int stripe, byte[] codeword, byte[][] out) {
+        int inputOffset = stripe * inputSize;
+        int len = Math.max(0, Math.min(inputSize, input.length - inputOffset));
+        System.arraycopy(input, inputOffset, codeword, 0, len);
+        Arrays.fill(codeword, len, encodeSize, (byte) 0);
+        for (int j=0; j < nOriginalFragments; j++)
+            System.arraycopy(codeword, j * symbolSize, out[j], stripe * symbolSize, symbolSize);
+
+        // long division by the generator polynomial leaves the parity symbols after the input
+        for (int i=0; i < inputSize; i++) {
+            int c = codeword[i] & 0xff;
+            if (c == 0)
+                continue;
+            byte[] row = generatorMultiples[c];
+            for (int j=0; j < row.length; j++)
+                codeword[i + j] ^= row[j];
+        }
+        for (int j = nOriginalFragments; j < nFragments; j++)
+            System.arraycopy(codeword, j * symbolSize, out[j], stripe * symbolSize, symbolSize);
+    }
+
+    private static boolean isMissing(byte[] fragment) {
+        return fragment == null || fragment.length == 0;
+    }
+
+    public byte[] recombine(byte[][] encoded, int truncateTo) {
+        if (encoded.length == 0)
+            return new byte[0];
+        if (encoded.length != nFragments)
+            throw new IllegalStateException("Incorrect number of fragments: " + encoded.length + " != " + nFragments);
+        byte[] res = new byte[truncateTo];
+        List<Integer> missing = new ArrayList<>();
+        for (int j=0; j < nFragments; j++)
+            if (isMissing(encoded[j]))
+                missing.add(j);
+        int nStripes = encoded[firstPresent(encoded)].length / symbolSize;
+
+        boolean dataPresent = missing.isEmpty() || missing.get(0) >= nOriginalFragments;
+        if (dataPresent) {
+            // fast path, the original fragments are the input
+            forEachStripeRange(nStripes, (start, end) -> {
+                for (int s = start; s < end; s++)
+                    copyDataSymbols(encoded, s, res);
+            });
+            return res;
+        }
+
+        if (missing.size() * symbolSize > nec)
+            throw new IllegalStateException("Too many missing fragments to recover chunk: " + missing.size());
+        Decoder decoder = new Decoder(missing);
+        forEachStripeRange(nStripes, (start, end) -> {
+            byte[] sums = new byte[decoder.missingDataPositions.length];
+            for (int s = start; s < end; s++)
+                decoder.decodeStripe(encoded, s, sums, res);
+        });
+        return res;
+    }
+
+    private static int firstPresent(byte[][] encoded) {
+        for (int j=0; j < encoded.length; j++)
+            if (! isMissing(encoded[j]))
+                return j;
+        throw new IllegalStateException("No fragments present!");
+    }
+
+    private void copyDataSymbols(byte[][] encoded, int stripe, byte[] res) {
+        int stripeOffset = stripe * inputSize;
+        for (int j=0; j < nOriginalFragments; j++) {
+            if (isMissing(encoded[j]))
+                continue;
+            int target = stripeOffset + j * symbolSize;
+            int len = Math.min(symbolSize, res.length - target);
+            if (len <= 0)
+                return;
+            System.arraycopy(encoded[j], stripe * symbolSize, res, target, len);
+        }
+    }
+
+    /** Recovers missing data symbols from the symbols of each codeword which are present.
+     *
+     * A codeword c has c(a^i) = 0 for i < nec, where a is the field generator and c_k is the coefficient of
+     * x^(encodeSize-1-k). Any inputSize symbols determine the rest, so we use the first inputSize present symbols
+     * and treat the other nec as unknown. These nec equations form a Vandermonde system in the unknown symbols. Inverting
+     * it once gives each missing data symbol as a linear combination of the used symbols, which is the same for every
+     * stripe, and we tabulate the products of each used symbol.
+     */
+    private class Decoder {
+        private final int[] knownPositions;
+        private final int[] missingDataPositions;
+        // products[k][c][r] = c * (the weight of known symbol k in missing data symbol r)
+        private final byte[][][] products;
+
+        Decoder(List<Integer> missingFragments) {
+            Set<Integer> missing = new HashSet<>(missingFragments);
+            List<Integer> unknown = new ArrayList<>();
+            List<Integer> known = new ArrayList<>();
+            List<Integer> missingData = new ArrayList<>();
+            for (int k=0; k < encodeSize; k++) {
+                boolean isMissing = missing.contains(k / symbolSize);
+                if (isMissing && k < inputSize)
+                    missingData.add(k);
+                if (isMissing || known.size() == inputSize)
+                    unknown.add(k);
+                else
+                    known.add(k);
+            }
+            knownPositions = known.stream().mapToInt(i -> i).toArray();
+            missingDataPositions = missingData.stream().mapToInt(i -> i).toArray();
+
+            // V[i][t] = a^(i * (encodeSize - 1 - unknown[t]))
+            int e = unknown.size();
+            int[][] v = new int[e][e];
+            for (int i=0; i < e; i++)
+                for (int t=0; t < e; t++)
+                    v[i][t] = power(encodeSize - 1 - unknown.get(t), i);
+            int[][] vInverse = invert(v);
+
+            // unknown = V^-1 * (sum over known k of H[i][k] * c_k), H[i][k] = a^(i * (encodeSize - 1 - k))
+            products = new byte[knownPositions.length][256][missingDataPositions.length];
+            for (int r=0; r < missingDataPositions.length; r++) {
+                int[] inverseRow = vInverse[unknown.indexOf(missingDataPositions[r])];
+                for (int k=0; k < knownPositions.length; k++) {
+                    int weight = 0;
+                    for (int i=0; i < e; i++)
+                        weight ^= mul(inverseRow[i], power(encodeSize - 1 - knownPositions[k], i));
+                    for (int c=0; c < 256; c++)
+                        products[k][c][r] = MUL[weight][c];
+                }
+            }
+        }
+
+        void decodeStripe(byte[][] encoded, int stripe, byte[] sums, byte[] res) {
+            int stripeOffset = stripe * inputSize;
+            if (stripeOffset >= res.length)
+                return;
+            copyDataSymbols(encoded, stripe, res);
+            Arrays.fill(sums, (byte) 0);
+            for (int k=0; k < knownPositions.length; k++) {
+                int pos = knownPositions[k];
+                int c = encoded[pos / symbolSize][stripe * symbolSize + pos % symbolSize] & 0xff;
+                if (c == 0)
+                    continue;
+                byte[] row = products[k][c];
+                for (int r=0; r < row.length; r++)
+                    sums[r] ^= row[r];
+            }
+            for (int r=0; r < missingDataPositions.length; r++) {
+                int target = stripeOffset + missingDataPositions[r];
+                if (target < res.length)
+                    res[target] = sums[r];
+            }
+        }
+    }
+
+    /**
+     *
+     * @return (a^exponent)^i
+     */
+    private static int power(int exponent, int i) {
+        return EXP[(exponent * i) % 255];
+    }
+
+    /** Invert a matrix over GF(256) by Gauss-Jordan elimination
+     */
+    private static int[][] invert(int[][] m) {
+        int n = m.length;
+        int[][] a = new int[n][2 * n];
+        for (int i=0; i < n; i++) {
+            System.arraycopy(m[i], 0, a[i], 0, n);
+            a[i][n + i] = 1;
+        }
+        for (int col=0; col < n; col++) {
+            int pivot = col;
+            while (pivot < n && a[pivot][col] == 0)
+                pivot++;
+            if (pivot == n)
+                throw new IllegalStateException("Singular erasure matrix!");
+            int[] tmp = a[col];
+            a[col] = a[pivot];
+            a[pivot] = tmp;
+            int scale = inverse(a[col][col]);
+            for (int j=0; j < 2 * n; j++)
+                a[col][j] = mul(a[col][j], scale);
+            for (int i=0; i < n; i++) {
+                int factor = a[i][col];
+                if (i == col || factor == 0)
+                    continue;
+                for (int j=0; j < 2 * n; j++)
+                    a[i][j] ^= mul(factor, a[col][j]);
+            }
+        }
+        int[][] res = new int[n][];
+        for (int i=0; i < n; i++)
+            res[i] = Arrays.copyOfRange(a[i], n, 2 * n);
+        return res;
+    }
+
+    private interface StripeRange {
+        void apply(int start, int end);
+    }
+
+    private static void forEachStripeRange(int nStripes, StripeRange task) {
+        int nTasks = (nStripes + STRIPES_PER_TASK - 1) / STRIPES_PER_TASK;
+        IntStream.range(0, nTasks)
+                .parallel()
+                .forEach(t -> task.apply(t * STRIPES_PER_TASK, Math.min(nStripes, (t + 1) * STRIPES_PER_TASK)));
+    }
+}
@@ -11,7 +11,6 @@ import peergos.shared.storage.TransactionId;
 import peergos.shared.user.*;
 import peergos.shared.user.fs.Location;
 import peergos.shared.user.fs.cryptree.CryptreeNode;
-import peergos.shared.util.Futures;
 
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
@@ -54,12 +53,12 @@ public class FileUploadTransaction implements Transaction {
         return locations;
     }
 
-    private CompletableFuture<Snapshot> clear(Snapshot version, Committer committer, NetworkAccess networkAccess, Location location) {
-        return networkAccess.deleteChunkIfPresent(version, committer, location.owner, writer, location.getMapKey());
-    }
-
     public CompletableFuture<Snapshot> clear(Snapshot version, Committer committer, NetworkAccess network) {
-        return Futures.reduceAll(locations, version, (s, loc) -> clear(s, committer, network, loc), (a, b) -> b);
+        // remove any chunks which were uploaded in a single commit
+        List<byte[]> mapKeys = locations.stream()
+                .map(Location::getMapKey)
+                .collect(Collectors.toList());
+        return network.deleteChunksIfPresent(version, committer, owner, writer, mapKeys);
     }
 
     @Override